@@ -0,0 +1,199 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes arrays of numbers as little-endian binary blobs to sidecar files of an output document.
+ * Each blob is written to a single file, starting at a multiple of eight bytes; a new file is started when
+ * the current one would exceed the maximum file size. Blobs are collected in a direct ByteBuffer and
+ * written to the FileChannel of the current file whenever the buffer is full.
+ * The files are named after the document: city.xhtml is accompanied by city_0.bin, city_1.bin, ...
+ * @author Daniel Spieldenner
+ */
+public class BinaryBufferWriter {
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 1L << 30;     //keeps offsets within the range of 32 bit integers
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int ALIGNMENT = 8;
+
+    /**
+     * Location of a blob: file name relative to the document, offset and length in bytes
+     */
+    public static class Range {
+
+        private String file;
+        private long offset;
+        private long length;
+
+        Range(String file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    private File directory;
+    private String baseName;
+    private long maxFileSize;
+    private int fileIndex = -1;
+    private String fileName;                    //name of the current file, relative to the document
+    private FileChannel channel;
+    private long flushed = 0;                   //number of bytes written to the channel of the current file
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Create a new writer for the sidecar files of the given document
+     * @param documentName Path to the output document
+     */
+    public BinaryBufferWriter(String documentName) {
+        this(documentName, DEFAULT_MAX_FILE_SIZE);
+    }
+
+    /**
+     * Create a new writer for the sidecar files of the given document
+     * @param documentName Path to the output document
+     * @param maxFileSize Size in bytes a file must not exceed, unless it holds only a single larger blob
+     */
+    public BinaryBufferWriter(String documentName, long maxFileSize) {
+        File document = new File(documentName).getAbsoluteFile();
+        this.directory = document.getParentFile();
+        String name = document.getName();
+        int extension = name.lastIndexOf('.');
+        this.baseName = extension > 0 ? name.substring(0, extension) : name;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Write the first count values of an int array as 32 bit integers
+     * @return Location of the blob
+     */
+    public Range write(int[] values, int count) throws IOException {
+        long start = startBlob(count * 4L);
+        int written = 0;
+        while (written < count) {
+            //bulk copy through a view of the buffer, as much as fits
+            ensureRemaining(4);
+            int n = Math.min(count - written, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(values, written, n);
+            buffer.position(buffer.position() + n * 4);
+            written += n;
+        }
+        return endBlob(start);
+    }
+
+    /**
+     * Write the first count values of a float array as 32 bit floats
+     * @return Location of the blob
+     */
+    public Range write(float[] values, int count) throws IOException {
+        long start = startBlob(count * 4L);
+        int written = 0;
+        while (written < count) {
+            //bulk copy through a view of the buffer, as much as fits
+            ensureRemaining(4);
+            int n = Math.min(count - written, buffer.remaining() / 4);
+            buffer.asFloatBuffer().put(values, written, n);
+            buffer.position(buffer.position() + n * 4);
+            written += n;
+        }
+        return endBlob(start);
+    }
+
+    /**
+     * Write the first count values of a double array as 64 bit floats
+     * @return Location of the blob
+     */
+    public Range write(double[] values, int count) throws IOException {
+        long start = startBlob(count * 8L);
+        int written = 0;
+        while (written < count) {
+            //bulk copy through a view of the buffer, as much as fits
+            ensureRemaining(8);
+            int n = Math.min(count - written, buffer.remaining() / 8);
+            buffer.asDoubleBuffer().put(values, written, n);
+            buffer.position(buffer.position() + n * 8);
+            written += n;
+        }
+        return endBlob(start);
+    }
+
+    /**
+     * Write all buffered data and close the current file
+     */
+    public void close() throws IOException {
+        if (channel != null) {
+            flush();
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Start a new blob of the given length, padding the current file to the alignment or starting a new file
+     * @return Offset of the blob in the current file
+     */
+    private long startBlob(long length) throws IOException {
+        long start = (offset() + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        if (channel == null || (start > 0 && start + length > maxFileSize)) {
+            nextFile();
+            start = 0;
+        }
+        while (offset() < start) {
+            ensureRemaining(1);
+            buffer.put((byte) 0);
+        }
+        return start;
+    }
+
+    private Range endBlob(long start) {
+        return new Range(fileName, start, offset() - start);
+    }
+
+    /**
+     * @return Offset in the current file at which the next byte is written
+     */
+    private long offset() {
+        return flushed + buffer.position();
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            flushed += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void nextFile() throws IOException {
+        close();
+        fileIndex++;
+        fileName = baseName + "_" + fileIndex + ".bin";
+        RandomAccessFile file = new RandomAccessFile(new File(directory, fileName), "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        flushed = 0;
+    }
+}
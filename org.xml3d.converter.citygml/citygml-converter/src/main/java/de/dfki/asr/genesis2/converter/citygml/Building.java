@@ -8,7 +8,7 @@ import java.util.ArrayList;
 import org.w3c.dom.*;
 import java.util.Map;
 import java.util.HashMap;
-
+import org.jboss.logging.Logger;
 
 
 /**
@@ -18,51 +18,35 @@ import java.util.HashMap;
  */
 public class Building {
 
+    private static final Logger log = Logger.getLogger(Building.class.getName());
+
     private String id;                                              //building id, retrieved either from gml file or uniquely generated
     private ArrayList<XmlPoly> poly = new ArrayList<XmlPoly>();     //list of polygons that define the building
     private Element buildingNode;                                   //building Node in the gmlTree 
 
     /**
-     * Get the positions defining a given polygon from the gml file and add store them
-     * as 3D vector
+     * Get the positions defining a given polygon from the gml file and store them
+     * in the given tokenizer
      * @param polygon The polygon to be processed
-     * @return List of positions defining this polygon
+     * @param coordinates Tokenizer receiving the coordinates of the polygon
      */
-    private ArrayList<Vec3D> getPositions(Element polygon) {
-        //Get pos or PosList-Tag from the gml file, store each vertex as 3D-Vector and add to list
-        ArrayList<Vec3D> positions = new ArrayList<Vec3D>();        //initialize empty vector for storing positions
+    private void getPositions(Element polygon, CoordinateTokenizer coordinates) {
+        //Get pos or PosList-Tag from the gml file and scan their contents
+        coordinates.reset();
         NodeList posTags = polygon.getElementsByTagName("gml:pos");
         if (posTags.getLength() > 0) {
             for (int i = 0; i < posTags.getLength(); i++) {
-                if (posTags.item(i).getNodeName() != null && posTags.item(i).getNodeName().equals("gml:pos")) {
-                    //Found vertex definitions as single pos elements: Store each one as a single vector
-                    String vertexPos = posTags.item(i).getTextContent();
-                    String splitPos[] = vertexPos.split("\\s");
-
-                    Vec3D posVector = new Vec3D(Double.parseDouble(splitPos[0]), Double.parseDouble(splitPos[1]), Double.parseDouble(splitPos[2]));
-                    positions.add(posVector);
-                }
+                coordinates.append(posTags.item(i).getTextContent());
+                coordinates.separate();
             }
-
-            return positions;                                   //As positions are read from single pos tags, there is no need to check for posList-Tags: return
+            return;                                   //As positions are read from single pos tags, there is no need to check for posList-Tags: return
         }
 
         NodeList posListTags = polygon.getElementsByTagName("gml:posList");
-        if (posListTags.getLength() > 0) {
-            for (int i = 0; i < posListTags.getLength(); i++) {
-                String vertexPos = posListTags.item(i).getTextContent();
-                String splitPos[] = vertexPos.split("\\s");
-
-                for (int j = 0; j < (splitPos.length / 3); j++) {
-                    Vec3D posVector = new Vec3D(Double.parseDouble(splitPos[j * 3]), Double.parseDouble(splitPos[(j * 3) + 1]), Double.parseDouble(splitPos[(j * 3) + 2]));
-                    positions.add(posVector);
-                }
-            }
-
-            return positions;
+        for (int i = 0; i < posListTags.getLength(); i++) {
+            coordinates.append(posListTags.item(i).getTextContent());
+            coordinates.separate();
         }
-
-        return positions;   //just in case something went wrong, place a return statement here.
     }
 
     /**
@@ -100,6 +84,7 @@ public class Building {
     public void gatherPolygons() {
 
         NodeList children = buildingNode.getElementsByTagName("gml:Polygon");
+        CoordinateTokenizer coordinates = new CoordinateTokenizer();
 
         for (int i = 0; i < children.getLength(); i++) //iterate over children and create a list of polygons
         {
@@ -107,21 +92,50 @@ public class Building {
                 if (children.item(i).getNodeName().equals("gml:Polygon")) {
                     //For each polygon found, retrieve positions and id to store in the polygon
                     Element polyElement = (Element) children.item(i);
-                    String id = polyElement.getAttribute("gml:id");
-                    ArrayList<Vec3D> positions = getPositions(polyElement);
-                    XmlPoly foundPoly = new XmlPoly();
-                    foundPoly.setId(id);
-
-                    foundPoly.setPositions(positions);
-                    foundPoly.computeNormals();
-
-                    foundPoly.simpleTriangulation(); //perform a simple triangulation step
-                    poly.add(foundPoly);
+                    getPositions(polyElement, coordinates);
+                    addPolygon(polyElement.getAttribute("gml:id"), coordinates);
                 }
             }
 
         }
+        computeGeometry();
+
+    }
 
+    /**
+     * Compute normals and triangulation of all polygons of the building
+     */
+    public void computeGeometry() {
+        for (XmlPoly polygon : poly) {
+            polygon.computeGeometry();
+        }
+    }
+
+    /**
+     * Add a polygon to the building's list of polygons. Only the positions are stored; normals and triangulation
+     * are computed by computeGeometry() or, for many buildings at once, by a GeometryProcessor.
+     * @param id The gml:id of the polygon
+     * @param coordinates Tokenizer holding the coordinates of the polygon, as read from the gml file
+     */
+    public void addPolygon(String id, CoordinateTokenizer coordinates) {
+        addPolygon(id, IdRegistry.NO_HANDLE, coordinates);
+    }
+
+    /**
+     * Add a polygon to the building's list of polygons
+     * @param id The gml:id of the polygon
+     * @param handle Handle of the polygon in the IdRegistry
+     * @param coordinates Tokenizer holding the coordinates of the polygon, as read from the gml file
+     */
+    public void addPolygon(String id, int handle, CoordinateTokenizer coordinates) {
+        if (coordinates.getInvalidTokens() > 0) {
+            log.warn("Skipped " + coordinates.getInvalidTokens() + " invalid coordinates of polygon " + id + " in object " + this.id);
+        }
+        XmlPoly foundPoly = new XmlPoly();
+        foundPoly.setId(id);
+        foundPoly.setHandle(handle);
 
+        foundPoly.setPositions(coordinates.values(), coordinates.size() / 3);
+        poly.add(foundPoly);
     }
 }
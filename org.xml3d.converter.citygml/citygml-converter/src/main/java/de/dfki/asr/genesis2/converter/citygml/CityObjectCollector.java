@@ -0,0 +1,59 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.Map;
+import org.w3c.dom.Element;
+
+/**
+ * CityObjectHandler storing all city objects in the maps used by the xmlProcessor:
+ * buildings and land use objects with their semantics, ground objects and the shaders
+ * created from the appearances, which are bound to their targets in an IdRegistry. Appearances with the same
+ * parameters share a shader, handed out by a ShaderInterner.
+ * @author Daniel Spieldenner
+ */
+public class CityObjectCollector implements CityObjectHandler {
+
+    private Map<String, Building> buildingMap;
+    private Map<String, Semantics> semanticMap;
+    private Map<String, Ground> groundMap;
+    private ShaderInterner interner;
+    private IdRegistry registry;
+    private int groundCount = 0;                    //number of ground objects received so far, used for generated ids
+
+    /**
+     * Create a new collector storing city objects in the given maps
+     * @param buildingMap List of buildings, stored with their ids
+     * @param semanticMap List of semantic information, stored with the corresponding building's id
+     * @param groundMap List of ground objects, stored with their ids
+     * @param shaderMap List of shaders defined in the gml file
+     * @param registry Registry the targets of the shaders are bound in
+     */
+    public CityObjectCollector(Map<String, Building> buildingMap, Map<String, Semantics> semanticMap, Map<String, Ground> groundMap,
+            Map<String, xmlShader> shaderMap, IdRegistry registry) {
+        this.buildingMap = buildingMap;
+        this.semanticMap = semanticMap;
+        this.groundMap = groundMap;
+        this.interner = new ShaderInterner(shaderMap);
+        this.registry = registry;
+    }
+
+    public void building(Building building, Semantics semantics) {
+        buildingMap.put(building.getID(), building);
+        if (semantics != null) {
+            semanticMap.put(building.getID(), semantics);
+        }
+    }
+
+    public void ground(Ground ground) {
+        if (ground.getID() != null && ground.getID().isEmpty()) {
+            ground.setId("groundObject_" + groundCount);
+        }
+        groundCount++;
+        groundMap.put(ground.getID(), ground);
+    }
+
+    public void appearance(Element appearance) {
+        ShaderFactory shader = new ShaderFactory(appearance);
+        shader.getMaterial(interner, registry);
+        shader.getTextures(interner, registry);
+    }
+}
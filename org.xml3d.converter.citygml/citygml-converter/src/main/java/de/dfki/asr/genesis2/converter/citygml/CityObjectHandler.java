@@ -0,0 +1,31 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import org.w3c.dom.Element;
+
+/**
+ * Receives the city objects read from a gml file, one at a time and in document order.
+ * Used by the gmlTreeVisitor and, through it, by the gmlStreamParser.
+ * @author Daniel Spieldenner
+ */
+public interface CityObjectHandler {
+
+    /**
+     * A building (or land use object) has been read and its polygons have been gathered.
+     * @param building The building read
+     * @param semantics Semantic information found for the building, null if there is none
+     */
+    void building(Building building, Semantics semantics);
+
+    /**
+     * A relief feature has been read and its triangles have been gathered. If its triangulated surface
+     * has no gml:id, the id of the ground object is empty.
+     * @param ground The ground object read
+     */
+    void ground(Ground ground);
+
+    /**
+     * An app:Appearance node has been read. In streaming mode, the node is only valid during this call.
+     * @param appearance The appearance node, to be processed by a ShaderFactory
+     */
+    void appearance(Element appearance);
+}
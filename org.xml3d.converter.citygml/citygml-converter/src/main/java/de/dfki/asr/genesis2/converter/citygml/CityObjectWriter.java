@@ -0,0 +1,66 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.IOException;
+import org.w3c.dom.Element;
+
+/**
+ * CityObjectHandler converting each city object as soon as it is read: its geometry is computed by a
+ * GeometryProcessor and it is written by a xmlProcessor, after which nothing refers to it any more. So, unlike the
+ * CityObjectCollector, no more than a single city object is held in memory.
+ * Shaders and texture coordinates have to be bound before the first city object is written, so the appearances of
+ * the file are expected in the registry already (see gmlStreamParser.parseAppearances); appearances handed to
+ * this handler are skipped.
+ * @author Daniel Spieldenner
+ */
+public class CityObjectWriter implements CityObjectHandler {
+
+    private GeometryProcessor geometry;
+    private xmlProcessor processor;
+    private IdRegistry registry;
+    private String texturePath;
+    private float resX;
+    private float resY;
+    private int groundCount = 0;                    //number of ground objects received so far, used for generated ids
+
+    /**
+     * Create a new writer
+     * @param geometry Processor computing the geometry of each city object
+     * @param processor Processor writing each city object
+     * @param registry Registry holding the shaders and texture coordinates of all targets
+     * @param texturePath Directory holding the georeferenced textures of ground objects
+     */
+    public CityObjectWriter(GeometryProcessor geometry, xmlProcessor processor, IdRegistry registry, String texturePath, float resX, float resY) {
+        this.geometry = geometry;
+        this.processor = processor;
+        this.registry = registry;
+        this.texturePath = texturePath;
+        this.resX = resX;
+        this.resY = resY;
+    }
+
+    public void building(Building building, Semantics semantics) {
+        geometry.process(building, registry);
+        try {
+            processor.processBuilding(building, semantics, registry);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write building " + building.getID() + ": " + e, e);
+        }
+    }
+
+    public void ground(Ground ground) {
+        if (ground.getID() != null && ground.getID().isEmpty()) {
+            ground.setId("groundObject_" + groundCount);
+        }
+        groundCount++;
+        geometry.process(ground);
+        try {
+            processor.processGround(texturePath, ground, registry, resX, resY);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write ground object " + ground.getID() + ": " + e, e);
+        }
+    }
+
+    public void appearance(Element appearance) {
+        //bound before the first city object was read
+    }
+}
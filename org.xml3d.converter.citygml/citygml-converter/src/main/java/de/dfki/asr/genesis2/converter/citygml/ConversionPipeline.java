@@ -0,0 +1,277 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jboss.logging.Logger;
+import org.w3c.dom.Element;
+
+/**
+ * Converts the city objects of a gml file in three overlapping stages instead of one phase after the other:
+ * a gmlStreamParser reads the city objects on a thread of its own, a pool of threads computes the geometry of each
+ * city object by a GeometryProcessor, and the calling thread writes them by a xmlProcessor in the order of the file.
+ * Each city object read is handed to the pool at once, and its pending result is put into a queue of fixed capacity.
+ * When the queue is full, the parser waits until the writer has taken the oldest object, so no more than the capacity
+ * of the queue plus the objects being parsed and written are held in memory, whatever the size of the file.
+ * As results are written in the order of the queue, the output does not depend on the number of threads.
+ * Shaders and texture coordinates have to be bound before the first city object is written, so the appearances of
+ * the file are expected in the registry already (see gmlStreamParser.parseAppearances); appearances met while the
+ * pipeline runs are skipped.
+ * For each stage, the number of city objects, the time spent working and the time spent waiting for the other stages
+ * are counted and logged once all city objects are written.
+ * @author Daniel Spieldenner
+ */
+public class ConversionPipeline {
+
+    private static final Logger log = Logger.getLogger(ConversionPipeline.class.getName());
+
+    //marks the end of the city objects in the queue
+    private static final Future<CityObject> END = new FutureTask<CityObject>(new Runnable() {
+        public void run() {
+        }
+    }, null);
+
+    private int threads;
+    private int capacity;
+    private Stage parseStage = new Stage("parse");
+    private Stage geometryStage = new Stage("geometry");
+    private Stage writeStage = new Stage("write");
+    private int maxQueued = 0;                      //largest number of city objects found in the queue
+
+    /**
+     * Create a new pipeline
+     * @param threads Number of threads computing the geometry
+     * @param capacity Number of city objects queued between parsing and writing
+     */
+    public ConversionPipeline(int threads, int capacity) {
+        this.threads = Math.max(1, threads);
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Read all city objects of the parser, compute their geometry and write them. Returns once the last city object
+     * is written; shaders and camera are left to the caller.
+     * @param parser Parser reading the city objects; it is used up afterwards
+     * @param registry Registry holding the shaders and texture coordinates of all targets; receives the ids of the geometries read
+     * @param geometry Processor computing the geometry of each city object
+     * @param processor Processor writing each city object
+     * @param texturePath Directory holding the georeferenced textures of ground objects
+     * @throws Exception
+     */
+    public void run(final gmlStreamParser parser, IdRegistry registry, GeometryProcessor geometry, xmlProcessor processor,
+            String texturePath, float resX, float resY) throws Exception {
+        BlockingQueue<Future<CityObject>> queue = new ArrayBlockingQueue<Future<CityObject>>(capacity);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        final Producer producer = new Producer(queue, workers, geometry, registry);
+        Future<Void> parsing = reader.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                producer.produce(parser);
+                return null;
+            }
+        });
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                Future<CityObject> next = queue.take();
+                if (next == END) {
+                    break;
+                }
+                CityObject object = next.get();
+                long ready = System.nanoTime();
+                writeStage.waited(ready - start);
+                if (object.building != null) {
+                    processor.processBuilding(object.building, object.semantics, registry);
+                } else {
+                    processor.processGround(texturePath, object.ground, registry, resX, resY);
+                }
+                writeStage.worked(System.nanoTime() - ready);
+            }
+            parsing.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            //stops the parser if writing failed, as it may be waiting for space in the queue
+            parsing.cancel(true);
+            reader.shutdownNow();
+            workers.shutdownNow();
+        }
+        log.info(parseStage);
+        log.info(geometryStage);
+        log.info(writeStage);
+        log.info("At most " + maxQueued + " of " + capacity + " city objects queued");
+    }
+
+    public Stage getParseStage() {
+        return parseStage;
+    }
+
+    public Stage getGeometryStage() {
+        return geometryStage;
+    }
+
+    public Stage getWriteStage() {
+        return writeStage;
+    }
+
+    /**
+     * @return Largest number of city objects waiting in the queue while the pipeline ran
+     */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Receives the city objects from the parser, hands each one to the pool and queues its result.
+     * Runs on the thread of the parser.
+     */
+    private class Producer implements CityObjectHandler {
+
+        private BlockingQueue<Future<CityObject>> queue;
+        private ExecutorService workers;
+        private GeometryProcessor geometry;
+        private IdRegistry registry;
+        private int groundCount = 0;                //number of ground objects received so far, used for generated ids
+        private long parsed;                        //time the parser was last handed back control
+
+        Producer(BlockingQueue<Future<CityObject>> queue, ExecutorService workers, GeometryProcessor geometry, IdRegistry registry) {
+            this.queue = queue;
+            this.workers = workers;
+            this.geometry = geometry;
+            this.registry = registry;
+        }
+
+        void produce(gmlStreamParser parser) throws Exception {
+            parsed = System.nanoTime();
+            try {
+                parser.parse(this, registry);
+            } finally {
+                //the writer stops at the end even if parsing failed; if the writer failed, the parser is cancelled while waiting
+                queue.put(END);
+            }
+        }
+
+        public void building(Building building, Semantics semantics) {
+            CityObject object = new CityObject();
+            object.building = building;
+            object.semantics = semantics;
+            enqueue(object);
+        }
+
+        public void ground(Ground ground) {
+            if (ground.getID() != null && ground.getID().isEmpty()) {
+                ground.setId("groundObject_" + groundCount);
+            }
+            groundCount++;
+            CityObject object = new CityObject();
+            object.ground = ground;
+            enqueue(object);
+        }
+
+        public void appearance(Element appearance) {
+            //bound before the pipeline was started
+        }
+
+        private void enqueue(final CityObject object) {
+            final long submitted = System.nanoTime();
+            parseStage.worked(submitted - parsed);
+            Future<CityObject> result = workers.submit(new Callable<CityObject>() {
+                public CityObject call() {
+                    long start = System.nanoTime();
+                    geometryStage.waited(start - submitted);
+                    if (object.building != null) {
+                        geometry.process(object.building, registry);
+                    } else {
+                        geometry.process(object.ground);
+                    }
+                    geometryStage.worked(System.nanoTime() - start);
+                    return object;
+                }
+            });
+            long start = System.nanoTime();
+            try {
+                queue.put(result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Conversion stopped while reading city objects");
+            }
+            maxQueued = Math.max(maxQueued, queue.size());
+            parsed = System.nanoTime();
+            parseStage.waited(parsed - start);
+        }
+    }
+
+    /**
+     * A building with its semantics or a ground object, passed through the pipeline
+     */
+    private static class CityObject {
+
+        private Building building;
+        private Semantics semantics;
+        private Ground ground;
+    }
+
+    /**
+     * Counters of a single stage of the pipeline. The stage computing the geometry is counted by several threads at once.
+     */
+    public static class Stage {
+
+        private String name;
+        private AtomicInteger objects = new AtomicInteger();
+        private AtomicLong workNanos = new AtomicLong();
+        private AtomicLong waitNanos = new AtomicLong();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void worked(long nanos) {
+            objects.incrementAndGet();
+            workNanos.addAndGet(nanos);
+        }
+
+        void waited(long nanos) {
+            waitNanos.addAndGet(nanos);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Number of city objects handled by the stage
+         */
+        public int getObjects() {
+            return objects.get();
+        }
+
+        /**
+         * @return Time spent working, in seconds; summed over all threads of the stage
+         */
+        public double getWorkSeconds() {
+            return workNanos.get() / 1e9;
+        }
+
+        /**
+         * @return Time spent waiting for the other stages, in seconds; summed over all threads of the stage
+         */
+        public double getWaitSeconds() {
+            return waitNanos.get() / 1e9;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%s: %d city objects, %.3f s working, %.3f s waiting", name, getObjects(),
+                    getWorkSeconds(), getWaitSeconds());
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.ArrayList;
+
+/**
+ * Options of the command line version of the converter. Options are given as "--name" or "--name=value"
+ * and may appear anywhere in the argument list; all other arguments are kept in their order
+ * as positional arguments (input file, output file, texture path, ...).
+ * @author Daniel Spieldenner
+ */
+public class ConverterOptions {
+
+    private ArrayList<String> arguments = new ArrayList<String>();     //positional arguments
+    private boolean streaming = false;                                  //parse with the gmlStreamParser instead of a DOM
+    private int threads = 1;                                            //threads used for computing the geometry
+    private int pipelineCapacity = 0;                                   //city objects queued between parsing and writing, 0 for no pipeline
+    private boolean mergeMeshes = false;                                //one mesh per building and shader, one mesh per ground object
+    private boolean faceIds = false;                                    //keep the polygon of each triangle in merged meshes
+    private boolean indent = false;                                     //indent the elements of the output file
+    private int maxDecimals = NumberFormatter.UNLIMITED;                //maximum number of decimals of positions and normals
+    private boolean binary = false;                                     //write mesh values to binary sidecar files
+    private boolean glb = false;                                        //write binary glTF instead of xml3D
+    private boolean relative = false;                                   //write positions as 32 bit floats relative to an origin
+    private double tileSize = 0;                                        //edge length of output tiles, 0 to write a single file
+    private int lodLevels = 0;                                          //levels of simplified parent tiles above the tiles
+    private double decimationError = Double.POSITIVE_INFINITY;          //maximum geometric error of decimated ground
+    private double decimationRatio = 1.0;                               //fraction of ground triangles kept by decimation
+    private double weldEpsilon = -1;                                    //tolerance of vertex welding, negative to not weld
+    private double creaseAngle = 30;                                    //angle in degrees above which welded normals are split
+    private int atlasSize = 0;                                          //maximum edge length of texture atlas pages, 0 for no atlas
+    private boolean transcoding = false;                                //transcode textures into web formats
+    private int textureSize = 0;                                        //maximum edge length of transcoded textures, 0 to keep their size
+    private String textureCache = "web";                                //cache of transcoded textures, relative to the texture path
+
+    /**
+     * Read the options from the given command line arguments
+     * @param args The command line arguments
+     * @return The options found
+     */
+    public static ConverterOptions parse(String[] args) {
+        ConverterOptions options = new ConverterOptions();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                options.arguments.add(arg);
+                continue;
+            }
+            String name = arg.substring(2);
+            String value = null;
+            int separator = name.indexOf('=');
+            if (separator >= 0) {
+                value = name.substring(separator + 1);
+                name = name.substring(0, separator);
+            }
+            options.setOption(name, value);
+        }
+        return options;
+    }
+
+    /**
+     * Set a single option
+     * @param name Name of the option, without leading dashes
+     * @param value Value of the option, null if none was given
+     */
+    private void setOption(String name, String value) {
+        if (name.equals("stream")) {
+            this.streaming = true;
+        } else if (name.equals("threads")) {
+            //without a value, one thread per available processor is used
+            this.threads = value == null ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(value);
+            if (this.threads < 1) {
+                throw new IllegalArgumentException("Number of threads has to be at least 1: --threads=" + value);
+            }
+        } else if (name.equals("pipeline")) {
+            this.pipelineCapacity = value == null ? 64 : Integer.parseInt(value);
+            if (this.pipelineCapacity < 1) {
+                throw new IllegalArgumentException("Capacity of the pipeline has to be at least 1: --pipeline=" + value);
+            }
+        } else if (name.equals("merge")) {
+            this.mergeMeshes = true;
+        } else if (name.equals("face-ids")) {
+            this.faceIds = true;
+        } else if (name.equals("indent")) {
+            this.indent = true;
+        } else if (name.equals("binary")) {
+            this.binary = true;
+        } else if (name.equals("glb")) {
+            this.glb = true;
+        } else if (name.equals("relative")) {
+            this.relative = true;
+        } else if (name.equals("tile-size")) {
+            this.tileSize = value == null ? 0 : Double.parseDouble(value);
+            if (!(this.tileSize > 0)) {
+                throw new IllegalArgumentException("Tile size has to be positive: --tile-size=" + value);
+            }
+        } else if (name.equals("lod-levels")) {
+            this.lodLevels = value == null ? 0 : Integer.parseInt(value);
+            if (this.lodLevels < 1) {
+                throw new IllegalArgumentException("Number of levels of detail has to be at least 1: --lod-levels=" + value);
+            }
+        } else if (name.equals("decimate")) {
+            this.decimationError = value == null ? Double.NaN : Double.parseDouble(value);
+            if (!(this.decimationError >= 0)) {
+                throw new IllegalArgumentException("Maximum error of decimation has to be given and not negative: --decimate=" + value);
+            }
+        } else if (name.equals("decimate-ratio")) {
+            this.decimationRatio = value == null ? Double.NaN : Double.parseDouble(value);
+            if (!(this.decimationRatio > 0 && this.decimationRatio <= 1)) {
+                throw new IllegalArgumentException("Ratio of decimation has to be in (0, 1]: --decimate-ratio=" + value);
+            }
+        } else if (name.equals("weld")) {
+            //without a value, only vertices at equal positions are welded
+            this.weldEpsilon = value == null ? 0 : Double.parseDouble(value);
+            if (!(this.weldEpsilon >= 0)) {
+                throw new IllegalArgumentException("Tolerance of vertex welding must not be negative: --weld=" + value);
+            }
+        } else if (name.equals("crease-angle")) {
+            this.creaseAngle = value == null ? Double.NaN : Double.parseDouble(value);
+            if (!(this.creaseAngle >= 0 && this.creaseAngle <= 180)) {
+                throw new IllegalArgumentException("Crease angle has to be between 0 and 180 degrees: --crease-angle=" + value);
+            }
+        } else if (name.equals("atlas")) {
+            this.atlasSize = value == null ? 2048 : Integer.parseInt(value);
+            if (this.atlasSize < 64 || Integer.bitCount(this.atlasSize) != 1) {
+                throw new IllegalArgumentException("Size of atlas pages has to be a power of two of at least 64: --atlas=" + value);
+            }
+        } else if (name.equals("transcode")) {
+            //without a value, textures keep their size
+            this.transcoding = true;
+            this.textureSize = value == null ? 0 : Integer.parseInt(value);
+            if (this.textureSize < 0) {
+                throw new IllegalArgumentException("Size of transcoded textures must not be negative: --transcode=" + value);
+            }
+        } else if (name.equals("texture-cache")) {
+            if (value == null || value.isEmpty()) {
+                throw new IllegalArgumentException("Directory of the texture cache has to be given: --texture-cache=" + value);
+            }
+            this.textureCache = value;
+        } else if (name.equals("decimals")) {
+            this.maxDecimals = value == null ? -1 : Integer.parseInt(value);
+            if (this.maxDecimals < 0 || this.maxDecimals > 15) {
+                throw new IllegalArgumentException("Number of decimals has to be between 0 and 15: --decimals=" + value);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    /**
+     * Get a positional argument
+     * @param index Index of the argument, not counting options
+     * @return The argument
+     */
+    public String getArgument(int index) {
+        return arguments.get(index);
+    }
+
+    /**
+     * @return Number of positional arguments
+     */
+    public int getArgumentCount() {
+        return arguments.size();
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return true if city objects are converted by a ConversionPipeline while the file is read
+     */
+    public boolean isPipeline() {
+        return pipelineCapacity > 0;
+    }
+
+    public int getPipelineCapacity() {
+        return pipelineCapacity;
+    }
+
+    public void setPipelineCapacity(int pipelineCapacity) {
+        this.pipelineCapacity = pipelineCapacity;
+    }
+
+    public boolean isMergeMeshes() {
+        return mergeMeshes;
+    }
+
+    public void setMergeMeshes(boolean mergeMeshes) {
+        this.mergeMeshes = mergeMeshes;
+    }
+
+    public boolean isFaceIds() {
+        return faceIds;
+    }
+
+    public void setFaceIds(boolean faceIds) {
+        this.faceIds = faceIds;
+    }
+
+    public boolean isIndent() {
+        return indent;
+    }
+
+    public void setIndent(boolean indent) {
+        this.indent = indent;
+    }
+
+    public int getMaxDecimals() {
+        return maxDecimals;
+    }
+
+    public void setMaxDecimals(int maxDecimals) {
+        this.maxDecimals = maxDecimals;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isGlb() {
+        return glb;
+    }
+
+    public void setGlb(boolean glb) {
+        this.glb = glb;
+    }
+
+    public boolean isRelative() {
+        return relative;
+    }
+
+    public void setRelative(boolean relative) {
+        this.relative = relative;
+    }
+
+    public double getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(double tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public int getLodLevels() {
+        return lodLevels;
+    }
+
+    public void setLodLevels(int lodLevels) {
+        this.lodLevels = lodLevels;
+    }
+
+    public double getDecimationError() {
+        return decimationError;
+    }
+
+    public void setDecimationError(double decimationError) {
+        this.decimationError = decimationError;
+    }
+
+    public double getDecimationRatio() {
+        return decimationRatio;
+    }
+
+    public void setDecimationRatio(double decimationRatio) {
+        this.decimationRatio = decimationRatio;
+    }
+
+    /**
+     * @return true if vertices of merged meshes are to be welded
+     */
+    public boolean isWelding() {
+        return weldEpsilon >= 0;
+    }
+
+    public double getWeldEpsilon() {
+        return weldEpsilon;
+    }
+
+    public void setWeldEpsilon(double weldEpsilon) {
+        this.weldEpsilon = weldEpsilon;
+    }
+
+    public double getCreaseAngle() {
+        return creaseAngle;
+    }
+
+    public void setCreaseAngle(double creaseAngle) {
+        this.creaseAngle = creaseAngle;
+    }
+
+    public int getAtlasSize() {
+        return atlasSize;
+    }
+
+    public void setAtlasSize(int atlasSize) {
+        this.atlasSize = atlasSize;
+    }
+
+    public boolean isTranscoding() {
+        return transcoding;
+    }
+
+    public void setTranscoding(boolean transcoding) {
+        this.transcoding = transcoding;
+    }
+
+    public int getTextureSize() {
+        return textureSize;
+    }
+
+    public void setTextureSize(int textureSize) {
+        this.textureSize = textureSize;
+    }
+
+    public String getTextureCache() {
+        return textureCache;
+    }
+
+    public void setTextureCache(String textureCache) {
+        this.textureCache = textureCache;
+    }
+}
@@ -0,0 +1,224 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+/**
+ * Tokenizer for the contents of gml:pos and gml:posList tags. Characters are scanned directly into
+ * a reusable buffer of doubles, without splitting the text into Strings and without regular expressions.
+ * Any kind of whitespace separates two numbers. Text may be appended in several chunks (e.g. one per
+ * text node); a number is only complete once a separator, a call of separate() or the end of the input is reached.
+ * Numbers with up to 18 significant digits and a small decimal exponent (the usual case for coordinates)
+ * are converted exactly without allocation, all others are handed to Double.parseDouble.
+ * Instances are not thread safe, but can be reused for any number of polygons.
+ * @author Daniel Spieldenner
+ */
+public class CoordinateTokenizer {
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;        //largest mantissa a double holds without rounding
+
+    private double[] values = new double[96];
+    private int count = 0;
+    private int invalidTokens = 0;
+
+    //token currently scanned
+    private char[] token = new char[32];
+    private int tokenLength = 0;
+
+    /**
+     * Remove all numbers read so far, so the tokenizer can be used for the next polygon
+     */
+    public void reset() {
+        count = 0;
+        invalidTokens = 0;
+        tokenLength = 0;
+    }
+
+    /**
+     * Scan the given characters and append all numbers found to the buffer
+     * @param text Text to be scanned, e.g. the contents of a gml:posList
+     */
+    public void append(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            appendChar(text.charAt(i));
+        }
+    }
+
+    /**
+     * Scan the given characters and append all numbers found to the buffer
+     * @param text Array holding the text to be scanned
+     * @param start Index of the first character
+     * @param length Number of characters to be scanned
+     */
+    public void append(char[] text, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            appendChar(text[i]);
+        }
+    }
+
+    /**
+     * Finish the number currently scanned, if any. Called between two gml:pos tags and at the end of the input.
+     */
+    public void separate() {
+        if (tokenLength > 0) {
+            finishToken();
+        }
+    }
+
+    /**
+     * @return Number of values read, after finishing the number currently scanned
+     */
+    public int size() {
+        separate();
+        return count;
+    }
+
+    /**
+     * Get the buffer holding the values read. Only the first size() entries are valid;
+     * the buffer is reused after the next reset().
+     * @return The value buffer
+     */
+    public double[] values() {
+        separate();
+        return values;
+    }
+
+    /**
+     * @return Number of tokens that could not be read as a number and have been skipped
+     */
+    public int getInvalidTokens() {
+        separate();
+        return invalidTokens;
+    }
+
+    private void appendChar(char c) {
+        if (isSeparator(c)) {
+            if (tokenLength > 0) {
+                finishToken();
+            }
+            return;
+        }
+        if (tokenLength == token.length) {
+            char[] grown = new char[token.length * 2];
+            System.arraycopy(token, 0, grown, 0, tokenLength);
+            token = grown;
+        }
+        token[tokenLength++] = c;
+    }
+
+    /**
+     * XML only knows space, tab, carriage return and line feed, but exporters also write
+     * other unicode whitespace such as no-break spaces.
+     */
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || Character.isWhitespace(c) || Character.isSpaceChar(c);
+    }
+
+    private void finishToken() {
+        double value = parseToken();
+        boolean valid = !Double.isNaN(value) || isNaNLiteral();
+        tokenLength = 0;
+        if (!valid) {
+            invalidTokens++;
+            return;
+        }
+        if (count == values.length) {
+            double[] grown = new double[values.length * 2];
+            System.arraycopy(values, 0, grown, 0, count);
+            values = grown;
+        }
+        values[count++] = value;
+    }
+
+    /**
+     * Convert the current token to a double. Returns NaN for tokens that are not a number.
+     */
+    private double parseToken() {
+        int i = 0;
+        boolean negative = false;
+        if (token[i] == '-' || token[i] == '+') {
+            negative = token[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;             //significant digits in the mantissa
+        int exponent = 0;           //decimal exponent applied to the mantissa
+        boolean anyDigit = false;
+        boolean exact = true;
+        boolean fraction = false;
+        for (; i < tokenLength; i++) {
+            char c = token[i];
+            if (c >= '0' && c <= '9') {
+                anyDigit = true;
+                if (digits < 18) {
+                    if (mantissa != 0 || c != '0') {
+                        digits++;
+                    }
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (fraction) {
+                        exponent--;
+                    }
+                } else {
+                    exact = false;
+                    if (!fraction) {
+                        exponent++;
+                    }
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (!anyDigit) {
+            return parseFallback();
+        }
+        if (i < tokenLength) {
+            if (token[i] != 'e' && token[i] != 'E') {
+                return parseFallback();
+            }
+            i++;
+            boolean negativeExponent = false;
+            if (i < tokenLength && (token[i] == '-' || token[i] == '+')) {
+                negativeExponent = token[i] == '-';
+                i++;
+            }
+            if (i == tokenLength) {
+                return parseFallback();
+            }
+            int explicitExponent = 0;
+            for (; i < tokenLength; i++) {
+                char c = token[i];
+                if (c < '0' || c > '9') {
+                    return parseFallback();
+                }
+                if (explicitExponent < 10000) {
+                    explicitExponent = explicitExponent * 10 + (c - '0');
+                }
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        //mantissa and power of ten are both exact doubles: a single multiplication or division rounds correctly
+        if (exact && mantissa < MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            double value = (double) mantissa;
+            value = exponent < 0 ? value / POWERS_OF_TEN[-exponent] : value * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        return parseFallback();
+    }
+
+    private double parseFallback() {
+        try {
+            return Double.parseDouble(new String(token, 0, tokenLength));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private boolean isNaNLiteral() {
+        return tokenLength == 3 && token[0] == 'N' && token[1] == 'a' && token[2] == 'N';
+    }
+}
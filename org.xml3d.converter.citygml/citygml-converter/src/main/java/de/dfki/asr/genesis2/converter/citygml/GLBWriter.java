@@ -0,0 +1,503 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.transform.stream.StreamResult;
+import org.jboss.logging.Logger;
+
+/**
+ * Writes the converted city as binary glTF 2.0 (GLB). Each top level group, i.e. each building or ground object,
+ * becomes a node holding one mesh; every mesh referenced within the group becomes a primitive of that mesh, using
+ * the material of the shader of its enclosing group. The id of the city object is stored as name and in the extras
+ * of the node, together with the semantic properties of its divs.
+ * Vertices are interleaved (position, normal and, if present, texture coordinates) and written to a temporary
+ * binary file as soon as a mesh is received, copied into a direct buffer in bulk, one batch of vertices at a time;
+ * only the JSON description is kept in memory. finish() writes the GLB header and JSON chunk and appends the binary
+ * chunk by FileChannel.transferTo. Meshes without triangles are left out, as glTF allows no empty accessors.
+ * glTF takes counterclockwise triangles as front faces, while the normals of the GeometryBuffer point away from
+ * them, so normals are written negated; the v axis of glTF texture coordinates points down, so v is written as 1 - v.
+ * Positions are stored as 32 bit floats relative to an origin, which is either given or chosen near the first vertex
+ * written; the root node moves them back to their georeferenced location and turns the z-up coordinates of CityGML
+ * to the y-up axis of glTF.
+ * @author Daniel Spieldenner
+ */
+public class GLBWriter implements SceneWriter {
+
+    private static final Logger log = Logger.getLogger(GLBWriter.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int GLB_MAGIC = 0x46546C67;            //"glTF"
+    private static final int CHUNK_JSON = 0x4E4F534A;           //"JSON"
+    private static final int CHUNK_BIN = 0x004E4942;            //"BIN"
+    private static final int ARRAY_BUFFER = 34962;
+    private static final int ELEMENT_ARRAY_BUFFER = 34963;
+    private static final int FLOAT = 5126;
+    private static final int UNSIGNED_INT = 5125;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long MAX_LENGTH = 0xFFFFFFFFL;         //largest length of a GLB file, stored as unsigned 32 bit integer
+
+    /**
+     * Accessors of a mesh written but not yet referenced by a group
+     */
+    private static class Primitive {
+        int position;
+        int normal;
+        int texCoord = -1;
+        int indices;
+    }
+
+    private File file;
+    private File binFile;
+    private FileChannel bin;
+    private long binLength = 0;                         //bytes written to the binary chunk, including the buffer
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private float[] vertexData = new float[BUFFER_SIZE / 4];    //interleaved vertices of a batch, before they are copied into the buffer
+    private double[] origin;                            //null until the first vertex is written
+
+    private Map<String, Primitive> primitives = new HashMap<String, Primitive>();
+    private Set<String> emptyMeshes = new HashSet<String>();       //meshes without triangles, left out of the scene
+    private Map<String, Integer> materialIndices = new LinkedHashMap<String, Integer>();    //material of each shader id
+    private List<String> materials = new ArrayList<String>();       //null for materials referenced but not yet written
+    private StringBuilder accessors = new StringBuilder();
+    private int accessorCount = 0;
+    private StringBuilder bufferViews = new StringBuilder();
+    private int bufferViewCount = 0;
+    private StringBuilder meshes = new StringBuilder();
+    private int meshCount = 0;
+    private StringBuilder nodes = new StringBuilder();
+    private int nodeCount = 0;
+    private StringBuilder images = new StringBuilder();
+    private int imageCount = 0;
+    private StringBuilder cameras = new StringBuilder();
+    private int cameraCount = 0;
+    private NumberFormatter formatter = new NumberFormatter(64);
+
+    /**
+     * Create a new writer. The binary data is collected in a temporary file next to the output file.
+     * @param fileName Path to the output file
+     */
+    public GLBWriter(String fileName) throws IOException {
+        this.file = new File(fileName);
+        this.binFile = new File(fileName + ".bin.tmp");
+        RandomAccessFile binAccess = new RandomAccessFile(binFile, "rw");
+        binAccess.setLength(0);
+        this.bin = binAccess.getChannel();
+    }
+
+    /**
+     * Store positions relative to the given origin instead of one near the first vertex written.
+     * Has to be set before the first mesh is written.
+     * @param origin x, y and z of the origin; null to choose one near the first vertex
+     */
+    public void setOrigin(double[] origin) {
+        this.origin = origin;
+    }
+
+    @Override
+    public void writeMesh(String id, GeometryBuffer geometry) throws IOException {
+        int vertexCount = geometry.getVertexCount();
+        if (vertexCount == 0 || geometry.getIndexCount() == 0) {
+            emptyMeshes.add(id);
+            return;
+        }
+        if (origin == null) {
+            //whole meters, so the origin is written exactly
+            origin = new double[] { Math.rint(geometry.getX(0)), Math.rint(geometry.getY(0)), Math.rint(geometry.getZ(0)) };
+        }
+        float[] uv = geometry.getTexCoords();
+        int stride = uv != null ? 32 : 24;
+
+        //interleaved vertices
+        long vertexOffset = binLength;
+        double[] positions = geometry.getPositions();
+        float[] normals = geometry.getNormals();
+        float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+        float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        int v = 0;
+        while (v < vertexCount) {
+            ensureRemaining(stride);
+            int end = v + Math.min(vertexCount - v, buffer.remaining() / stride);
+            int f = 0;
+            for (; v < end; v++) {
+                for (int c = 0; c < 3; c++) {
+                    float value = (float) (positions[v * 3 + c] - origin[c]);
+                    min[c] = Math.min(min[c], value);
+                    max[c] = Math.max(max[c], value);
+                    vertexData[f++] = value;
+                }
+                vertexData[f++] = -normals[v * 3];
+                vertexData[f++] = -normals[v * 3 + 1];
+                vertexData[f++] = -normals[v * 3 + 2];
+                if (uv != null) {
+                    vertexData[f++] = uv[v * 2];
+                    vertexData[f++] = 1.0f - uv[v * 2 + 1];
+                }
+            }
+            buffer.asFloatBuffer().put(vertexData, 0, f);
+            buffer.position(buffer.position() + f * 4);
+        }
+        binLength += (long) vertexCount * stride;
+        int vertexView = addBufferView(vertexOffset, (long) vertexCount * stride, stride, ARRAY_BUFFER);
+
+        //indices, copied in bulk
+        long indexOffset = binLength;
+        int[] indices = geometry.getIndices();
+        int written = 0;
+        while (written < geometry.getIndexCount()) {
+            ensureRemaining(4);
+            int n = Math.min(geometry.getIndexCount() - written, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(indices, written, n);
+            buffer.position(buffer.position() + n * 4);
+            written += n;
+        }
+        binLength += geometry.getIndexCount() * 4L;
+        int indexView = addBufferView(indexOffset, geometry.getIndexCount() * 4L, 0, ELEMENT_ARRAY_BUFFER);
+
+        Primitive primitive = new Primitive();
+        primitive.position = addAccessor(vertexView, 0, FLOAT, vertexCount, "VEC3", min, max);
+        primitive.normal = addAccessor(vertexView, 12, FLOAT, vertexCount, "VEC3", null, null);
+        if (uv != null) {
+            primitive.texCoord = addAccessor(vertexView, 24, FLOAT, vertexCount, "VEC2", null, null);
+        }
+        primitive.indices = addAccessor(indexView, 0, UNSIGNED_INT, geometry.getIndexCount(), "SCALAR", null, null);
+        primitives.put(id, primitive);
+        if (binLength > MAX_LENGTH) {
+            throw new IOException("Binary data of " + file + " exceeds the largest size of a GLB file of 4 GB");
+        }
+    }
+
+    @Override
+    public void writeGroup(SceneGroup group) throws IOException {
+        StringBuilder primitiveList = new StringBuilder();
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+        collect(group, null, primitiveList, properties);
+
+        comma(nodes);
+        String id = group.getAttributes().containsKey("class") ? group.getAttributes().get("class") : group.getId();
+        nodes.append("{\"name\":");
+        string(nodes, id);
+        if (primitiveList.length() > 0) {
+            comma(meshes);
+            meshes.append("{\"name\":");
+            string(meshes, id);
+            meshes.append(",\"primitives\":[").append(primitiveList).append("]}");
+            nodes.append(",\"mesh\":").append(meshCount++);
+        }
+        nodes.append(",\"extras\":{\"id\":");
+        string(nodes, id);
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            nodes.append(',');
+            string(nodes, property.getKey());
+            nodes.append(':');
+            string(nodes, property.getValue());
+        }
+        nodes.append("}}");
+        nodeCount++;
+    }
+
+    @Override
+    public void writeShader(xmlShader shader) throws IOException {
+        int index = materialIndex(shader.getID());
+        StringBuilder material = new StringBuilder("{\"name\":");
+        string(material, shader.getID());
+        material.append(",\"pbrMetallicRoughness\":{");
+        if (shader.getShaderType().equals("Texture")) {
+            comma(images);
+            images.append("{\"uri\":");
+            string(images, shader.getTexturePath());
+            images.append('}');
+            material.append("\"baseColorTexture\":{\"index\":").append(imageCount++).append("},");
+        } else if (shader.getShaderType().equals("Material")) {
+            float[] color = shader.getDiffuseColor();
+            material.append("\"baseColorFactor\":[");
+            number(material, color[0]).append(',');
+            number(material, color[1]).append(',');
+            number(material, color[2]).append(",1.0],");
+        }
+        material.append("\"metallicFactor\":0.0,\"roughnessFactor\":1.0}}");
+        materials.set(index, material.toString());
+    }
+
+    @Override
+    public void writeView(String id, String position, String orientation) throws IOException {
+        String[] positionSplit = position.trim().split("\\s+");
+        String[] orientationSplit = orientation.trim().split("\\s+");
+        //axis and angle to quaternion
+        double angle = Double.parseDouble(orientationSplit[3]);
+        double sin = Math.sin(angle / 2);
+        comma(cameras);
+        cameras.append("{\"type\":\"perspective\",\"perspective\":{\"yfov\":0.8,\"znear\":1.0}}");
+        comma(nodes);
+        nodes.append("{\"name\":");
+        string(nodes, id);
+        nodes.append(",\"camera\":").append(cameraCount++).append(",\"translation\":[");
+        for (int c = 0; c < 3; c++) {
+            double value = Double.parseDouble(positionSplit[c]) - (origin != null ? origin[c] : 0.0);
+            number(nodes, value).append(c < 2 ? "," : "],\"rotation\":[");
+        }
+        for (int c = 0; c < 3; c++) {
+            number(nodes, Double.parseDouble(orientationSplit[c]) * sin).append(',');
+        }
+        number(nodes, Math.cos(angle / 2)).append("]}");
+        nodeCount++;
+    }
+
+    @Override
+    public StreamResult finish() throws IOException {
+        flush();
+        byte[] json = buildJson().getBytes(UTF8);
+        int jsonLength = (json.length + 3) & ~3;
+        long binChunkLength = (binLength + 3) & ~3L;
+        long totalLength = 12 + 8 + jsonLength + (binLength > 0 ? 8 + binChunkLength : 0);
+        if (totalLength > MAX_LENGTH) {
+            bin.close();
+            binFile.delete();
+            throw new IOException(file + " would be " + totalLength + " bytes, more than the largest size of a GLB file of 4 GB");
+        }
+
+        RandomAccessFile outAccess = new RandomAccessFile(file, "rw");
+        FileChannel out = outAccess.getChannel();
+        try {
+            outAccess.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(20 + jsonLength + 8).order(ByteOrder.LITTLE_ENDIAN);
+            //lengths are unsigned 32 bit integers, so those up to MAX_LENGTH are stored by their lower 32 bits
+            header.putInt(GLB_MAGIC).putInt(2).putInt((int) totalLength);
+            header.putInt(jsonLength).putInt(CHUNK_JSON).put(json);
+            for (int i = json.length; i < jsonLength; i++) {
+                header.put((byte) ' ');
+            }
+            if (binLength > 0) {
+                header.putInt((int) binChunkLength).putInt(CHUNK_BIN);
+            }
+            header.flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            //append the binary chunk without copying it through the heap
+            long transferred = 0;
+            while (transferred < binLength) {
+                transferred += bin.transferTo(transferred, binLength - transferred, out);
+            }
+            ByteBuffer padding = ByteBuffer.allocate((int) (binChunkLength - binLength));
+            while (padding.hasRemaining()) {
+                out.write(padding);
+            }
+        } finally {
+            out.close();
+            bin.close();
+            binFile.delete();
+        }
+        if (!primitives.isEmpty()) {
+            log.warn(primitives.size() + " meshes are not referenced by any group and have been left out of the scene");
+        }
+        return new StreamResult(file);
+    }
+
+    /**
+     * Add the primitives of all mesh references below the given node, and the text of all divs as properties
+     * @param shader Shader id inherited from the enclosing groups, null if none
+     */
+    private void collect(SceneGroup node, String shader, StringBuilder primitiveList, Map<String, String> properties) {
+        String nodeShader = node.getAttributes().get("shader");
+        if (nodeShader != null) {
+            shader = nodeShader.startsWith("#") ? nodeShader.substring(1) : nodeShader;
+        }
+        if (node.getKind().equals(SceneGroup.MESH)) {
+            String src = node.getAttributes().get("src");
+            String mesh = src == null ? null : src.startsWith("#") ? src.substring(1) : src;
+            Primitive primitive = mesh == null ? null : primitives.remove(mesh);
+            if (primitive == null && emptyMeshes.contains(mesh)) {
+                return;
+            }
+            if (primitive == null) {
+                log.warn("Mesh " + src + " referenced by " + node.getId() + " has not been written");
+                return;
+            }
+            comma(primitiveList);
+            primitiveList.append("{\"attributes\":{\"POSITION\":").append(primitive.position);
+            primitiveList.append(",\"NORMAL\":").append(primitive.normal);
+            if (primitive.texCoord >= 0) {
+                primitiveList.append(",\"TEXCOORD_0\":").append(primitive.texCoord);
+            }
+            primitiveList.append("},\"indices\":").append(primitive.indices);
+            if (shader != null) {
+                primitiveList.append(",\"material\":").append(materialIndex(shader));
+            }
+            //e.g. the face ids of merged meshes
+            StringBuilder extras = new StringBuilder();
+            for (Map.Entry<String, String> attribute : node.getAttributes().entrySet()) {
+                if (attribute.getKey().startsWith("data-")) {
+                    comma(extras);
+                    string(extras, attribute.getKey().substring(5));
+                    extras.append(':');
+                    string(extras, attribute.getValue());
+                }
+            }
+            if (extras.length() > 0) {
+                primitiveList.append(",\"extras\":{").append(extras).append('}');
+            }
+            primitiveList.append('}');
+        } else if (node.getKind().equals(SceneGroup.DIV) && node.getTextContent() != null
+                && node.getAttributes().containsKey("property")) {
+            properties.put(node.getAttributes().get("property"), node.getTextContent());
+        }
+        for (SceneGroup child : node.getChildren()) {
+            collect(child, shader, primitiveList, properties);
+        }
+    }
+
+    private int materialIndex(String shader) {
+        Integer index = materialIndices.get(shader);
+        if (index == null) {
+            index = materials.size();
+            materialIndices.put(shader, index);
+            materials.add(null);
+        }
+        return index;
+    }
+
+    private int addBufferView(long offset, long length, int stride, int target) {
+        comma(bufferViews);
+        bufferViews.append("{\"buffer\":0,\"byteOffset\":").append(offset).append(",\"byteLength\":").append(length);
+        if (stride > 0) {
+            bufferViews.append(",\"byteStride\":").append(stride);
+        }
+        bufferViews.append(",\"target\":").append(target).append('}');
+        return bufferViewCount++;
+    }
+
+    private int addAccessor(int bufferView, int offset, int componentType, int count, String type, float[] min, float[] max) {
+        comma(accessors);
+        accessors.append("{\"bufferView\":").append(bufferView).append(",\"byteOffset\":").append(offset);
+        accessors.append(",\"componentType\":").append(componentType).append(",\"count\":").append(count);
+        accessors.append(",\"type\":\"").append(type).append('"');
+        if (min != null && count > 0) {
+            accessors.append(",\"min\":[");
+            number(accessors, min[0]).append(',');
+            number(accessors, min[1]).append(',');
+            number(accessors, min[2]).append("],\"max\":[");
+            number(accessors, max[0]).append(',');
+            number(accessors, max[1]).append(',');
+            number(accessors, max[2]).append(']');
+        }
+        accessors.append('}');
+        return accessorCount++;
+    }
+
+    private String buildJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"asset\":{\"version\":\"2.0\",\"generator\":\"CityGML converter\"},\"scene\":0,");
+        //the root node holds all others, at the origin and turned from z-up to y-up
+        json.append("\"scenes\":[{\"nodes\":[").append(nodeCount).append("]}],");
+        json.append("\"nodes\":[").append(nodes);
+        if (nodes.length() > 0) {
+            json.append(',');
+        }
+        json.append("{\"name\":\"root\",\"rotation\":[-0.7071067811865476,0.0,0.0,0.7071067811865476]");
+        if (origin != null) {
+            json.append(",\"translation\":[");
+            number(json, origin[0]).append(',');
+            number(json, origin[2]).append(',');
+            number(json, -origin[1]).append(']');
+        }
+        if (nodeCount > 0) {
+            json.append(",\"children\":[");
+            for (int n = 0; n < nodeCount; n++) {
+                json.append(n > 0 ? "," : "").append(n);
+            }
+            json.append(']');
+        }
+        json.append("}]");
+        appendArray(json, "meshes", meshes);
+        appendArray(json, "accessors", accessors);
+        appendArray(json, "bufferViews", bufferViews);
+        if (!materials.isEmpty()) {
+            json.append(",\"materials\":[");
+            for (int m = 0; m < materials.size(); m++) {
+                json.append(m > 0 ? "," : "");
+                json.append(materials.get(m) != null ? materials.get(m) : "{\"name\":\"undefined\"}");
+            }
+            json.append(']');
+        }
+        if (imageCount > 0) {
+            json.append(",\"images\":[").append(images).append("],\"samplers\":[{}],\"textures\":[");
+            for (int i = 0; i < imageCount; i++) {
+                json.append(i > 0 ? "," : "").append("{\"sampler\":0,\"source\":").append(i).append('}');
+            }
+            json.append(']');
+        }
+        appendArray(json, "cameras", cameras);
+        if (binLength > 0) {
+            json.append(",\"buffers\":[{\"byteLength\":").append(binLength).append("}]");
+        }
+        json.append('}');
+        return json.toString();
+    }
+
+    private static void appendArray(StringBuilder json, String name, StringBuilder elements) {
+        if (elements.length() > 0) {
+            json.append(",\"").append(name).append("\":[").append(elements).append(']');
+        }
+    }
+
+    private static void comma(StringBuilder list) {
+        if (list.length() > 0) {
+            list.append(',');
+        }
+    }
+
+    private StringBuilder number(StringBuilder json, double value) {
+        formatter.reset();
+        formatter.append(value);
+        return json.append(formatter.getBuffer(), 0, formatter.length());
+    }
+
+    private StringBuilder number(StringBuilder json, float value) {
+        formatter.reset();
+        formatter.append(value);
+        return json.append(formatter.getBuffer(), 0, formatter.length());
+    }
+
+    /**
+     * Append a JSON string literal
+     */
+    private static void string(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bin.write(buffer);
+        }
+        buffer.clear();
+    }
+}
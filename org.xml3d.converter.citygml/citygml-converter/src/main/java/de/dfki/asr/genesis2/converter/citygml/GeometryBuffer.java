@@ -0,0 +1,329 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.Arrays;
+
+/**
+ * Packed storage for the geometry of a polygon or mesh, kept as structure of arrays:
+ * positions (x, y, z as doubles, as georeferenced coordinates need the precision), normals (x, y, z),
+ * texture coordinates (u, v) and triangle indices are each stored in one contiguous primitive array.
+ * Compared to a list of Vec3D objects, this needs no object header, boxing or list slot per vertex.
+ * Arrays grow as needed; trim() cuts them to their used size once the geometry is complete.
+ * @author Daniel Spieldenner
+ */
+public class GeometryBuffer {
+
+    private static final double[] NO_POSITIONS = new double[0];
+    private static final float[] NO_FLOATS = new float[0];
+    private static final int[] NO_INDICES = new int[0];
+
+    private double[] positions;
+    private float[] normals;
+    private float[] texCoords;          //null as long as no texture coordinates have been set
+    private int[] indices;
+    private int vertexCount = 0;
+    private int indexCount = 0;
+
+    GeometryBuffer() {
+        this(0, 0);
+    }
+
+    /**
+     * Create a new buffer with the given initial capacities
+     * @param vertexCapacity Number of vertices to reserve space for
+     * @param indexCapacity Number of indices to reserve space for
+     */
+    GeometryBuffer(int vertexCapacity, int indexCapacity) {
+        positions = vertexCapacity == 0 ? NO_POSITIONS : new double[vertexCapacity * 3];
+        normals = vertexCapacity == 0 ? NO_FLOATS : new float[vertexCapacity * 3];
+        indices = indexCapacity == 0 ? NO_INDICES : new int[indexCapacity];
+    }
+
+    /**
+     * Append a vertex. Its normal is initialized to zero.
+     * @return Index of the new vertex
+     */
+    public int addVertex(double x, double y, double z) {
+        ensureVertexCapacity(vertexCount + 1);
+        int offset = vertexCount * 3;
+        positions[offset] = x;
+        positions[offset + 1] = y;
+        positions[offset + 2] = z;
+        normals[offset] = 0.0f;
+        normals[offset + 1] = 0.0f;
+        normals[offset + 2] = 0.0f;
+        return vertexCount++;
+    }
+
+    /**
+     * Append a number of vertices from an array of coordinates
+     * @param coordinates Array holding x, y and z of each vertex
+     * @param offset Index of the first coordinate to be used
+     * @param count Number of vertices to be appended
+     */
+    public void addVertices(double[] coordinates, int offset, int count) {
+        ensureVertexCapacity(vertexCount + count);
+        System.arraycopy(coordinates, offset, positions, vertexCount * 3, count * 3);
+        Arrays.fill(normals, vertexCount * 3, (vertexCount + count) * 3, 0.0f);
+        vertexCount += count;
+    }
+
+    /**
+     * Append all vertices and triangles of another buffer. The indices of the appended triangles are rebased
+     * to the position of the appended vertices. If only one of the buffers has texture coordinates, the
+     * vertices of the other one get zero texture coordinates.
+     * @param other The buffer to be appended
+     */
+    public void append(GeometryBuffer other) {
+        int base = vertexCount;
+        int count = other.vertexCount;
+        ensureVertexCapacity(vertexCount + count);
+        System.arraycopy(other.positions, 0, positions, base * 3, count * 3);
+        System.arraycopy(other.normals, 0, normals, base * 3, count * 3);
+        if (other.texCoords != null || texCoords != null) {
+            if (texCoords == null) {
+                texCoords = new float[positions.length / 3 * 2];
+            }
+            if (other.texCoords != null) {
+                System.arraycopy(other.texCoords, 0, texCoords, base * 2, count * 2);
+            } else {
+                Arrays.fill(texCoords, base * 2, (base + count) * 2, 0.0f);
+            }
+        }
+        vertexCount += count;
+
+        ensureIndexCapacity(indexCount + other.indexCount);
+        for (int i = 0; i < other.indexCount; i++) {
+            indices[indexCount++] = other.indices[i] + base;
+        }
+    }
+
+    /**
+     * Remove the last vertices. Indices referencing them have to be removed by the caller.
+     * @param count Number of vertices to be removed
+     */
+    public void removeLastVertices(int count) {
+        vertexCount = Math.max(0, vertexCount - count);
+    }
+
+    public void setNormal(int vertex, float x, float y, float z) {
+        int offset = vertex * 3;
+        normals[offset] = x;
+        normals[offset + 1] = y;
+        normals[offset + 2] = z;
+    }
+
+    public void setTexCoord(int vertex, float u, float v) {
+        if (texCoords == null) {
+            texCoords = new float[positions.length / 3 * 2];
+        }
+        texCoords[vertex * 2] = u;
+        texCoords[vertex * 2 + 1] = v;
+    }
+
+    /**
+     * Append a triangle
+     * @param a Index of the first vertex
+     * @param b Index of the second vertex
+     * @param c Index of the third vertex
+     */
+    public void addTriangle(int a, int b, int c) {
+        ensureIndexCapacity(indexCount + 3);
+        indices[indexCount++] = a;
+        indices[indexCount++] = b;
+        indices[indexCount++] = c;
+    }
+
+    /**
+     * Compute the normal of each vertex as the area weighted average of the normals of its triangles, using the
+     * same orientation as XmlPoly.computeNormals(). Normals of vertices without triangles stay unchanged.
+     */
+    public void computeVertexNormals() {
+        double[] sums = new double[vertexCount * 3];
+        for (int i = 0; i < indexCount; i += 3) {
+            int a = indices[i] * 3;
+            int b = indices[i + 1] * 3;
+            int c = indices[i + 2] * 3;
+            double x1 = positions[a] - positions[c];
+            double y1 = positions[a + 1] - positions[c + 1];
+            double z1 = positions[a + 2] - positions[c + 2];
+            double x2 = positions[a] - positions[b];
+            double y2 = positions[a + 1] - positions[b + 1];
+            double z2 = positions[a + 2] - positions[b + 2];
+            //the length of the cross product is twice the area of the triangle, so larger triangles weigh more
+            double nx = y1 * z2 - z1 * y2;
+            double ny = z1 * x2 - x1 * z2;
+            double nz = x1 * y2 - y1 * x2;
+            for (int corner = 0; corner < 3; corner++) {
+                int vertex = indices[i + corner] * 3;
+                sums[vertex] += nx;
+                sums[vertex + 1] += ny;
+                sums[vertex + 2] += nz;
+            }
+        }
+        for (int v = 0; v < vertexCount * 3; v += 3) {
+            double length = Math.sqrt(sums[v] * sums[v] + sums[v + 1] * sums[v + 1] + sums[v + 2] * sums[v + 2]);
+            if (length != 0) {
+                normals[v] = (float) (sums[v] / length);
+                normals[v + 1] = (float) (sums[v + 1] / length);
+                normals[v + 2] = (float) (sums[v + 2] / length);
+            }
+        }
+    }
+
+    /**
+     * Set the normal of every vertex to the normal of the polygon formed by a ring of vertices, computed by
+     * Newell's method in the same orientation as computeVertexNormals(). The ring is not required to be planar
+     * or convex. Normals stay unchanged if the ring has no area.
+     * @param first Index of the first vertex of the ring
+     * @param end Index after the last vertex of the ring
+     */
+    public void setFaceNormal(int first, int end) {
+        if (end - first < 3) {
+            return;
+        }
+        //coordinates relative to the first vertex keep the precision of georeferenced positions
+        double x0 = positions[first * 3];
+        double y0 = positions[first * 3 + 1];
+        double z0 = positions[first * 3 + 2];
+        double nx = 0;
+        double ny = 0;
+        double nz = 0;
+        for (int i = first; i < end; i++) {
+            int a = i * 3;
+            int b = (i + 1 == end ? first : i + 1) * 3;
+            double ax = positions[a] - x0;
+            double ay = positions[a + 1] - y0;
+            double az = positions[a + 2] - z0;
+            double bx = positions[b] - x0;
+            double by = positions[b + 1] - y0;
+            double bz = positions[b + 2] - z0;
+            //Newell's sums point along the counterclockwise normal, the opposite of the orientation used here
+            nx -= (ay - by) * (az + bz);
+            ny -= (az - bz) * (ax + bx);
+            nz -= (ax - bx) * (ay + by);
+        }
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0) {
+            return;
+        }
+        float fx = (float) (nx / length);
+        float fy = (float) (ny / length);
+        float fz = (float) (nz / length);
+        for (int v = 0; v < vertexCount * 3; v += 3) {
+            normals[v] = fx;
+            normals[v + 1] = fy;
+            normals[v + 2] = fz;
+        }
+    }
+
+    /**
+     * Remove all triangles, keeping the vertices
+     */
+    public void clearTriangles() {
+        indexCount = 0;
+    }
+
+    /**
+     * Remove all vertices and indices, keeping the allocated arrays for reuse
+     */
+    public void clear() {
+        vertexCount = 0;
+        indexCount = 0;
+        texCoords = null;
+    }
+
+    /**
+     * Release all arrays, e.g. after the geometry has been written
+     */
+    public void release() {
+        positions = NO_POSITIONS;
+        normals = NO_FLOATS;
+        texCoords = null;
+        indices = NO_INDICES;
+        vertexCount = 0;
+        indexCount = 0;
+    }
+
+    /**
+     * Cut all arrays to their used size
+     */
+    public void trim() {
+        if (positions.length != vertexCount * 3) {
+            positions = Arrays.copyOf(positions, vertexCount * 3);
+            normals = Arrays.copyOf(normals, vertexCount * 3);
+            if (texCoords != null) {
+                texCoords = Arrays.copyOf(texCoords, vertexCount * 2);
+            }
+        }
+        if (indices.length != indexCount) {
+            indices = Arrays.copyOf(indices, indexCount);
+        }
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    public double getX(int vertex) {
+        return positions[vertex * 3];
+    }
+
+    public double getY(int vertex) {
+        return positions[vertex * 3 + 1];
+    }
+
+    public double getZ(int vertex) {
+        return positions[vertex * 3 + 2];
+    }
+
+    /**
+     * @return The position array, holding x, y and z of each vertex. Only the first 3 * getVertexCount() entries are valid.
+     */
+    public double[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * @return The normal array, holding x, y and z of each vertex. Only the first 3 * getVertexCount() entries are valid.
+     */
+    public float[] getNormals() {
+        return normals;
+    }
+
+    /**
+     * @return The texture coordinate array, holding u and v of each vertex, or null if no texture coordinates are set
+     */
+    public float[] getTexCoords() {
+        return texCoords;
+    }
+
+    /**
+     * @return The index array, three entries per triangle. Only the first getIndexCount() entries are valid.
+     */
+    public int[] getIndices() {
+        return indices;
+    }
+
+    private void ensureVertexCapacity(int vertices) {
+        if (positions.length >= vertices * 3) {
+            return;
+        }
+        int capacity = Math.max(vertices, Math.max(4, positions.length / 3 * 2));
+        positions = Arrays.copyOf(positions, capacity * 3);
+        normals = Arrays.copyOf(normals, capacity * 3);
+        if (texCoords != null) {
+            texCoords = Arrays.copyOf(texCoords, capacity * 2);
+        }
+    }
+
+    private void ensureIndexCapacity(int count) {
+        if (indices.length >= count) {
+            return;
+        }
+        indices = Arrays.copyOf(indices, Math.max(count, Math.max(6, indices.length * 2)));
+    }
+}
@@ -0,0 +1,235 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes normals and triangulation of all buildings and ground objects read from a gml file.
+ * The parsers only store the positions of each polygon, and the texture coordinates of parameterized textures are
+ * only known once all appearances are read; they are set at the vertices of the polygons of buildings first, on the
+ * calling thread, so they are kept through triangulation and merging like the positions. As every polygon is
+ * processed on its own, the polygons can then be handed to a ForkJoinPool using the configured number of threads.
+ * Reading the gml file stays on a single thread, since DOM nodes must not be accessed concurrently,
+ * and the maps of buildings and ground objects are neither read nor changed by the worker threads.
+ * If enabled, the triangles of each ground object are then consolidated into a single mesh with shared vertices,
+ * one task per ground object, and optionally decimated by a QuadricDecimator in the same task.
+ * The result does not depend on the number of threads.
+ * @author Daniel Spieldenner
+ */
+public class GeometryProcessor {
+
+    private static final int BATCH_SIZE = 256;      //number of polygons processed by a single task without further splitting
+
+    private int threads;
+    private boolean consolidateGround = false;      //collect the triangles of each ground object in one mesh
+    private double maxError = Double.POSITIVE_INFINITY;    //maximum geometric error of decimated ground
+    private double ratio = 1.0;                     //fraction of the triangles of decimated ground to be kept
+    private double weldEpsilon = 0.0;               //maximum difference of the coordinates of welded ground vertices
+
+    /**
+     * Create a new processor
+     * @param threads Number of threads to be used; 1 processes all polygons on the calling thread
+     */
+    public GeometryProcessor(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Compute the geometry of all given buildings and ground objects
+     * @param buildings Buildings to be processed
+     * @param grounds Ground objects to be processed
+     */
+    public void process(Collection<Building> buildings, Collection<Ground> grounds) {
+        process(buildings, grounds, null);
+    }
+
+    /**
+     * Compute the geometry of all given buildings and ground objects, with the texture coordinates bound to the
+     * polygons of the buildings
+     * @param buildings Buildings to be processed
+     * @param grounds Ground objects to be processed
+     * @param registry Registry holding the texture coordinates of the polygons; null to set none
+     */
+    public void process(Collection<Building> buildings, Collection<Ground> grounds, IdRegistry registry) {
+        //ground objects usually consist of far more triangles than a building has polygons, so work is split per polygon
+        List<XmlPoly> polygons = new ArrayList<XmlPoly>();
+        for (Building building : buildings) {
+            polygons.addAll(building.getPolyList());
+        }
+        if (registry != null) {
+            for (XmlPoly polygon : polygons) {
+                setTexCoords(polygon, registry);
+            }
+        }
+        //consolidation only needs the positions of the triangles
+        List<Ground> consolidated = new ArrayList<Ground>();
+        for (Ground ground : grounds) {
+            if (consolidateGround || isDecimating()) {
+                consolidated.add(ground);
+            } else {
+                polygons.addAll(ground.getPolyList());
+            }
+        }
+
+        if (threads <= 1 || (polygons.size() <= BATCH_SIZE && consolidated.size() <= 1)) {
+            computeGeometry(polygons, 0, polygons.size());
+            for (Ground ground : consolidated) {
+                consolidate(ground);
+            }
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new GeometryTask(polygons, 0, polygons.size()));
+            pool.invoke(new ConsolidationTask(this, consolidated, 0, consolidated.size()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Compute the geometry of a single building on the calling thread, with the texture coordinates bound to its polygons.
+     * Different buildings can be processed by different threads at the same time.
+     * @param building Building to be processed
+     * @param registry Registry holding the texture coordinates of the polygons; null to set none
+     */
+    public void process(Building building, IdRegistry registry) {
+        for (XmlPoly polygon : building.getPolyList()) {
+            if (registry != null) {
+                setTexCoords(polygon, registry);
+            }
+            polygon.computeGeometry();
+        }
+    }
+
+    /**
+     * Compute the geometry of a single ground object on the calling thread and consolidate it, if enabled.
+     * Different ground objects can be processed by different threads at the same time.
+     * @param ground Ground object to be processed
+     */
+    public void process(Ground ground) {
+        if (consolidateGround || isDecimating()) {
+            consolidate(ground);
+            return;
+        }
+        List<XmlPoly> polygons = ground.getPolyList();
+        computeGeometry(polygons, 0, polygons.size());
+    }
+
+    /**
+     * Enable or disable consolidation of ground objects into a single mesh with shared vertices
+     * @param consolidateGround true to consolidate ground objects
+     */
+    public void setConsolidateGround(boolean consolidateGround) {
+        this.consolidateGround = consolidateGround;
+    }
+
+    /**
+     * Set the tolerance used when the vertices of ground objects are welded during consolidation
+     * @param weldEpsilon Maximum difference of each coordinate of welded vertices; 0 to weld equal positions only
+     */
+    public void setWeldEpsilon(double weldEpsilon) {
+        this.weldEpsilon = weldEpsilon;
+    }
+
+    /**
+     * Enable decimation of ground objects, which are consolidated before. Decimation stops at whichever limit
+     * is reached first.
+     * @param maxError Maximum geometric error; Double.POSITIVE_INFINITY for no limit
+     * @param ratio Fraction of the triangles to be kept; 1 for no limit
+     */
+    public void setDecimation(double maxError, double ratio) {
+        this.maxError = maxError;
+        this.ratio = ratio;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    private boolean isDecimating() {
+        return maxError != Double.POSITIVE_INFINITY || ratio < 1.0;
+    }
+
+    private void consolidate(Ground ground) {
+        ground.consolidate(weldEpsilon);
+        if (isDecimating()) {
+            ground.decimate(maxError, ratio < 1.0 ? ratio : 0.0);
+        }
+    }
+
+    private static void setTexCoords(XmlPoly polygon, IdRegistry registry) {
+        int handle = polygon.getHandle() != IdRegistry.NO_HANDLE ? polygon.getHandle() : registry.lookup(polygon.getID());
+        float[][] texCoords = registry.getTexCoords(handle);
+        if (texCoords != null) {
+            polygon.setTexCoords(texCoords);
+        }
+    }
+
+    private static void computeGeometry(List<XmlPoly> polygons, int start, int end) {
+        for (int i = start; i < end; i++) {
+            polygons.get(i).computeGeometry();
+        }
+    }
+
+    /**
+     * Task computing the geometry of a range of polygons, split in halves until it holds at most BATCH_SIZE polygons
+     */
+    private static class GeometryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private List<XmlPoly> polygons;
+        private int start;
+        private int end;
+
+        GeometryTask(List<XmlPoly> polygons, int start, int end) {
+            this.polygons = polygons;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= BATCH_SIZE) {
+                computeGeometry(polygons, start, end);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new GeometryTask(polygons, start, middle), new GeometryTask(polygons, middle, end));
+        }
+    }
+
+    /**
+     * Task consolidating and decimating a range of ground objects, split in halves until it holds a single ground object
+     */
+    private static class ConsolidationTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private GeometryProcessor processor;
+        private List<Ground> grounds;
+        private int start;
+        private int end;
+
+        ConsolidationTask(GeometryProcessor processor, List<Ground> grounds, int start, int end) {
+            this.processor = processor;
+            this.grounds = grounds;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                processor.consolidate(grounds.get(start));
+            } else if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new ConsolidationTask(processor, grounds, start, middle), new ConsolidationTask(processor, grounds, middle, end));
+            }
+        }
+    }
+}
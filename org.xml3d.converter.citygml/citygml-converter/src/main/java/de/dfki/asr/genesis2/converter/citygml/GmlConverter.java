@@ -1,10 +1,14 @@
 package de.dfki.asr.genesis2.converter.citygml;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import javax.xml.parsers.*;
 import org.w3c.dom.Document;
 import java.lang.String;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Map;
 import java.util.HashMap;
 import javax.xml.transform.stream.StreamResult;
@@ -19,18 +23,51 @@ public class GmlConverter {
 
     /**
      * @param args the command line arguments for the command line version: 1.) input file, 2.) output file, [3.) offset (optional)]
-     *
+     * Additional options: --stream parses the input file without building a DOM for the whole file and writes each city object
+     * as soon as it is read,
+     * --threads=N computes the geometry using N threads (one per processor if no number is given); together with --stream,
+     * the file is also parsed by N threads; --merge writes one mesh per building and shader and one mesh
+     * with shared vertices per ground object, --face-ids adds the polygon of each triangle to merged meshes,
+     * --indent indents the elements of the output file, --decimals=N writes positions and normals with at most N decimals,
+     * --binary writes the values of all meshes as 32 bit values to binary files next to the output file (referenced by
+     * attributes clients need a loader for; best together with --relative),
+     * --glb writes the scene as binary glTF 2.0 instead of xml3D, --tile-size=S splits the scene into tiles of S by S units,
+     * written to one file each, and lists them in an index next to the output file; --lod-levels=N adds up to N levels
+     * of coarser tiles with simplified buildings and ground on top of them, --decimate=E simplifies ground objects
+     * with a geometric error of at most E, --decimate-ratio=R keeps at most the fraction R of their triangles,
+     * --weld=E merges meshes like --merge and shares vertices closer than E in each coordinate (equal ones without E),
+     * --crease-angle=A keeps separate normals where polygons meet at more than A degrees (default 30),
+     * --relative writes positions as 32 bit floats relative to the center of the scene (of each tile, if tiled),
+     * --atlas=S packs the images of parameterized textures into atlas pages of at most S by S pixels (default 2048),
+     * written to the texture path, --transcode=S transcodes textures which are no JPEG or PNG images (all textures,
+     * if S is given) into JPEG or PNG images of at most S by S pixels,
+     * --texture-cache=DIR keeps transcoded textures in DIR (default "web" in the texture path),
+     * --pipeline=N reads, computes and writes city objects at the same time, with at most N city objects queued between
+     * reading and writing (default 64); the geometry is computed by the threads given by --threads. Tiled output needs all
+     * city objects at once, so --tile-size falls back to --stream
      */
     public static void main(String[] args) throws Exception {
+        ConverterOptions options = ConverterOptions.parse(args);
         float resX = 1.0f;
         float resY = 1.0f;
-        if(args.length == 5)
+        if(options.getArgumentCount() == 5)
         {
-            resX = Float.valueOf(args[3]);
-            resY = Float.valueOf(args[4]);
+            resX = Float.valueOf(options.getArgument(3));
+            resY = Float.valueOf(options.getArgument(4));
         }
        
-        initializeGmlParser(args[0], args[1], args[2], resX, resY);
+        if(options.isPipeline() && options.getTileSize() <= 0)
+        {
+            initializeGmlPipeline(options.getArgument(0), options.getArgument(1), options.getArgument(2), resX, resY, options);
+        }
+        else if(options.isStreaming() || options.isPipeline())
+        {
+            initializeGmlStreamParser(options.getArgument(0), options.getArgument(1), options.getArgument(2), resX, resY, options);
+        }
+        else
+        {
+            initializeGmlParser(options.getArgument(0), options.getArgument(1), options.getArgument(2), resX, resY, options);
+        }
         
     }
 
@@ -40,6 +77,16 @@ public class GmlConverter {
      * @param outputFile Path to the output file
      */
     public static void initializeGmlParser(String inputFile, String outputFile, String texturePath, float resX, float resY) {
+        initializeGmlParser(inputFile, outputFile, texturePath, resX, resY, new ConverterOptions());
+    }
+
+    /**
+     * Start parsing the given gml file and create output at the specified location (command line version)
+     * @param inputFile Path to the input file
+     * @param outputFile Path to the output file
+     * @param options Options of the conversion, e.g. the number of threads used for computing the geometry
+     */
+    public static void initializeGmlParser(String inputFile, String outputFile, String texturePath, float resX, float resY, ConverterOptions options) {
         
         try{
         gmlParser gmlTree = new gmlParser(inputFile);                                             //create gml-Tree by parsing given file
@@ -47,12 +94,10 @@ public class GmlConverter {
         //Map<String, GenericShader> shaderMap = new HashMap<String, GenericShader>();    
         Map<String, xmlShader> shaderMap = new HashMap<String, xmlShader>();
         Map<String, Ground> groundMap = new HashMap<String, Ground>();                           //Map storing ground objects
-        Map<String, xmlShader> polygonMap = new HashMap<String, xmlShader>();                   //Map storing polygons for storing shader information   
+        IdRegistry registry = new IdRegistry();                                                 //Registry of gml ids, storing the shader of each polygon
         Map<String, Semantics> semanticMap = new HashMap<String, Semantics>();                  //Map storing semantic information with the corresponding buildnig's id
         Ground ground = new Ground();                                                           // Ground object to be used
         String fileName = outputFile;
-        xmlProcessor processor = new xmlProcessor(fileName);
-        //xmlWriter xmlwriter = new xmlWriter(fileName);
 
         /*
          * Start parsing the gmlTree here, starting with the buildings
@@ -60,11 +105,28 @@ public class GmlConverter {
          */
 
 
-        gmlTree.parseBuildings(buildingMap, semanticMap);
-        gmlTree.parseShader(shaderMap, polygonMap);
-        gmlTree.parseGround(groundMap, buildingMap);
-        processor.processBuildings(buildingMap, shaderMap, polygonMap, semanticMap);
-        processor.processGround(texturePath, groundMap, shaderMap, polygonMap, resX, resY);
+        gmlTree.parseCityModel(new CityObjectCollector(buildingMap, semanticMap, groundMap, shaderMap, registry), registry);
+        registry.resolve();
+        GeometryProcessor geometryProcessor = new GeometryProcessor(options.getThreads());
+        geometryProcessor.setConsolidateGround(options.isMergeMeshes() || options.isWelding());
+        geometryProcessor.setDecimation(options.getDecimationError(), options.getDecimationRatio());
+        geometryProcessor.setWeldEpsilon(Math.max(options.getWeldEpsilon(), 0));
+        //atlas pages remap the texture coordinates in the registry, before they are set at the polygons
+        processTextures(fileName, texturePath, shaderMap, registry, options);
+        geometryProcessor.process(buildingMap.values(), groundMap.values(), registry);
+        new ShaderFactory().generateStandardShaders(shaderMap);
+        if (options.getTileSize() > 0) {
+            new SceneTiler(options).write(fileName, texturePath, resX, resY, buildingMap, groundMap, shaderMap, registry, semanticMap);
+            return;
+        }
+        double[] origin = options.isRelative() ? sceneOrigin(gmlTree.getSceneBoundary("lower"), gmlTree.getSceneBoundary("upper"),
+                buildingMap.values(), groundMap.values()) : null;
+        xmlProcessor processor = new xmlProcessor(createWriter(fileName, options, origin));
+        processor.setMergeMeshes(options.isMergeMeshes());
+        processor.setFaceIds(options.isFaceIds());
+        processor.setWelding(options.getWeldEpsilon(), options.getCreaseAngle());
+        processor.processBuildings(buildingMap, registry, semanticMap);
+        processor.processGround(texturePath, groundMap, registry, resX, resY);
         processor.processShader(shaderMap);
         processor.addCamera(gmlTree);
         processor.processXML();
@@ -74,6 +136,252 @@ public class GmlConverter {
         }
     }
 
+    /**
+     * Create the writer of the output file
+     * @param outputFile Path to the output file
+     * @param options Options of the conversion, selecting the output format
+     * @param origin Origin positions are written relative to, if requested by the options
+     * @return A GLBWriter if binary glTF is requested, a XML3DStreamWriter otherwise
+     */
+    static SceneWriter createWriter(String outputFile, ConverterOptions options, double[] origin) throws IOException {
+        if (options.isGlb()) {
+            GLBWriter writer = new GLBWriter(outputFile);
+            if (options.isRelative()) {
+                writer.setOrigin(origin);
+            }
+            return writer;
+        }
+        XML3DStreamWriter writer = new XML3DStreamWriter(outputFile, options.isIndent());
+        writer.setMaxDecimals(options.getMaxDecimals());
+        if (options.isBinary()) {
+            writer.setBinaryBuffers(new BinaryBufferWriter(outputFile));
+        }
+        if (options.isRelative()) {
+            writer.setOrigin(origin);
+        }
+        return writer;
+    }
+
+    /**
+     * Transcode the textures of the shaders and pack them into atlas pages, as far as requested by the options.
+     * The pages are named after the output file.
+     * @param outputFile Path to the output file
+     * @param texturePath Directory holding the textures, to which the pages are written
+     * @param shaderMap Shaders read from the gml file
+     * @param registry Registry holding the texture coordinates of the targets of the shaders
+     * @param options Options of the conversion, giving the size of textures and pages
+     */
+    static void processTextures(String outputFile, String texturePath, Map<String, xmlShader> shaderMap, IdRegistry registry,
+            ConverterOptions options) throws IOException {
+        if (options.isTranscoding()) {
+            TextureTranscoder transcoder = new TextureTranscoder(texturePath, options.getTextureCache(), options.getThreads());
+            transcoder.setMaxSize(options.getTextureSize());
+            transcoder.transcode(shaderMap);
+        }
+        if (options.getAtlasSize() <= 0) {
+            return;
+        }
+        String name = new File(outputFile).getName();
+        int extension = name.lastIndexOf('.');
+        String pageName = (extension > 0 ? name.substring(0, extension) : name) + "_atlas";
+        new TextureAtlas(options.getAtlasSize(), options.getThreads()).pack(texturePath, pageName, shaderMap, registry);
+    }
+
+    /**
+     * Choose the origin of relative positions: the center of the bounding box given in the gml file or, if the file
+     * has none, of all buildings and ground objects. It is rounded to whole units, so it is written exactly.
+     * @param lowerCorner Lower corner of the bounding box, as read from the gml file
+     * @param upperCorner Upper corner of the bounding box, as read from the gml file
+     * @return x, y and z of the origin
+     */
+    static double[] sceneOrigin(String lowerCorner, String upperCorner, Collection<Building> buildings, Collection<Ground> grounds) {
+        double[] bounds = new double[6];
+        try {
+            String[] lower = lowerCorner.trim().split("\\s+");
+            String[] upper = upperCorner.trim().split("\\s+");
+            for (int c = 0; c < 3; c++) {
+                bounds[c] = Double.parseDouble(lower[c]);
+                bounds[c + 3] = Double.parseDouble(upper[c]);
+            }
+        } catch (RuntimeException e) {
+            //no usable bounding box in the file
+            double[] objectBounds = new double[6];
+            for (int c = 0; c < 3; c++) {
+                bounds[c] = Double.MAX_VALUE;
+                bounds[c + 3] = -Double.MAX_VALUE;
+            }
+            for (Building building : buildings) {
+                if (SceneTiler.computeBounds(building.getPolyList(), null, objectBounds)) {
+                    include(bounds, objectBounds);
+                }
+            }
+            for (Ground ground : grounds) {
+                if (SceneTiler.computeBounds(ground.getPolyList(), ground.getMesh(), objectBounds)) {
+                    include(bounds, objectBounds);
+                }
+            }
+            if (bounds[0] > bounds[3]) {
+                return new double[3];
+            }
+        }
+        return new double[] { Math.rint((bounds[0] + bounds[3]) / 2), Math.rint((bounds[1] + bounds[4]) / 2), Math.rint((bounds[2] + bounds[5]) / 2) };
+    }
+
+    /**
+     * Choose the origin of relative positions for city objects written as they are read, before their bounds are known:
+     * the center of the bounding box given in the gml file
+     * @param lowerCorner Lower corner of the bounding box, as read from the gml file
+     * @param upperCorner Upper corner of the bounding box, as read from the gml file
+     * @return x, y and z of the origin; null if the file has no bounding box, so positions are written as they are
+     * (or, in binary glTF, relative to an origin near the first vertex)
+     */
+    static double[] boundaryOrigin(String lowerCorner, String upperCorner) {
+        if (lowerCorner.trim().isEmpty() || upperCorner.trim().isEmpty()) {
+            return null;
+        }
+        return sceneOrigin(lowerCorner, upperCorner, new ArrayList<Building>(), new ArrayList<Ground>());
+    }
+
+    private static void include(double[] bounds, double[] objectBounds) {
+        for (int c = 0; c < 3; c++) {
+            bounds[c] = Math.min(bounds[c], objectBounds[c]);
+            bounds[c + 3] = Math.max(bounds[c + 3], objectBounds[c + 3]);
+        }
+    }
+
+    /**
+     * Start parsing the given gml file with the gmlStreamParser and create output at the specified location (command line version).
+     * City objects are converted one by one as they are read, so no DOM of the whole file is ever built and, unless the
+     * output is tiled, no more than a single city object is held in memory.
+     * @param inputFile Path to the input file
+     * @param outputFile Path to the output file
+     */
+    public static void initializeGmlStreamParser(String inputFile, String outputFile, String texturePath, float resX, float resY) {
+        initializeGmlStreamParser(inputFile, outputFile, texturePath, resX, resY, new ConverterOptions());
+    }
+
+    /**
+     * Start parsing the given gml file with the gmlStreamParser and create output at the specified location (command line version).
+     * The file is read twice: the first pass only reads the appearances and the bounding box, so all shaders are known
+     * before the first city object is written; in the second pass, each city object is converted and written by a
+     * CityObjectWriter as soon as it is read. Tiles are cut from all city objects at once, so tiled output collects
+     * the city objects of the file before.
+     * With more than one thread, the file is cut into ranges which are parsed in parallel by a gmlParallelParser; the
+     * city objects of a range are then held until they are written in the order of the file.
+     * @param inputFile Path to the input file
+     * @param outputFile Path to the output file
+     * @param options Options of the conversion, e.g. the number of threads used for parsing and computing the geometry
+     */
+    public static void initializeGmlStreamParser(String inputFile, String outputFile, String texturePath, float resX, float resY, ConverterOptions options) {
+
+        try{
+        Map<String, xmlShader> shaderMap = new HashMap<String, xmlShader>();
+        IdRegistry registry = new IdRegistry();                                                 //Registry of gml ids, storing the shader of each polygon
+        GeometryProcessor geometryProcessor = new GeometryProcessor(options.getThreads());
+        geometryProcessor.setConsolidateGround(options.isMergeMeshes() || options.isWelding());
+        geometryProcessor.setDecimation(options.getDecimationError(), options.getDecimationRatio());
+        geometryProcessor.setWeldEpsilon(Math.max(options.getWeldEpsilon(), 0));
+        if (options.getTileSize() > 0) {
+            Map<String, Building> buildingMap = new HashMap<String, Building>();                    //Map storing buildings with their ids
+            Map<String, Ground> groundMap = new HashMap<String, Ground>();                           //Map storing ground objects
+            Map<String, Semantics> semanticMap = new HashMap<String, Semantics>();                  //Map storing semantic information with the corresponding buildnig's id
+            parseStream(inputFile, new CityObjectCollector(buildingMap, semanticMap, groundMap, shaderMap, registry), registry, options);
+            registry.resolve();
+            //atlas pages remap the texture coordinates in the registry, before they are set at the polygons
+            processTextures(outputFile, texturePath, shaderMap, registry, options);
+            geometryProcessor.process(buildingMap.values(), groundMap.values(), registry);
+            new ShaderFactory().generateStandardShaders(shaderMap);
+            new SceneTiler(options).write(outputFile, texturePath, resX, resY, buildingMap, groundMap, shaderMap, registry, semanticMap);
+            return;
+        }
+
+        gmlStreamParser appearanceParser = new gmlStreamParser(inputFile);
+        appearanceParser.parseAppearances(new CityObjectCollector(new HashMap<String, Building>(), new HashMap<String, Semantics>(),
+                new HashMap<String, Ground>(), shaderMap, registry));
+        String lowerCorner = appearanceParser.getSceneBoundary("lower");
+        String upperCorner = appearanceParser.getSceneBoundary("upper");
+        processTextures(outputFile, texturePath, shaderMap, registry, options);
+        new ShaderFactory().generateStandardShaders(shaderMap);
+
+        double[] origin = options.isRelative() ? boundaryOrigin(lowerCorner, upperCorner) : null;
+        xmlProcessor processor = new xmlProcessor(createWriter(outputFile, options, origin));
+        processor.setMergeMeshes(options.isMergeMeshes());
+        processor.setFaceIds(options.isFaceIds());
+        processor.setWelding(options.getWeldEpsilon(), options.getCreaseAngle());
+        parseStream(inputFile, new CityObjectWriter(geometryProcessor, processor, registry, texturePath, resX, resY), registry, options);
+        processor.processShader(shaderMap);
+        processor.addCamera(lowerCorner, upperCorner);
+        processor.processXML();
+        }catch(Exception e)
+        {
+            System.out.println("Error converting gml to xml3d:" + e);
+        }
+    }
+
+    /**
+     * Read the city objects of the given gml file, by a gmlParallelParser if more than one thread is to be used
+     * @param inputFile Path to the input file
+     * @param handler Handler receiving the city objects
+     * @param registry Registry receiving the ids of all geometries
+     * @param options Options of the conversion, giving the number of threads
+     */
+    private static void parseStream(String inputFile, CityObjectHandler handler, IdRegistry registry, ConverterOptions options) throws Exception {
+        if(options.getThreads() > 1)
+        {
+            new gmlParallelParser(inputFile, options.getThreads()).parse(handler, registry);
+        }
+        else
+        {
+            new gmlStreamParser(inputFile).parse(handler, registry);
+        }
+    }
+
+    /**
+     * Convert the given gml file by a ConversionPipeline and create output at the specified location (command line version).
+     * The file is read twice: the first pass only reads the appearances and the bounding box, so all shaders are known
+     * before the first city object is written; the second pass reads the city objects, whose geometry is computed and
+     * written while the file is still read. Only a bounded number of city objects is held in memory.
+     * @param inputFile Path to the input file
+     * @param outputFile Path to the output file
+     * @param options Options of the conversion, e.g. the number of threads used for computing the geometry and the capacity of the pipeline
+     */
+    public static void initializeGmlPipeline(String inputFile, String outputFile, String texturePath, float resX, float resY, ConverterOptions options) {
+
+        try{
+        Map<String, xmlShader> shaderMap = new HashMap<String, xmlShader>();
+        IdRegistry registry = new IdRegistry();                                                 //Registry of gml ids, storing the shader of each polygon
+
+        gmlStreamParser appearanceParser = new gmlStreamParser(inputFile);
+        appearanceParser.parseAppearances(new CityObjectCollector(new HashMap<String, Building>(), new HashMap<String, Semantics>(),
+                new HashMap<String, Ground>(), shaderMap, registry));
+        String lowerCorner = appearanceParser.getSceneBoundary("lower");
+        String upperCorner = appearanceParser.getSceneBoundary("upper");
+        //atlas pages remap the texture coordinates in the registry, before they are set at the polygons
+        processTextures(outputFile, texturePath, shaderMap, registry, options);
+        new ShaderFactory().generateStandardShaders(shaderMap);
+
+        //each city object is processed by a single thread of the pipeline
+        GeometryProcessor geometryProcessor = new GeometryProcessor(1);
+        geometryProcessor.setConsolidateGround(options.isMergeMeshes() || options.isWelding());
+        geometryProcessor.setDecimation(options.getDecimationError(), options.getDecimationRatio());
+        geometryProcessor.setWeldEpsilon(Math.max(options.getWeldEpsilon(), 0));
+
+        double[] origin = options.isRelative() ? boundaryOrigin(lowerCorner, upperCorner) : null;
+        xmlProcessor processor = new xmlProcessor(createWriter(outputFile, options, origin));
+        processor.setMergeMeshes(options.isMergeMeshes());
+        processor.setFaceIds(options.isFaceIds());
+        processor.setWelding(options.getWeldEpsilon(), options.getCreaseAngle());
+        new ConversionPipeline(options.getThreads(), options.getPipelineCapacity()).run(new gmlStreamParser(inputFile), registry,
+                geometryProcessor, processor, texturePath, resX, resY);
+        processor.processShader(shaderMap);
+        processor.addCamera(lowerCorner, upperCorner);
+        processor.processXML();
+        }catch(Exception e)
+        {
+            System.out.println("Error converting gml to xml3d:" + e);
+        }
+    }
+
     /**
      * Start parsing a gml file provided by the given input stream and generate the specified output stream
      * @param in InputStream to be used
@@ -89,12 +397,11 @@ public class GmlConverter {
         //Map<String, GenericShader> shaderMap = new HashMap<String, GenericShader>();    
         Map<String, xmlShader> shaderMap = new HashMap<String, xmlShader>();
         Map<String, Ground> groundMap = new HashMap<String, Ground>();                           //Map storing ground objects
-        Map<String, xmlShader> polygonMap = new HashMap<String, xmlShader>();                   //Map storing polygons for storing shader information   
+        IdRegistry registry = new IdRegistry();                                                 //Registry of gml ids, storing the shader of each polygon
         Map<String, Semantics> semanticMap = new HashMap<String, Semantics>();                  //Map storing semantic information with the corresponding buildnig's id
         Ground ground = new Ground();                                                           // Ground object to be used
         
         xmlProcessor processor = new xmlProcessor();
-        //xmlWriter xmlwriter = new xmlWriter(fileName);
 
         /*
          * Start parsing the gmlTree here, starting with the buildings
@@ -102,11 +409,12 @@ public class GmlConverter {
          */
 
 
-        gmlTree.parseBuildings(buildingMap, semanticMap);
-        gmlTree.parseShader(shaderMap, polygonMap);
-        gmlTree.parseGround(groundMap, buildingMap);
-        processor.processBuildings(buildingMap, shaderMap, polygonMap, semanticMap);
-        processor.processGround(texturePath, groundMap, shaderMap, polygonMap, resX, resY);
+        gmlTree.parseCityModel(new CityObjectCollector(buildingMap, semanticMap, groundMap, shaderMap, registry), registry);
+        registry.resolve();
+        new GeometryProcessor(1).process(buildingMap.values(), groundMap.values(), registry);
+        new ShaderFactory().generateStandardShaders(shaderMap);
+        processor.processBuildings(buildingMap, registry, semanticMap);
+        processor.processGround(texturePath, groundMap, registry, resX, resY);
         processor.processShader(shaderMap);
         processor.addCamera(gmlTree);
         result = processor.processXML();
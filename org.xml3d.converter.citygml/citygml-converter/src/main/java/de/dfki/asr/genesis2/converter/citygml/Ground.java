@@ -14,63 +14,38 @@ public class Ground {
     
     private static final Logger log = Logger.getLogger(Ground.class.getName());
     private String id;                                              //ground id, retrieved either from gml file or uniquely generated
+    private int handle = IdRegistry.NO_HANDLE;                      //handle of the triangulated surface in the IdRegistry
+    private GeometryBuffer mesh;                                    //all triangles with shared vertices, null until consolidate() is called
     private ArrayList<XmlPoly> poly = new ArrayList<XmlPoly>();     //list of polygons that define the building
     private Element groundNode;                                   //ground Node in the gmlTree 
     
     /**
-     * Read the position list from the given polygon and return the values as a list of 3d vectors. The function will both check for
+     * Read the position list from the given polygon and store the coordinates in the given tokenizer. The function will both check for
      * polygons defined via a list of "gml:pos" tags and those defined by a single "gml:posList"
      * @param polygon The polygon to be processed
-     * @return List of 3D vectors defining the given polygon
+     * @param coordinates Tokenizer receiving the coordinates of the polygon
      */
-    private ArrayList<Vec3D> getPositions(Element polygon)
+    private void getPositions(Element polygon, CoordinateTokenizer coordinates)
     {
-        //Get pos or PosList-Tag from the gml file, store each vertex as 3D-Vector and add to list
-        ArrayList<Vec3D> positions = new ArrayList<Vec3D>();        //initialize empty vector for storing positions
+        //Get pos or PosList-Tag from the gml file and scan their contents
+        coordinates.reset();
         NodeList posTags = polygon.getElementsByTagName("gml:pos");
         if(posTags.getLength() > 0)
         {
             for(int i=0; i<posTags.getLength(); i++)
             {
-                if(posTags.item(i).getNodeName() != null && posTags.item(i).getNodeName().equals("gml:pos"))
-                {
-                    //Found vertex definitions as single pos elements: Store each one as a single vector
-                    String vertexPos = posTags.item(i).getTextContent();
-                    String splitPos[] = vertexPos.split("\\s");
-
-                    Vec3D posVector = new Vec3D(Double.parseDouble(splitPos[0]), Double.parseDouble(splitPos[1]), Double.parseDouble(splitPos[2]));
-                    positions.add(posVector);
-                }
+                coordinates.append(posTags.item(i).getTextContent());
+                coordinates.separate();
             }
-
-            return positions;                                   //As positions are read from single pos tags, there is no need to check for posList-Tags: return
+            return;                                   //As positions are read from single pos tags, there is no need to check for posList-Tags: return
         }
         
         NodeList posListTags = polygon.getElementsByTagName("gml:posList");
-        if(posListTags.getLength() > 0)
+        for(int i=0; i<posListTags.getLength(); i++)
         {
-            for(int i=0; i<posListTags.getLength(); i++)
-            {
-                String vertexPos = posListTags.item(i).getTextContent();
-                String splitPos[] = vertexPos.split("\\s+");
-                
-                for(int j=0; j<(splitPos.length / 3); j++)
-                {   
-                    try{
-                        Vec3D posVector = new Vec3D(Double.parseDouble(splitPos[j*3]), Double.parseDouble(splitPos[(j*3)+1]), Double.parseDouble(splitPos[(j*3)+2]));
-                        positions.add(posVector);
-                    } catch(Exception e)
-                    {
-                        log.warn("Encountered an empty position string for object " + this.id);
-                    }
-                    
-                }
-            }
-            
-            return positions;
+            coordinates.append(posListTags.item(i).getTextContent());
+            coordinates.separate();
         }
-        
-        return positions;   //just in case something went wrong, place a return statement here.
     }
     
     
@@ -84,6 +59,7 @@ public class Ground {
      */
     public void gatherTriangles() {
         NodeList triangles = groundNode.getElementsByTagName("gml:Triangle");
+        CoordinateTokenizer coordinates = new CoordinateTokenizer();
         
         for(int i=0; i<triangles.getLength(); i++)
         {
@@ -92,18 +68,42 @@ public class Ground {
                 if(triangles.item(i).getNodeName().equals("gml:Triangle"))      //found a triangle: generate id, store in polygon-list
                 {
                     Element triangleElement = (Element)triangles.item(i);
-                    String id = "groundTriangle_"+i; 
-                    ArrayList<Vec3D> positions = getPositions(triangleElement);
-                    XmlPoly foundPoly = new XmlPoly();
-                    foundPoly.setId(id);
-                    foundPoly.setPositions(positions);
-                    foundPoly.computeNormals();
-                    foundPoly.simpleTriangulation();
-                    poly.add(foundPoly);
+                    getPositions(triangleElement, coordinates);
+                    addTriangle("groundTriangle_"+i, coordinates);
                 }
                 
             }
         }
+        computeGeometry();
+    }
+    
+    /**
+     * Compute normals and triangulation of all triangles of the ground object
+     */
+    public void computeGeometry()
+    {
+        for(XmlPoly triangle : poly)
+        {
+            triangle.computeGeometry();
+        }
+    }
+    
+    /**
+     * Add a triangle to the ground's list of polygons. Only the positions are stored; normals and triangulation
+     * are computed by computeGeometry() or by a GeometryProcessor.
+     * @param id The id to be used for the triangle
+     * @param coordinates Tokenizer holding the coordinates of the triangle, as read from the gml file
+     */
+    public void addTriangle(String id, CoordinateTokenizer coordinates)
+    {
+        if(coordinates.getInvalidTokens() > 0)
+        {
+            log.warn("Skipped " + coordinates.getInvalidTokens() + " invalid coordinates of triangle " + id + " in object " + this.id);
+        }
+        XmlPoly foundPoly = new XmlPoly();
+        foundPoly.setId(id);
+        foundPoly.setPositions(coordinates.values(), coordinates.size() / 3);
+        poly.add(foundPoly);
     }
     
     
@@ -113,6 +113,124 @@ public class Ground {
         return this.id;
     }
     
+    /**
+     * Collect all triangles of the ground object in a single indexed mesh. Vertices shared by several triangles
+     * (usually about six in a TIN) are stored only once; their normal is the area weighted average of the normals
+     * of the adjacent triangles. Triangles degenerated by welding are dropped. Afterwards, the list of polygons
+     * is empty and the mesh is available from getMesh().
+     */
+    public void consolidate()
+    {
+        consolidate(0.0);
+    }
+    
+    /**
+     * Collect all triangles of the ground object in a single indexed mesh, like consolidate(), welding vertices
+     * which differ by at most the given tolerance in each coordinate
+     * @param epsilon Maximum difference of each coordinate of welded vertices; 0 to weld equal positions only
+     */
+    public void consolidate(double epsilon)
+    {
+        int cornerCount = 0;
+        int indexCount = 0;
+        for(XmlPoly triangle : poly)
+        {
+            cornerCount += triangle.getGeometry().getVertexCount();
+            indexCount += 3 * Math.max(triangle.getGeometry().getVertexCount() - 2, 0);
+        }
+        mesh = new GeometryBuffer(cornerCount / 4 + 3, indexCount);
+        VertexWelder welder = new VertexWelder(mesh, cornerCount / 4 + 3, epsilon);
+        for(XmlPoly triangle : poly)
+        {
+            GeometryBuffer geometry = triangle.getGeometry();
+            if(geometry.getVertexCount() == 3)
+            {
+                //triangles usually have three corners
+                int a = welder.add(geometry.getX(0), geometry.getY(0), geometry.getZ(0));
+                int b = welder.add(geometry.getX(1), geometry.getY(1), geometry.getZ(1));
+                int c = welder.add(geometry.getX(2), geometry.getY(2), geometry.getZ(2));
+                addTriangle(a, b, c);
+            }
+            else if(geometry.getVertexCount() > 3)
+            {
+                //larger rings, possibly with holes, are triangulated first
+                triangle.triangulate();
+                int[] welded = new int[geometry.getVertexCount()];
+                for(int v=0; v<welded.length; v++)
+                {
+                    welded[v] = welder.add(geometry.getX(v), geometry.getY(v), geometry.getZ(v));
+                }
+                int[] indices = geometry.getIndices();
+                for(int i=0; i<geometry.getIndexCount(); i+=3)
+                {
+                    addTriangle(welded[indices[i]], welded[indices[i + 1]], welded[indices[i + 2]]);
+                }
+            }
+            geometry.release();
+        }
+        poly.clear();
+        poly.trimToSize();
+        mesh.computeVertexNormals();
+        mesh.trim();
+    }
+    
+    /**
+     * Add a triangle to the consolidated mesh, unless two of its corners have been welded together
+     */
+    private void addTriangle(int a, int b, int c)
+    {
+        if(a != b && b != c && c != a)
+        {
+            mesh.addTriangle(a, b, c);
+        }
+    }
+    
+    /**
+     * Simplify the consolidated mesh by quadric error decimation. Vertices on the border of the mesh are kept,
+     * so the mesh still fits to its neighbours. Nothing is done if the ground object has not been consolidated.
+     * @param maxError Maximum geometric error; Double.POSITIVE_INFINITY to only use the ratio
+     * @param ratio Fraction of triangles to be kept; 0 to only use the maximum error
+     */
+    public void decimate(double maxError, double ratio)
+    {
+        if(mesh == null)
+        {
+            return;
+        }
+        int triangleCount = mesh.getIndexCount() / 3;
+        QuadricDecimator decimator = new QuadricDecimator(mesh);
+        mesh = decimator.decimate(maxError, (int)(ratio * triangleCount));
+        log.debug("Decimated ground " + id + " from " + triangleCount + " to " + mesh.getIndexCount() / 3
+                + " triangles, error " + decimator.getError());
+    }
+    
+    /**
+     * @return The consolidated mesh of the ground object, null if consolidate() has not been called
+     */
+    public GeometryBuffer getMesh()
+    {
+        return this.mesh;
+    }
+    
+    /**
+     * Replace the mesh of the ground object, e.g. by a simplified one
+     * @param mesh Triangles with shared vertices, used instead of the list of polygons
+     */
+    public void setMesh(GeometryBuffer mesh)
+    {
+        this.mesh = mesh;
+    }
+    
+    public void setHandle(int handle)
+    {
+        this.handle = handle;
+    }
+    
+    public int getHandle()
+    {
+        return this.handle;
+    }
+    
     Ground(Element groundNode)
     {
         this.groundNode = groundNode;
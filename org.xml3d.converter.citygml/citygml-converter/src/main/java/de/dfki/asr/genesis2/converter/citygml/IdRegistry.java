@@ -0,0 +1,319 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of the gml:ids found in a gml file. Every id is interned once and mapped to a compact int handle,
+ * which is stored with the polygons and ground objects, so shaders can be looked up by handle instead of
+ * building and hashing "#" + id strings for every polygon when writing the output.
+ * Besides the shader bound to a handle by an app:target, with the texture coordinates given for that target,
+ * the registry records links between handles:
+ * a geometry (e.g. a gml:Polygon) is linked to the geometries it is part of (e.g. the gml:MultiSurface around it,
+ * or a gml:CompositeSurface referencing it with xlink:href). A shader targeting a geometry applies to all geometries linked to it,
+ * unless they have a shader of their own. A geometry takes the shader of the geometries containing it before the one of
+ * geometries referencing it, whatever the order of the file: in CityGML 2.0, the xlink:href surface members of a
+ * lod2Solid usually come before the boundedBy surfaces containing the polygons.
+ * Targets and references may appear before the id they refer to; they are only resolved when the shader of a handle
+ * is requested, or for all handles at once by resolve() once parsing is done. The binding found for a handle is kept, so later requests for the handle, or for any handle
+ * whose links lead through it, are served without taking the lock of the registry. Linking or binding a handle whose
+ * binding is kept drops all kept bindings.
+ * Interning and linking are thread safe, so the registry can be filled by several parsers at once.
+ * @author Daniel Spieldenner
+ */
+public class IdRegistry {
+
+    public static final int NO_HANDLE = -1;
+    private static final Binding UNBOUND = new Binding(null, null);
+
+    private ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<String, Integer>();
+    private String[] ids = new String[256];                 //id of each handle, null for anonymous geometries
+    private xmlShader[] shaders = new xmlShader[256];       //shader bound to each handle
+    private float[][][] texCoords = new float[256][][];     //texture coordinates bound with the shader, one array per ring; null for none
+    private int count = 0;
+
+    //links as linked lists in arrays, oldest first: first and last link of each handle, target and next link of each link
+    private int[] firstLink = new int[256];
+    private int[] lastLink = new int[256];
+    private int[] linkTarget = new int[256];
+    private int[] nextLink = new int[256];
+    private boolean[] linkReference = new boolean[256];    //true for links by xlink:href, false for containment
+    private int linkCount = 0;
+
+    //binding found for each handle, null if not resolved yet; replaced when growing or when links change
+    private volatile AtomicReferenceArray<Binding> bindings = new AtomicReferenceArray<Binding>(256);
+    private boolean[] resolving = new boolean[256];         //handles on the path being resolved, guards against cyclic references
+    private boolean cycleCut = false;                       //a cyclic reference was met while resolving the current handle
+
+    public IdRegistry() {
+        Arrays.fill(firstLink, NO_HANDLE);
+    }
+
+    /**
+     * Get the handle of the given id, creating a new one if the id has not been seen before
+     * @param id The gml:id, with or without a leading "#" as used in references
+     * @return The handle of the id
+     */
+    public int intern(String id) {
+        String key = stripReference(id);
+        Integer handle = handles.get(key);
+        if (handle != null) {
+            return handle;
+        }
+        synchronized (this) {
+            handle = handles.get(key);
+            if (handle == null) {
+                handle = create(key);
+                handles.put(key, handle);
+            }
+            return handle;
+        }
+    }
+
+    /**
+     * Create a handle for a geometry without an id of its own, which may still inherit a shader through its links
+     * @return The new handle
+     */
+    public synchronized int createAnonymous() {
+        return create(null);
+    }
+
+    /**
+     * Get the handle of the given id without creating one
+     * @param id The gml:id, with or without a leading "#"
+     * @return The handle of the id, NO_HANDLE if it is unknown
+     */
+    public int lookup(String id) {
+        Integer handle = handles.get(stripReference(id));
+        return handle == null ? NO_HANDLE : handle;
+    }
+
+    /**
+     * @return The id of the given handle, null for anonymous handles
+     */
+    public synchronized String getId(int handle) {
+        return ids[handle];
+    }
+
+    /**
+     * @return Number of handles created so far
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Record that a geometry is contained in another one
+     * @param handle Handle of the contained geometry
+     * @param parent Handle of the geometry containing it
+     */
+    public void link(int handle, int parent) {
+        link(handle, parent, false);
+    }
+
+    /**
+     * Record that a geometry is referenced by another one with xlink:href. Shaders reached through references are
+     * only used if none is reached through the geometries containing the referenced geometry.
+     * @param handle Handle of the referenced geometry
+     * @param parent Handle of the geometry referencing it
+     */
+    public void linkReference(int handle, int parent) {
+        link(handle, parent, true);
+    }
+
+    private synchronized void link(int handle, int parent, boolean reference) {
+        if (handle == parent || handle == NO_HANDLE || parent == NO_HANDLE) {
+            return;
+        }
+        if (linkCount == linkTarget.length) {
+            linkTarget = Arrays.copyOf(linkTarget, linkCount * 2);
+            nextLink = Arrays.copyOf(nextLink, linkCount * 2);
+            linkReference = Arrays.copyOf(linkReference, linkCount * 2);
+        }
+        linkTarget[linkCount] = parent;
+        nextLink[linkCount] = NO_HANDLE;
+        linkReference[linkCount] = reference;
+        if (firstLink[handle] == NO_HANDLE) {
+            firstLink[handle] = linkCount;
+        } else {
+            nextLink[lastLink[handle]] = linkCount;
+        }
+        lastLink[handle] = linkCount;
+        linkCount++;
+        changed(handle);
+    }
+
+    /**
+     * Bind a shader to the target of an appearance. A later binding of the same target replaces an earlier one.
+     * @param target The target, usually a reference like "#polygonId"
+     * @param shader The shader to be used
+     */
+    public void bindShader(String target, xmlShader shader) {
+        bindShader(target, shader, null);
+    }
+
+    /**
+     * Bind a shader and the texture coordinates of a parameterized texture to the target of an appearance.
+     * As texture shaders are shared by all appearances using the same image, the coordinates are kept per target.
+     * @param target The target, usually a reference like "#polygonId"
+     * @param shader The shader to be used
+     * @param texCoords Texture coordinates of the target, u and v of each vertex in one array per ring, in the order
+     * of the rings of the polygon; null if there are none
+     */
+    public void bindShader(String target, xmlShader shader, float[][] texCoords) {
+        int handle = intern(target);
+        synchronized (this) {
+            shaders[handle] = shader;
+            this.texCoords[handle] = texCoords;
+            changed(handle);
+        }
+    }
+
+    /**
+     * Resolve the bindings of all handles created so far, so that requesting them no longer takes the lock.
+     * Called once all geometries and appearances have been parsed.
+     */
+    public synchronized void resolve() {
+        for (int handle = 0; handle < count; handle++) {
+            findBinding(handle);
+        }
+    }
+
+    /**
+     * Find the shader of a geometry: the shader bound to its own handle or, if there is none,
+     * the one of the first geometry containing it (directly or indirectly) that has a shader or, if there is none,
+     * the one of the first geometry referencing it.
+     * @param handle The handle of the geometry, may be NO_HANDLE
+     * @return The shader, null if none applies
+     */
+    public xmlShader getShader(int handle) {
+        return getBinding(handle).shader;
+    }
+
+    /**
+     * Find the texture coordinates of a geometry, bound together with the shader returned by getShader(handle)
+     * @param handle The handle of the geometry, may be NO_HANDLE
+     * @return The texture coordinates, one array per ring; null if none apply
+     */
+    public float[][] getTexCoords(int handle) {
+        return getBinding(handle).texCoords;
+    }
+
+    /**
+     * @return The shader bound to the handle itself, not following any links
+     */
+    synchronized xmlShader getBoundShader(int handle) {
+        return shaders[handle];
+    }
+
+    /**
+     * @return The texture coordinates bound to the handle itself, not following any links
+     */
+    synchronized float[][] getBoundTexCoords(int handle) {
+        return texCoords[handle];
+    }
+
+    /**
+     * Get the binding of a handle, without taking the lock if it has been resolved before
+     */
+    private Binding getBinding(int handle) {
+        if (handle == NO_HANDLE) {
+            return UNBOUND;
+        }
+        AtomicReferenceArray<Binding> resolved = bindings;
+        Binding binding = handle < resolved.length() ? resolved.get(handle) : null;
+        if (binding != null) {
+            return binding;
+        }
+        synchronized (this) {
+            return findBinding(handle);
+        }
+    }
+
+    /**
+     * Resolve the binding of a handle and of the handles its links lead to, keeping each one found.
+     * Links of containment are followed before references, each kind oldest first.
+     * A binding found while a cyclic reference was cut off depends on where resolving started, so it is not kept.
+     * Called with the lock held.
+     */
+    private Binding findBinding(int handle) {
+        Binding binding = bindings.get(handle);
+        if (binding != null) {
+            return binding;
+        }
+        if (resolving[handle]) {
+            cycleCut = true;
+            return UNBOUND;
+        }
+        if (shaders[handle] != null) {
+            binding = new Binding(shaders[handle], texCoords[handle]);
+            bindings.set(handle, binding);
+            return binding;
+        }
+        boolean outerCut = cycleCut;
+        cycleCut = false;
+        resolving[handle] = true;
+        binding = UNBOUND;
+        for (int pass = 0; pass < 2 && binding == UNBOUND; pass++) {
+            for (int link = firstLink[handle]; link != NO_HANDLE && binding == UNBOUND; link = nextLink[link]) {
+                if (linkReference[link] == (pass == 1)) {
+                    binding = findBinding(linkTarget[link]);
+                }
+            }
+        }
+        resolving[handle] = false;
+        if (!cycleCut) {
+            bindings.set(handle, binding);
+        }
+        cycleCut |= outerCut;
+        return binding;
+    }
+
+    /**
+     * Drop all kept bindings if the one of the given handle, which others may depend on, is kept. Called with the lock held.
+     */
+    private void changed(int handle) {
+        if (bindings.get(handle) != null) {
+            bindings = new AtomicReferenceArray<Binding>(ids.length);
+        }
+    }
+
+    private int create(String id) {
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+            shaders = Arrays.copyOf(shaders, count * 2);
+            texCoords = Arrays.copyOf(texCoords, count * 2);
+            firstLink = Arrays.copyOf(firstLink, count * 2);
+            Arrays.fill(firstLink, count, count * 2, NO_HANDLE);
+            lastLink = Arrays.copyOf(lastLink, count * 2);
+            resolving = Arrays.copyOf(resolving, count * 2);
+            AtomicReferenceArray<Binding> grown = new AtomicReferenceArray<Binding>(count * 2);
+            for (int h = 0; h < count; h++) {
+                grown.set(h, bindings.get(h));
+            }
+            bindings = grown;
+        }
+        ids[count] = id;
+        return count++;
+    }
+
+    private static String stripReference(String id) {
+        String key = id.trim();
+        return key.startsWith("#") ? key.substring(1) : key;
+    }
+
+    /**
+     * Shader and texture coordinates applying to a handle
+     */
+    private static final class Binding {
+
+        private final xmlShader shader;
+        private final float[][] texCoords;
+
+        Binding(xmlShader shader, float[][] texCoords) {
+            this.shader = shader;
+            this.texCoords = texCoords;
+        }
+    }
+}
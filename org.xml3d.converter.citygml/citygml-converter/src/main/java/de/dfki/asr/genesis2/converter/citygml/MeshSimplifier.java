@@ -0,0 +1,534 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates simplified geometry for coarse levels of detail, together with its geometric error:
+ * the largest distance of a vertex of the original geometry from the simplified one.
+ * Buildings are replaced by a block, the convex hull of their footprint extruded from their lowest point to their
+ * measured height. As the hull covers the yards and recesses of concave footprints, the error of a block also
+ * covers the distance of the hull from the footprint. Ground meshes are simplified by clustering their vertices on
+ * a grid: all vertices in a cell are merged into their mean, and triangles with two corners in the same cell are
+ * dropped. The grid is refined until the error of the clustered mesh is within a given bound.
+ * @author Daniel Spieldenner
+ */
+public class MeshSimplifier {
+
+    private static final int MAX_REFINEMENTS = 10;         //halvings of the grid cells to meet the error bound of clustering
+    private static final int HULL_SAMPLES = 16;             //points per side of the grid the hull is sampled on
+
+    private MeshSimplifier() {
+    }
+
+    /**
+     * Create the block of a building: walls along the convex hull of its footprint and a flat roof.
+     * The error of the block is the larger of the distance of the vertices of the building from the block and of the
+     * distance of the hull from the footprint, the area covered by the polygons of the building seen from above.
+     * The latter is measured on a grid of HULL_SAMPLES by HULL_SAMPLES points and along the edges of the hull.
+     * @param polygons The polygons of the building, with their positions and triangles still available
+     * @param height Measured height of the building above its lowest point; NaN to use its highest point as roof
+     * @param error Receives the geometric error of the block at index 0
+     * @return The block, null if the footprint of the building has no area
+     */
+    public static GeometryBuffer createBlock(List<XmlPoly> polygons, double height, double[] error) {
+        int pointCount = 0;
+        for (XmlPoly polygon : polygons) {
+            pointCount += polygon.getGeometry().getVertexCount();
+        }
+        double[] points = new double[pointCount * 2];
+        double bottom = Double.MAX_VALUE;
+        double top = -Double.MAX_VALUE;
+        int p = 0;
+        for (XmlPoly polygon : polygons) {
+            GeometryBuffer geometry = polygon.getGeometry();
+            for (int v = 0; v < geometry.getVertexCount(); v++) {
+                points[p++] = geometry.getX(v);
+                points[p++] = geometry.getY(v);
+                bottom = Math.min(bottom, geometry.getZ(v));
+                top = Math.max(top, geometry.getZ(v));
+            }
+        }
+        double[] hull = convexHull(points, pointCount);
+        int hullCount = hull.length / 2;
+        if (hullCount < 3) {
+            return null;
+        }
+        if (!Double.isNaN(height) && height > 0) {
+            top = bottom + height;
+        }
+
+        //faces are ordered clockwise seen from outside, which XmlPoly.computeNormals() turns into outward normals
+        GeometryBuffer block = new GeometryBuffer(hullCount * 5, hullCount * 9);
+        for (int i = 0; i < hullCount; i++) {
+            int j = (i + 1) % hullCount;
+            double dx = hull[j * 2] - hull[i * 2];
+            double dy = hull[j * 2 + 1] - hull[i * 2 + 1];
+            double length = Math.sqrt(dx * dx + dy * dy);
+            int first = block.addVertex(hull[i * 2], hull[i * 2 + 1], bottom);
+            block.addVertex(hull[j * 2], hull[j * 2 + 1], bottom);
+            block.addVertex(hull[j * 2], hull[j * 2 + 1], top);
+            block.addVertex(hull[i * 2], hull[i * 2 + 1], top);
+            for (int v = first; v < first + 4; v++) {
+                block.setNormal(v, (float) (dy / length), (float) (-dx / length), 0.0f);
+            }
+            block.addTriangle(first, first + 2, first + 1);
+            block.addTriangle(first, first + 3, first + 2);
+        }
+        int roof = block.getVertexCount();
+        for (int i = 0; i < hullCount; i++) {
+            block.addVertex(hull[i * 2], hull[i * 2 + 1], top);
+            block.setNormal(roof + i, 0.0f, 0.0f, 1.0f);
+        }
+        for (int i = 1; i < hullCount - 1; i++) {
+            block.addTriangle(roof, roof + i + 1, roof + i);
+        }
+
+        //vertices lie within the hull, so their distance to the block is the one to its nearest face
+        double maxError = 0;
+        for (XmlPoly polygon : polygons) {
+            GeometryBuffer geometry = polygon.getGeometry();
+            for (int v = 0; v < geometry.getVertexCount(); v++) {
+                double z = geometry.getZ(v);
+                double distance = z > top ? z - top : Math.min(Math.min(z - bottom, top - z),
+                        distanceToBoundary(hull, geometry.getX(v), geometry.getY(v)));
+                maxError = Math.max(maxError, distance);
+            }
+        }
+        error[0] = Math.max(maxError, hullDeviation(polygons, hull));
+        return block;
+    }
+
+    /**
+     * Measure how far the convex hull of a building reaches beyond its footprint
+     * @return The largest horizontal distance of a sampled point of the hull from the triangles of the polygons
+     */
+    private static double hullDeviation(List<XmlPoly> polygons, double[] hull) {
+        int triangleCount = 0;
+        for (XmlPoly polygon : polygons) {
+            triangleCount += polygon.getGeometry().getIndexCount() / 3;
+        }
+        //the triangles seen from above; walls become segments
+        double[] triangles = new double[triangleCount * 9];
+        int t = 0;
+        for (XmlPoly polygon : polygons) {
+            GeometryBuffer geometry = polygon.getGeometry();
+            int[] indices = geometry.getIndices();
+            for (int i = 0; i + 2 < geometry.getIndexCount(); i += 3) {
+                for (int c = 0; c < 3; c++) {
+                    triangles[t++] = geometry.getX(indices[i + c]);
+                    triangles[t++] = geometry.getY(indices[i + c]);
+                    triangles[t++] = 0;
+                }
+            }
+        }
+        if (triangleCount == 0) {
+            return 0;
+        }
+
+        int hullCount = hull.length / 2;
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < hullCount; i++) {
+            minX = Math.min(minX, hull[i * 2]);
+            minY = Math.min(minY, hull[i * 2 + 1]);
+            maxX = Math.max(maxX, hull[i * 2]);
+            maxY = Math.max(maxY, hull[i * 2 + 1]);
+        }
+        double step = Math.max(maxX - minX, maxY - minY) / HULL_SAMPLES;
+        double deviation = 0;
+        for (int i = 0; i <= HULL_SAMPLES; i++) {
+            for (int j = 0; j <= HULL_SAMPLES; j++) {
+                double x = minX + i * step;
+                double y = minY + j * step;
+                if (insideConvex(hull, x, y)) {
+                    deviation = Math.max(deviation, footprintDistance(triangles, triangleCount, x, y, deviation));
+                }
+            }
+        }
+        for (int i = 0; i < hullCount; i++) {
+            int j = (i + 1) % hullCount;
+            double dx = hull[j * 2] - hull[i * 2];
+            double dy = hull[j * 2 + 1] - hull[i * 2 + 1];
+            int samples = (int) Math.ceil(Math.sqrt(dx * dx + dy * dy) / step);
+            for (int k = 1; k < samples; k++) {
+                double x = hull[i * 2] + dx * k / samples;
+                double y = hull[i * 2 + 1] + dy * k / samples;
+                deviation = Math.max(deviation, footprintDistance(triangles, triangleCount, x, y, deviation));
+            }
+        }
+        return deviation;
+    }
+
+    /**
+     * @return Horizontal distance of a point from the nearest of the given flattened triangles, or any distance not
+     * larger than the given one as soon as it is known that the distance does not exceed it
+     */
+    private static double footprintDistance(double[] triangles, int triangleCount, double x, double y, double known) {
+        double min = Double.MAX_VALUE;
+        for (int t = 0; t < triangleCount && min > known; t++) {
+            min = Math.min(min, distanceToTriangle(triangles, t * 9, x, y, 0));
+        }
+        return min;
+    }
+
+    /**
+     * @return true if the point lies within or on the counterclockwise convex polygon
+     */
+    private static boolean insideConvex(double[] polygon, double x, double y) {
+        int count = polygon.length / 2;
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1) % count;
+            double cross = (polygon[j * 2] - polygon[i * 2]) * (y - polygon[i * 2 + 1])
+                    - (polygon[j * 2 + 1] - polygon[i * 2 + 1]) * (x - polygon[i * 2]);
+            if (cross < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Simplify the triangles of the given geometries by clustering their vertices on a grid. The error of a vertex is
+     * its distance from the mean of its cluster or, if no triangle using the cluster remains, from the nearest
+     * remaining triangle. As long as the error measured exceeds maxError, the vertices are clustered again on a grid of cells half the size. Vertices which
+     * share x and y are never separated by the grid, so after MAX_REFINEMENTS halvings the error may still be larger.
+     * @param parts Geometries holding the triangles, e.g. the consolidated mesh of a ground object or its triangles
+     * @param cellSize Edge length of the grid cells to start with
+     * @param maxError Largest geometric error allowed
+     * @param error Receives the geometric error of the simplified mesh at index 0
+     * @return The simplified mesh with shared vertices
+     */
+    public static GeometryBuffer clusterVertices(List<GeometryBuffer> parts, double cellSize, double maxError, double[] error) {
+        GeometryBuffer mesh = cluster(parts, cellSize, error);
+        for (int r = 0; r < MAX_REFINEMENTS && error[0] > maxError; r++) {
+            cellSize /= 2;
+            mesh = cluster(parts, cellSize, error);
+        }
+        mesh.computeVertexNormals();
+        mesh.trim();
+        return mesh;
+    }
+
+    /**
+     * Cluster the vertices of the given geometries on a grid of the given cell size, without normals
+     */
+    private static GeometryBuffer cluster(List<GeometryBuffer> parts, double cellSize, double[] error) {
+        Map<Long, Integer> cells = new HashMap<Long, Integer>();
+        double[] sums = new double[64 * 3];
+        int[] counts = new int[64];
+        int[][] clusters = new int[parts.size()][];
+        for (int g = 0; g < parts.size(); g++) {
+            GeometryBuffer part = parts.get(g);
+            clusters[g] = new int[part.getVertexCount()];
+            for (int v = 0; v < part.getVertexCount(); v++) {
+                long x = (long) Math.floor(part.getX(v) / cellSize);
+                long y = (long) Math.floor(part.getY(v) / cellSize);
+                Long key = cellKey(x, y);
+                Integer cluster = cells.get(key);
+                if (cluster == null) {
+                    cluster = cells.size();
+                    cells.put(key, cluster);
+                    if (cluster == counts.length) {
+                        counts = Arrays.copyOf(counts, cluster * 2);
+                        sums = Arrays.copyOf(sums, cluster * 6);
+                    }
+                }
+                sums[cluster * 3] += part.getX(v);
+                sums[cluster * 3 + 1] += part.getY(v);
+                sums[cluster * 3 + 2] += part.getZ(v);
+                counts[cluster]++;
+                clusters[g][v] = cluster;
+            }
+        }
+
+        //only clusters used by a remaining triangle become vertices
+        GeometryBuffer mesh = new GeometryBuffer();
+        int[] vertices = new int[cells.size()];
+        Arrays.fill(vertices, -1);
+        for (int g = 0; g < parts.size(); g++) {
+            GeometryBuffer part = parts.get(g);
+            int[] indices = part.getIndices();
+            for (int i = 0; i + 2 < part.getIndexCount(); i += 3) {
+                int a = clusters[g][indices[i]];
+                int b = clusters[g][indices[i + 1]];
+                int c = clusters[g][indices[i + 2]];
+                if (a != b && b != c && c != a) {
+                    mesh.addTriangle(vertex(mesh, vertices, sums, counts, a), vertex(mesh, vertices, sums, counts, b),
+                            vertex(mesh, vertices, sums, counts, c));
+                }
+            }
+        }
+
+        double maxError = 0;
+        TriangleGrid remaining = null;          //built when the first vertex of a dropped cluster is met
+        for (int g = 0; g < parts.size(); g++) {
+            GeometryBuffer part = parts.get(g);
+            for (int v = 0; v < part.getVertexCount(); v++) {
+                int cluster = clusters[g][v];
+                double distance;
+                if (vertices[cluster] >= 0) {
+                    double dx = part.getX(v) - sums[cluster * 3] / counts[cluster];
+                    double dy = part.getY(v) - sums[cluster * 3 + 1] / counts[cluster];
+                    double dz = part.getZ(v) - sums[cluster * 3 + 2] / counts[cluster];
+                    distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                } else if (mesh.getIndexCount() > 0) {
+                    if (remaining == null) {
+                        remaining = new TriangleGrid(mesh, cellSize);
+                    }
+                    distance = remaining.distance(part.getX(v), part.getY(v), part.getZ(v));
+                } else {
+                    //nothing remains, so the whole extent of the geometry is lost
+                    distance = diagonal(parts);
+                }
+                maxError = Math.max(maxError, distance);
+            }
+        }
+        error[0] = maxError;
+        return mesh;
+    }
+
+    /**
+     * @return Length of the diagonal of the bounding box of all vertices of the given geometries
+     */
+    private static double diagonal(List<GeometryBuffer> parts) {
+        double[] min = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+        double[] max = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (GeometryBuffer part : parts) {
+            double[] positions = part.getPositions();
+            for (int i = 0; i < part.getVertexCount() * 3; i++) {
+                min[i % 3] = Math.min(min[i % 3], positions[i]);
+                max[i % 3] = Math.max(max[i % 3], positions[i]);
+            }
+        }
+        double dx = max[0] - min[0];
+        double dy = max[1] - min[1];
+        double dz = max[2] - min[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private static long cellKey(long x, long y) {
+        return (x << 32) ^ (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get the vertex of a cluster in the simplified mesh, adding it at the mean of the cluster if necessary
+     */
+    private static int vertex(GeometryBuffer mesh, int[] vertices, double[] sums, int[] counts, int cluster) {
+        if (vertices[cluster] < 0) {
+            vertices[cluster] = mesh.addVertex(sums[cluster * 3] / counts[cluster], sums[cluster * 3 + 1] / counts[cluster],
+                    sums[cluster * 3 + 2] / counts[cluster]);
+        }
+        return vertices[cluster];
+    }
+
+    /**
+     * Compute the convex hull of a set of 2D points by Andrew's monotone chain
+     * @param points x and y of each point
+     * @param count Number of points
+     * @return x and y of the corners of the hull, counterclockwise
+     */
+    static double[] convexHull(double[] points, int count) {
+        if (count < 3) {
+            return new double[0];
+        }
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        final double[] coordinates = points;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int byX = Double.compare(coordinates[a * 2], coordinates[b * 2]);
+                return byX != 0 ? byX : Double.compare(coordinates[a * 2 + 1], coordinates[b * 2 + 1]);
+            }
+        });
+        int[] hull = new int[count * 2];
+        int size = 0;
+        //lower hull from left to right, then upper hull from right to left
+        for (int pass = 0; pass < 2; pass++) {
+            int start = size;
+            for (int k = 0; k < count; k++) {
+                int point = order[pass == 0 ? k : count - 1 - k];
+                while (size >= start + 2 && cross(points, hull[size - 2], hull[size - 1], point) <= 0) {
+                    size--;
+                }
+                hull[size++] = point;
+            }
+            size--;         //the last point is the first one of the other half
+        }
+        double[] result = new double[size * 2];
+        for (int i = 0; i < size; i++) {
+            result[i * 2] = points[hull[i] * 2];
+            result[i * 2 + 1] = points[hull[i] * 2 + 1];
+        }
+        return result;
+    }
+
+    private static double cross(double[] points, int o, int a, int b) {
+        return (points[a * 2] - points[o * 2]) * (points[b * 2 + 1] - points[o * 2 + 1])
+                - (points[a * 2 + 1] - points[o * 2 + 1]) * (points[b * 2] - points[o * 2]);
+    }
+
+    /**
+     * @return Distance of a point from a triangle, given by x, y and z of its corners from the offset on
+     */
+    private static double distanceToTriangle(double[] triangle, int offset, double x, double y, double z) {
+        double ax = triangle[offset];
+        double ay = triangle[offset + 1];
+        double az = triangle[offset + 2];
+        double ex = triangle[offset + 3] - ax;
+        double ey = triangle[offset + 4] - ay;
+        double ez = triangle[offset + 5] - az;
+        double fx = triangle[offset + 6] - ax;
+        double fy = triangle[offset + 7] - ay;
+        double fz = triangle[offset + 8] - az;
+        double nx = ey * fz - ez * fy;
+        double ny = ez * fx - ex * fz;
+        double nz = ex * fy - ey * fx;
+        double area = nx * nx + ny * ny + nz * nz;
+        double px = x - ax;
+        double py = y - ay;
+        double pz = z - az;
+        if (area > 0) {
+            //the point projected onto the plane lies within the triangle if it is on the inner side of all edges
+            double d = (px * nx + py * ny + pz * nz) / area;
+            double qx = px - d * nx;
+            double qy = py - d * ny;
+            double qz = pz - d * nz;
+            double u = ((qy * fz - qz * fy) * nx + (qz * fx - qx * fz) * ny + (qx * fy - qy * fx) * nz) / area;
+            double v = ((ey * qz - ez * qy) * nx + (ez * qx - ex * qz) * ny + (ex * qy - ey * qx) * nz) / area;
+            if (u >= 0 && v >= 0 && u + v <= 1) {
+                return Math.abs(d) * Math.sqrt(area);
+            }
+        }
+        //otherwise the nearest point lies on an edge
+        double min = distanceToSegment(px, py, pz, ex, ey, ez);
+        min = Math.min(min, distanceToSegment(px, py, pz, fx, fy, fz));
+        return Math.min(min, distanceToSegment(px - ex, py - ey, pz - ez, fx - ex, fy - ey, fz - ez));
+    }
+
+    /**
+     * @return Distance of the point p from the segment from the origin to e
+     */
+    private static double distanceToSegment(double px, double py, double pz, double ex, double ey, double ez) {
+        double length = ex * ex + ey * ey + ez * ez;
+        double t = length > 0 ? Math.max(0, Math.min(1, (px * ex + py * ey + pz * ez) / length)) : 0;
+        double dx = px - t * ex;
+        double dy = py - t * ey;
+        double dz = pz - t * ez;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * @return Distance of a point to the nearest edge of a polygon
+     */
+    private static double distanceToBoundary(double[] polygon, double x, double y) {
+        int count = polygon.length / 2;
+        double min = Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1) % count;
+            double ex = polygon[j * 2] - polygon[i * 2];
+            double ey = polygon[j * 2 + 1] - polygon[i * 2 + 1];
+            double px = x - polygon[i * 2];
+            double py = y - polygon[i * 2 + 1];
+            double t = Math.max(0, Math.min(1, (px * ex + py * ey) / (ex * ex + ey * ey)));
+            double dx = px - t * ex;
+            double dy = py - t * ey;
+            min = Math.min(min, Math.sqrt(dx * dx + dy * dy));
+        }
+        return min;
+    }
+
+    /**
+     * Triangles of a mesh sorted into the cells of a grid by their bounding boxes, to find the nearest triangle of a
+     * point by searching the cells in rings around the cell of the point
+     */
+    private static class TriangleGrid {
+
+        private GeometryBuffer mesh;
+        private double cellSize;
+        private Map<Long, List<Integer>> cells = new HashMap<Long, List<Integer>>();
+        private long minX = Long.MAX_VALUE;
+        private long minY = Long.MAX_VALUE;
+        private long maxX = Long.MIN_VALUE;
+        private long maxY = Long.MIN_VALUE;
+        private double[] corners = new double[9];
+
+        TriangleGrid(GeometryBuffer mesh, double cellSize) {
+            this.mesh = mesh;
+            this.cellSize = cellSize;
+            int[] indices = mesh.getIndices();
+            for (int i = 0; i + 2 < mesh.getIndexCount(); i += 3) {
+                double lowX = Math.min(mesh.getX(indices[i]), Math.min(mesh.getX(indices[i + 1]), mesh.getX(indices[i + 2])));
+                double lowY = Math.min(mesh.getY(indices[i]), Math.min(mesh.getY(indices[i + 1]), mesh.getY(indices[i + 2])));
+                double highX = Math.max(mesh.getX(indices[i]), Math.max(mesh.getX(indices[i + 1]), mesh.getX(indices[i + 2])));
+                double highY = Math.max(mesh.getY(indices[i]), Math.max(mesh.getY(indices[i + 1]), mesh.getY(indices[i + 2])));
+                long x0 = (long) Math.floor(lowX / cellSize);
+                long y0 = (long) Math.floor(lowY / cellSize);
+                long x1 = (long) Math.floor(highX / cellSize);
+                long y1 = (long) Math.floor(highY / cellSize);
+                for (long x = x0; x <= x1; x++) {
+                    for (long y = y0; y <= y1; y++) {
+                        Long key = cellKey(x, y);
+                        List<Integer> triangles = cells.get(key);
+                        if (triangles == null) {
+                            triangles = new ArrayList<Integer>();
+                            cells.put(key, triangles);
+                        }
+                        triangles.add(i);
+                    }
+                }
+                minX = Math.min(minX, x0);
+                minY = Math.min(minY, y0);
+                maxX = Math.max(maxX, x1);
+                maxY = Math.max(maxY, y1);
+            }
+        }
+
+        /**
+         * @return Distance of a point from the nearest triangle. Triangles outside the rings of cells searched up to
+         * ring r are at least r cells away horizontally, so the search ends once a triangle is found that close.
+         */
+        double distance(double x, double y, double z) {
+            long cx = (long) Math.floor(x / cellSize);
+            long cy = (long) Math.floor(y / cellSize);
+            double min = Double.MAX_VALUE;
+            for (long r = 0; min > (r - 1) * cellSize; r++) {
+                if (cx - r < minX && cx + r > maxX && cy - r < minY && cy + r > maxY) {
+                    break;
+                }
+                for (long dx = -r; dx <= r; dx++) {
+                    //the whole first and last column of the ring, the top and bottom cell of the others
+                    long step = dx == -r || dx == r ? 1 : Math.max(1, 2 * r);
+                    for (long dy = -r; dy <= r; dy += step) {
+                        List<Integer> triangles = cells.get(cellKey(cx + dx, cy + dy));
+                        if (triangles != null) {
+                            for (int triangle : triangles) {
+                                min = Math.min(min, distance(triangle, x, y, z));
+                            }
+                        }
+                    }
+                }
+            }
+            return min;
+        }
+
+        private double distance(int triangle, double x, double y, double z) {
+            int[] indices = mesh.getIndices();
+            for (int c = 0; c < 3; c++) {
+                corners[c * 3] = mesh.getX(indices[triangle + c]);
+                corners[c * 3 + 1] = mesh.getY(indices[triangle + c]);
+                corners[c * 3 + 2] = mesh.getZ(indices[triangle + c]);
+            }
+            return distanceToTriangle(corners, 0, x, y, z);
+        }
+    }
+}
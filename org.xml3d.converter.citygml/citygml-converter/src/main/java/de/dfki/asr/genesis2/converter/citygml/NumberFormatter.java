@@ -0,0 +1,530 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Appends numbers as text to a reusable char buffer, without creating a String or any other object per number.
+ * Doubles and floats are written with the shortest decimal that reads back to the same value, found by the
+ * Schubfach algorithm (R. Giulietti, "The Schubfach way to render doubles", 2020). The layout follows
+ * Double.toString and Float.toString: plain notation for magnitudes in [10^-3, 10^7), "1.0E7" otherwise.
+ * If a maximum number of decimals is set, values are rounded to that many decimals and always written in
+ * plain notation; trailing zeros are dropped.
+ * A formatter is not thread safe; each writer uses a formatter of its own.
+ * @author Daniel Spieldenner
+ */
+public class NumberFormatter {
+
+    public static final int UNLIMITED = -1;            //no maximum number of decimals, write the shortest round-trip decimal
+
+    //parameters of doubles
+    private static final int DOUBLE_P = 53;             //precision in bits, including the hidden bit
+    private static final int DOUBLE_Q_MIN = -1074;      //exponent of the smallest subnormal
+    private static final long DOUBLE_C_MIN = 1L << (DOUBLE_P - 1);
+    private static final int DOUBLE_C_TINY = 3;         //subnormal significands below this are scaled by ten before rendering
+    private static final int DOUBLE_BQ_MASK = 0x7ff;
+    private static final long DOUBLE_T_MASK = (1L << (DOUBLE_P - 1)) - 1;
+
+    //parameters of floats
+    private static final int FLOAT_P = 24;
+    private static final int FLOAT_Q_MIN = -149;
+    private static final int FLOAT_C_MIN = 1 << (FLOAT_P - 1);
+    private static final int FLOAT_C_TINY = 8;
+    private static final int FLOAT_BQ_MASK = 0xff;
+    private static final int FLOAT_T_MASK = (1 << (FLOAT_P - 1)) - 1;
+
+    private static final long MASK_63 = (1L << 63) - 1;
+    private static final long MASK_32 = (1L << 32) - 1;
+
+    //g = floor(10^-k 2^-r) + 1 with 2^125 <= 10^-k 2^-r < 2^126, stored as its upper and lower 63 bits
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    private static final long[] G = computeG();
+
+    private static final long[] POW10 = new long[19];
+    private static final int MAX_SCALED = 1 << 30;      //rounded values of larger magnitude are written as shortest decimal
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private char[] buffer;
+    private int length = 0;
+    private int maxDecimals = UNLIMITED;
+    private double scale = 1.0;                         //10^maxDecimals
+
+    /**
+     * Create a new formatter writing the shortest round-trip decimal of each value
+     */
+    public NumberFormatter() {
+        this(1024);
+    }
+
+    /**
+     * Create a new formatter with the given initial capacity
+     * @param capacity Number of characters the buffer can hold before growing
+     */
+    public NumberFormatter(int capacity) {
+        buffer = new char[Math.max(capacity, 32)];
+    }
+
+    /**
+     * Set the maximum number of decimals written for doubles and floats
+     * @param maxDecimals Number of decimals, at most 15; UNLIMITED to write the shortest round-trip decimal
+     */
+    public void setMaxDecimals(int maxDecimals) {
+        if (maxDecimals < UNLIMITED || maxDecimals > 15) {
+            throw new IllegalArgumentException("Number of decimals has to be between 0 and 15: " + maxDecimals);
+        }
+        this.maxDecimals = maxDecimals;
+        this.scale = maxDecimals == UNLIMITED ? 1.0 : POW10[maxDecimals];
+    }
+
+    public int getMaxDecimals() {
+        return maxDecimals;
+    }
+
+    public NumberFormatter append(double value) {
+        ensureCapacity(40);
+        if (maxDecimals != UNLIMITED && appendRounded(value)) {
+            return this;
+        }
+        appendShortest(value);
+        return this;
+    }
+
+    public NumberFormatter append(float value) {
+        ensureCapacity(40);
+        if (maxDecimals != UNLIMITED && appendRounded(value)) {
+            return this;
+        }
+        appendShortest(value);
+        return this;
+    }
+
+    public NumberFormatter append(int value) {
+        ensureCapacity(12);
+        if (value < 0) {
+            if (value == Integer.MIN_VALUE) {
+                return append(Integer.toString(value));
+            }
+            buffer[length++] = '-';
+            value = -value;
+        }
+        appendDigits(value);
+        return this;
+    }
+
+    public NumberFormatter append(char c) {
+        ensureCapacity(1);
+        buffer[length++] = c;
+        return this;
+    }
+
+    public NumberFormatter append(String text) {
+        ensureCapacity(text.length());
+        text.getChars(0, text.length(), buffer, length);
+        length += text.length();
+        return this;
+    }
+
+    /**
+     * @return The buffer holding the formatted text in its first length() characters
+     */
+    public char[] getBuffer() {
+        return buffer;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Remove all text from the buffer, keeping the buffer for reuse
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+
+    /**
+     * Write the value rounded to maxDecimals decimals in plain notation
+     * @return false if the value is too large to be rounded by scaling, in which case nothing is written
+     */
+    private boolean appendRounded(double value) {
+        double scaled = Math.rint(value * scale);
+        if (!(Math.abs(scaled) < (double) MAX_SCALED * MAX_SCALED)) {
+            return false;       //also true for NaN and infinity
+        }
+        long rounded = (long) scaled;
+        if (rounded < 0) {
+            buffer[length++] = '-';
+            rounded = -rounded;
+        }
+        long integerPart = rounded / POW10[maxDecimals];
+        long fraction = rounded - integerPart * POW10[maxDecimals];
+        appendDigits(integerPart);
+        buffer[length++] = '.';
+        if (fraction == 0) {
+            buffer[length++] = '0';
+            return true;
+        }
+        int decimals = maxDecimals;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            decimals--;
+        }
+        int count = countDigits(fraction);
+        for (int i = count; i < decimals; i++) {
+            buffer[length++] = '0';
+        }
+        appendDigits(fraction);
+        return true;
+    }
+
+    private void appendShortest(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        long t = bits & DOUBLE_T_MASK;
+        int bq = (int) (bits >>> (DOUBLE_P - 1)) & DOUBLE_BQ_MASK;
+        if (bq == DOUBLE_BQ_MASK) {
+            append(t != 0 ? "NaN" : bits > 0 ? "Infinity" : "-Infinity");
+            return;
+        }
+        if (bits < 0) {
+            buffer[length++] = '-';
+        }
+        if (bq != 0) {
+            int mq = -DOUBLE_Q_MIN + 1 - bq;
+            long c = DOUBLE_C_MIN | t;
+            //integers below 2^53 are written as they are
+            if (0 < mq && mq < DOUBLE_P) {
+                long f = c >> mq;
+                if (f << mq == c) {
+                    appendDecimal(f, 0);
+                    return;
+                }
+            }
+            toDecimal(-mq, c, 0);
+        } else if (t != 0) {
+            if (t < DOUBLE_C_TINY) {
+                toDecimal(DOUBLE_Q_MIN, 10 * t, -1);
+            } else {
+                toDecimal(DOUBLE_Q_MIN, t, 0);
+            }
+        } else {
+            append("0.0");
+        }
+    }
+
+    /**
+     * Find the shortest decimal in the rounding interval of c 2^q and write it
+     */
+    private void toDecimal(int q, long c, int dk) {
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != DOUBLE_C_MIN || q == DOUBLE_Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            //the interval is asymmetric at powers of two
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+        long g1 = G[(k - K_MIN) << 1];
+        long g0 = G[((k - K_MIN) << 1) + 1];
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+        long s = vb >> 2;
+        if (s >= 100) {
+            long sp10 = 10 * div10(s);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                appendDecimal(upin ? sp10 : tp10, k);
+                return;
+            }
+        }
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            appendDecimal(uin ? s : t, k + dk);
+            return;
+        }
+        long cmp = vb - ((s + t) << 1);
+        appendDecimal(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk);
+    }
+
+    private void appendShortest(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int t = bits & FLOAT_T_MASK;
+        int bq = (bits >>> (FLOAT_P - 1)) & FLOAT_BQ_MASK;
+        if (bq == FLOAT_BQ_MASK) {
+            append(t != 0 ? "NaN" : bits > 0 ? "Infinity" : "-Infinity");
+            return;
+        }
+        if (bits < 0) {
+            buffer[length++] = '-';
+        }
+        if (bq != 0) {
+            int mq = -FLOAT_Q_MIN + 1 - bq;
+            int c = FLOAT_C_MIN | t;
+            if (0 < mq && mq < FLOAT_P) {
+                int f = c >> mq;
+                if (f << mq == c) {
+                    appendDecimal(f, 0);
+                    return;
+                }
+            }
+            toDecimal(-mq, c, 0);
+        } else if (t != 0) {
+            if (t < FLOAT_C_TINY) {
+                toDecimal(FLOAT_Q_MIN, 10 * t, -1);
+            } else {
+                toDecimal(FLOAT_Q_MIN, t, 0);
+            }
+        } else {
+            append("0.0");
+        }
+    }
+
+    /**
+     * Float variant of toDecimal, using only the upper bits of g
+     */
+    private void toDecimal(int q, int c, int dk) {
+        int out = c & 0x1;
+        long cb = (long) c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != FLOAT_C_MIN || q == FLOAT_Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 33;
+        long g = G[(k - K_MIN) << 1] + 1;
+        int vb = rop(g, cb << h);
+        int vbl = rop(g, cbl << h);
+        int vbr = rop(g, cbr << h);
+        int s = vb >> 2;
+        if (s >= 100) {
+            int sp10 = s / 10 * 10;
+            int tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                appendDecimal(upin ? sp10 : tp10, k);
+                return;
+            }
+        }
+        int t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            appendDecimal(uin ? s : t, k + dk);
+            return;
+        }
+        int cmp = vb - ((s + t) << 1);
+        appendDecimal(cmp < 0 || cmp == 0 && (s & 0x1) == 0 ? s : t, k + dk);
+    }
+
+    /**
+     * Write f 10^e in the layout of Double.toString
+     * @param f Decimal significand, greater than zero
+     * @param e Decimal exponent
+     */
+    private void appendDecimal(long f, int e) {
+        long quotient = div10(f);
+        while (quotient * 10 == f) {
+            f = quotient;
+            quotient = div10(f);
+            e++;
+        }
+        int count = countDigits(f);
+        //the value is 0.d1 d2 ... 10^exponent
+        int exponent = e + count;
+        int start = length;
+        if (0 < exponent && exponent <= 7) {
+            appendDigits(f, count);
+            if (count <= exponent) {
+                for (int i = count; i < exponent; i++) {
+                    buffer[length++] = '0';
+                }
+                buffer[length++] = '.';
+                buffer[length++] = '0';
+            } else {
+                insertPoint(start + exponent);
+            }
+        } else if (-3 < exponent && exponent <= 0) {
+            buffer[length++] = '0';
+            buffer[length++] = '.';
+            for (int i = exponent; i < 0; i++) {
+                buffer[length++] = '0';
+            }
+            appendDigits(f, count);
+        } else {
+            appendDigits(f, count);
+            if (count == 1) {
+                buffer[length++] = '.';
+                buffer[length++] = '0';
+            } else {
+                insertPoint(start + 1);
+            }
+            buffer[length++] = 'E';
+            append(exponent - 1);
+        }
+    }
+
+    /**
+     * Insert a decimal point at the given position of the buffer, moving the following digits
+     */
+    private void insertPoint(int position) {
+        System.arraycopy(buffer, position, buffer, position + 1, length - position);
+        buffer[position] = '.';
+        length++;
+    }
+
+    private void appendDigits(long value) {
+        appendDigits(value, countDigits(value));
+    }
+
+    /**
+     * Write the digits of a value, eight digits at a time using int arithmetic
+     * @param value The value, not negative
+     * @param count Number of digits of the value
+     */
+    private void appendDigits(long value, int count) {
+        int end = length + count;
+        int position = end;
+        while (value > Integer.MAX_VALUE) {
+            int low = (int) (value % 100000000);
+            value /= 100000000;
+            for (int i = 0; i < 8; i++) {
+                buffer[--position] = (char) ('0' + low % 10);
+                low /= 10;
+            }
+        }
+        int high = (int) value;
+        while (position > length) {
+            buffer[--position] = (char) ('0' + high % 10);
+            high /= 10;
+        }
+        length = end;
+    }
+
+    /**
+     * @return Number of decimal digits of the value, at least 1
+     */
+    private static int countDigits(long value) {
+        int count = (64 - Long.numberOfLeadingZeros(value)) * 1233 >>> 12;
+        return value >= POW10[count] ? count + 1 : Math.max(count, 1);
+    }
+
+    /**
+     * Round to odd of g cp 2^-127 for the 126 bit g given by its upper and lower 63 bits
+     */
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | ((z & MASK_63) + MASK_63) >>> 63;
+    }
+
+    /**
+     * Round to odd of g cp 2^-95, for floats
+     */
+    private static int rop(long g, long cp) {
+        long x1 = multiplyHigh(g, cp);
+        long vbp = x1 >>> 31;
+        return (int) (vbp | ((x1 & MASK_32) + MASK_32) >>> 32);
+    }
+
+    /**
+     * Divide a value that is not negative by ten, using a multiplication instead of the slow long division
+     */
+    private static long div10(long value) {
+        return multiplyHigh(value, 0x6666666666666667L) >> 2;
+    }
+
+    /**
+     * Upper 64 bits of the 128 bit product of two longs
+     */
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = t & 0xFFFFFFFFL;
+        long z0 = t >> 32;
+        z1 += x2 * y1;
+        return x1 * y1 + z0 + (z1 >> 32);
+    }
+
+    /**
+     * floor(q log10(2))
+     */
+    private static int flog10pow2(int q) {
+        return (int) (q * 661971961083L >> 41);
+    }
+
+    /**
+     * floor(q log10(2) + log10(3/4))
+     */
+    private static int flog10threeQuartersPow2(int q) {
+        return (int) (q * 661971961083L - 274743187321L >> 41);
+    }
+
+    /**
+     * floor(e log2(10))
+     */
+    private static int flog2pow10(int e) {
+        return (int) (e * 913124641741L >> 38);
+    }
+
+    private static long[] computeG() {
+        long[] g = new long[(K_MAX - K_MIN + 1) * 2];
+        BigInteger ten = BigInteger.TEN;
+        BigInteger mask63 = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+        for (int k = K_MIN; k <= K_MAX; k++) {
+            int r = flog2pow10(-k) - 125;
+            //10^-k 2^-r as the fraction numerator / denominator
+            BigInteger numerator = k <= 0 ? ten.pow(-k) : BigInteger.ONE;
+            BigInteger denominator = k <= 0 ? BigInteger.ONE : ten.pow(k);
+            if (r <= 0) {
+                numerator = numerator.shiftLeft(-r);
+            } else {
+                denominator = denominator.shiftLeft(r);
+            }
+            BigInteger value = numerator.divide(denominator).add(BigInteger.ONE);
+            g[(k - K_MIN) << 1] = value.shiftRight(63).longValue();
+            g[((k - K_MIN) << 1) + 1] = value.and(mask63).longValue();
+        }
+        return g;
+    }
+}
@@ -0,0 +1,325 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+/**
+ * Triangulates planar polygons with holes by ear clipping. The polygon is projected onto the coordinate plane
+ * its normal is closest to; each hole is then joined to the exterior ring by a bridge to a visible vertex
+ * (the hole vertex with the largest u is connected along a ray in u direction), which turns the polygon
+ * into a single ring that touches itself at the bridges. Ears are clipped from this ring, kept as a linked
+ * list in primitive arrays.
+ * The triangles keep the orientation of the exterior ring, and for convex polygons without holes they are
+ * the same as those of a fan around the first vertex. If no ear can be found, e.g. for self intersecting rings,
+ * the rest of the ring is triangulated as a fan.
+ * @author Daniel Spieldenner
+ */
+class PolygonTriangulator {
+
+    private double[] u;             //projected coordinates of each vertex of the polygon
+    private double[] v;
+    private int[] ring;             //vertex of each node of the ring
+    private int[] next;             //next node of each node
+    private int[] prev;             //previous node of each node
+    private int nodeCount = 0;
+
+    /**
+     * Triangulate the given polygon, adding the triangles to its geometry
+     * @param geometry The vertices of the polygon; triangles computed before are replaced
+     * @param ringStarts Index of the first vertex of each ring, the first one being the exterior ring
+     */
+    static void triangulate(GeometryBuffer geometry, int[] ringStarts) {
+        geometry.clearTriangles();
+        int vertexCount = geometry.getVertexCount();
+        if (vertexCount == 3 && ringStarts.length == 1) {
+            geometry.addTriangle(0, 1, 2);          //most polygons of ground objects are triangles already
+        } else if (vertexCount > 3) {
+            new PolygonTriangulator().run(geometry, ringStarts);
+        }
+        geometry.trim();
+    }
+
+    private void run(GeometryBuffer geometry, int[] ringStarts) {
+        int vertexCount = geometry.getVertexCount();
+        int exteriorEnd = ringStarts.length > 1 ? ringStarts[1] : vertexCount;
+        project(geometry, exteriorEnd);
+
+        //each hole adds two nodes for the duplicated ends of its bridge
+        int capacity = vertexCount + 2 * (ringStarts.length - 1);
+        ring = new int[capacity];
+        next = new int[capacity];
+        prev = new int[capacity];
+        int start = addRing(0, exteriorEnd, false);
+        if (start < 0) {
+            return;
+        }
+        if (ringStarts.length > 1) {
+            start = addHoles(start, ringStarts, vertexCount);
+        }
+        clipEars(geometry, start);
+    }
+
+    /**
+     * Compute the projected coordinates of all vertices. The plane is chosen by the Newell normal of the exterior
+     * ring, and u is mirrored if needed so the exterior ring runs counterclockwise in the projection.
+     */
+    private void project(GeometryBuffer geometry, int exteriorEnd) {
+        double[] positions = geometry.getPositions();
+        double nx = 0, ny = 0, nz = 0;
+        for (int i = 0; i < exteriorEnd; i++) {
+            int a = i * 3;
+            int b = (i + 1 == exteriorEnd ? 0 : i + 1) * 3;
+            nx += (positions[a + 1] - positions[b + 1]) * (positions[a + 2] + positions[b + 2] - 2 * positions[2]);
+            ny += (positions[a + 2] - positions[b + 2]) * (positions[a] + positions[b] - 2 * positions[0]);
+            nz += (positions[a] - positions[b]) * (positions[a + 1] + positions[b + 1] - 2 * positions[1]);
+        }
+        //drop the axis the normal is closest to; the remaining axes keep their cyclic order
+        int uAxis = 0;
+        int vAxis = 1;
+        double normal = nz;
+        if (Math.abs(nx) > Math.abs(ny) && Math.abs(nx) > Math.abs(nz)) {
+            uAxis = 1;
+            vAxis = 2;
+            normal = nx;
+        } else if (Math.abs(ny) > Math.abs(nz)) {
+            uAxis = 2;
+            vAxis = 0;
+            normal = ny;
+        }
+        double sign = normal < 0 ? -1 : 1;
+        //coordinates relative to the first vertex keep the precision of georeferenced positions
+        int vertexCount = geometry.getVertexCount();
+        u = new double[vertexCount];
+        v = new double[vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            u[i] = sign * (positions[i * 3 + uAxis] - positions[uAxis]);
+            v[i] = positions[i * 3 + vAxis] - positions[vAxis];
+        }
+    }
+
+    /**
+     * Add the vertices of a ring as a closed linked list of nodes
+     * @param clockwise true to link the nodes clockwise in the projection, false for counterclockwise
+     * @return The first node of the ring, -1 if the ring has less than three vertices
+     */
+    private int addRing(int from, int to, boolean clockwise) {
+        if (to - from < 3) {
+            return -1;
+        }
+        double area = 0;
+        for (int i = from; i < to; i++) {
+            int j = i + 1 == to ? from : i + 1;
+            area += u[i] * v[j] - u[j] * v[i];
+        }
+        boolean reverse = (area < 0) != clockwise;
+        int first = nodeCount;
+        for (int i = 0; i < to - from; i++) {
+            ring[nodeCount++] = reverse ? to - 1 - i : from + i;
+        }
+        for (int node = first; node < nodeCount; node++) {
+            next[node] = node + 1 == nodeCount ? first : node + 1;
+            prev[node] = node == first ? nodeCount - 1 : node - 1;
+        }
+        return first;
+    }
+
+    /**
+     * Bridge all holes into the exterior ring, the hole reaching farthest in u direction first
+     * @return The first node of the joined ring
+     */
+    private int addHoles(int start, int[] ringStarts, int vertexCount) {
+        int holeCount = ringStarts.length - 1;
+        int[] order = new int[holeCount];
+        int[] holeNodes = new int[holeCount];
+        int count = 0;
+        for (int h = 0; h < holeCount; h++) {
+            int end = h + 2 < ringStarts.length ? ringStarts[h + 2] : vertexCount;
+            int node = addRing(ringStarts[h + 1], end, true);
+            if (node < 0) {
+                continue;
+            }
+            //start each hole at its vertex with the largest u
+            int rightmost = node;
+            int current = next[node];
+            while (current != node) {
+                if (u[ring[current]] > u[ring[rightmost]]) {
+                    rightmost = current;
+                }
+                current = next[current];
+            }
+            holeNodes[count] = rightmost;
+            order[count] = count;
+            count++;
+        }
+        double[] reach = new double[count];
+        for (int h = 0; h < count; h++) {
+            reach[h] = u[ring[holeNodes[h]]];
+        }
+        //sort hole numbers by decreasing reach, with a simple insertion sort as there are only a few holes
+        for (int i = 1; i < count; i++) {
+            int hole = order[i];
+            int j = i - 1;
+            while (j >= 0 && reach[order[j]] < reach[hole]) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = hole;
+        }
+        for (int i = 0; i < count; i++) {
+            int hole = holeNodes[order[i]];
+            int bridge = findBridge(start, hole);
+            if (bridge >= 0) {
+                splice(bridge, hole);
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Find a node of the outer ring visible from the given hole node, by casting a ray in u direction
+     * @return The node found, -1 if the ray does not hit the outer ring
+     */
+    private int findBridge(int start, int hole) {
+        double hu = u[ring[hole]];
+        double hv = v[ring[hole]];
+        double nearest = Double.POSITIVE_INFINITY;
+        int candidate = -1;
+        int node = start;
+        do {
+            int a = ring[node];
+            int b = ring[next[node]];
+            //edges crossing the ray from below to above, as the outer ring runs counterclockwise
+            if (v[a] <= hv && v[b] >= hv && v[b] != v[a]) {
+                double x = u[a] + (hv - v[a]) * (u[b] - u[a]) / (v[b] - v[a]);
+                if (x >= hu && x < nearest) {
+                    nearest = x;
+                    candidate = u[a] > u[b] ? node : next[node];
+                    if (x == hu) {
+                        return candidate;
+                    }
+                }
+            }
+            node = next[node];
+        } while (node != start);
+        if (candidate < 0) {
+            return -1;
+        }
+        //vertices inside the triangle of hole, hit point and candidate may hide the candidate; use the one
+        //with the smallest angle to the ray instead
+        double cu = u[ring[candidate]];
+        double cv = v[ring[candidate]];
+        if (cv == hv) {
+            return candidate;
+        }
+        double bestTan = Double.POSITIVE_INFINITY;
+        int best = candidate;
+        node = start;
+        do {
+            int p = ring[node];
+            boolean inside = cv > hv ? inTriangle(hu, hv, nearest, hv, cu, cv, u[p], v[p])
+                    : inTriangle(hu, hv, cu, cv, nearest, hv, u[p], v[p]);
+            if (node != candidate && u[p] > hu && inside) {
+                double tan = Math.abs(hv - v[p]) / (u[p] - hu);
+                if (tan < bestTan || (tan == bestTan && u[p] > u[ring[best]])) {
+                    bestTan = tan;
+                    best = node;
+                }
+            }
+            node = next[node];
+        } while (node != start);
+        return best;
+    }
+
+    /**
+     * Join the hole starting at the given node into the outer ring, by going from the bridge node to the hole,
+     * around the hole and back again. Both ends of the bridge get a second node.
+     */
+    private void splice(int bridge, int hole) {
+        int bridgeCopy = nodeCount++;
+        int holeCopy = nodeCount++;
+        ring[bridgeCopy] = ring[bridge];
+        ring[holeCopy] = ring[hole];
+        int afterBridge = next[bridge];
+        int beforeHole = prev[hole];
+
+        next[bridge] = hole;
+        prev[hole] = bridge;
+        next[beforeHole] = holeCopy;
+        prev[holeCopy] = beforeHole;
+        next[holeCopy] = bridgeCopy;
+        prev[bridgeCopy] = holeCopy;
+        next[bridgeCopy] = afterBridge;
+        prev[afterBridge] = bridgeCopy;
+    }
+
+    /**
+     * Clip ears from the ring until a single triangle is left. Each ear is tested at the node after the first
+     * one of the remaining ring, so convex polygons are triangulated as a fan.
+     */
+    private void clipEars(GeometryBuffer geometry, int start) {
+        int remaining = 1;
+        for (int node = next[start]; node != start; node = next[node]) {
+            remaining++;
+        }
+        int node = next[start];
+        int tested = 0;             //nodes tested since the last ear was clipped
+        while (remaining > 3) {
+            if (isEar(node)) {
+                geometry.addTriangle(ring[prev[node]], ring[node], ring[next[node]]);
+                next[prev[node]] = next[node];
+                prev[next[node]] = prev[node];
+                if (node == start) {
+                    start = next[node];
+                }
+                node = next[node];
+                remaining--;
+                tested = 0;
+            } else if (++tested > remaining) {
+                //no ear left, as for self intersecting rings: finish as a fan
+                break;
+            } else {
+                node = next[node];
+            }
+        }
+        int first = prev[node];
+        for (int current = node; next[current] != first; current = next[current]) {
+            addTriangle(geometry, ring[first], ring[current], ring[next[current]]);
+        }
+    }
+
+    /**
+     * @return true if the node is a convex corner whose triangle contains no other vertex of the ring
+     */
+    private boolean isEar(int node) {
+        int a = ring[prev[node]];
+        int b = ring[node];
+        int c = ring[next[node]];
+        double cross = (u[b] - u[a]) * (v[c] - v[b]) - (v[b] - v[a]) * (u[c] - u[b]);
+        if (cross <= 0) {
+            return false;
+        }
+        for (int other = next[next[node]]; other != prev[node]; other = next[other]) {
+            int p = ring[other];
+            //nodes of the same vertex, at the ends of a bridge, do not block the ear
+            if (p == a || p == b || p == c) {
+                continue;
+            }
+            if (inTriangle(u[a], v[a], u[b], v[b], u[c], v[c], u[p], v[p])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addTriangle(GeometryBuffer geometry, int a, int b, int c) {
+        if (a != b && b != c && c != a) {
+            geometry.addTriangle(a, b, c);
+        }
+    }
+
+    /**
+     * @return true if the point lies inside or on the border of the counterclockwise triangle a, b, c
+     */
+    private static boolean inTriangle(double au, double av, double bu, double bv, double cu, double cv, double pu, double pv) {
+        return (bu - au) * (pv - av) - (bv - av) * (pu - au) >= 0
+                && (cu - bu) * (pv - bv) - (cv - bv) * (pu - bu) >= 0
+                && (au - cu) * (pv - cv) - (av - cv) * (pu - cu) >= 0;
+    }
+}
@@ -0,0 +1,477 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.Arrays;
+
+/**
+ * Simplifies a mesh with shared vertices by collapsing edges in the order of their quadric error
+ * (Garland and Heckbert): each vertex accumulates the planes of its triangles, and the cost of collapsing an edge is
+ * the sum of squared distances of the new vertex from the planes of both of its end points. As the planes are
+ * not weighted, the square root of the cost bounds the distance of the new vertex from the plane of each original
+ * triangle it replaces.
+ * Collapses stop once the cheapest one exceeds the maximum error or the target number of triangles is reached.
+ * Vertices on the border of the mesh are never moved or removed, so meshes sharing a border, e.g. neighbouring
+ * ground objects or tiles, stay free of cracks. Collapses which would flip a triangle or make the mesh non manifold
+ * are skipped.
+ * Positions are processed relative to the first vertex, as quadrics of georeferenced coordinates lose their precision.
+ * @author Daniel Spieldenner
+ */
+public class QuadricDecimator {
+
+    private double[] positions;
+    private double[] origin = new double[3];
+    private double[] quadrics;                  //10 coefficients of the symmetric 4x4 matrix of each vertex
+    private boolean[] border;
+    private boolean[] removed;                  //removed vertices
+    private int[] versions;                     //incremented whenever a vertex changes, to detect outdated edges
+    private int[] triangles;
+    private boolean[] collapsed;                //removed triangles
+    private int triangleCount;
+    private int[][] vertexTriangles;            //triangles around each vertex, possibly including removed ones
+    private int[] vertexTriangleCounts;
+    private int[] marks;                        //scratch marks for finding common neighbours
+    private int mark = 0;
+    private double maxCollapseError = 0;
+    private double[] edgeQuadric = new double[10];         //scratch arrays for computing the cost of an edge
+    private double[] edgePosition = new double[3];
+
+    //binary heap of candidate edges, ordered by cost
+    private double[] heapCost = new double[64];
+    private int[] heapFrom = new int[64];
+    private int[] heapTo = new int[64];
+    private int[] heapFromVersion = new int[64];
+    private int[] heapToVersion = new int[64];
+    private double[] heapPosition = new double[64 * 3];
+    private int heapSize = 0;
+
+    /**
+     * Prepare the decimation of a mesh. The mesh itself is not changed.
+     * @param mesh Triangles with shared vertices, e.g. the consolidated mesh of a ground object
+     */
+    public QuadricDecimator(GeometryBuffer mesh) {
+        int vertexCount = mesh.getVertexCount();
+        positions = Arrays.copyOf(mesh.getPositions(), vertexCount * 3);
+        if (vertexCount > 0) {
+            System.arraycopy(positions, 0, origin, 0, 3);
+        }
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] -= origin[i % 3];
+        }
+        triangles = Arrays.copyOf(mesh.getIndices(), mesh.getIndexCount());
+        triangleCount = triangles.length / 3;
+        collapsed = new boolean[triangleCount];
+        removed = new boolean[vertexCount];
+        versions = new int[vertexCount];
+        marks = new int[vertexCount];
+        border = new boolean[vertexCount];
+        quadrics = new double[vertexCount * 10];
+
+        vertexTriangleCounts = new int[vertexCount];
+        for (int i = 0; i < triangles.length; i++) {
+            vertexTriangleCounts[triangles[i]]++;
+        }
+        vertexTriangles = new int[vertexCount][];
+        for (int v = 0; v < vertexCount; v++) {
+            vertexTriangles[v] = new int[Math.max(vertexTriangleCounts[v], 1)];
+            vertexTriangleCounts[v] = 0;
+        }
+        for (int t = 0; t < triangleCount; t++) {
+            for (int corner = 0; corner < 3; corner++) {
+                int v = triangles[t * 3 + corner];
+                vertexTriangles[v][vertexTriangleCounts[v]++] = t;
+            }
+            addPlane(t);
+        }
+        findBorder();
+    }
+
+    /**
+     * Decimate the mesh
+     * @param maxError Maximum distance of a new vertex from the triangles it replaces; infinite to only use the target
+     * @param targetTriangles Number of triangles at which decimation stops; 0 to only use the maximum error
+     * @return The decimated mesh, with vertex normals
+     */
+    public GeometryBuffer decimate(double maxError, int targetTriangles) {
+        double maxCost = maxError * maxError;
+        for (int t = 0; t < collapsed.length; t++) {
+            for (int corner = 0; corner < 3; corner++) {
+                int a = triangles[t * 3 + corner];
+                int b = triangles[t * 3 + (corner + 1) % 3];
+                //inner edges belong to two triangles; the second entry is skipped once the first one is collapsed
+                pushEdge(Math.min(a, b), Math.max(a, b));
+            }
+        }
+        double[] position = new double[3];
+        while (heapSize > 0 && triangleCount > targetTriangles) {
+            if (heapCost[0] > maxCost) {
+                break;
+            }
+            double cost = heapCost[0];
+            int from = heapFrom[0];
+            int to = heapTo[0];
+            boolean current = !removed[from] && !removed[to] && versions[from] == heapFromVersion[0] && versions[to] == heapToVersion[0];
+            System.arraycopy(heapPosition, 0, position, 0, 3);
+            popEdge();
+            if (current && canCollapse(from, to, position)) {
+                collapse(from, to, position);
+                maxCollapseError = Math.max(maxCollapseError, Math.sqrt(Math.max(cost, 0)));
+            }
+        }
+        return buildMesh();
+    }
+
+    /**
+     * @return Upper bound of the distance of the decimated mesh from the original triangles, as far as known from the
+     * quadrics: the square root of the largest cost of a collapse
+     */
+    public double getError() {
+        return maxCollapseError;
+    }
+
+    /**
+     * Add the plane of a triangle to the quadrics of its corners
+     */
+    private void addPlane(int t) {
+        int a = triangles[t * 3] * 3;
+        int b = triangles[t * 3 + 1] * 3;
+        int c = triangles[t * 3 + 2] * 3;
+        double[] normal = normal(positions, a, b, c);
+        double length = Math.sqrt(normal[0] * normal[0] + normal[1] * normal[1] + normal[2] * normal[2]);
+        if (length == 0) {
+            return;
+        }
+        double nx = normal[0] / length;
+        double ny = normal[1] / length;
+        double nz = normal[2] / length;
+        double d = -(nx * positions[a] + ny * positions[a + 1] + nz * positions[a + 2]);
+        for (int corner = 0; corner < 3; corner++) {
+            int q = triangles[t * 3 + corner] * 10;
+            quadrics[q] += nx * nx;
+            quadrics[q + 1] += nx * ny;
+            quadrics[q + 2] += nx * nz;
+            quadrics[q + 3] += nx * d;
+            quadrics[q + 4] += ny * ny;
+            quadrics[q + 5] += ny * nz;
+            quadrics[q + 6] += ny * d;
+            quadrics[q + 7] += nz * nz;
+            quadrics[q + 8] += nz * d;
+            quadrics[q + 9] += d * d;
+        }
+    }
+
+    /**
+     * Mark all vertices on an edge used by a single triangle
+     */
+    private void findBorder() {
+        for (int t = 0; t < triangleCount; t++) {
+            for (int corner = 0; corner < 3; corner++) {
+                int a = triangles[t * 3 + corner];
+                int b = triangles[t * 3 + (corner + 1) % 3];
+                int shared = 0;
+                for (int i = 0; i < vertexTriangleCounts[a]; i++) {
+                    int other = vertexTriangles[a][i];
+                    if (contains(other, b)) {
+                        shared++;
+                    }
+                }
+                if (shared < 2) {
+                    border[a] = true;
+                    border[b] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the best position and cost of collapsing an edge and add it to the heap
+     */
+    private void pushEdge(int a, int b) {
+        if (border[a] && border[b]) {
+            return;
+        }
+        double[] q = edgeQuadric;
+        for (int i = 0; i < 10; i++) {
+            q[i] = quadrics[a * 10 + i] + quadrics[b * 10 + i];
+        }
+        double[] best = edgePosition;
+        double bestCost;
+        if (border[a] || border[b]) {
+            //the border vertex stays where it is
+            int fixed = border[a] ? a : b;
+            System.arraycopy(positions, fixed * 3, best, 0, 3);
+            bestCost = error(q, best[0], best[1], best[2]);
+        } else if (solve(q, best)) {
+            bestCost = error(q, best[0], best[1], best[2]);
+        } else {
+            bestCost = Double.MAX_VALUE;
+        }
+        //flat areas have no unique optimum, so the end points and the middle of the edge are tried as well
+        for (int candidate = 0; candidate < 3 && !border[a] && !border[b]; candidate++) {
+            double x = candidate == 0 ? positions[a * 3] : candidate == 1 ? positions[b * 3] : (positions[a * 3] + positions[b * 3]) / 2;
+            double y = candidate == 0 ? positions[a * 3 + 1] : candidate == 1 ? positions[b * 3 + 1] : (positions[a * 3 + 1] + positions[b * 3 + 1]) / 2;
+            double z = candidate == 0 ? positions[a * 3 + 2] : candidate == 1 ? positions[b * 3 + 2] : (positions[a * 3 + 2] + positions[b * 3 + 2]) / 2;
+            double cost = error(q, x, y, z);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best[0] = x;
+                best[1] = y;
+                best[2] = z;
+            }
+        }
+        //the vertex removed is the one not on the border
+        int from = border[a] ? b : a;
+        int to = from == a ? b : a;
+
+        if (heapSize == heapCost.length) {
+            int capacity = heapSize * 2;
+            heapCost = Arrays.copyOf(heapCost, capacity);
+            heapFrom = Arrays.copyOf(heapFrom, capacity);
+            heapTo = Arrays.copyOf(heapTo, capacity);
+            heapFromVersion = Arrays.copyOf(heapFromVersion, capacity);
+            heapToVersion = Arrays.copyOf(heapToVersion, capacity);
+            heapPosition = Arrays.copyOf(heapPosition, capacity * 3);
+        }
+        int i = heapSize++;
+        while (i > 0 && heapCost[(i - 1) / 2] > bestCost) {
+            moveEntry((i - 1) / 2, i);
+            i = (i - 1) / 2;
+        }
+        heapCost[i] = bestCost;
+        heapFrom[i] = from;
+        heapTo[i] = to;
+        heapFromVersion[i] = versions[from];
+        heapToVersion[i] = versions[to];
+        System.arraycopy(best, 0, heapPosition, i * 3, 3);
+    }
+
+    private void popEdge() {
+        heapSize--;
+        if (heapSize == 0) {
+            return;
+        }
+        //sift the last entry down from the top
+        double cost = heapCost[heapSize];
+        int i = 0;
+        while (true) {
+            int child = i * 2 + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapCost[child + 1] < heapCost[child]) {
+                child++;
+            }
+            if (heapCost[child] >= cost) {
+                break;
+            }
+            moveEntry(child, i);
+            i = child;
+        }
+        moveEntry(heapSize, i);
+    }
+
+    private void moveEntry(int from, int to) {
+        heapCost[to] = heapCost[from];
+        heapFrom[to] = heapFrom[from];
+        heapTo[to] = heapTo[from];
+        heapFromVersion[to] = heapFromVersion[from];
+        heapToVersion[to] = heapToVersion[from];
+        System.arraycopy(heapPosition, from * 3, heapPosition, to * 3, 3);
+    }
+
+    /**
+     * Check that collapsing the edge keeps the mesh manifold and flips none of the remaining triangles
+     */
+    private boolean canCollapse(int from, int to, double[] position) {
+        //the end points may only share the neighbours opposite of the edge
+        mark++;
+        for (int i = 0; i < vertexTriangleCounts[from]; i++) {
+            int t = vertexTriangles[from][i];
+            if (!collapsed[t]) {
+                for (int corner = 0; corner < 3; corner++) {
+                    marks[triangles[t * 3 + corner]] = mark;
+                }
+            }
+        }
+        int common = 0;
+        mark++;
+        for (int i = 0; i < vertexTriangleCounts[to]; i++) {
+            int t = vertexTriangles[to][i];
+            if (collapsed[t]) {
+                continue;
+            }
+            for (int corner = 0; corner < 3; corner++) {
+                int v = triangles[t * 3 + corner];
+                if (v != from && v != to && marks[v] == mark - 1) {
+                    marks[v] = mark;
+                    common++;
+                }
+            }
+        }
+        if (common > 2) {
+            return false;
+        }
+        return keepsOrientation(from, to, position) && keepsOrientation(to, from, position);
+    }
+
+    /**
+     * Check the triangles around a vertex moved to the given position, except for those removed by the collapse
+     */
+    private boolean keepsOrientation(int moved, int other, double[] position) {
+        double[] moving = new double[9];
+        for (int i = 0; i < vertexTriangleCounts[moved]; i++) {
+            int t = vertexTriangles[moved][i];
+            if (collapsed[t] || contains(t, other)) {
+                continue;
+            }
+            for (int corner = 0; corner < 3; corner++) {
+                System.arraycopy(positions, triangles[t * 3 + corner] * 3, moving, corner * 3, 3);
+            }
+            double[] before = normal(moving, 0, 3, 6);
+            for (int corner = 0; corner < 3; corner++) {
+                if (triangles[t * 3 + corner] == moved) {
+                    System.arraycopy(position, 0, moving, corner * 3, 3);
+                }
+            }
+            double[] after = normal(moving, 0, 3, 6);
+            double dot = before[0] * after[0] + before[1] * after[1] + before[2] * after[2];
+            double lengths = Math.sqrt((before[0] * before[0] + before[1] * before[1] + before[2] * before[2])
+                    * (after[0] * after[0] + after[1] * after[1] + after[2] * after[2]));
+            //no flipped, degenerated or heavily tilted triangles
+            if (!(dot > 0.2 * lengths)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void collapse(int from, int to, double[] position) {
+        System.arraycopy(position, 0, positions, to * 3, 3);
+        for (int i = 0; i < 10; i++) {
+            quadrics[to * 10 + i] += quadrics[from * 10 + i];
+        }
+        for (int i = 0; i < vertexTriangleCounts[from]; i++) {
+            int t = vertexTriangles[from][i];
+            if (collapsed[t]) {
+                continue;
+            }
+            if (contains(t, to)) {
+                collapsed[t] = true;
+                triangleCount--;
+                continue;
+            }
+            for (int corner = 0; corner < 3; corner++) {
+                if (triangles[t * 3 + corner] == from) {
+                    triangles[t * 3 + corner] = to;
+                }
+            }
+            addVertexTriangle(to, t);
+        }
+        removed[from] = true;
+        vertexTriangles[from] = null;
+        vertexTriangleCounts[from] = 0;
+        versions[to]++;
+        compactVertexTriangles(to);
+
+        //edges of the moved vertex have new costs; the old ones are outdated by its version
+        mark++;
+        for (int i = 0; i < vertexTriangleCounts[to]; i++) {
+            int t = vertexTriangles[to][i];
+            for (int corner = 0; corner < 3; corner++) {
+                int v = triangles[t * 3 + corner];
+                if (v != to && marks[v] != mark) {
+                    marks[v] = mark;
+                    pushEdge(to, v);
+                }
+            }
+        }
+    }
+
+    private void addVertexTriangle(int v, int t) {
+        if (vertexTriangleCounts[v] == vertexTriangles[v].length) {
+            vertexTriangles[v] = Arrays.copyOf(vertexTriangles[v], vertexTriangleCounts[v] * 2);
+        }
+        vertexTriangles[v][vertexTriangleCounts[v]++] = t;
+    }
+
+    /**
+     * Drop removed triangles from the list of a vertex
+     */
+    private void compactVertexTriangles(int v) {
+        int count = 0;
+        for (int i = 0; i < vertexTriangleCounts[v]; i++) {
+            int t = vertexTriangles[v][i];
+            if (!collapsed[t]) {
+                vertexTriangles[v][count++] = t;
+            }
+        }
+        vertexTriangleCounts[v] = count;
+    }
+
+    private boolean contains(int t, int v) {
+        return triangles[t * 3] == v || triangles[t * 3 + 1] == v || triangles[t * 3 + 2] == v;
+    }
+
+    /**
+     * Collect the remaining vertices and triangles in a new mesh
+     */
+    private GeometryBuffer buildMesh() {
+        int[] newIndex = new int[removed.length];
+        Arrays.fill(newIndex, -1);
+        GeometryBuffer mesh = new GeometryBuffer(0, triangleCount * 3);
+        for (int t = 0; t < collapsed.length; t++) {
+            if (collapsed[t]) {
+                continue;
+            }
+            int[] corners = new int[3];
+            for (int corner = 0; corner < 3; corner++) {
+                int v = triangles[t * 3 + corner];
+                if (newIndex[v] < 0) {
+                    newIndex[v] = mesh.addVertex(positions[v * 3] + origin[0], positions[v * 3 + 1] + origin[1], positions[v * 3 + 2] + origin[2]);
+                }
+                corners[corner] = newIndex[v];
+            }
+            mesh.addTriangle(corners[0], corners[1], corners[2]);
+        }
+        mesh.computeVertexNormals();
+        mesh.trim();
+        return mesh;
+    }
+
+    /**
+     * Solve for the position minimizing the quadric
+     * @return false if the quadric has no unique minimum
+     */
+    private static boolean solve(double[] q, double[] result) {
+        double a = q[0], b = q[1], c = q[2], d = q[4], e = q[5], f = q[7];
+        double det = a * (d * f - e * e) - b * (b * f - c * e) + c * (b * e - c * d);
+        double scale = Math.max(Math.abs(a), Math.max(Math.abs(d), Math.abs(f)));
+        if (Math.abs(det) <= 1e-9 * scale * scale * scale) {
+            return false;
+        }
+        double x = -q[3];
+        double y = -q[6];
+        double z = -q[8];
+        result[0] = (x * (d * f - e * e) - b * (y * f - e * z) + c * (y * e - d * z)) / det;
+        result[1] = (a * (y * f - e * z) - x * (b * f - c * e) + c * (b * z - c * y)) / det;
+        result[2] = (a * (d * z - y * e) - b * (b * z - c * y) + x * (b * e - c * d)) / det;
+        return true;
+    }
+
+    private static double error(double[] q, double x, double y, double z) {
+        return q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2 * q[3] * x
+                + q[4] * y * y + 2 * q[5] * y * z + 2 * q[6] * y
+                + q[7] * z * z + 2 * q[8] * z + q[9];
+    }
+
+    /**
+     * @return The normal of a triangle in the orientation of XmlPoly.computeNormals(), with twice its area as length
+     */
+    private static double[] normal(double[] coordinates, int a, int b, int c) {
+        double x1 = coordinates[a] - coordinates[c];
+        double y1 = coordinates[a + 1] - coordinates[c + 1];
+        double z1 = coordinates[a + 2] - coordinates[c + 2];
+        double x2 = coordinates[a] - coordinates[b];
+        double y2 = coordinates[a + 1] - coordinates[b + 1];
+        double z2 = coordinates[a + 2] - coordinates[b + 2];
+        return new double[] { y1 * z2 - z1 * y2, z1 * x2 - x1 * z2, x1 * y2 - y1 * x2 };
+    }
+}
@@ -0,0 +1,109 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A node of the scene graph handed to a SceneWriter: a group, a reference to a mesh or a div holding semantic information.
+ * The xmlProcessor builds the nodes of one city object at a time and hands them to the writer as soon as the object is
+ * complete, so the graph of the whole city is never kept in memory.
+ * @author Daniel Spieldenner
+ */
+public class SceneGroup {
+
+    public static final String GROUP = "group";
+    public static final String MESH = "mesh";
+    public static final String DIV = "div";
+
+    private String id;                                                          //null if the node has no id
+    private String kind = GROUP;
+    private Map<String, String> attributes = new LinkedHashMap<String, String>();    //attributes in the order they were added
+    private List<SceneGroup> children = new ArrayList<SceneGroup>();
+    private String textContent;
+
+    /**
+     * Create a new node without id and parent
+     */
+    public SceneGroup() {
+    }
+
+    /**
+     * Create a new node without parent
+     * @param id The id of the node
+     */
+    public SceneGroup(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Create a new node as last child of the given parent
+     * @param id The id of the node
+     * @param parent The parent node
+     */
+    public SceneGroup(String id, SceneGroup parent) {
+        this.id = id;
+        parent.addChild(this);
+    }
+
+    /**
+     * Create a new node without id as last child of the given parent
+     * @param parent The parent node
+     */
+    public SceneGroup(SceneGroup parent) {
+        parent.addChild(this);
+    }
+
+    public void addAttribute(String name, String value) {
+        attributes.put(name, value);
+    }
+
+    public void addChild(SceneGroup child) {
+        children.add(child);
+    }
+
+    public void addTextContent(String text) {
+        textContent = textContent == null ? text : textContent + text;
+    }
+
+    /**
+     * Use this node as reference to a mesh, given by its "src" attribute
+     */
+    public void makeMesh() {
+        kind = MESH;
+    }
+
+    /**
+     * Use this node as div holding semantic information
+     */
+    public void makeDiv() {
+        kind = DIV;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return GROUP, MESH or DIV
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public List<SceneGroup> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return The text content of the node, null if none has been added
+     */
+    public String getTextContent() {
+        return textContent;
+    }
+}
@@ -0,0 +1,443 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jboss.logging.Logger;
+
+/**
+ * Splits the converted city into square tiles of a fixed size and writes one output file per tile,
+ * so clients only need to load the tiles they show. Every building and ground object is put into the tile
+ * containing the center of its bounding box, so each object is written exactly once; the bounds of a tile
+ * are those of the objects in it and may therefore reach into neighbouring tiles.
+ * Tiles are numbered by their position on a grid starting at 0 0, so the name of a tile does not depend on the
+ * extent of the input: with a tile size of 500, city.xhtml is split into city_7000_10800.xhtml, ...
+ * Each tile only holds the shaders used by its objects and a camera above its center. The tiles are written
+ * in parallel, each by its own writer; an index listing the file and bounds of every tile is written
+ * to city_tiles.json.
+ * Optionally, levels of coarser tiles are built on top, each parent tile covering two by two tiles of the level
+ * below and named by its level, e.g. city_L1_3500_5400.xhtml. Parent tiles hold simplified geometry only: a block for
+ * each building, extruded from its footprint to its measured height, and the ground meshes clustered on a grid of
+ * GRID_RESOLUTION cells per tile edge, refined where needed to keep their error within a cell. Buildings smaller than a
+ * grid cell are left out. The geometric error of a tile
+ * is the largest distance of an original vertex from the simplified geometry, or the size of a building left out,
+ * and at least the error of its children, so viewers can refine a tile once its error becomes visible.
+ * @author Daniel Spieldenner
+ */
+public class SceneTiler {
+
+    public static final int GRID_RESOLUTION = 64;          //cells per tile edge for simplifying parent tiles
+    private static final Logger log = Logger.getLogger(SceneTiler.class.getName());
+
+    /**
+     * Objects of a tile and their bounds
+     */
+    static class Tile {
+
+        long x;                                             //column of the tile on the grid of its level
+        long y;                                             //row of the tile on the grid of its level
+        int level = 0;                                      //0 for tiles holding the original geometry
+        String file;
+        Map<String, Building> buildings = new LinkedHashMap<String, Building>();    //all buildings within the tile
+        Map<String, Ground> grounds = new LinkedHashMap<String, Ground>();          //all ground objects within the tile
+        Map<String, GeometryBuffer> blocks = new LinkedHashMap<String, GeometryBuffer>();   //blocks written to a parent tile
+        Map<String, Ground> simplifiedGrounds = new LinkedHashMap<String, Ground>();       //ground written to a parent tile
+        List<Tile> children = new ArrayList<Tile>();
+        double error = 0;                                   //geometric error of the tile
+        double[] min = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+        double[] max = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+        Tile(long x, long y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        void include(double[] bounds) {
+            for (int c = 0; c < 3; c++) {
+                min[c] = Math.min(min[c], bounds[c]);
+                max[c] = Math.max(max[c], bounds[c + 3]);
+            }
+        }
+
+        void include(Tile child) {
+            for (int c = 0; c < 3; c++) {
+                min[c] = Math.min(min[c], child.min[c]);
+                max[c] = Math.max(max[c], child.max[c]);
+            }
+            buildings.putAll(child.buildings);
+            grounds.putAll(child.grounds);
+            error = Math.max(error, child.error);
+            children.add(child);
+        }
+    }
+
+    private double tileSize;
+    private int lodLevels;
+    private int threads;
+    private ConverterOptions options;
+
+    /**
+     * Create a new tiler
+     * @param options Options of the conversion, giving the tile size, the number of threads and the output format
+     */
+    public SceneTiler(ConverterOptions options) {
+        this.tileSize = options.getTileSize();
+        this.lodLevels = options.getLodLevels();
+        this.threads = options.getThreads();
+        this.options = options;
+    }
+
+    /**
+     * Write all buildings and ground objects, whose geometry has to be computed already, to one file per tile
+     * and write the index of the tiles
+     * @param outputFile Path of the output file, from which the names of the tiles and the index are derived
+     * @return The tiles written, ordered by level, row and column
+     */
+    public List<Tile> write(String outputFile, String texturePath, float resX, float resY, Map<String, Building> buildingMap,
+            Map<String, Ground> groundMap, Map<String, xmlShader> shaderMap, IdRegistry registry, Map<String, Semantics> semanticMap) throws IOException {
+        Map<String, Tile> tileMap = new HashMap<String, Tile>();
+        for (Building building : buildingMap.values()) {
+            double[] bounds = new double[6];
+            if (computeBounds(building.getPolyList(), null, bounds)) {
+                Tile tile = getTile(tileMap, bounds);
+                tile.buildings.put(building.getID(), building);
+                tile.include(bounds);
+            }
+        }
+        for (Ground ground : groundMap.values()) {
+            double[] bounds = new double[6];
+            if (computeBounds(ground.getPolyList(), ground.getMesh(), bounds)) {
+                Tile tile = getTile(tileMap, bounds);
+                tile.grounds.put(ground.getID(), ground);
+                tile.include(bounds);
+            }
+        }
+        List<Tile> tiles = sort(tileMap.values());
+        //the simplified geometry is computed before writing any tile releases the original one
+        List<Tile> top = tiles;
+        List<Tile> level = tiles;
+        Map<String, GeometryBuffer> blocks = new HashMap<String, GeometryBuffer>();
+        Map<String, double[]> blockErrors = new HashMap<String, double[]>();
+        for (int l = 1; l <= lodLevels && level.size() > 1; l++) {
+            level = buildLevel(level, l, semanticMap, blocks, blockErrors);
+            tiles.addAll(level);
+            top = level;
+        }
+
+        File output = new File(outputFile);
+        String name = output.getName();
+        int extension = name.lastIndexOf('.');
+        String baseName = extension > 0 ? name.substring(0, extension) : name;
+        String suffix = extension > 0 ? name.substring(extension) : "";
+        for (Tile tile : tiles) {
+            tile.file = baseName + (tile.level > 0 ? "_L" + tile.level : "") + "_" + tile.x + "_" + tile.y + suffix;
+        }
+
+        //tiles share no objects but the blocks, which are only read, so they can be written independently
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (Tile tile : tiles) {
+            tasks.add(new TileTask(tile, new File(output.getAbsoluteFile().getParentFile(), tile.file).getPath(),
+                    texturePath, resX, resY, shaderMap, registry, semanticMap));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing tiles", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not write tile: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        writeIndex(new File(output.getAbsoluteFile().getParentFile(), baseName + "_tiles.json"), tiles, top);
+        return tiles;
+    }
+
+    /**
+     * Build the parent tiles of a level and their simplified geometry
+     * @param children Tiles of the level below
+     * @param level Level of the parent tiles
+     * @param blocks Blocks of the buildings created so far, by building id
+     * @param blockErrors Geometric error and size of each building, by building id
+     * @return The parent tiles, ordered by row and column
+     */
+    private List<Tile> buildLevel(List<Tile> children, int level, Map<String, Semantics> semanticMap,
+            Map<String, GeometryBuffer> blocks, Map<String, double[]> blockErrors) {
+        Map<String, Tile> parentMap = new HashMap<String, Tile>();
+        for (Tile child : children) {
+            //an arithmetic shift rounds towards negative infinity, like the grid of the level below
+            String key = (child.x >> 1) + " " + (child.y >> 1);
+            Tile parent = parentMap.get(key);
+            if (parent == null) {
+                parent = new Tile(child.x >> 1, child.y >> 1);
+                parent.level = level;
+                parentMap.put(key, parent);
+            }
+            parent.include(child);
+        }
+        double cellSize = tileSize * (1L << level) / GRID_RESOLUTION;
+        double[] error = new double[1];
+        for (Tile parent : parentMap.values()) {
+            for (Building building : parent.buildings.values()) {
+                double[] blockError = blockErrors.get(building.getID());
+                if (blockError == null) {
+                    GeometryBuffer block = MeshSimplifier.createBlock(building.getPolyList(), getHeight(building, semanticMap), error);
+                    double[] bounds = new double[6];
+                    computeBounds(building.getPolyList(), null, bounds);
+                    double size = Math.max(Math.hypot(bounds[3] - bounds[0], bounds[4] - bounds[1]), bounds[5] - bounds[2]);
+                    blockError = new double[] { block != null ? error[0] : size, size };
+                    blockErrors.put(building.getID(), blockError);
+                    if (block != null) {
+                        blocks.put(building.getID(), block);
+                    }
+                }
+                GeometryBuffer block = blocks.get(building.getID());
+                if (block != null && blockError[1] >= cellSize) {
+                    parent.blocks.put(building.getID(), block);
+                    parent.error = Math.max(parent.error, blockError[0]);
+                } else {
+                    parent.error = Math.max(parent.error, blockError[1]);
+                }
+            }
+            for (Ground ground : parent.grounds.values()) {
+                List<GeometryBuffer> parts = new ArrayList<GeometryBuffer>();
+                if (ground.getMesh() != null) {
+                    parts.add(ground.getMesh());
+                }
+                for (XmlPoly polygon : ground.getPolyList()) {
+                    parts.add(polygon.getGeometry());
+                }
+                Ground simplified = new Ground();
+                simplified.setId(ground.getID());
+                simplified.setHandle(ground.getHandle());
+                simplified.setMesh(MeshSimplifier.clusterVertices(parts, cellSize, cellSize, error));
+                parent.simplifiedGrounds.put(ground.getID(), simplified);
+                parent.error = Math.max(parent.error, error[0]);
+            }
+        }
+        return sort(parentMap.values());
+    }
+
+    /**
+     * @return The measured height of the building, NaN if it is unknown
+     */
+    private static double getHeight(Building building, Map<String, Semantics> semanticMap) {
+        Semantics semantics = semanticMap.get(building.getID());
+        String height = semantics != null ? semantics.getSemanticList().get("bldg:measuredHeight") : null;
+        if (height == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(height.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignored measured height " + height + " of building " + building.getID());
+            return Double.NaN;
+        }
+    }
+
+    private static List<Tile> sort(Collection<Tile> tiles) {
+        List<Tile> sorted = new ArrayList<Tile>(tiles);
+        Collections.sort(sorted, new Comparator<Tile>() {
+            @Override
+            public int compare(Tile a, Tile b) {
+                return a.y != b.y ? (a.y < b.y ? -1 : 1) : (a.x < b.x ? -1 : (a.x == b.x ? 0 : 1));
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Compute the bounding box of the given polygons and mesh
+     * @param bounds Receives minimum x, y, z and maximum x, y, z
+     * @return false if there are no vertices
+     */
+    static boolean computeBounds(List<XmlPoly> polygons, GeometryBuffer mesh, double[] bounds) {
+        for (int c = 0; c < 3; c++) {
+            bounds[c] = Double.MAX_VALUE;
+            bounds[c + 3] = -Double.MAX_VALUE;
+        }
+        boolean found = include(mesh, bounds);
+        for (XmlPoly polygon : polygons) {
+            found |= include(polygon.getGeometry(), bounds);
+        }
+        return found;
+    }
+
+    private static boolean include(GeometryBuffer geometry, double[] bounds) {
+        if (geometry == null || geometry.getVertexCount() == 0) {
+            return false;
+        }
+        double[] positions = geometry.getPositions();
+        for (int i = 0; i < geometry.getVertexCount() * 3; i++) {
+            int c = i % 3;
+            bounds[c] = Math.min(bounds[c], positions[i]);
+            bounds[c + 3] = Math.max(bounds[c + 3], positions[i]);
+        }
+        return true;
+    }
+
+    /**
+     * Get the tile containing the center of the given bounds, creating it if necessary
+     */
+    private Tile getTile(Map<String, Tile> tileMap, double[] bounds) {
+        long x = (long) Math.floor((bounds[0] + bounds[3]) / 2 / tileSize);
+        long y = (long) Math.floor((bounds[1] + bounds[4]) / 2 / tileSize);
+        String key = x + " " + y;
+        Tile tile = tileMap.get(key);
+        if (tile == null) {
+            tile = new Tile(x, y);
+            tileMap.put(key, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Write the index of the tiles: for each tile its file, grid position, bounds, number of objects and, if levels
+     * of detail are built, its level, geometric error and the files of its children
+     * @param top Tiles of the highest level, from which viewers start
+     */
+    private void writeIndex(File file, List<Tile> tiles, List<Tile> top) throws IOException {
+        NumberFormatter json = new NumberFormatter();
+        json.append("{\"tileSize\":").append(tileSize).append(",\"root\":[");
+        for (int t = 0; t < top.size(); t++) {
+            json.append(t > 0 ? "," : "").append('"').append(escape(top.get(t).file)).append('"');
+        }
+        json.append("],\"tiles\":[");
+        for (int t = 0; t < tiles.size(); t++) {
+            Tile tile = tiles.get(t);
+            json.append(t > 0 ? ",\n" : "\n").append("{\"file\":\"").append(escape(tile.file));
+            json.append("\",\"x\":").append(Long.toString(tile.x)).append(",\"y\":").append(Long.toString(tile.y));
+            json.append(",\"min\":[").append(tile.min[0]).append(',').append(tile.min[1]).append(',').append(tile.min[2]);
+            json.append("],\"max\":[").append(tile.max[0]).append(',').append(tile.max[1]).append(',').append(tile.max[2]);
+            json.append("],\"buildings\":").append(tile.level > 0 ? tile.blocks.size() : tile.buildings.size());
+            json.append(",\"grounds\":").append(tile.grounds.size());
+            json.append(",\"level\":").append(tile.level).append(",\"geometricError\":").append(tile.error);
+            if (!tile.children.isEmpty()) {
+                json.append(",\"children\":[");
+                for (int c = 0; c < tile.children.size(); c++) {
+                    json.append(c > 0 ? "," : "").append('"').append(escape(tile.children.get(c).file)).append('"');
+                }
+                json.append(']');
+            }
+            json.append('}');
+        }
+        json.append("\n]}\n");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.write(json.getBuffer(), 0, json.length());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Task writing the objects of a single tile to its own file
+     */
+    private class TileTask implements Callable<Void> {
+
+        private Tile tile;
+        private String fileName;
+        private String texturePath;
+        private float resX;
+        private float resY;
+        private Map<String, xmlShader> shaderMap;
+        private IdRegistry registry;
+        private Map<String, Semantics> semanticMap;
+
+        TileTask(Tile tile, String fileName, String texturePath, float resX, float resY, Map<String, xmlShader> shaderMap,
+                IdRegistry registry, Map<String, Semantics> semanticMap) {
+            this.tile = tile;
+            this.fileName = fileName;
+            this.texturePath = texturePath;
+            this.resX = resX;
+            this.resY = resY;
+            this.shaderMap = shaderMap;
+            this.registry = registry;
+            this.semanticMap = semanticMap;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            double[] origin = { Math.rint((tile.min[0] + tile.max[0]) / 2), Math.rint((tile.min[1] + tile.max[1]) / 2),
+                    Math.rint((tile.min[2] + tile.max[2]) / 2) };
+            xmlProcessor processor = new xmlProcessor(GmlConverter.createWriter(fileName, options, origin));
+            processor.setMergeMeshes(options.isMergeMeshes());
+            processor.setFaceIds(options.isFaceIds());
+            processor.setWelding(options.getWeldEpsilon(), options.getCreaseAngle());
+            //shaders have to be collected before the geometry is written and released
+            Map<String, xmlShader> tileShaders = collectShaders();
+            if (tile.level > 0) {
+                for (Map.Entry<String, GeometryBuffer> block : tile.blocks.entrySet()) {
+                    processor.processBlock(block.getKey(), block.getValue());
+                }
+                processor.processGround(texturePath, tile.simplifiedGrounds, registry, resX, resY);
+            } else {
+                processor.processBuildings(tile.buildings, registry, semanticMap);
+                processor.processGround(texturePath, tile.grounds, registry, resX, resY);
+            }
+            processor.processShader(tileShaders);
+            processor.addCamera(tile.min[0] + " " + tile.min[1] + " " + tile.min[2], tile.max[0] + " " + tile.max[1] + " " + tile.max[2]);
+            processor.processXML();
+            return null;
+        }
+
+        /**
+         * @return The shaders used by the objects of the tile, in the order of the shader map
+         */
+        private Map<String, xmlShader> collectShaders() {
+            Map<xmlShader, Boolean> used = new IdentityHashMap<xmlShader, Boolean>();
+            //blocks are written without shader, and simplified ground objects only use the shader of the object
+            for (Building building : tile.level > 0 ? new ArrayList<Building>() : tile.buildings.values()) {
+                for (XmlPoly polygon : building.getPolyList()) {
+                    int handle = polygon.getHandle() != IdRegistry.NO_HANDLE ? polygon.getHandle() : registry.lookup(polygon.getID());
+                    markUsed(used, registry.getShader(handle));
+                }
+            }
+            for (Ground ground : tile.level > 0 ? tile.simplifiedGrounds.values() : tile.grounds.values()) {
+                int handle = ground.getHandle() != IdRegistry.NO_HANDLE ? ground.getHandle() : registry.lookup(ground.getID());
+                markUsed(used, registry.getShader(handle));
+                for (XmlPoly polygon : ground.getPolyList()) {
+                    markUsed(used, registry.getShader(polygon.getHandle()));
+                }
+            }
+            Map<String, xmlShader> tileShaders = new LinkedHashMap<String, xmlShader>();
+            for (Map.Entry<String, xmlShader> shader : shaderMap.entrySet()) {
+                if (used.containsKey(shader.getValue())) {
+                    tileShaders.put(shader.getKey(), shader.getValue());
+                }
+            }
+            return tileShaders;
+        }
+
+        private void markUsed(Map<xmlShader, Boolean> used, xmlShader shader) {
+            if (shader != null) {
+                used.put(shader.getDefinition(), Boolean.TRUE);
+            }
+        }
+    }
+}
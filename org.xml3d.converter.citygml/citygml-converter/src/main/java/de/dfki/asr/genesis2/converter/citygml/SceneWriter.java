@@ -0,0 +1,51 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.IOException;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Output backend of the xmlProcessor. Meshes, shaders, groups and views are handed to the writer one at a time,
+ * in the order the xmlProcessor produces them; a writer may write each of them as soon as it is received.
+ * Groups may reference meshes and shaders which are written later.
+ * @author Daniel Spieldenner
+ */
+public interface SceneWriter {
+
+    /**
+     * Ambient intensity of texture shaders, whose diffuse color is white
+     */
+    float TEXTURE_AMBIENT_INTENSITY = 0.4f;
+
+    /**
+     * Write the geometry of a mesh
+     * @param id The id the mesh is referenced by
+     * @param geometry Positions, normals, texture coordinates (if set) and triangle indices of the mesh
+     */
+    void writeMesh(String id, GeometryBuffer geometry) throws IOException;
+
+    /**
+     * Write a group, including all of its children
+     * @param group The group to be written
+     */
+    void writeGroup(SceneGroup group) throws IOException;
+
+    /**
+     * Write a material or texture shader
+     * @param shader The shader to be written
+     */
+    void writeShader(xmlShader shader) throws IOException;
+
+    /**
+     * Write a view
+     * @param id The id of the view
+     * @param position Position of the view, separated by whitespace
+     * @param orientation Orientation of the view as axis and angle, separated by whitespace
+     */
+    void writeView(String id, String position, String orientation) throws IOException;
+
+    /**
+     * Complete the output and release all resources of the writer
+     * @return The result of the writer
+     */
+    StreamResult finish() throws IOException;
+}
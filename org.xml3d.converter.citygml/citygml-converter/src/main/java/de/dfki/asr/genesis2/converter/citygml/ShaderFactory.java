@@ -22,6 +22,7 @@ public class ShaderFactory {
     private ArrayList<String> targets = new ArrayList<String>();           //List of polygon-ids using this shader
     
     private Element shaderNode;
+    private CoordinateTokenizer tokenizer;       //parses texture coordinates, created when the first ones are found
     
     ShaderFactory()
     {
@@ -59,51 +60,48 @@ public class ShaderFactory {
         
     }
     /**
-     * Get material information from the gml file, store the shader values found and
-     * the list of target polygons of the shaders.
-     * @param shaderMap List of shaders defined in the gml file
-     * @param polygonMap List of target polygons of the current shader
+     * Get material information from the gml file and bind the shader of each material to its target polygons.
+     * Materials of the same color share a single shader.
+     * @param interner Interner handing out the shaders, which stores new shaders in the list of shaders
+     * @param registry Registry the targets of the shaders are bound in
      */
-    public void getMaterial(Map shaderMap, Map polygonMap)
+    public void getMaterial(ShaderInterner interner, IdRegistry registry)
     {
         
         NodeList materialNodes = shaderNode.getElementsByTagName("app:X3DMaterial");
         for(int i = 0; i<materialNodes.getLength(); i++)
         {
-            xmlShader matShader = new xmlShader(); 
-            matShader.setShaderType("Material");                                           //Assumption: Shaders are either material or texture
-            matShader.setID("material_" + i);
             Element material = (Element)materialNodes.item(i);
             
             NodeList diffColors = material.getElementsByTagName("app:diffuseColor");
             NodeList targets = material.getElementsByTagName("app:target");
             
-            
-            
+            String diffuseColor = null;
             for(int j=0; j<diffColors.getLength(); j ++)
             {
-                matShader.setDiffuseColor(diffColors.item(j).getFirstChild().getNodeValue());
+                diffuseColor = diffColors.item(j).getFirstChild().getNodeValue();
             }
+            xmlShader matShader = interner.material(diffuseColor);                    //Assumption: Shaders are either material or texture
             
             for(int k=0; k<targets.getLength(); k++)
             {
                 matShader.addTarget(targets.item(k).getFirstChild().getNodeValue());
-                polygonMap.put(targets.item(k).getTextContent(), matShader);
+                registry.bindShader(targets.item(k).getTextContent(), matShader);
             }
-            shaderMap.put("material"+shaderMap.size(), matShader);
             
         }
         
     }
     /**
-     * Get texture information from the gml file, store the shader values found and
-     * the list of target polygons of the shaders. \p
-     * Additionally, search for georeferenced texture definitions, generate a shader for those and
-     * compute the texture coordinates based on the information contained in the corresponding .tfw file
-     * @param shaderMap List of shaders defined in the gml file
-     * @param polygonMap List of target polygons of the current shader
+     * Get texture information from the gml file and bind the shader of each texture to its target polygons,
+     * together with the texture coordinates given for each ring of each target, parsed into float arrays. Textures using the same image and wrap mode
+     * share a single shader. \p
+     * Additionally, search for georeferenced texture definitions and generate a shader for those; their texture
+     * coordinates are computed from the corresponding world file when the ground is written.
+     * @param interner Interner handing out the shaders, which stores new shaders in the list of shaders
+     * @param registry Registry the targets of the shaders are bound in
      */
-    public void getTextures(Map shaderMap, Map polygonMap)
+    public void getTextures(ShaderInterner interner, IdRegistry registry)
     {
         /*
          * get texture definitions from gml-File, including texture path, target,
@@ -113,61 +111,61 @@ public class ShaderFactory {
         NodeList geoTextureNodes = shaderNode.getElementsByTagName("app:GeoreferencedTexture");
         for(int i=0; i<textureNodes.getLength(); i++)
         {
-            xmlShader texShader = new xmlShader();
-            texShader.setShaderType("Texture");                                            //Assumption: Shader is either material or texture; Texture found -> is texture
-            texShader.setID("textureShader_" + i);
             Element texture = (Element)textureNodes.item(i);
             NodeList texturePath = texture.getElementsByTagName("app:imageURI");
             
             NodeList targets = texture.getElementsByTagName("app:target");
-            NodeList texCoords = texture.getElementsByTagName("app:textureCoordinates");
             NodeList wrapMode = texture.getElementsByTagName("app:wrapMode");
             
-            
+            String path = "";
             if(texturePath.getLength() > 0)
-                texShader.setTexturePath(texturePath.item(0).getFirstChild().getNodeValue());
-            
-            if(texCoords.getLength() > 0)
-                texShader.setTexCoords(texCoords.item(0).getFirstChild().getNodeValue());
+                path = texturePath.item(0).getFirstChild().getNodeValue();
             
+            String wrap = null;
             if(wrapMode.getLength() > 0)
-                texShader.setWrapMode(wrapMode.item(0).getFirstChild().getNodeValue());
+                wrap = wrapMode.item(0).getFirstChild().getNodeValue();
+            
+            xmlShader texShader = interner.texture(path, wrap);                         //Assumption: Shader is either material or texture; Texture found -> is texture
             
             for(int j=0; j<targets.getLength(); j++)
             {
-                texShader.addTarget(targets.item(j).getAttributes().getNamedItem("uri").getTextContent());
-                polygonMap.put(targets.item(j).getAttributes().getNamedItem("uri").getTextContent(), texShader);
+                Element target = (Element)targets.item(j);
+                String uri = target.getAttribute("uri");
+                NodeList texCoords = target.getElementsByTagName("app:textureCoordinates");
+                float[][] targetCoords = null;
+                if(texCoords.getLength() > 0)
+                {
+                    //one list per ring of the target polygon, the exterior ring first
+                    targetCoords = new float[texCoords.getLength()][];
+                    for(int r=0; r<texCoords.getLength(); r++)
+                    {
+                        targetCoords[r] = parseTexCoords(texCoords.item(r).getTextContent());
+                    }
+                }
+                texShader.addTarget(uri);
+                registry.bindShader(uri, texShader, targetCoords);
             }
-            shaderMap.put("texture"+shaderMap.size(), texShader);
-           
             
         }
         
         for(int g=0; g<geoTextureNodes.getLength(); g++)
         {   
-            String targetPath = new String();
-            xmlShader geoShader = new xmlShader();
-            geoShader.setShaderType("Texture");
-            geoShader.setID("groundTexture" + g);
             Element currentTexture = (Element)geoTextureNodes.item(g);
             
             NodeList imageUri = currentTexture.getElementsByTagName("app:imageURI");
             NodeList target = currentTexture.getElementsByTagName("app:target");
+            if(imageUri.getLength() == 0)
+                continue;
             
-            for(int u=0; u<imageUri.getLength(); u++)
-            {
-                targetPath = imageUri.item(u).getTextContent();
-                geoShader.setTexturePath(imageUri.item(u).getTextContent().replace("tif", "jpg"));
-            }
+            //tif images are expected to be converted to jpg images, unless the converter transcodes them itself
+            String sourcePath = imageUri.item(imageUri.getLength() - 1).getTextContent();
+            xmlShader geoShader = interner.groundTexture(sourcePath, sourcePath.replace("tif", "jpg"));
             
             for(int t=0; t<target.getLength(); t++)
             {
                 geoShader.addTarget(target.item(t).getTextContent());
-                polygonMap.put(target.item(t).getTextContent(), geoShader);
+                registry.bindShader(target.item(t).getTextContent(), geoShader);
             }
-            if(targetPath != null)
-            
-            shaderMap.put("groundTexture"+shaderMap.size(), geoShader);
                 
         }
         
@@ -176,6 +174,26 @@ public class ShaderFactory {
     
     
     
+    /**
+     * Parse the texture coordinates of a ring
+     * @param texCoords u and v of each vertex, separated by whitespace
+     * @return u and v of each vertex
+     */
+    private float[] parseTexCoords(String texCoords)
+    {
+        if(tokenizer == null)
+            tokenizer = new CoordinateTokenizer();
+        tokenizer.reset();
+        tokenizer.append(texCoords);
+        double[] values = tokenizer.values();
+        float[] ring = new float[tokenizer.size()];
+        for(int i=0; i<ring.length; i++)
+        {
+            ring[i] = (float)values[i];
+        }
+        return ring;
+    }
+    
     public String getID()
     {
         return this.id;
@@ -0,0 +1,156 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out one shared shader per distinct appearance, so city models repeating the same material or texture
+ * in every building are written with a single shader for each of them.
+ * Materials are compared by their parsed diffuse color, so "0.5 0.5 0.5" and "0.50 0.5 0.500" are the same
+ * material; parameterized textures by their image and wrap mode, and georeferenced textures by their image.
+ * Each new shader gets an id unique in the whole file and is stored in the shader map under its id.
+ * The texture coordinates of parameterized textures differ from target to target, so they are bound with
+ * the shader in the IdRegistry instead of being stored in the shared shader.
+ * Used by one thread at a time, as appearances are handed to the CityObjectHandler in document order.
+ * @author Daniel Spieldenner
+ */
+public class ShaderInterner {
+
+    private Map<String, xmlShader> shaderMap;
+    private Map<Key, xmlShader> shaders = new HashMap<Key, xmlShader>();
+    private int materialCount = 0;
+    private int textureCount = 0;
+    private int groundTextureCount = 0;
+
+    /**
+     * Create a new interner
+     * @param shaderMap List of shaders the new shaders are stored in
+     */
+    public ShaderInterner(Map<String, xmlShader> shaderMap) {
+        this.shaderMap = shaderMap;
+    }
+
+    /**
+     * Get the shader of a material
+     * @param diffuseColor Diffuse color as given in the gml file, null for the default color
+     * @return The shader of the material, shared by all materials of the same color
+     */
+    public xmlShader material(String diffuseColor) {
+        xmlShader material = new xmlShader();
+        material.setShaderType("Material");
+        if (diffuseColor != null) {
+            material.setDiffuseColor(diffuseColor);
+        }
+        float[] color = material.getDiffuseColor();
+        Key key = new Key("Material", null, null, color);
+        xmlShader shared = shaders.get(key);
+        if (shared == null) {
+            material.setID("material_" + materialCount++);
+            shared = store(key, material);
+        }
+        return shared;
+    }
+
+    /**
+     * Get the shader of a parameterized texture
+     * @param texturePath Path of the image, as given in the gml file
+     * @param wrapMode Wrap mode of the texture, null if none is given
+     * @return The shader of the texture, shared by all textures using the same image and wrap mode
+     */
+    public xmlShader texture(String texturePath, String wrapMode) {
+        Key key = new Key("Texture", texturePath, wrapMode, null);
+        xmlShader shared = shaders.get(key);
+        if (shared == null) {
+            shared = new xmlShader();
+            shared.setShaderType("Texture");
+            shared.setID("textureShader_" + textureCount++);
+            shared.setSourcePath(texturePath);
+            shared.setTexturePath(texturePath);
+            if (wrapMode != null) {
+                shared.setWrapMode(wrapMode);
+            }
+            shared = store(key, shared);
+        }
+        return shared;
+    }
+
+    /**
+     * Get the shader of a georeferenced texture
+     * @param sourcePath Path of the image, as given in the gml file
+     * @param texturePath Path of the image written to the output
+     * @return The shader of the texture, shared by all georeferenced textures using the same image
+     */
+    public xmlShader groundTexture(String sourcePath, String texturePath) {
+        Key key = new Key("GroundTexture", sourcePath, null, null);
+        xmlShader shared = shaders.get(key);
+        if (shared == null) {
+            shared = new xmlShader();
+            shared.setShaderType("Texture");
+            shared.setID("groundTexture" + groundTextureCount++);
+            shared.setSourcePath(sourcePath);
+            shared.setTexturePath(texturePath);
+            shared = store(key, shared);
+        }
+        return shared;
+    }
+
+    /**
+     * @return Number of distinct shaders handed out
+     */
+    public int size() {
+        return shaders.size();
+    }
+
+    private xmlShader store(Key key, xmlShader shader) {
+        shaders.put(key, shader);
+        shaderMap.put(shader.getID(), shader);
+        return shader;
+    }
+
+    /**
+     * Canonical parameters of a shader
+     */
+    private static final class Key {
+
+        private final String type;
+        private final String path;
+        private final String wrapMode;
+        private final float r;
+        private final float g;
+        private final float b;
+
+        Key(String type, String path, String wrapMode, float[] color) {
+            this.type = type;
+            this.path = path;
+            this.wrapMode = wrapMode;
+            //adding 0 turns -0 into 0
+            this.r = color != null ? color[0] + 0.0f : 0;
+            this.g = color != null ? color[1] + 0.0f : 0;
+            this.b = color != null ? color[2] + 0.0f : 0;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return type.equals(key.type) && equal(path, key.path) && equal(wrapMode, key.wrapMode)
+                    && Float.compare(r, key.r) == 0 && Float.compare(g, key.g) == 0 && Float.compare(b, key.b) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = type.hashCode();
+            hash = hash * 31 + (path != null ? path.hashCode() : 0);
+            hash = hash * 31 + (wrapMode != null ? wrapMode.hashCode() : 0);
+            hash = hash * 31 + Float.floatToIntBits(r);
+            hash = hash * 31 + Float.floatToIntBits(g);
+            return hash * 31 + Float.floatToIntBits(b);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+import org.jboss.logging.Logger;
+
+/**
+ * Packs the images of parameterized textures into a few atlas pages, so a textured city model is drawn with a few
+ * large textures and one shader per page instead of one texture and shader per appearance.
+ * Images are placed by a skyline packer: the used part of a page is described by its upper outline, and each image,
+ * the highest ones first, goes to the lowest position along the outline where it fits, on the first page with room
+ * for it. Each page is cut to the smallest power of two holding its images. Every image is surrounded by a gutter
+ * repeating its border pixels, so texture filtering and mip levels do not blend neighbouring images into it.
+ * The texture coordinates bound to the targets of the textures in the IdRegistry are mapped into their page, and the
+ * shaders of the images become copies of the shader of the page, which is the only one written. Repeated textures
+ * (coordinates outside [0, 1] at any target),
+ * georeferenced textures and images which cannot be decoded or are larger than a page keep their own shader.
+ * Image headers are read and pages are composited and written by a pool of threads; the packing itself is
+ * sequential, as it takes far less time than decoding the images.
+ * @author Daniel Spieldenner
+ */
+public class TextureAtlas {
+
+    private static final Logger log = Logger.getLogger(TextureAtlas.class.getName());
+    private static final int GUTTER = 2;                //pixels around each image, repeating its border
+
+    private int maxSize;                                //edge length of the largest page, a power of two
+    private int threads;
+
+    /**
+     * Create a new atlas
+     * @param maxSize Maximum edge length of a page in pixels, a power of two
+     * @param threads Number of threads reading and compositing images
+     */
+    public TextureAtlas(int maxSize, int threads) {
+        if (Integer.bitCount(maxSize) != 1) {
+            throw new IllegalArgumentException("Size of atlas pages has to be a power of two: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Pack the textures of the given shaders into pages, written as PNG images to the texture directory
+     * @param texturePath Directory holding the textures, which relative image URIs refer to
+     * @param pageName Name of the page images without extension; pages are numbered from 0
+     * @param shaderMap Shaders read from the gml file; the shaders packed are replaced by one shader per page
+     * @param registry Registry holding the shaders and texture coordinates bound to the targets of the textures
+     * @return Number of pages written
+     */
+    public int pack(String texturePath, String pageName, Map<String, xmlShader> shaderMap, IdRegistry registry) throws IOException {
+        List<Region> regions = collectRegions(texturePath, registry);
+        if (regions.isEmpty()) {
+            return 0;
+        }
+        readSizes(regions);
+        List<Page> pages = new ArrayList<Page>();
+        List<Region> placed = new ArrayList<Region>();
+        for (Region region : regions) {
+            if (region.width <= 0 || region.width + 2 * GUTTER > maxSize || region.height + 2 * GUTTER > maxSize) {
+                continue;
+            }
+            int p = 0;
+            while (p < pages.size() && !pages.get(p).place(region)) {
+                p++;
+            }
+            if (p == pages.size()) {
+                Page page = new Page(maxSize, pageName + "_" + p + ".png");
+                page.place(region);
+                pages.add(page);
+            }
+            region.page = p;
+            placed.add(region);
+        }
+        if (pages.isEmpty()) {
+            return 0;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (Page page : pages) {
+            tasks.add(new CompositeTask(page, new File(texturePath, page.file)));
+        }
+        invokeAll(tasks);
+
+        //replace the shaders of the packed textures by the shaders of the pages
+        List<xmlShader> pageShaders = new ArrayList<xmlShader>();
+        for (int p = 0; p < pages.size(); p++) {
+            xmlShader pageShader = new xmlShader();
+            pageShader.setShaderType("Texture");
+            pageShader.setID("atlasShader_" + p);
+            pageShader.setTexturePath(pages.get(p).file);
+            pageShader.setWrapMode("clamp");
+            pageShaders.add(pageShader);
+        }
+        for (Region region : placed) {
+            Page page = pages.get(region.page);
+            xmlShader pageShader = pageShaders.get(region.page);
+            for (int handle : region.handles) {
+                for (float[] ring : registry.getBoundTexCoords(handle)) {
+                    mapTexCoords(ring, region, page);
+                }
+            }
+            for (xmlShader shader : region.shaders) {
+                shader.setID(pageShader.getID());
+                shader.setTexturePath(pageShader.getTexturePath());
+                shader.setWrapMode(pageShader.getWrapMode());
+                shader.setDefinition(pageShader);
+            }
+        }
+        Iterator<xmlShader> shaders = shaderMap.values().iterator();
+        while (shaders.hasNext()) {
+            xmlShader shader = shaders.next();
+            if (shader.getDefinition() != shader) {
+                shaders.remove();
+            }
+        }
+        for (xmlShader pageShader : pageShaders) {
+            shaderMap.put(pageShader.getID(), pageShader);
+        }
+        log.info("Packed " + placed.size() + " of " + regions.size() + " textures into " + pages.size() + " atlas pages");
+        return pages.size();
+    }
+
+    /**
+     * Collect the images of all parameterized textures whose coordinates stay within the image at all targets,
+     * each image once
+     * @return The images, ordered by their URI
+     */
+    private static List<Region> collectRegions(String texturePath, IdRegistry registry) {
+        Map<String, Region> regions = new TreeMap<String, Region>();
+        for (int handle = 0; handle < registry.size(); handle++) {
+            //georeferenced textures have no texture coordinates of their own
+            xmlShader shader = registry.getBoundShader(handle);
+            float[][] texCoords = registry.getBoundTexCoords(handle);
+            if (shader == null || texCoords == null || !shader.getShaderType().equals("Texture") || shader.getTexturePath().isEmpty()) {
+                continue;
+            }
+            Region region = regions.get(shader.getTexturePath());
+            if (region == null) {
+                File file = new File(shader.getTexturePath());
+                region = new Region(file.isAbsolute() ? file : new File(texturePath, shader.getTexturePath()));
+                regions.put(shader.getTexturePath(), region);
+            }
+            if (!region.shaders.contains(shader)) {
+                region.shaders.add(shader);
+            }
+            region.handles.add(handle);
+            for (float[] ring : texCoords) {
+                for (float value : ring) {
+                    if (value < 0 || value > 1) {
+                        region.repeated = true;
+                    }
+                }
+            }
+        }
+        List<Region> packable = new ArrayList<Region>();
+        for (Region region : regions.values()) {
+            if (!region.repeated) {
+                packable.add(region);
+            }
+        }
+        return packable;
+    }
+
+    /**
+     * Read the size of all images from their headers and sort them by decreasing height, as the skyline packer
+     * wastes least space when the highest images are placed first
+     */
+    private void readSizes(List<Region> regions) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Region region : regions) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    //only images ImageIO can decode are packed
+                    int[] size = WorldFile.readImageIOSize(region.file);
+                    if (size != null) {
+                        region.width = size[0];
+                        region.height = size[1];
+                    } else {
+                        log.warn("Could not read texture " + region.file + ", it is not packed into an atlas");
+                    }
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+        //the sort is stable, so images of equal size stay ordered by their URI
+        Collections.sort(regions, new Comparator<Region>() {
+            @Override
+            public int compare(Region a, Region b) {
+                return a.height != b.height ? b.height - a.height : b.width - a.width;
+            }
+        });
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while building texture atlas", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not build texture atlas: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Map the texture coordinates of a ring from its image into the page, in place. v runs upwards from the bottom of
+     * the image, rows downwards from its top.
+     */
+    static void mapTexCoords(float[] ring, Region region, Page page) {
+        double left = region.x + GUTTER;
+        double bottom = region.y + GUTTER + region.height;
+        for (int i = 0; i + 1 < ring.length; i += 2) {
+            ring[i] = (float) ((left + ring[i] * region.width) / page.width);
+            ring[i + 1] = (float) (1 - (bottom - ring[i + 1] * region.height) / page.height);
+        }
+    }
+
+    /**
+     * An image to be packed, with the shaders and targets using it and its place in the atlas
+     */
+    static class Region {
+
+        File file;
+        List<xmlShader> shaders = new ArrayList<xmlShader>();       //shaders using the image, one per wrap mode
+        List<Integer> handles = new ArrayList<Integer>();           //targets of the shaders with texture coordinates
+        boolean repeated = false;   //true if the image is repeated at any target, which cannot be done in an atlas
+        int width = 0;              //size of the image in pixels, without gutter
+        int height = 0;
+        int page = -1;
+        int x;                      //upper left corner of the image and its gutter on the page
+        int y;
+
+        Region(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * A page of the atlas. The skyline is kept as segments sorted by x, each with the lowest free row above it,
+     * covering the whole width of the page.
+     */
+    static class Page {
+
+        String file;
+        int width = 0;              //size of the page, the smallest powers of two holding all regions placed
+        int height = 0;
+        List<Region> regions = new ArrayList<Region>();
+        private int size;
+        private int[] segmentX;
+        private int[] segmentY;
+        private int[] segmentWidth;
+        private int segmentCount = 1;
+
+        Page(int size, String file) {
+            this.size = size;
+            this.file = file;
+            segmentX = new int[size + 1];
+            segmentY = new int[size + 1];
+            segmentWidth = new int[size + 1];
+            segmentWidth[0] = size;
+        }
+
+        /**
+         * Place a region at the lowest position where it fits, the leftmost one of equal height
+         * @return false if the region does not fit onto the page
+         */
+        boolean place(Region region) {
+            int w = region.width + 2 * GUTTER;
+            int h = region.height + 2 * GUTTER;
+            int best = -1;
+            int bestY = Integer.MAX_VALUE;
+            for (int i = 0; i < segmentCount && segmentX[i] + w <= size; i++) {
+                int y = 0;
+                for (int j = i, covered = 0; covered < w; covered += segmentWidth[j], j++) {
+                    y = Math.max(y, segmentY[j]);
+                }
+                if (y + h <= size && y < bestY) {
+                    best = i;
+                    bestY = y;
+                }
+            }
+            if (best < 0) {
+                return false;
+            }
+            region.x = segmentX[best];
+            region.y = bestY;
+            regions.add(region);
+            addSegment(best, region.x, bestY + h, w);
+            width = Math.max(width, Integer.highestOneBit(region.x + w - 1) << 1);
+            height = Math.max(height, Integer.highestOneBit(bestY + h - 1) << 1);
+            return true;
+        }
+
+        /**
+         * Replace the segments covered by a new one starting at the given segment
+         */
+        private void addSegment(int index, int x, int y, int w) {
+            int end = x + w;
+            int covered = index;
+            while (covered < segmentCount && segmentX[covered] + segmentWidth[covered] <= end) {
+                covered++;
+            }
+            if (covered < segmentCount && segmentX[covered] < end) {
+                segmentWidth[covered] -= end - segmentX[covered];
+                segmentX[covered] = end;
+            }
+            moveSegments(covered, index + 1);
+            segmentX[index] = x;
+            segmentY[index] = y;
+            segmentWidth[index] = w;
+            //join neighbours of equal height, which keeps the skyline short
+            if (index + 1 < segmentCount && segmentY[index + 1] == y) {
+                segmentWidth[index] += segmentWidth[index + 1];
+                moveSegments(index + 2, index + 1);
+            }
+            if (index > 0 && segmentY[index - 1] == y) {
+                segmentWidth[index - 1] += segmentWidth[index];
+                moveSegments(index + 1, index);
+            }
+        }
+
+        private void moveSegments(int from, int to) {
+            System.arraycopy(segmentX, from, segmentX, to, segmentCount - from);
+            System.arraycopy(segmentY, from, segmentY, to, segmentCount - from);
+            System.arraycopy(segmentWidth, from, segmentWidth, to, segmentCount - from);
+            segmentCount += to - from;
+        }
+    }
+
+    /**
+     * Task drawing the images of a page and writing it
+     */
+    private static class CompositeTask implements Callable<Void> {
+
+        private Page page;
+        private File output;
+
+        CompositeTask(Page page, File output) {
+            this.page = page;
+            this.output = output;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            BufferedImage image = new BufferedImage(page.width, page.height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = image.createGraphics();
+            try {
+                for (Region region : page.regions) {
+                    BufferedImage source = ImageIO.read(region.file);
+                    if (source == null) {
+                        log.error("Could not decode texture " + region.file + " for atlas page " + page.file);
+                        continue;
+                    }
+                    graphics.drawImage(source, region.x + GUTTER, region.y + GUTTER, region.width, region.height, null);
+                }
+            } finally {
+                graphics.dispose();
+            }
+            for (Region region : page.regions) {
+                fillGutter(image, region);
+            }
+            if (!ImageIO.write(image, "png", output)) {
+                throw new IOException("No writer for atlas page " + output);
+            }
+            return null;
+        }
+
+        /**
+         * Fill the gutter around a region with the nearest border pixel of its image
+         */
+        private static void fillGutter(BufferedImage image, Region region) {
+            int left = region.x + GUTTER;
+            int top = region.y + GUTTER;
+            int right = left + region.width - 1;
+            int bottom = top + region.height - 1;
+            for (int y = region.y; y <= bottom + GUTTER; y++) {
+                int sourceY = Math.min(Math.max(y, top), bottom);
+                for (int x = region.x; x <= right + GUTTER; x++) {
+                    if (y >= top && y <= bottom && x == left) {
+                        x = right;          //skip the image itself
+                        continue;
+                    }
+                    image.setRGB(x, y, image.getRGB(Math.min(Math.max(x, left), right), sourceY));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import org.jboss.logging.Logger;
+
+/**
+ * Transcodes the images of textures into formats web clients can load: JPEG, or PNG for images with transparency.
+ * Images in other formats (e.g. TIFF ortho photos) are always transcoded, JPEG and PNG images only if they are to be
+ * downscaled. Images are decoded and encoded by ImageIO on a fixed number of threads, so at most
+ * that many decoded images are held at once; TIFF images, which ImageIO cannot read before Java 9, are decoded by
+ * the TiffReader.
+ * Transcoded images are kept in a cache directory, named by a SHA-1 hash of the content of the original image and
+ * the settings of the transcoding. An image already in the cache, e.g. from an earlier conversion of an overlapping
+ * dataset, is not encoded again. Files are written under a temporary name and renamed when complete, so several
+ * converters may share a cache.
+ * @author Daniel Spieldenner
+ */
+public class TextureTranscoder {
+
+    private static final Logger log = Logger.getLogger(TextureTranscoder.class.getName());
+    private static final String[] WEB_FORMATS = { "jpg", "jpeg", "png" };
+
+    private String texturePath;         //directory holding the textures, which relative image URIs refer to
+    private File cacheDirectory;
+    private String cachePath;           //path of the cache directory as written to the output
+    private int threads;
+    private int maxSize = 0;            //maximum edge length of transcoded images, 0 to keep their size
+    private float quality = 0.85f;      //quality of JPEG images
+
+    /**
+     * Create a new transcoder
+     * @param texturePath Directory holding the textures, which relative image URIs refer to
+     * @param cachePath Directory of the cache, absolute or relative to the texture directory
+     * @param threads Number of threads decoding and encoding images
+     */
+    public TextureTranscoder(String texturePath, String cachePath, int threads) {
+        this.texturePath = texturePath;
+        File cache = new File(cachePath);
+        this.cacheDirectory = cache.isAbsolute() ? cache : new File(texturePath, cachePath);
+        this.cachePath = cachePath.endsWith("/") ? cachePath : cachePath + "/";
+        this.threads = threads;
+    }
+
+    /**
+     * Limit the size of transcoded images; larger images are scaled down, keeping their aspect ratio
+     * @param maxSize Maximum width and height in pixels, 0 to keep the size of all images
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param quality Quality of JPEG images, between 0 and 1
+     */
+    public void setQuality(float quality) {
+        this.quality = quality;
+    }
+
+    /**
+     * Transcode the images of all texture shaders and let the shaders refer to the transcoded images.
+     * Shaders whose image cannot be read keep their texture path.
+     * @param shaderMap Shaders read from the gml file
+     * @return Number of images encoded, not counting those found in the cache
+     */
+    public int transcode(Map<String, xmlShader> shaderMap) throws IOException {
+        //each image is transcoded once, however many shaders use it
+        Map<String, List<xmlShader>> images = new TreeMap<String, List<xmlShader>>();
+        for (xmlShader shader : shaderMap.values()) {
+            if (!shader.getShaderType().equals("Texture") || shader.getSourcePath().isEmpty() || !needsTranscoding(shader.getSourcePath())) {
+                continue;
+            }
+            List<xmlShader> shaders = images.get(shader.getSourcePath());
+            if (shaders == null) {
+                shaders = new ArrayList<xmlShader>();
+                images.put(shader.getSourcePath(), shaders);
+            }
+            shaders.add(shader);
+        }
+        if (images.isEmpty()) {
+            return 0;
+        }
+        if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            throw new IOException("Could not create texture cache " + cacheDirectory);
+        }
+
+        List<TranscodeTask> tasks = new ArrayList<TranscodeTask>();
+        for (String image : images.keySet()) {
+            File file = new File(image);
+            tasks.add(new TranscodeTask(file.isAbsolute() ? file : new File(texturePath, image)));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        int encoded = 0;
+        try {
+            List<Future<String>> results = pool.invokeAll(tasks);
+            Iterator<List<xmlShader>> shaders = images.values().iterator();
+            for (int i = 0; i < results.size(); i++) {
+                String name = results.get(i).get();
+                List<xmlShader> users = shaders.next();
+                if (name == null) {
+                    continue;
+                }
+                for (xmlShader shader : users) {
+                    shader.setTexturePath(cachePath + name);
+                }
+                if (tasks.get(i).encoded) {
+                    encoded++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transcoding textures", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not transcode texture: " + e.getCause(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        log.info("Transcoded " + encoded + " of " + images.size() + " textures, " + (images.size() - encoded) + " taken from cache or unreadable");
+        return encoded;
+    }
+
+    private boolean needsTranscoding(String image) {
+        if (maxSize > 0) {
+            return true;
+        }
+        String extension = image.substring(image.lastIndexOf('.') + 1).toLowerCase(Locale.ENGLISH);
+        for (String format : WEB_FORMATS) {
+            if (format.equals(extension)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compute the name of an image in the cache from its content and the settings of the transcoding,
+     * without extension
+     */
+    String cacheName(File image) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available", e);
+        }
+        InputStream input = new FileInputStream(image);
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        digest.update((maxSize + " " + quality).getBytes("UTF-8"));
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest()) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return name.toString();
+    }
+
+    /**
+     * Scale an image to the given size, halving it step by step first so every pixel of the original contributes
+     */
+    static BufferedImage scale(BufferedImage image, int width, int height) {
+        BufferedImage current = image;
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            current = resize(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        if (current.getWidth() != width || current.getHeight() != height) {
+            current = resize(current, width, height);
+        }
+        return current;
+    }
+
+    private static BufferedImage resize(BufferedImage image, int width, int height) {
+        boolean alpha = image.getColorModel().hasAlpha();
+        BufferedImage resized = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = resized.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return resized;
+    }
+
+    /**
+     * Task transcoding a single image, unless it is found in the cache
+     */
+    private class TranscodeTask implements Callable<String> {
+
+        private File image;
+        private boolean encoded = false;
+
+        TranscodeTask(File image) {
+            this.image = image;
+        }
+
+        /**
+         * @return The name of the transcoded image in the cache, null if the image cannot be read
+         */
+        @Override
+        public String call() throws IOException {
+            if (!image.isFile()) {
+                log.error("Texture " + image + " not found, it is not transcoded");
+                return null;
+            }
+            String name = cacheName(image);
+            for (String extension : new String[] { ".jpg", ".png" }) {
+                if (new File(cacheDirectory, name + extension).isFile()) {
+                    return name + extension;
+                }
+            }
+            BufferedImage decoded = null;
+            try {
+                decoded = TiffReader.read(image);
+            } catch (IOException e) {
+                //e.g. a JPEG compressed TIFF image, which ImageIO may read from Java 9 on
+                log.warn("Could not decode TIFF texture " + image + " (" + e.getMessage() + "), trying ImageIO");
+            }
+            if (decoded == null) {
+                try {
+                    decoded = ImageIO.read(image);
+                } catch (IOException e) {
+                    decoded = null;
+                }
+            }
+            if (decoded == null) {
+                log.error("Could not decode texture " + image + ", it is not transcoded");
+                return null;
+            }
+            boolean alpha = decoded.getColorModel().hasAlpha();
+            String extension = alpha ? ".png" : ".jpg";
+            int width = decoded.getWidth();
+            int height = decoded.getHeight();
+            if (maxSize > 0 && Math.max(width, height) > maxSize) {
+                double factor = (double) maxSize / Math.max(width, height);
+                width = Math.max(1, (int) Math.round(width * factor));
+                height = Math.max(1, (int) Math.round(height * factor));
+            }
+            //JPEG images are written from plain RGB images, whatever the layout of the decoded one
+            BufferedImage level = scale(decoded, width, height);
+            if (level == decoded && !alpha && decoded.getType() != BufferedImage.TYPE_INT_RGB) {
+                level = resize(decoded, width, height);
+            }
+            write(level, name + extension);
+            encoded = true;
+            return name + extension;
+        }
+
+        private void write(BufferedImage image, String name) throws IOException {
+            File target = new File(cacheDirectory, name);
+            File temporary = File.createTempFile(name, ".tmp", cacheDirectory);
+            try {
+                if (name.endsWith(".png")) {
+                    ImageIO.write(image, "png", temporary);
+                } else {
+                    writeJpeg(image, temporary);
+                }
+                if (!temporary.renameTo(target) && !target.isFile()) {
+                    throw new IOException("Could not move transcoded texture to " + target);
+                }
+            } finally {
+                temporary.delete();
+            }
+        }
+
+        private void writeJpeg(BufferedImage image, File file) throws IOException {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            ImageOutputStream output = ImageIO.createImageOutputStream(file);
+            try {
+                ImageWriteParam parameters = writer.getDefaultWriteParam();
+                parameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                parameters.setCompressionQuality(quality);
+                writer.setOutput(output);
+                writer.write(null, new IIOImage(image, null, null), parameters);
+            } finally {
+                writer.dispose();
+                output.close();
+            }
+        }
+    }
+}
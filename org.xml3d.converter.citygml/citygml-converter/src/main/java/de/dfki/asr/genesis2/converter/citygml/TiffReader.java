@@ -0,0 +1,424 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads TIFF images, which ImageIO cannot read before Java 9, from their image file directory. Only the first image
+ * of a file is read. Ortho photos are usually baseline TIFF images with 8 bits per sample, which are decoded: grey,
+ * palette and RGB images, with or without an alpha sample, stored in strips or tiles, chunky or planar, uncompressed
+ * or compressed by LZW, Deflate or PackBits, with or without horizontal differencing. Other images, e.g. JPEG
+ * compressed ones, are rejected with an IOException.
+ * @author Daniel Spieldenner
+ */
+public final class TiffReader {
+
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int COMPRESSION = 259;
+    private static final int PHOTOMETRIC_INTERPRETATION = 262;
+    private static final int STRIP_OFFSETS = 273;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int ROWS_PER_STRIP = 278;
+    private static final int STRIP_BYTE_COUNTS = 279;
+    private static final int PLANAR_CONFIGURATION = 284;
+    private static final int PREDICTOR = 317;
+    private static final int COLOR_MAP = 320;
+    private static final int TILE_WIDTH = 322;
+    private static final int TILE_LENGTH = 323;
+    private static final int TILE_OFFSETS = 324;
+    private static final int TILE_BYTE_COUNTS = 325;
+    private static final int EXTRA_SAMPLES = 338;
+
+    private static final int UNCOMPRESSED = 1;
+    private static final int LZW = 5;
+    private static final int DEFLATE = 8;
+    private static final int PACKBITS = 32773;
+    private static final int ADOBE_DEFLATE = 32946;
+
+    private static final int WHITE_IS_ZERO = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+
+    private static final int LZW_CLEAR = 256;
+    private static final int LZW_END = 257;
+
+    private RandomAccessFile input;
+    private ByteOrder order;
+    private Map<Integer, long[]> tags = new HashMap<Integer, long[]>();
+    private int photometric;
+    private int colors;                     //number of samples giving the color of a pixel
+    private int alpha = -1;                 //index of the alpha sample, -1 if there is none
+    private int[] palette;
+
+    private TiffReader(RandomAccessFile input) {
+        this.input = input;
+    }
+
+    /**
+     * Read width and height of a TIFF image from its first image file directory, without decoding the image
+     * @return Width and height in pixels, null if the file is no TIFF image
+     */
+    public static int[] readSize(File image) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(image, "r");
+        try {
+            TiffReader reader = new TiffReader(input);
+            if (!reader.readDirectory()) {
+                return null;
+            }
+            int width = (int) reader.tag(IMAGE_WIDTH, 0);
+            int height = (int) reader.tag(IMAGE_LENGTH, 0);
+            return width > 0 && height > 0 ? new int[] { width, height } : null;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Decode the first image of a TIFF file
+     * @return The image, as RGB image or, if it has an alpha sample, as ARGB image; null if the file is no TIFF image
+     * @throws IOException if the file cannot be read or the image is stored in a way which is not supported
+     */
+    public static BufferedImage read(File image) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(image, "r");
+        try {
+            TiffReader reader = new TiffReader(input);
+            return reader.readDirectory() ? reader.decode() : null;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Read the header and the values of all tags of the first image file directory with integer values
+     * @return false if the file is no TIFF file
+     */
+    private boolean readDirectory() throws IOException {
+        byte[] header = new byte[8];
+        if (input.length() < header.length) {
+            return false;
+        }
+        input.readFully(header);
+        if (header[0] == 'I' && header[1] == 'I') {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else if (header[0] == 'M' && header[1] == 'M') {
+            order = ByteOrder.BIG_ENDIAN;
+        } else {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header).order(order);
+        if (buffer.getShort(2) != 42) {
+            return false;           //also BigTIFF files, whose version is 43
+        }
+        input.seek(buffer.getInt(4) & 0xFFFFFFFFL);
+        byte[] count = new byte[2];
+        input.readFully(count);
+        byte[] directory = new byte[(ByteBuffer.wrap(count).order(order).getShort() & 0xFFFF) * 12];
+        input.readFully(directory);
+        buffer = ByteBuffer.wrap(directory).order(order);
+        for (int entry = 0; entry < directory.length; entry += 12) {
+            int type = buffer.getShort(entry + 2) & 0xFFFF;
+            long values = buffer.getInt(entry + 4) & 0xFFFFFFFFL;
+            //bytes, shorts and longs; tags of other types are not needed
+            int size = type == 1 || type == 7 ? 1 : type == 3 ? 2 : type == 4 ? 4 : 0;
+            if (size == 0 || values > Integer.MAX_VALUE / size) {
+                continue;
+            }
+            ByteBuffer data = buffer;
+            int offset = entry + 8;
+            if (values * size > 4) {
+                byte[] outside = new byte[(int) values * size];
+                input.seek(buffer.getInt(offset) & 0xFFFFFFFFL);
+                input.readFully(outside);
+                data = ByteBuffer.wrap(outside).order(order);
+                offset = 0;
+            }
+            long[] value = new long[(int) values];
+            for (int v = 0; v < value.length; v++) {
+                int position = offset + v * size;
+                value[v] = size == 1 ? data.get(position) & 0xFF : size == 2 ? data.getShort(position) & 0xFFFF : data.getInt(position) & 0xFFFFFFFFL;
+            }
+            tags.put(buffer.getShort(entry) & 0xFFFF, value);
+        }
+        return true;
+    }
+
+    private long tag(int tag, long defaultValue) {
+        long[] value = tags.get(tag);
+        return value == null || value.length == 0 ? defaultValue : value[0];
+    }
+
+    private BufferedImage decode() throws IOException {
+        int width = (int) tag(IMAGE_WIDTH, 0);
+        int height = (int) tag(IMAGE_LENGTH, 0);
+        int samples = (int) tag(SAMPLES_PER_PIXEL, 1);
+        int compression = (int) tag(COMPRESSION, UNCOMPRESSED);
+        int predictor = (int) tag(PREDICTOR, 1);
+        boolean planar = tag(PLANAR_CONFIGURATION, 1) == 2;
+        photometric = (int) tag(PHOTOMETRIC_INTERPRETATION, -1);
+        colors = photometric == RGB ? 3 : 1;
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IOException("Invalid size of TIFF image: " + width + " x " + height);
+        }
+        long[] bits = tags.get(BITS_PER_SAMPLE);
+        for (int s = 0; s < samples; s++) {
+            if ((bits == null ? 1 : bits[Math.min(s, bits.length - 1)]) != 8) {
+                throw new IOException("Only TIFF images with 8 bits per sample are supported");
+            }
+        }
+        if (photometric < WHITE_IS_ZERO || photometric > PALETTE || samples < colors) {
+            throw new IOException("Unsupported photometric interpretation of TIFF image: " + photometric + " with " + samples + " samples");
+        }
+        if (compression != UNCOMPRESSED && compression != LZW && compression != DEFLATE && compression != ADOBE_DEFLATE && compression != PACKBITS) {
+            throw new IOException("Unsupported compression of TIFF image: " + compression);
+        }
+        if (predictor != 1 && predictor != 2) {
+            throw new IOException("Unsupported predictor of TIFF image: " + predictor);
+        }
+        //the first extra sample is used as alpha if it is marked as associated (1) or unassociated (2) alpha
+        long[] extra = tags.get(EXTRA_SAMPLES);
+        int type = BufferedImage.TYPE_INT_RGB;
+        if (samples > colors && extra != null && extra.length > 0 && (extra[0] == 1 || extra[0] == 2)) {
+            alpha = colors;
+            type = extra[0] == 1 ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_ARGB;
+        }
+        if (photometric == PALETTE) {
+            palette = readPalette();
+        }
+
+        boolean tiled = tags.containsKey(TILE_OFFSETS);
+        long[] offsets = tags.get(tiled ? TILE_OFFSETS : STRIP_OFFSETS);
+        long[] counts = tags.get(tiled ? TILE_BYTE_COUNTS : STRIP_BYTE_COUNTS);
+        int chunkWidth = tiled ? (int) tag(TILE_WIDTH, 0) : width;
+        int chunkHeight = tiled ? (int) tag(TILE_LENGTH, 0) : (int) Math.min(tag(ROWS_PER_STRIP, height), height);
+        if (offsets == null || chunkWidth <= 0 || chunkHeight <= 0) {
+            throw new IOException("TIFF image has no strips or tiles");
+        }
+        int across = (width + chunkWidth - 1) / chunkWidth;
+        int down = (height + chunkHeight - 1) / chunkHeight;
+        int chunkSamples = planar ? 1 : samples;
+        int planes = planar ? samples : 1;
+        if (offsets.length < (long) across * down * planes) {
+            throw new IOException("TIFF image has " + offsets.length + " of " + (long) across * down * planes + " strips or tiles");
+        }
+        int rowLength = chunkWidth * chunkSamples;
+        if ((long) rowLength * chunkHeight > Integer.MAX_VALUE) {
+            throw new IOException("Strips or tiles of TIFF image are too large: " + chunkWidth + " x " + chunkHeight);
+        }
+
+        BufferedImage image = new BufferedImage(width, height, type);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        byte[] data = new byte[rowLength * chunkHeight];
+        for (int plane = 0; plane < planes; plane++) {
+            for (int chunk = 0; chunk < across * down; chunk++) {
+                int index = plane * across * down + chunk;
+                int x0 = chunk % across * chunkWidth;
+                int y0 = chunk / across * chunkHeight;
+                int rows = tiled ? chunkHeight : Math.min(chunkHeight, height - y0);
+                int length = rowLength * rows;
+                //byte counts may be left out of uncompressed images
+                long count = counts != null && index < counts.length ? counts[index] : length;
+                if (count > Integer.MAX_VALUE) {
+                    throw new IOException("Strip or tile " + index + " of TIFF image is too large: " + count + " bytes");
+                }
+                byte[] stored = new byte[(int) count];
+                input.seek(offsets[index]);
+                input.readFully(stored);
+                Arrays.fill(data, 0, length, (byte) 0);
+                decompress(compression, stored, data, length);
+                if (predictor == 2) {
+                    for (int row = 0; row < length; row += rowLength) {
+                        for (int i = row + chunkSamples; i < row + rowLength; i++) {
+                            data[i] += data[i - chunkSamples];
+                        }
+                    }
+                }
+                for (int row = 0; row < rows && y0 + row < height; row++) {
+                    for (int x = 0; x < chunkWidth && x0 + x < width; x++) {
+                        int pixel = (y0 + row) * width + x0 + x;
+                        int sample = row * rowLength + x * chunkSamples;
+                        for (int s = 0; s < chunkSamples; s++) {
+                            store(pixels, pixel, planar ? plane : s, data[sample + s] & 0xFF);
+                        }
+                    }
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Read the color map of a palette image, whose 16 bit red, green and blue values are given one after the other
+     */
+    private int[] readPalette() throws IOException {
+        long[] map = tags.get(COLOR_MAP);
+        if (map == null || map.length < 3 * 256) {
+            throw new IOException("Palette TIFF image has no color map");
+        }
+        int[] rgb = new int[256];
+        for (int c = 0; c < rgb.length; c++) {
+            rgb[c] = (int) (map[c] >> 8) << 16 | (int) (map[256 + c] >> 8) << 8 | (int) (map[512 + c] >> 8);
+        }
+        return rgb;
+    }
+
+    /**
+     * Store a single sample of a pixel in the ARGB value of the pixel
+     */
+    private void store(int[] pixels, int pixel, int sample, int value) {
+        if (sample == alpha) {
+            pixels[pixel] = pixels[pixel] & 0xFFFFFF | value << 24;
+        } else if (sample >= colors) {
+            return;                 //further extra samples are ignored
+        } else if (palette != null) {
+            pixels[pixel] = pixels[pixel] & 0xFF000000 | palette[value];
+        } else if (colors == 1) {
+            int grey = photometric == WHITE_IS_ZERO ? 255 - value : value;
+            pixels[pixel] = pixels[pixel] & 0xFF000000 | grey * 0x010101;
+        } else {
+            int shift = 16 - 8 * sample;
+            pixels[pixel] = pixels[pixel] & ~(0xFF << shift) | value << shift;
+        }
+    }
+
+    /**
+     * Decompress the stored bytes of a strip or tile; data missing from the end of a strip or tile is left 0
+     * @param length Number of bytes of the decompressed strip or tile
+     */
+    private static void decompress(int compression, byte[] stored, byte[] data, int length) throws IOException {
+        switch (compression) {
+            case UNCOMPRESSED:
+                System.arraycopy(stored, 0, data, 0, Math.min(stored.length, length));
+                break;
+            case LZW:
+                decodeLzw(stored, data, length);
+                break;
+            case PACKBITS:
+                unpackBits(stored, data, length);
+                break;
+            default:
+                inflate(stored, data, length);
+                break;
+        }
+    }
+
+    /**
+     * Decode LZW data with codes of 9 to 12 bits, most significant bit first, whose width grows one code early
+     */
+    private static void decodeLzw(byte[] stored, byte[] data, int length) throws IOException {
+        int[] prefix = new int[4096];           //code of the string without its last byte, -1 for single bytes
+        byte[] suffix = new byte[4096];         //last byte of the string of each code
+        byte[] first = new byte[4096];          //first byte of the string of each code
+        int[] size = new int[4096];             //length of the string of each code
+        for (int c = 0; c < 256; c++) {
+            prefix[c] = -1;
+            suffix[c] = (byte) c;
+            first[c] = (byte) c;
+            size[c] = 1;
+        }
+        int bits = 9;
+        int next = 258;
+        int previous = -1;
+        int n = 0;
+        long position = 0;
+        long end = stored.length * 8L;
+        while (n < length && position + bits <= end) {
+            int code = readCode(stored, position, bits);
+            position += bits;
+            if (code == LZW_END) {
+                break;
+            }
+            if (code == LZW_CLEAR) {
+                bits = 9;
+                next = 258;
+                previous = -1;
+                continue;
+            }
+            if (previous < 0) {
+                if (code > 255) {
+                    throw new IOException("Corrupt LZW data in TIFF image");
+                }
+                data[n++] = (byte) code;
+                previous = code;
+                continue;
+            }
+            if (code > next) {
+                throw new IOException("Corrupt LZW data in TIFF image");
+            }
+            //the new string is the previous one followed by the first byte of the current one, which is itself if it is new
+            if (next < 4096) {
+                prefix[next] = previous;
+                suffix[next] = first[code < next ? code : previous];
+                first[next] = first[previous];
+                size[next] = size[previous] + 1;
+                next++;
+            }
+            int p = n + size[code] - 1;
+            for (int c = code; c >= 0; c = prefix[c], p--) {
+                if (p < length) {
+                    data[p] = suffix[c];
+                }
+            }
+            n += size[code];
+            if (next + 1 >= 1 << bits && bits < 12) {
+                bits++;
+            }
+            previous = code;
+        }
+    }
+
+    private static int readCode(byte[] stored, long position, int bits) {
+        int b = (int) (position >> 3);
+        int value = (stored[b] & 0xFF) << 16 | (b + 1 < stored.length ? (stored[b + 1] & 0xFF) << 8 : 0)
+                | (b + 2 < stored.length ? stored[b + 2] & 0xFF : 0);
+        return value >>> (24 - (int) (position & 7) - bits) & ((1 << bits) - 1);
+    }
+
+    private static void unpackBits(byte[] stored, byte[] data, int length) {
+        int i = 0;
+        int n = 0;
+        while (n < length && i < stored.length) {
+            int header = stored[i++];
+            if (header >= 0) {
+                int count = Math.min(header + 1, Math.min(length - n, stored.length - i));
+                System.arraycopy(stored, i, data, n, count);
+                i += header + 1;
+                n += count;
+            } else if (header != -128 && i < stored.length) {
+                int count = Math.min(1 - header, length - n);
+                Arrays.fill(data, n, n + count, stored[i++]);
+                n += count;
+            }
+        }
+    }
+
+    private static void inflate(byte[] stored, byte[] data, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int inflated = inflater.inflate(data, n, length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt Deflate data in TIFF image: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
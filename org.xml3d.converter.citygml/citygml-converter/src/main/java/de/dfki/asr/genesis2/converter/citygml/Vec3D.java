@@ -78,8 +78,8 @@ public class Vec3D {
     
     public String coordString()
     {
-        String resultString = this.getCoordinate("x")+" "+this.getCoordinate("y")+" "+this.getCoordinate("z")+" ";
-        
-        return resultString;
+        NumberFormatter formatter = new NumberFormatter(80);
+        formatter.append(x).append(' ').append(y).append(' ').append(z).append(' ');
+        return formatter.toString();
     }
 }
@@ -0,0 +1,276 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.Arrays;
+
+/**
+ * Adds vertices to a GeometryBuffer, reusing an existing vertex if one with the same position has been added before.
+ * Positions are looked up in an open addressing hash table of vertex indices (linear probing), so no key objects
+ * are created per vertex. By default, positions are compared exactly; -0.0 and 0.0 are considered equal.
+ * With a tolerance, positions are quantized to cells of twice the tolerance, and a vertex is reused if it differs by
+ * at most the tolerance in each coordinate. Such a vertex lies in one of the 2 x 2 x 2 cells nearest to the position,
+ * so only these cells are looked up.
+ * If a crease angle is set, a vertex is only reused if the normal of the new triangle deviates from the normal
+ * accumulated at the vertex by at most that angle, which keeps hard edges (e.g. between walls and roof) sharp.
+ * @author Daniel Spieldenner
+ */
+public class VertexWelder {
+
+    private static final int EMPTY = -1;
+
+    private GeometryBuffer target;
+    private int[] table;
+    private int mask;
+    private int size = 0;
+    private double epsilon;                 //maximum difference of welded coordinates, 0 to weld equal positions only
+    private double cellSize;                //edge length of the cells positions are quantized to
+    private double minCos = -2.0;           //cosine of the crease angle; below -1, normals are not compared
+    private double[] normalSums;            //area weighted sum of the triangle normals of each vertex, null without crease angle
+
+    /**
+     * Create a new welder adding vertices to the given buffer, reusing vertices with equal positions
+     * @param target The buffer receiving the vertices
+     * @param expectedVertices Number of distinct vertices expected, used to size the hash table
+     */
+    public VertexWelder(GeometryBuffer target, int expectedVertices) {
+        this(target, expectedVertices, 0.0);
+    }
+
+    /**
+     * Create a new welder adding vertices to the given buffer, reusing vertices within the given tolerance
+     * @param target The buffer receiving the vertices
+     * @param expectedVertices Number of distinct vertices expected, used to size the hash table
+     * @param epsilon Maximum difference of each coordinate of welded vertices; 0 to weld equal positions only
+     */
+    public VertexWelder(GeometryBuffer target, int expectedVertices, double epsilon) {
+        if (!(epsilon >= 0)) {
+            throw new IllegalArgumentException("Tolerance of vertex welding must not be negative: " + epsilon);
+        }
+        this.target = target;
+        this.epsilon = epsilon;
+        this.cellSize = 2 * epsilon;
+        int capacity = Integer.highestOneBit(Math.max(16, expectedVertices * 2 - 1)) << 1;
+        table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Only reuse vertices whose normal deviates by at most the given angle from the normal of a new triangle.
+     * Has to be set before vertices are added.
+     * @param degrees The crease angle in degrees
+     */
+    public void setCreaseAngle(double degrees) {
+        minCos = Math.cos(Math.toRadians(degrees));
+        normalSums = new double[Math.max(target.getVertexCount(), 16) * 3];
+    }
+
+    /**
+     * Get the index of the vertex at the given position, adding a new vertex to the buffer if there is none yet
+     * @return Index of the vertex in the buffer
+     */
+    public int add(double x, double y, double z) {
+        return add(x, y, z, 0.0, 0.0, 0.0);
+    }
+
+    /**
+     * Get the index of a vertex at the given position whose normal is within the crease angle of the given normal,
+     * adding a new vertex to the buffer if there is none yet. The given normal is added to the normal of the vertex.
+     * Without a crease angle, the normal is ignored.
+     * @param nx x of the normal of the triangle using the vertex; its length weighs the normal
+     * @param ny y of the normal of the triangle using the vertex
+     * @param nz z of the normal of the triangle using the vertex
+     * @return Index of the vertex in the buffer
+     */
+    public int add(double x, double y, double z, double nx, double ny, double nz) {
+        //adding 0.0 turns -0.0 into 0.0, so both hash and compare equal
+        x += 0.0;
+        y += 0.0;
+        z += 0.0;
+        int vertex;
+        if (epsilon == 0) {
+            vertex = find(hash(Double.doubleToLongBits(x), Double.doubleToLongBits(y), Double.doubleToLongBits(z)), x, y, z, nx, ny, nz);
+        } else {
+            vertex = findNearby(x, y, z, nx, ny, nz);
+        }
+        if (vertex == EMPTY) {
+            vertex = target.addVertex(x, y, z);
+            insert(vertex);
+        }
+        if (normalSums != null) {
+            if (normalSums.length < (vertex + 1) * 3) {
+                normalSums = Arrays.copyOf(normalSums, normalSums.length * 2);
+            }
+            normalSums[vertex * 3] += nx;
+            normalSums[vertex * 3 + 1] += ny;
+            normalSums[vertex * 3 + 2] += nz;
+        }
+        return vertex;
+    }
+
+    /**
+     * Add all triangles of the given geometry, welding their corners. Triangles whose corners are welded together
+     * are dropped.
+     * @param geometry The triangles to be added
+     * @return Number of triangles added
+     */
+    public int addTriangles(GeometryBuffer geometry) {
+        int[] indices = geometry.getIndices();
+        int added = 0;
+        for (int i = 0; i < geometry.getIndexCount(); i += 3) {
+            int a = indices[i];
+            int b = indices[i + 1];
+            int c = indices[i + 2];
+            //normal in the orientation of XmlPoly.computeNormals(), its length is twice the area of the triangle
+            double x1 = geometry.getX(a) - geometry.getX(c);
+            double y1 = geometry.getY(a) - geometry.getY(c);
+            double z1 = geometry.getZ(a) - geometry.getZ(c);
+            double x2 = geometry.getX(a) - geometry.getX(b);
+            double y2 = geometry.getY(a) - geometry.getY(b);
+            double z2 = geometry.getZ(a) - geometry.getZ(b);
+            double nx = y1 * z2 - z1 * y2;
+            double ny = z1 * x2 - x1 * z2;
+            double nz = x1 * y2 - y1 * x2;
+            if (nx == 0 && ny == 0 && nz == 0) {
+                continue;
+            }
+            int first = add(geometry.getX(a), geometry.getY(a), geometry.getZ(a), nx, ny, nz);
+            int second = add(geometry.getX(b), geometry.getY(b), geometry.getZ(b), nx, ny, nz);
+            int third = add(geometry.getX(c), geometry.getY(c), geometry.getZ(c), nx, ny, nz);
+            if (first != second && second != third && third != first) {
+                target.addTriangle(first, second, third);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Set the normals of the target buffer: with a crease angle, to the accumulated normal of each vertex,
+     * otherwise to the average of the normals of the adjacent triangles
+     */
+    public void computeNormals() {
+        if (normalSums == null) {
+            target.computeVertexNormals();
+            return;
+        }
+        for (int v = 0; v < target.getVertexCount(); v++) {
+            double nx = normalSums[v * 3];
+            double ny = normalSums[v * 3 + 1];
+            double nz = normalSums[v * 3 + 2];
+            double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length != 0) {
+                target.setNormal(v, (float) (nx / length), (float) (ny / length), (float) (nz / length));
+            }
+        }
+    }
+
+    /**
+     * @return Number of distinct vertices added through this welder
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Look up a vertex within the tolerance in the cells nearest to the position: per axis, the cell containing
+     * the position and its neighbour on the side the position is closer to
+     */
+    private int findNearby(double x, double y, double z, double nx, double ny, double nz) {
+        double fx = x / cellSize;
+        double fy = y / cellSize;
+        double fz = z / cellSize;
+        long cx = (long) Math.floor(fx);
+        long cy = (long) Math.floor(fy);
+        long cz = (long) Math.floor(fz);
+        long dx = fx - cx < 0.5 ? -1 : 1;
+        long dy = fy - cy < 0.5 ? -1 : 1;
+        long dz = fz - cz < 0.5 ? -1 : 1;
+        for (int neighbour = 0; neighbour < 8; neighbour++) {
+            int vertex = find(hash(cx + (neighbour & 1) * dx, cy + (neighbour >> 1 & 1) * dy, cz + (neighbour >> 2) * dz), x, y, z, nx, ny, nz);
+            if (vertex != EMPTY) {
+                return vertex;
+            }
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Probe the table from the slot of the given hash until a matching vertex or an empty slot is found
+     */
+    private int find(int hash, double x, double y, double z, double nx, double ny, double nz) {
+        int slot = hash & mask;
+        while (table[slot] != EMPTY) {
+            int vertex = table[slot];
+            if (Math.abs(target.getX(vertex) - x) <= epsilon && Math.abs(target.getY(vertex) - y) <= epsilon
+                    && Math.abs(target.getZ(vertex) - z) <= epsilon && withinCrease(vertex, nx, ny, nz)) {
+                return vertex;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    private boolean withinCrease(int vertex, double nx, double ny, double nz) {
+        if (normalSums == null) {
+            return true;
+        }
+        double sx = normalSums[vertex * 3];
+        double sy = normalSums[vertex * 3 + 1];
+        double sz = normalSums[vertex * 3 + 2];
+        double dot = sx * nx + sy * ny + sz * nz;
+        return dot >= minCos * Math.sqrt((sx * sx + sy * sy + sz * sz) * (nx * nx + ny * ny + nz * nz));
+    }
+
+    private void insert(int vertex) {
+        int slot = hashOf(vertex) & mask;
+        while (table[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = vertex;
+        size++;
+        if (size * 2 > table.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        int[] old = table;
+        table = new int[old.length * 2];
+        Arrays.fill(table, EMPTY);
+        mask = table.length - 1;
+        for (int vertex : old) {
+            if (vertex == EMPTY) {
+                continue;
+            }
+            int slot = hashOf(vertex) & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = vertex;
+        }
+    }
+
+    /**
+     * @return The hash of the position of a vertex in the target, or of its cell if a tolerance is used
+     */
+    private int hashOf(int vertex) {
+        double x = target.getX(vertex);
+        double y = target.getY(vertex);
+        double z = target.getZ(vertex);
+        if (epsilon == 0) {
+            return hash(Double.doubleToLongBits(x), Double.doubleToLongBits(y), Double.doubleToLongBits(z));
+        }
+        return hash((long) Math.floor(x / cellSize), (long) Math.floor(y / cellSize), (long) Math.floor(z / cellSize));
+    }
+
+    private static int hash(long x, long y, long z) {
+        long h = x;
+        h = h * 31 + y;
+        h = h * 31 + z;
+        //spread the bits, as coordinates often differ in the low bits of the mantissa only
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return (int) h;
+    }
+}
@@ -0,0 +1,221 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.jboss.logging.Logger;
+
+/**
+ * Georeference of a ground texture, read from the world file next to it (e.g. ortho.tfw for ortho.tif).
+ * The six lines of a world file define the affine transform from pixel column and row to world x and y:
+ * x = a * column + b * row + c, y = d * column + e * row + f, given in the order a, d, b, e, c, f.
+ * The size of the image in pixels is read from the header of the image, without decoding it.
+ * Each world file is parsed only once; the parsed georeferences are immutable and cached by the path
+ * of their texture, so they may be shared by all threads writing ground objects.
+ * @author Daniel Spieldenner
+ */
+public final class WorldFile {
+
+    private static final Logger log = Logger.getLogger(WorldFile.class.getName());
+    private static final ConcurrentMap<String, WorldFile> cache = new ConcurrentHashMap<String, WorldFile>();
+    private static final WorldFile MISSING = new WorldFile(new double[6], 0, 0);    //cached for textures without world file
+
+    private final double a;
+    private final double b;
+    private final double c;
+    private final double d;
+    private final double e;
+    private final double f;
+    private final double determinant;
+    private final double width;             //size of the image in pixels
+    private final double height;
+
+    private WorldFile(double[] lines, double width, double height) {
+        this.a = lines[0];
+        this.d = lines[1];
+        this.b = lines[2];
+        this.e = lines[3];
+        this.c = lines[4];
+        this.f = lines[5];
+        this.determinant = a * e - b * d;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Get the georeference of a texture, reading it on the first request
+     * @param texturePath Directory holding the texture and its world file
+     * @param textureFile File name of the texture, relative to the directory
+     * @param resX Width of the texture in pixels, used if it cannot be read from the image
+     * @param resY Height of the texture in pixels, used if it cannot be read from the image
+     * @return The georeference, null if there is no readable world file or the size of the image is unknown
+     */
+    public static WorldFile forTexture(String texturePath, String textureFile, float resX, float resY) {
+        if (textureFile == null || textureFile.isEmpty()) {
+            return null;
+        }
+        File image = new File(texturePath, textureFile);
+        String key = image.getPath();
+        WorldFile georeference = cache.get(key);
+        if (georeference == null) {
+            georeference = read(image, resX, resY);
+            WorldFile cached = cache.putIfAbsent(key, georeference);
+            if (cached != null) {
+                georeference = cached;
+            }
+        }
+        return georeference == MISSING ? null : georeference;
+    }
+
+    /**
+     * Set the texture coordinates of all vertices of the geometry. v runs upwards from the bottom of the image.
+     * @param geometry The geometry whose vertices are to be mapped onto the texture
+     */
+    public void setTexCoords(GeometryBuffer geometry) {
+        double[] positions = geometry.getPositions();
+        int count = geometry.getVertexCount();
+        if (b == 0 && d == 0) {
+            //images facing north, the usual case, need no rotation
+            double scaleX = a * width;
+            double scaleY = e * height;
+            for (int v = 0; v < count; v++) {
+                geometry.setTexCoord(v, (float) ((positions[v * 3] - c) / scaleX), (float) (1 - (positions[v * 3 + 1] - f) / scaleY));
+            }
+            return;
+        }
+        for (int v = 0; v < count; v++) {
+            double x = positions[v * 3] - c;
+            double y = positions[v * 3 + 1] - f;
+            double column = (e * x - b * y) / determinant;
+            double row = (a * y - d * x) / determinant;
+            geometry.setTexCoord(v, (float) (column / width), (float) (1 - row / height));
+        }
+    }
+
+    /**
+     * Remove all cached georeferences, e.g. after textures have been replaced
+     */
+    public static void clearCache() {
+        cache.clear();
+    }
+
+    private static WorldFile read(File image, float resX, float resY) {
+        File worldFile = findWorldFile(image);
+        if (worldFile == null) {
+            log.error("No world file found for texture " + image);
+            return MISSING;
+        }
+        double[] lines = new double[6];
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(worldFile));
+            try {
+                for (int i = 0; i < lines.length; i++) {
+                    String line = reader.readLine();
+                    if (line == null) {
+                        throw new IOException("World file has less than " + lines.length + " lines");
+                    }
+                    lines[i] = Double.parseDouble(line.trim());
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (Exception ex) {
+            log.error("Error reading geo references from file " + worldFile + ": " + ex);
+            return MISSING;
+        }
+        if (lines[0] * lines[3] - lines[2] * lines[1] == 0) {
+            log.error("World file " + worldFile + " does not define an invertible transform");
+            return MISSING;
+        }
+
+        int[] size = readImageSize(image);
+        if (size != null) {
+            return new WorldFile(lines, size[0], size[1]);
+        }
+        if (resX > 0 && resY > 0) {
+            log.warn("Could not read the size of texture " + image + ", using " + resX + " x " + resY + " pixels");
+            return new WorldFile(lines, resX, resY);
+        }
+        log.error("Could not read the size of texture " + image + ", no texture coordinates are computed");
+        return MISSING;
+    }
+
+    /**
+     * Find the world file of an image, named after the image with the first and last letter of its extension
+     * followed by 'w' (jgw for jpg), its extension followed by 'w' (jpgw) or the extension wld. As ground textures
+     * are referenced as jpg images converted from the original tif images, the tfw file of the original is used last.
+     */
+    private static File findWorldFile(File image) {
+        String name = image.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot + 2 > name.length()) {
+            return null;
+        }
+        String base = name.substring(0, dot + 1);
+        String extension = name.substring(dot + 1);
+        String[] candidates = { base + extension.charAt(0) + extension.charAt(extension.length() - 1) + "w", base + extension + "w", base + "wld",
+                base + "tfw" };
+        for (String candidate : candidates) {
+            File file = new File(image.getParentFile(), candidate);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read width and height of an image from its header, by an ImageIO reader or, for TIFF images which
+     * ImageIO cannot read before Java 9, by the TiffReader
+     * @return Width and height in pixels, null if the image cannot be read
+     */
+    static int[] readImageSize(File image) {
+        if (!image.isFile()) {
+            return null;
+        }
+        try {
+            int[] size = readImageIOSize(image);
+            return size != null ? size : TiffReader.readSize(image);
+        } catch (IOException ex) {
+            log.error("Error reading the header of texture " + image + ": " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Read width and height of an image from its header by an ImageIO reader, without decoding the image
+     * @return Width and height in pixels, null if ImageIO cannot read the image
+     */
+    static int[] readImageIOSize(File image) {
+        try {
+            ImageInputStream input = ImageIO.createImageInputStream(image);
+            if (input == null) {
+                return null;
+            }
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    return new int[] { reader.getWidth(0), reader.getHeight(0) };
+                } finally {
+                    reader.dispose();
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException ex) {
+            return null;            //e.g. a TIFF image with tags the reader does not support
+        }
+    }
+}
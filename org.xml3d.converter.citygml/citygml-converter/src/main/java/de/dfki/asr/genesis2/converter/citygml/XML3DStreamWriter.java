@@ -0,0 +1,383 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Writes the xml3D document directly to a file while it is produced, using an XMLStreamWriter.
+ * Meshes and shaders are written to defs sections, which are opened as needed; groups and views are written
+ * in between. Numbers are formatted by a NumberFormatter and written in chunks straight from the geometry,
+ * so neither the document nor the string of a whole mesh is ever held in memory. Indentation is optional,
+ * as is a maximum number of decimals.
+ * If binary buffers are set, the values of meshes are written to sidecar files instead, as 32 bit floats or
+ * integers, and each value element only references its blob by file, byte offset, byte length and component type, e.g.
+ * &lt;float3 name="position" src="city_0.bin" byteOffset="0" byteLength="108" componentType="float32"/&gt;.
+ * These attributes are an extension of this converter: xml3d.js does not load them by itself, a client needs a
+ * loader fetching each byte range into a typed array of the component type.
+ * If an origin is set, positions are written relative to it as 32 bit floats, which keeps them short and
+ * gives clients, which render with 32 bit floats anyway, the full precision near the origin. Each top level group
+ * then references a transform moving it back by the origin. Binary positions of georeferenced coordinates should
+ * always be written relative to an origin, as 32 bit floats do not hold them to the centimeter.
+ * @author Daniel Spieldenner
+ */
+public class XML3DStreamWriter implements SceneWriter {
+
+    private static final String XHTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
+    private static final String XML3D_NAMESPACE = "http://www.xml3d.org/2009/xml3d";
+    private static final String PHONG_SHADER = "urn:xml3d:shader:phong";
+    private static final int BUFFER_SIZE = 1 << 16;         //size of the output buffer in bytes
+    private static final int CHUNK_SIZE = 8192;             //number of characters of values handed to the XMLStreamWriter at once
+    private static final String ORIGIN_TRANSFORM = "rtc_origin";    //id of the transform to the origin
+    private static final double[] NO_ORIGIN = {0, 0, 0};
+
+    private File file;
+    private OutputStream out;
+    private XMLStreamWriter xml;
+    private boolean indent;
+    private int depth = 0;                                  //depth of the current element, used for indentation
+    private boolean inDefs = false;                         //true while a defs section is open
+    private NumberFormatter values = new NumberFormatter(CHUNK_SIZE + 64);
+    private BinaryBufferWriter buffers;                     //null to write values as text
+    private double[] origin;                                //origin of relative positions, null to write them as they are
+    private boolean originWritten = false;                  //true once the transform to the origin has been written
+    private float[] binaryPositions;                        //positions of a mesh as 32 bit floats, for binary output
+
+    /**
+     * Create a new writer and write the start of the document
+     * @param fileName Path to the output file
+     * @param indent true to indent the elements of the document
+     */
+    public XML3DStreamWriter(String fileName, boolean indent) throws IOException {
+        this.file = new File(fileName);
+        this.indent = indent;
+        this.out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        try {
+            xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            xml.writeStartDocument("UTF-8", "1.0");
+            startElement("html");
+            xml.writeDefaultNamespace(XHTML_NAMESPACE);
+            startElement("xml3d");
+            xml.writeDefaultNamespace(XML3D_NAMESPACE);
+        } catch (XMLStreamException e) {
+            out.close();
+            throw new IOException("Could not start writing " + fileName, e);
+        }
+    }
+
+    /**
+     * Set the maximum number of decimals of positions and normals
+     * @param maxDecimals Number of decimals; NumberFormatter.UNLIMITED to write each value exactly
+     */
+    public void setMaxDecimals(int maxDecimals) {
+        values.setMaxDecimals(maxDecimals);
+    }
+
+    /**
+     * Write the values of meshes to sidecar files instead of the document
+     * @param buffers Writer of the sidecar files, closed by finish(); null to write values as text
+     */
+    public void setBinaryBuffers(BinaryBufferWriter buffers) {
+        this.buffers = buffers;
+    }
+
+    /**
+     * Write positions relative to the given origin, as 32 bit floats. Has to be set before anything is written.
+     * @param origin x, y and z of the origin, best given in whole units so it is written exactly; null to write
+     * positions as they are
+     */
+    public void setOrigin(double[] origin) {
+        this.origin = origin;
+    }
+
+    @Override
+    public void writeMesh(String id, GeometryBuffer geometry) throws IOException {
+        try {
+            openDefs();
+            startElement("data");
+            xml.writeAttribute("id", id);
+            if (buffers != null) {
+                writeBinaryMesh(geometry);
+                endElement();
+                return;
+            }
+            startValues("int", "index");
+            int[] indices = geometry.getIndices();
+            for (int i = 0; i < geometry.getIndexCount(); i++) {
+                values.append(indices[i]).append(' ');
+                flushValues(false);
+            }
+            endValues();
+            startValues("float3", "position");
+            double[] positions = geometry.getPositions();
+            if (origin != null) {
+                for (int i = 0; i < geometry.getVertexCount() * 3; i += 3) {
+                    values.append((float) (positions[i] - origin[0])).append(' ');
+                    values.append((float) (positions[i + 1] - origin[1])).append(' ');
+                    values.append((float) (positions[i + 2] - origin[2])).append(' ');
+                    flushValues(false);
+                }
+            } else {
+                for (int i = 0; i < geometry.getVertexCount() * 3; i++) {
+                    values.append(positions[i]).append(' ');
+                    flushValues(false);
+                }
+            }
+            endValues();
+            startValues("float3", "normal");
+            float[] normals = geometry.getNormals();
+            for (int i = 0; i < geometry.getVertexCount() * 3; i++) {
+                values.append(normals[i]).append(' ');
+                flushValues(false);
+            }
+            endValues();
+            float[] texCoords = geometry.getTexCoords();
+            if (texCoords != null) {
+                startValues("float2", "texcoord");
+                for (int i = 0; i < geometry.getVertexCount() * 2; i++) {
+                    values.append(texCoords[i]).append(' ');
+                    flushValues(false);
+                }
+                endValues();
+            }
+            endElement();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not write mesh " + id, e);
+        }
+    }
+
+    /**
+     * Write the values of a mesh to the binary buffers and reference them
+     */
+    private void writeBinaryMesh(GeometryBuffer geometry) throws IOException, XMLStreamException {
+        writeBlob("int", "index", buffers.write(geometry.getIndices(), geometry.getIndexCount()), "int32");
+        int count = geometry.getVertexCount() * 3;
+        if (binaryPositions == null || binaryPositions.length < count) {
+            binaryPositions = new float[Math.max(count, 3 * 1024)];
+        }
+        double[] positions = geometry.getPositions();
+        double[] offset = origin != null ? origin : NO_ORIGIN;
+        for (int i = 0; i < count; i += 3) {
+            binaryPositions[i] = (float) (positions[i] - offset[0]);
+            binaryPositions[i + 1] = (float) (positions[i + 1] - offset[1]);
+            binaryPositions[i + 2] = (float) (positions[i + 2] - offset[2]);
+        }
+        writeBlob("float3", "position", buffers.write(binaryPositions, count), "float32");
+        writeBlob("float3", "normal", buffers.write(geometry.getNormals(), geometry.getVertexCount() * 3), "float32");
+        if (geometry.getTexCoords() != null) {
+            writeBlob("float2", "texcoord", buffers.write(geometry.getTexCoords(), geometry.getVertexCount() * 2), "float32");
+        }
+    }
+
+    private void writeBlob(String type, String name, BinaryBufferWriter.Range range, String componentType) throws XMLStreamException {
+        newLine();
+        xml.writeEmptyElement(type);
+        xml.writeAttribute("name", name);
+        xml.writeAttribute("src", range.getFile());
+        xml.writeAttribute("byteOffset", Long.toString(range.getOffset()));
+        xml.writeAttribute("byteLength", Long.toString(range.getLength()));
+        xml.writeAttribute("componentType", componentType);
+    }
+
+    @Override
+    public void writeGroup(SceneGroup group) throws IOException {
+        try {
+            if (origin != null && !originWritten) {
+                openDefs();
+            }
+            closeDefs();
+            writeNode(group, origin != null);
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not write group " + group.getId(), e);
+        }
+    }
+
+    @Override
+    public void writeShader(xmlShader shader) throws IOException {
+        try {
+            openDefs();
+            startElement("shader");
+            xml.writeAttribute("id", shader.getID());
+            xml.writeAttribute("script", PHONG_SHADER);
+            if (shader.getShaderType().equals("Material")) {
+                float[] color = shader.getDiffuseColor();
+                writeValue("float3", "diffuseColor", color[0] + " " + color[1] + " " + color[2]);
+            } else if (shader.getShaderType().equals("Texture")) {
+                writeValue("float3", "diffuseColor", "1.0 1.0 1.0");
+                writeValue("float", "ambientIntensity", Float.toString(TEXTURE_AMBIENT_INTENSITY));
+                startElement("texture");
+                xml.writeAttribute("name", "diffuseTexture");
+                newLine();
+                xml.writeEmptyElement("img");
+                xml.writeAttribute("src", shader.getTexturePath());
+                endElement();
+            }
+            endElement();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not write shader " + shader.getID(), e);
+        }
+    }
+
+    @Override
+    public void writeView(String id, String position, String orientation) throws IOException {
+        try {
+            closeDefs();
+            newLine();
+            xml.writeEmptyElement("view");
+            xml.writeAttribute("id", id);
+            xml.writeAttribute("position", position);
+            xml.writeAttribute("orientation", orientation);
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not write view " + id, e);
+        }
+    }
+
+    @Override
+    public StreamResult finish() throws IOException {
+        try {
+            closeDefs();
+            endElement();       //xml3d
+            endElement();       //html
+            xml.writeEndDocument();
+            newLine();
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not finish writing " + file, e);
+        } finally {
+            out.close();
+            if (buffers != null) {
+                buffers.close();
+            }
+        }
+        return new StreamResult(file);
+    }
+
+    /**
+     * Write a node of the scene graph and all of its children
+     * @param moved true to move the node by the transform to the origin
+     */
+    private void writeNode(SceneGroup node, boolean moved) throws XMLStreamException {
+        boolean empty = node.getChildren().isEmpty() && node.getTextContent() == null;
+        newLine();
+        if (empty) {
+            xml.writeEmptyElement(node.getKind());
+        } else {
+            xml.writeStartElement(node.getKind());
+        }
+        if (node.getId() != null) {
+            xml.writeAttribute("id", node.getId());
+        }
+        if (moved) {
+            xml.writeAttribute("transform", "#" + ORIGIN_TRANSFORM);
+        }
+        for (Map.Entry<String, String> attribute : node.getAttributes().entrySet()) {
+            if (attribute.getKey().equals("xmlns")) {
+                xml.writeDefaultNamespace(attribute.getValue());
+            } else {
+                xml.writeAttribute(attribute.getKey(), attribute.getValue());
+            }
+        }
+        if (empty) {
+            return;
+        }
+        if (node.getTextContent() != null) {
+            xml.writeCharacters(node.getTextContent());
+        }
+        depth++;
+        for (SceneGroup child : node.getChildren()) {
+            writeNode(child, false);
+        }
+        depth--;
+        if (!node.getChildren().isEmpty()) {
+            newLine();
+        }
+        xml.writeEndElement();
+    }
+
+    private void openDefs() throws XMLStreamException {
+        if (!inDefs) {
+            startElement("defs");
+            inDefs = true;
+        }
+        if (origin != null && !originWritten) {
+            newLine();
+            xml.writeEmptyElement("transform");
+            xml.writeAttribute("id", ORIGIN_TRANSFORM);
+            xml.writeAttribute("translation", new NumberFormatter().append(origin[0]).append(' ').append(origin[1]).append(' ')
+                    .append(origin[2]).toString());
+            originWritten = true;
+        }
+    }
+
+    private void closeDefs() throws XMLStreamException {
+        if (inDefs) {
+            endElement();
+            inDefs = false;
+        }
+    }
+
+    private void startElement(String name) throws XMLStreamException {
+        newLine();
+        xml.writeStartElement(name);
+        depth++;
+    }
+
+    private void endElement() throws XMLStreamException {
+        depth--;
+        newLine();
+        xml.writeEndElement();
+    }
+
+    /**
+     * Write an element holding a single value, e.g. &lt;float name="ambientIntensity"&gt;0.4&lt;/float&gt;
+     */
+    private void writeValue(String type, String name, String value) throws XMLStreamException {
+        startValues(type, name);
+        xml.writeCharacters(value);
+        endValues();
+    }
+
+    /**
+     * Start an element holding a list of values; the values are collected in the values buffer
+     */
+    private void startValues(String type, String name) throws XMLStreamException {
+        newLine();
+        xml.writeStartElement(type);
+        xml.writeAttribute("name", name);
+    }
+
+    private void endValues() throws XMLStreamException {
+        flushValues(true);
+        xml.writeEndElement();
+    }
+
+    /**
+     * Hand the collected values to the XMLStreamWriter once a chunk is complete
+     * @param force true to hand over the values regardless of their length
+     */
+    private void flushValues(boolean force) throws XMLStreamException {
+        int length = values.length();
+        if (length == 0 || (!force && length < CHUNK_SIZE)) {
+            return;
+        }
+        xml.writeCharacters(values.getBuffer(), 0, length);
+        values.reset();
+    }
+
+    private void newLine() throws XMLStreamException {
+        if (!indent) {
+            return;
+        }
+        xml.writeCharacters("\n");
+        for (int i = 0; i < depth; i++) {
+            xml.writeCharacters("  ");
+        }
+    }
+}
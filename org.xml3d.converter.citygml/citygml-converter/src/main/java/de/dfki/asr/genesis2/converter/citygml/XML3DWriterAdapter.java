@@ -0,0 +1,158 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import de.dfki.asr.genesis2.converter.xmlWriter.XML3DGroup;
+import de.dfki.asr.genesis2.converter.xmlWriter.XML3DMesh;
+import de.dfki.asr.genesis2.converter.xmlWriter.XML3DShader;
+import de.dfki.asr.genesis2.converter.xmlWriter.XML3DWriter;
+import java.util.Map;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Hands the output of the xmlProcessor to an XML3DWriter. The XML3DWriter keeps the whole document in memory
+ * until startWriting() is called on finish(); it is used when the converted document is needed as StreamResult
+ * instead of a file.
+ * @author Daniel Spieldenner
+ */
+public class XML3DWriterAdapter implements SceneWriter {
+
+    private XML3DWriter writer;
+    private NumberFormatter formatter = new NumberFormatter();
+
+    /**
+     * Create a new adapter
+     * @param writer The XML3DWriter receiving the output
+     */
+    public XML3DWriterAdapter(XML3DWriter writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public void writeMesh(String id, GeometryBuffer geometry) {
+        XML3DMesh newMesh = new XML3DMesh(id);
+        newMesh.setPositions(positionString(geometry, formatter));
+        newMesh.setNormals(normalString(geometry, formatter));
+        if (geometry.getTexCoords() != null) {
+            newMesh.setTexCoords(texCoordString(geometry, formatter));
+        }
+        newMesh.setIndex(indexString(geometry, formatter));
+        writer.appendMesh(newMesh);
+    }
+
+    @Override
+    public void writeGroup(SceneGroup group) {
+        writer.appendGroup(convert(group, null));
+    }
+
+    @Override
+    public void writeShader(xmlShader shader) {
+        XML3DShader newShader = new XML3DShader(shader.getID());
+        if (shader.getShaderType().equals("Material")) {
+            newShader.setDiffuseColor(shader.getDiffuseColor()[0], shader.getDiffuseColor()[1], shader.getDiffuseColor()[2]);
+        } else if (shader.getShaderType().equals("Texture")) {
+            newShader.useAsTexture(true);
+            newShader.setTexturePath(shader.getTexturePath());
+            newShader.setAmbientIntensity(TEXTURE_AMBIENT_INTENSITY);
+            newShader.setDiffuseColor(1.0f, 1.0f, 1.0f);
+        }
+        writer.appendShader(newShader);
+    }
+
+    @Override
+    public void writeView(String id, String position, String orientation) {
+        writer.addCamera(id, position, orientation);
+    }
+
+    @Override
+    public StreamResult finish() {
+        return writer.startWriting();
+    }
+
+    /**
+     * Create the XML3DGroup of a node and all of its children
+     * @param node The node to be converted
+     * @param parent The converted parent of the node, null for the root
+     */
+    private static XML3DGroup convert(SceneGroup node, XML3DGroup parent) {
+        XML3DGroup group;
+        if (parent == null) {
+            group = node.getId() != null ? new XML3DGroup(node.getId()) : new XML3DGroup();
+        } else {
+            group = node.getId() != null ? new XML3DGroup(node.getId(), parent) : new XML3DGroup(parent);
+        }
+        for (Map.Entry<String, String> attribute : node.getAttributes().entrySet()) {
+            group.addAttribute(attribute.getKey(), attribute.getValue());
+        }
+        if (node.getKind().equals(SceneGroup.MESH)) {
+            group.makeMesh();
+        } else if (node.getKind().equals(SceneGroup.DIV)) {
+            group.makeDiv();
+        }
+        if (node.getTextContent() != null) {
+            group.addTextContent(node.getTextContent());
+        }
+        for (SceneGroup child : node.getChildren()) {
+            convert(child, group);
+        }
+        return group;
+    }
+
+    /**
+     * Create the string of positions for a mesh
+     * @param geometry The geometry to be written
+     * @param formatter Formatter used to build the string
+     * @return x, y and z of each vertex, separated by whitespace
+     */
+    private static String positionString(GeometryBuffer geometry, NumberFormatter formatter) {
+        double[] positions = geometry.getPositions();
+        formatter.reset();
+        for (int i = 0; i < geometry.getVertexCount() * 3; i++) {
+            formatter.append(positions[i]).append(' ');
+        }
+        return formatter.toString();
+    }
+
+    /**
+     * Create the string of triangle indices for a mesh
+     * @param geometry The geometry to be written
+     * @param formatter Formatter used to build the string
+     * @return The indices of each triangle, separated by whitespace
+     */
+    private static String indexString(GeometryBuffer geometry, NumberFormatter formatter) {
+        int[] indices = geometry.getIndices();
+        formatter.reset();
+        for (int i = 0; i < geometry.getIndexCount(); i++) {
+            formatter.append(indices[i]).append(' ');
+        }
+        return formatter.toString();
+    }
+
+    /**
+     * Create the string of texture coordinates for a mesh
+     * @param geometry The geometry to be written, which has texture coordinates
+     * @param formatter Formatter used to build the string
+     * @return u and v of each vertex, separated by whitespace
+     */
+    private static String texCoordString(GeometryBuffer geometry, NumberFormatter formatter) {
+        float[] texCoords = geometry.getTexCoords();
+        formatter.reset();
+        for (int i = 0; i < geometry.getVertexCount() * 2; i++) {
+            formatter.append(texCoords[i]).append(' ');
+        }
+        return formatter.toString();
+    }
+
+    /**
+     * Create the string of normals for a mesh
+     * @param geometry The geometry to be written
+     * @param formatter Formatter used to build the string
+     * @return x, y and z of each normal, separated by whitespace
+     */
+    private static String normalString(GeometryBuffer geometry, NumberFormatter formatter) {
+        float[] normals = geometry.getNormals();
+        formatter.reset();
+        for (int i = 0; i < geometry.getVertexCount() * 3; i++) {
+            formatter.append(normals[i]).append(' ');
+        }
+        return formatter.toString();
+    }
+}
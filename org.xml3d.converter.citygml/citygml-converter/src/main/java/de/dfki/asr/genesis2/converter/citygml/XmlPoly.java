@@ -1,91 +1,118 @@
-
 package de.dfki.asr.genesis2.converter.citygml;
-import java.util.ArrayList;
+
+import java.util.Arrays;
 
 /**
  * XmlPolygon
- * Defines a polygon for an xml3d object, containing a list of positions,
- * the indices defining the triangulation, normals and id
+ * Defines a polygon for an xml3d object, containing its positions,
+ * the indices defining the triangulation, normals and id.
+ * The geometry is stored packed in a GeometryBuffer.
  * @author Daniel
  */
 public class XmlPoly {
     private String id;
-    private ArrayList<Vec3D> positions = new ArrayList<Vec3D>();
-    private ArrayList<Vec3D> normals = new ArrayList<Vec3D>();
-    private String textureCoordinateString = new String();
-    private int index[];
-    private String indexString = new String();
+    private int handle = IdRegistry.NO_HANDLE;        //handle of the polygon in the IdRegistry
+    private GeometryBuffer geometry = new GeometryBuffer();
+    private int[] ringStarts = SINGLE_RING;          //index of the first vertex of the exterior ring and each interior ring
+    
+    private static final int[] SINGLE_RING = { 0 };
     
     public void setId(String id)
     {
         this.id = id;
     }
     
-    public void setPositions(ArrayList<Vec3D> positions)
+    public void setHandle(int handle)
+    {
+        this.handle = handle;
+    }
+    
+    public int getHandle()
     {
-        positions.remove(positions.size()-1);   //throw away last element os position vector, as this appears twice in the gml file
-        this.positions = positions;
-        
+        return this.handle;
     }
     
     /**
-     * Compute normal at each vertex of the polygon. Compute normals of first and
-     * last point seperately to avoid problems with array boundaries
+     * Set the positions of the polygon. A closed ring, as written in gml files, repeats its first vertex at the end;
+     * this copy is dropped. The rings of a polygon with holes follow each other; the vertex closing a ring marks
+     * the start of the next one. Rings that are not closed are kept as they are.
+     * @param coordinates Array holding x, y and z of each vertex
+     * @param vertexCount Number of vertices to be read from the array
      */
-    public void computeNormals()
+    public void setPositions(double[] coordinates, int vertexCount)
     {
-        
-        //initialize list of normals to have the same size as positions
-        for(int s=0; s<positions.size();s++)
-        {
-            normals.add(new Vec3D(0.0, 0.0, 0.0));      
-        }
-        
-        //first point
+        geometry = new GeometryBuffer(vertexCount, 3 * Math.max(vertexCount - 2, 0));
+        ringStarts = SINGLE_RING;
+        int ringStart = 0;          //offset of the first vertex of the current ring
+        for(int offset=0; offset<vertexCount*3; offset+=3)
         {
-            Vec3D centerPoint = positions.get(0);                    //center point in which the normal is computed
-            Vec3D prePoint = positions.get(positions.size()-1);        //predecessor
-            Vec3D sucPoint = positions.get(1);        //successor
-
-            Vec3D vector1 = Vec3D.dist(centerPoint, prePoint);
-            Vec3D vector2 = Vec3D.dist(centerPoint, sucPoint);
-
-            normals.set(0, Vec3D.normal(vector1, vector2));
+            if(offset == ringStart && offset > 0)
+            {
+                ringStarts = Arrays.copyOf(ringStarts, ringStarts.length + 1);
+                ringStarts[ringStarts.length - 1] = geometry.getVertexCount();
+            }
+            if(offset > ringStart && coordinates[offset] == coordinates[ringStart]
+                    && coordinates[offset + 1] == coordinates[ringStart + 1] && coordinates[offset + 2] == coordinates[ringStart + 2])
+            {
+                ringStart = offset + 3;         //the ring is closed, the next vertex starts a new one
+                continue;
+            }
+            geometry.addVertex(coordinates[offset], coordinates[offset + 1], coordinates[offset + 2]);
         }
-        //inner points
-        for(int i=1; i<(positions.size()-1); i++)
+    }
+    
+    /**
+     * Set the texture coordinates of the polygon, once its positions are set. The coordinates of each ring are
+     * given in the order of its vertices, like the positions; a pair closing the ring, or any pair beyond the
+     * vertices of the ring, is ignored. Vertices of rings without coordinates get zero coordinates.
+     * @param rings u and v of each vertex, one array per ring, the exterior ring first
+     */
+    public void setTexCoords(float[][] rings)
+    {
+        int vertexCount = geometry.getVertexCount();
+        for(int r=0; r<ringStarts.length; r++)
         {
-            Vec3D centerPoint = positions.get(i);       //center point in which the normal is computed
-            Vec3D prePoint = positions.get(i-1);        //predecessor
-            Vec3D sucPoint = positions.get(i+1);        //successor
-            
-            Vec3D vector1 = Vec3D.dist(centerPoint, prePoint);
-            Vec3D vector2 = Vec3D.dist(centerPoint, sucPoint);
-            
-            normals.set(i, Vec3D.normal(vector1, vector2));
+            int end = r + 1 < ringStarts.length ? ringStarts[r + 1] : vertexCount;
+            float[] ring = r < rings.length ? rings[r] : null;
+            for(int v=ringStarts[r]; v<end; v++)
+            {
+                int offset = (v - ringStarts[r]) * 2;
+                if(ring != null && offset + 1 < ring.length)
+                {
+                    geometry.setTexCoord(v, ring[offset], ring[offset + 1]);
+                }
+                else
+                {
+                    geometry.setTexCoord(v, 0.0f, 0.0f);
+                }
+            }
         }
-        
-        //last Point
-        {
-            Vec3D centerPoint = positions.get(positions.size()-1);                   //center point in which the normal is computed
-            Vec3D prePoint = positions.get(positions.size()-2);       //predecessor
-            Vec3D sucPoint = positions.get(0);                      //successor
-
-            Vec3D vector1 = Vec3D.dist(centerPoint, prePoint);
-            Vec3D vector2 = Vec3D.dist(centerPoint, sucPoint);
+    }
 
-            normals.set(normals.size()-1, Vec3D.normal(vector1, vector2));
-        }
+    /**
+     * @return Index of the first vertex of each ring: the exterior ring, followed by the interior rings
+     */
+    public int[] getRingStarts()
+    {
+        return this.ringStarts;
     }
     
-    public ArrayList<Vec3D> getPositions()
+    /**
+     * Compute the normal of the polygon by Newell's method and set it at each vertex. Unlike normals computed
+     * from the edges at each vertex, this is neither flipped at reflex vertices nor zero at collinear ones,
+     * and it averages out small deviations of non-planar polygons. Only the exterior ring is used.
+     */
+    public void computeNormals()
     {
-        return this.positions;
+        geometry.setFaceNormal(0, ringStarts.length > 1 ? ringStarts[1] : geometry.getVertexCount());
     }
     
-    public ArrayList<Vec3D> getNormals()
+    /**
+     * @return The packed geometry of this polygon
+     */
+    public GeometryBuffer getGeometry()
     {
-        return this.normals;
+        return this.geometry;
     }
     
     public String getID()
@@ -93,18 +120,36 @@ public class XmlPoly {
         return this.id;
     }
     
-    public void simpleTriangulation()
+    /**
+     * Compute normals and triangulation of the polygon once its positions are set.
+     * Only the polygon's own geometry is touched, so different polygons can be processed in parallel.
+     */
+    public void computeGeometry()
     {
-        int posLength = this.positions.size();
-        this.indexString = "0 1 2 ";
-        for(int i=1; i<posLength-2; i++)
-        {
-            this.indexString += "0 " + (i+1) + " " +(i+2) +" ";
-        }
+        computeNormals();
+        triangulate();
+    }
+    
+    /**
+     * Triangulate the polygon, including its interior rings, by a PolygonTriangulator.
+     * Triangles computed before are replaced.
+     */
+    public void triangulate()
+    {
+        PolygonTriangulator.triangulate(geometry, ringStarts);
     }
     
+    /**
+     * @return The triangle indices as a whitespace separated string
+     */
     public String getIndexString()
     {
-        return this.indexString;
+        int[] indices = geometry.getIndices();
+        StringBuilder indexString = new StringBuilder(geometry.getIndexCount() * 3);
+        for(int i=0; i<geometry.getIndexCount(); i++)
+        {
+            indexString.append(indices[i]).append(' ');
+        }
+        return indexString.toString();
     }
 }
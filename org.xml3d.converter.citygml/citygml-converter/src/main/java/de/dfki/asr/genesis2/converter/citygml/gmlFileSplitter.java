@@ -0,0 +1,393 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts a gml file into byte ranges that can be parsed independently of each other. The file is memory mapped
+ * (in several regions, as a single mapping is limited to 2 GB) and scanned for the start tags of
+ * core:cityObjectMember and app:appearanceMember elements, which are the only places a range may start.
+ * Each range is scanned from its own start, which lies outside of any markup, so tags within comments,
+ * CDATA sections and processing instructions are skipped.
+ * Every range is read as a document of its own: the prologue of the file up to and including the start tag of the
+ * city model (with the xml declaration and all namespace declarations) is put in front of it, the end tag of the
+ * city model is appended.
+ * Files which do not use an ASCII compatible encoding (e.g. UTF-16) are not split, they are read as a single range.
+ * @author Daniel Spieldenner
+ */
+public class gmlFileSplitter {
+
+    private static final long REGION_SIZE = 1L << 30;          //size of a single mapped region
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long size;
+    private long regionSize;
+    private MappedByteBuffer[] regions;
+
+    //document structure
+    private boolean splittable = false;
+    private byte[] prologue = new byte[0];                      //everything up to the end of the root's start tag
+    private byte[] epilogue = new byte[0];                      //end tag of the root element
+    private long contentStart = 0;                              //first byte after the root's start tag
+    private long contentEnd;                                    //first byte of the root's end tag
+
+    /**
+     * Open the given gml file and find its root element
+     * @param filename The gml file to be split
+     * @throws IOException
+     */
+    gmlFileSplitter(String filename) throws IOException {
+        this(filename, REGION_SIZE);
+    }
+
+    /**
+     * Open the given gml file, mapping it in regions of the given size
+     * @param filename The gml file to be split
+     * @param regionSize Size of a single mapped region
+     * @throws IOException
+     */
+    gmlFileSplitter(String filename, long regionSize) throws IOException {
+        this.file = new RandomAccessFile(filename, "r");
+        this.channel = file.getChannel();
+        this.size = channel.size();
+        this.regionSize = regionSize;
+        this.contentEnd = size;
+
+        regions = new MappedByteBuffer[(int) ((size + regionSize - 1) / regionSize)];
+        for (int r = 0; r < regions.length; r++) {
+            long start = r * regionSize;
+            regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, size - start));
+        }
+        findRoot();
+    }
+
+    /**
+     * @return true if the file can be cut into several ranges
+     */
+    public boolean isSplittable() {
+        return splittable;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Cut the file into ranges of about the given size. Each range starts at a member of the city model,
+     * except for the first one, which also contains everything in front of the first member (e.g. the
+     * bounding box of the city model).
+     * @param targetSize Size a range should have at least
+     * @return Start and end offset of each range, in file order
+     */
+    public List<long[]> split(long targetSize) {
+        List<long[]> ranges = new ArrayList<long[]>();
+        if (!splittable) {
+            ranges.add(new long[]{0, size});
+            return ranges;
+        }
+        long start = contentStart;
+        while (start < contentEnd) {
+            long end = start + Math.max(targetSize, 1) < contentEnd ? findMember(start, start + Math.max(targetSize, 1)) : contentEnd;
+            ranges.add(new long[]{start, end});
+            start = end;
+        }
+        return ranges;
+    }
+
+    /**
+     * Open a range as a document of its own
+     * @param range Start and end offset of the range, as returned by split()
+     * @return Input stream reading the prologue, the range and the end tag of the root element
+     */
+    public InputStream openRange(long[] range) {
+        InputStream content = new FileRangeInputStream(channel, range[0], range[1]);
+        if (!splittable) {
+            return content;
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(prologue),
+                new SequenceInputStream(content, new ByteArrayInputStream(epilogue)));
+    }
+
+    /**
+     * Close the file. Streams opened by openRange() can no longer be read afterwards.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        regions = null;
+        channel.close();
+        file.close();
+    }
+
+    private byte byteAt(long position) {
+        return regions[(int) (position / regionSize)].get((int) (position % regionSize));
+    }
+
+    /**
+     * Find the start tag of the root element, skipping the xml declaration, comments and a document type declaration,
+     * and the end tag of the root element at the end of the file.
+     */
+    private void findRoot() {
+        if (size < 2) {
+            return;
+        }
+        //two byte encodings can not be scanned for ascii characters
+        int first = byteAt(0) & 0xff;
+        int second = byteAt(1) & 0xff;
+        if ((first == 0xfe && second == 0xff) || (first == 0xff && second == 0xfe) || first == 0 || second == 0) {
+            return;
+        }
+
+        long position = 0;
+        while (true) {
+            position = indexOf((byte) '<', position, size);
+            if (position < 0 || position + 1 >= size) {
+                return;
+            }
+            byte next = byteAt(position + 1);
+            if (next == '?') {
+                position = endOf("?>", position);
+            } else if (next == '!' && startsWith("<!--", position)) {
+                position = endOf("-->", position);
+            } else if (next == '!') {
+                position = endOfDeclaration(position);
+            } else {
+                break;
+            }
+            if (position < 0) {
+                return;
+            }
+        }
+
+        //start tag of the root element: find its name and its end, skipping quoted attribute values
+        long nameStart = position + 1;
+        long nameEnd = nameStart;
+        while (nameEnd < size && !isNameDelimiter(byteAt(nameEnd))) {
+            nameEnd++;
+        }
+        long tagEnd = nameEnd;
+        byte quote = 0;
+        while (tagEnd < size) {
+            byte b = byteAt(tagEnd);
+            if (quote != 0) {
+                quote = b == quote ? 0 : quote;
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                break;
+            }
+            tagEnd++;
+        }
+        if (tagEnd >= size || byteAt(tagEnd - 1) == '/') {
+            return;                                 //no end of the start tag or an empty city model
+        }
+        contentStart = tagEnd + 1;
+
+        //the last end tag of the file closes the root element
+        long end = size - 2;
+        while (end > contentStart && !(byteAt(end) == '<' && byteAt(end + 1) == '/')) {
+            end--;
+        }
+        if (end <= contentStart) {
+            return;
+        }
+        contentEnd = end;
+
+        prologue = read(0, contentStart);
+        byte[] name = read(nameStart, nameEnd);
+        epilogue = new byte[name.length + 3];
+        epilogue[0] = '<';
+        epilogue[1] = '/';
+        System.arraycopy(name, 0, epilogue, 2, name.length);
+        epilogue[epilogue.length - 1] = '>';
+        splittable = true;
+    }
+
+    /**
+     * Find the start tag of the next member of the city model at or after the given position, skipping comments,
+     * CDATA sections and processing instructions
+     * @param from Position outside of any markup to scan from, e.g. the start of the range before
+     * @param position First position the member may start at
+     * @return Position of the start tag, or the end of the root element's content if there is none
+     */
+    private long findMember(long from, long position) {
+        long next = indexOf((byte) '<', from, contentEnd);
+        while (next >= 0 && next < contentEnd) {
+            if (startsWith("<!--", next)) {
+                next = endOf("-->", next + 4);
+            } else if (startsWith("<![CDATA[", next)) {
+                next = endOf("]]>", next + 9);
+            } else if (startsWith("<?", next)) {
+                next = endOf("?>", next + 2);
+            } else if (next >= position && isMemberStart(next)) {
+                return next;
+            } else {
+                next++;
+            }
+            if (next < 0) {
+                break;
+            }
+            next = indexOf((byte) '<', next, contentEnd);
+        }
+        return contentEnd;
+    }
+
+    /**
+     * @return true if a start tag of a core:cityObjectMember or app:appearanceMember (with any prefix) begins at the given position
+     */
+    private boolean isMemberStart(long position) {
+        if (byteAt(position) != '<') {
+            return false;
+        }
+        long nameStart = position + 1;
+        long localStart = nameStart;
+        long nameEnd = nameStart;
+        while (nameEnd < contentEnd && nameEnd - nameStart < 64 && !isNameDelimiter(byteAt(nameEnd))) {
+            if (byteAt(nameEnd) == ':') {
+                localStart = nameEnd + 1;
+            }
+            nameEnd++;
+        }
+        if (nameEnd >= contentEnd || !isNameDelimiter(byteAt(nameEnd))) {
+            return false;
+        }
+        String localName = new String(read(localStart, nameEnd), ASCII);
+        return localName.equals("cityObjectMember") || localName.equals("appearanceMember");
+    }
+
+    private static boolean isNameDelimiter(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '>' || b == '/';
+    }
+
+    private long indexOf(byte b, long from, long to) {
+        for (long position = from; position < to; position++) {
+            if (byteAt(position) == b) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(String text, long position) {
+        if (position + text.length() > size) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (byteAt(position + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Position after the next occurrence of the given text, -1 if there is none
+     */
+    private long endOf(String text, long position) {
+        for (; position < size; position++) {
+            if (startsWith(text, position)) {
+                return position + text.length();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Position after a declaration such as <!DOCTYPE ...>, which may contain an internal subset in brackets
+     */
+    private long endOfDeclaration(long position) {
+        int brackets = 0;
+        for (; position < size; position++) {
+            byte b = byteAt(position);
+            if (b == '[') {
+                brackets++;
+            } else if (b == ']') {
+                brackets--;
+            } else if (b == '>' && brackets == 0) {
+                return position + 1;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] read(long start, long end) {
+        byte[] bytes = new byte[(int) (end - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = byteAt(start + i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Input stream reading a range of a file channel. Uses positional reads, so several streams
+     * can read from the same channel at the same time.
+     */
+    private static class FileRangeInputStream extends InputStream {
+
+        private FileChannel channel;
+        private long position;
+        private long end;
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+        FileRangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+            buffer.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        /**
+         * Make sure the buffer holds unread bytes
+         * @return false at the end of the range
+         */
+        private boolean fill() throws IOException {
+            while (!buffer.hasRemaining()) {
+                if (position >= end) {
+                    return false;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int count = channel.read(buffer, position);
+                if (count < 0) {
+                    position = end;
+                    buffer.limit(0);
+                    return false;
+                }
+                position += count;
+                buffer.flip();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.w3c.dom.Element;
+
+/**
+ * Parses a gml file on several threads. The file is cut into byte ranges by a gmlFileSplitter and each range
+ * is read by a gmlStreamParser of its own. The city objects found in a range are recorded and handed to the
+ * CityObjectHandler on the calling thread in the order of the file, so the handler sees exactly the same sequence
+ * of objects as with a single gmlStreamParser and needs not be thread safe.
+ * Only a few ranges more than there are threads are read ahead of the range being handed over; the next range is
+ * started once the oldest one has been handed over, so no more than these ranges are held in memory at once.
+ * @author Daniel Spieldenner
+ */
+public class gmlParallelParser {
+
+    private static final long MIN_RANGE_SIZE = 1L << 20;       //ranges smaller than this are not worth a task of their own
+    private static final int RANGES_PER_THREAD = 4;             //more ranges than threads even out differences in object size
+    static final int RANGES_AHEAD = 2;                          //ranges read ahead besides one per thread, while the oldest is handed over
+
+    private String filename;
+    private int threads;
+    private String lowerCorner = new String();
+    private String upperCorner = new String();
+    private int maxPending = 0;                                 //largest number of ranges read or being read but not handed over
+
+    /**
+     * Constructor. Initialize a new gmlParallelParser reading the given gml file
+     * @param filename The gml file to be used
+     * @param threads Number of threads used for parsing
+     */
+    gmlParallelParser(String filename, int threads) {
+        this.filename = filename;
+        this.threads = threads;
+    }
+
+    /**
+     * Read the gml file and hand every city object found to the given handler
+     * @param handler The handler receiving buildings, ground objects and appearances
+     * @throws Exception
+     */
+    public void parse(CityObjectHandler handler) throws Exception {
+        parse(handler, new IdRegistry());
+    }
+
+    /**
+     * Read the gml file, hand every city object found to the given handler and intern the ids of their
+     * geometries in the given registry. The registry is filled by all parsing threads at once.
+     * @param handler The handler receiving buildings, ground objects and appearances
+     * @param registry The registry receiving the ids of all geometries
+     * @throws Exception
+     */
+    public void parse(CityObjectHandler handler, IdRegistry registry) throws Exception {
+        gmlFileSplitter splitter = new gmlFileSplitter(filename);
+        try {
+            long rangeSize = Math.max(MIN_RANGE_SIZE, splitter.getSize() / (threads * RANGES_PER_THREAD));
+            parse(splitter, splitter.split(rangeSize), handler, registry);
+        } finally {
+            splitter.close();
+        }
+    }
+
+    /**
+     * Read the given ranges of a file in parallel and replay the city objects found in file order
+     */
+    void parse(final gmlFileSplitter splitter, List<long[]> ranges, CityObjectHandler handler, final IdRegistry registry) throws Exception {
+        int workers = Math.max(1, Math.min(threads, ranges.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            Deque<Future<RangeResult>> pending = new ArrayDeque<Future<RangeResult>>();
+            int next = 0;
+            while (next < ranges.size() || !pending.isEmpty()) {
+                while (next < ranges.size() && pending.size() < workers + RANGES_AHEAD) {
+                    final long[] range = ranges.get(next++);
+                    pending.add(executor.submit(new Callable<RangeResult>() {
+                        public RangeResult call() throws Exception {
+                            RangeResult result = new RangeResult();
+                            gmlStreamParser parser = new gmlStreamParser(splitter.openRange(range));
+                            parser.parse(result, registry);
+                            result.lowerCorner = parser.getSceneBoundary("lower");
+                            result.upperCorner = parser.getSceneBoundary("upper");
+                            return result;
+                        }
+                    }));
+                    maxPending = Math.max(maxPending, pending.size());
+                }
+                RangeResult result;
+                try {
+                    result = pending.poll().get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+                result.replay(handler);
+                //the bounding box of the city model is a direct child of the root, so only one range can contain it
+                if (!result.lowerCorner.isEmpty()) {
+                    lowerCorner = result.lowerCorner;
+                }
+                if (!result.upperCorner.isEmpty()) {
+                    upperCorner = result.upperCorner;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return Largest number of ranges read or being read but not yet handed over during the last parse
+     */
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * Get one boundary corner of the current scene. Only available once the file has been parsed.
+     * @param Either "lower" or "upper"
+     * @return minimum or maximum corner, depending on input argument
+     */
+    public String getSceneBoundary(String position) {
+        if (position.equals("upper")) {
+            return upperCorner;
+        }
+        if (position.equals("lower")) {
+            return lowerCorner;
+        }
+        return "ERROR: No corner of boundary box specified";
+    }
+
+    /**
+     * City objects found in a single range, in the order they were read
+     */
+    private static class RangeResult implements CityObjectHandler {
+
+        private List<Object> objects = new ArrayList<Object>();      //buildings, ground objects and appearance elements
+        private List<Semantics> semantics = new ArrayList<Semantics>();     //semantics of each building, null for other objects
+        private String lowerCorner;
+        private String upperCorner;
+
+        public void building(Building building, Semantics buildingSemantics) {
+            objects.add(building);
+            semantics.add(buildingSemantics);
+        }
+
+        public void ground(Ground ground) {
+            objects.add(ground);
+            semantics.add(null);
+        }
+
+        public void appearance(Element appearance) {
+            //appearances are read into a fragment of their own by the gmlStreamParser, so they stay valid
+            objects.add(appearance);
+            semantics.add(null);
+        }
+
+        void replay(CityObjectHandler handler) {
+            for (int i = 0; i < objects.size(); i++) {
+                Object object = objects.get(i);
+                if (object instanceof Building) {
+                    handler.building((Building) object, semantics.get(i));
+                } else if (object instanceof Ground) {
+                    handler.ground((Ground) object);
+                } else {
+                    handler.appearance((Element) object);
+                }
+            }
+            objects = null;
+            semantics = null;
+        }
+    }
+}
@@ -16,9 +16,10 @@ import org.jboss.logging.*;
  */
 public class gmlParser {
 
-    static private Document gmlTree;                   //gmlTree from provided gml-file
+    private Document gmlTree;                   //gmlTree from provided gml-file
     private Node root;                          //rootNode of the Tree
     private Map<String, String> namespaces;     //list of namespace prefixes with their URIs
+    private gmlTreeVisitor visitor;             //visitor used by parseCityModel, provides the scene boundary afterwards
 
     /**
      * Constructor. Initialize a new gmlParser object to process the given gml file
@@ -65,6 +66,9 @@ public class gmlParser {
      * @return minimum or maximum corner, depending on input argument
      */
     public String getSceneBoundary(String position) {
+        if (visitor != null) {
+            return visitor.getSceneBoundary(position);
+        }
         String upperString = new String();
         String lowerString = new String();
         NodeList boundingBox = gmlTree.getElementsByTagName("gml:boundedBy");
@@ -100,6 +104,25 @@ public class gmlParser {
 
     }
 
+    /**
+     * Read buildings, land use objects, relief features, appearances and the scene boundary in a single pass
+     * over the gml tree and hand every object found to the given handler.
+     * @param handler The handler receiving the city objects
+     */
+    public void parseCityModel(CityObjectHandler handler) {
+        parseCityModel(handler, new IdRegistry());
+    }
+
+    /**
+     * Read all city objects in a single pass over the gml tree, interning the ids of their geometries in the given registry.
+     * @param handler The handler receiving the city objects
+     * @param registry The registry receiving the ids of all geometries
+     */
+    public void parseCityModel(CityObjectHandler handler, IdRegistry registry) {
+        visitor = new gmlTreeVisitor(handler, registry);
+        visitor.visit(root);
+    }
+
     /**
      * Parse the buildings in the current gmlFile and store all found buildings in the provided list.
      * While parsing the building, also check for semantic information and store all information found in the
@@ -125,19 +148,21 @@ public class gmlParser {
     }
 
     /**
-     * Read the appearance tags in the gml file and create a texture or material shader depending on the exact gml definition.
+     * Read the appearance tags in the gml file and create a texture or material shader depending on the exact gml definition,
+     * one shared shader for all appearances with the same parameters.
      * Store the target polygons of the given shaders to be able to assign them correctly afterwards.
      * @param shaderMap List of shaders defined in the gml file.
-     * @param polygonMap List of gml polygons used as targets for the shaders.
+     * @param registry Registry the targets of the shaders are bound in.
      */
-    public void parseShader(Map shaderMap, Map polygonMap) {
+    public void parseShader(Map<String, xmlShader> shaderMap, IdRegistry registry) {
 
         NodeList shaders = gmlTree.getElementsByTagName("app:Appearance");
+        ShaderInterner interner = new ShaderInterner(shaderMap);
         for (int i = 0; i < shaders.getLength(); i++) {
             ShaderFactory shader = new ShaderFactory((Element) shaders.item(i));
             //xmlShader shader = new xmlShader((Element)shaders.item(i));
-            shader.getMaterial(shaderMap, polygonMap);
-            shader.getTextures(shaderMap, polygonMap);
+            shader.getMaterial(interner, registry);
+            shader.getTextures(interner, registry);
         }
 
         //generate standard shaders to be used by buildings with no shader information
@@ -196,7 +221,7 @@ public class gmlParser {
      * extracted from the gml file.
      * @param buildingNode Root node for finding semantic information
      */
-    public void parseSemantics(Element buildingNode, Map semanticMap) {
+    public static void parseSemantics(Element buildingNode, Map semanticMap) {
         Semantics newSemantic = new Semantics();
         String buildingId = buildingNode.getAttribute("gml:id"); //corresponding building as key for the map
 
@@ -311,7 +336,7 @@ public class gmlParser {
      * @param semantic
      * @param semanticNode 
      */
-    private String semanticAddInformation(NodeList semanticNode) {
+    private static String semanticAddInformation(NodeList semanticNode) {
         String semanticString = new String();
         for (int nl = 0; nl < semanticNode.getLength(); nl++) {
             Element currentNode = (Element) semanticNode.item(nl);
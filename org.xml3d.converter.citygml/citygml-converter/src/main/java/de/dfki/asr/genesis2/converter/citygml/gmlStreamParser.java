@@ -0,0 +1,217 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import org.w3c.dom.*;
+
+/**
+ * Streaming counterpart of the gmlParser. Instead of building a DOM for the whole gml file,
+ * the file is read with a StAX reader and only the subtree of a single core:cityObjectMember
+ * (or app:appearanceMember) is turned into a small DOM fragment. As soon as the member is closed,
+ * the fragment is visited by a gmlTreeVisitor, which hands the buildings, ground objects and appearances
+ * found therein to a CityObjectHandler, and the fragment is dropped again, so the memory needed for parsing is bounded by the largest
+ * city object and not by the size of the file.
+ * @author Daniel Spieldenner
+ */
+public class gmlStreamParser {
+
+    private InputStream input;
+    private DocumentBuilder builder;
+    private String lowerCorner = new String();
+    private String upperCorner = new String();
+
+    /**
+     * Constructor. Initialize a new gmlStreamParser reading the given gml file
+     * @param filename The gml file to be used
+     * @throws Exception
+     */
+    gmlStreamParser(String filename) throws Exception {
+        this(new FileInputStream(filename));
+    }
+
+    /**
+     * Constructor for a new gmlStreamParser using a InputStream as source for the gml data to be parsed
+     * @param is Input stream to be used
+     * @throws Exception
+     */
+    gmlStreamParser(InputStream is) throws Exception {
+        this.input = is;
+        this.builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    }
+
+    /**
+     * Read the gml file from start to end and hand every city object found to the given handler.
+     * The input stream is closed afterwards.
+     * @param handler The handler receiving buildings, ground objects and appearances
+     * @throws Exception
+     */
+    public void parse(CityObjectHandler handler) throws Exception {
+        parse(handler, new IdRegistry());
+    }
+
+    /**
+     * Read the gml file from start to end, hand every city object found to the given handler and intern
+     * the ids of their geometries in the given registry. The input stream is closed afterwards.
+     * @param handler The handler receiving buildings, ground objects and appearances
+     * @param registry The registry receiving the ids of all geometries
+     * @throws Exception
+     */
+    public void parse(CityObjectHandler handler, IdRegistry registry) throws Exception {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        XMLStreamReader reader = factory.createXMLStreamReader(input);
+        gmlTreeVisitor visitor = new gmlTreeVisitor(handler, registry);
+        try {
+            int depth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                } else if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (depth != 2) {
+                        continue;
+                    }
+                    //direct children of the city model: members are read as a fragment, everything else is skipped
+                    String localName = reader.getLocalName();
+                    if (localName.equals("cityObjectMember") || localName.equals("appearanceMember")) {
+                        visitor.visit(readFragment(reader));
+                        depth--;
+                    } else if (localName.equals("boundedBy")) {
+                        readBoundary(readFragment(reader));
+                        depth--;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+            input.close();
+        }
+    }
+
+    /**
+     * Read only the appearances and the bounding box of the gml file and hand every app:Appearance found to the
+     * given handler, including those inside city objects; all other elements are skipped without building a fragment.
+     * The input stream is closed afterwards.
+     * @param handler The handler receiving the appearances
+     * @throws Exception
+     */
+    public void parseAppearances(CityObjectHandler handler) throws Exception {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        XMLStreamReader reader = factory.createXMLStreamReader(input);
+        try {
+            int depth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                } else if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String localName = reader.getLocalName();
+                    if (localName.equals("Appearance")) {
+                        handler.appearance(readFragment(reader));
+                        depth--;
+                    } else if (depth == 2 && localName.equals("boundedBy")) {
+                        readBoundary(readFragment(reader));
+                        depth--;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+            input.close();
+        }
+    }
+
+    /**
+     * Get one boundary corner of the current scene. Only available once the file has been parsed.
+     * @param Either "lower" or "upper"
+     * @return minimum or maximum corner, depending on input argument
+     */
+    public String getSceneBoundary(String position) {
+        if (position.equals("upper")) {
+            return upperCorner;
+        }
+        if (position.equals("lower")) {
+            return lowerCorner;
+        }
+        return "ERROR: No corner of boundary box specified";
+    }
+
+    /**
+     * Store the corners of the scene's bounding box from a gml:boundedBy fragment
+     * @param boundedBy The gml:boundedBy node
+     */
+    private void readBoundary(Element boundedBy) {
+        NodeList lowerCornerList = boundedBy.getElementsByTagName("gml:lowerCorner");
+        NodeList upperCornerList = boundedBy.getElementsByTagName("gml:upperCorner");
+        if (lowerCornerList.getLength() > 0) {
+            lowerCorner = lowerCornerList.item(0).getTextContent();
+        }
+        if (upperCornerList.getLength() > 0) {
+            upperCorner = upperCornerList.item(0).getTextContent();
+        }
+    }
+
+    /**
+     * Read the element the reader is currently positioned on, including all of its children,
+     * into a new DOM fragment. Element and attribute names are stored with their prefixes, just like
+     * the DOM used by the gmlParser, so the gmlTreeVisitor can be applied to the fragment.
+     * Afterwards, the reader is positioned on the end tag of the element.
+     * @param reader Reader positioned on a start element
+     * @return The root element of the fragment
+     * @throws Exception
+     */
+    private Element readFragment(XMLStreamReader reader) throws Exception {
+        Document fragment = builder.newDocument();
+        Element root = createElement(fragment, reader);
+        fragment.appendChild(root);
+        Node current = root;
+        while (current != null) {
+            int event = reader.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    Element child = createElement(fragment, reader);
+                    current.appendChild(child);
+                    current = child;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    current = (current == root) ? null : current.getParentNode();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (!reader.isWhiteSpace()) {
+                        current.appendChild(fragment.createTextNode(reader.getText()));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Create a DOM element for the start element the reader is positioned on
+     */
+    private static Element createElement(Document fragment, XMLStreamReader reader) {
+        Element element = fragment.createElement(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+        for (int a = 0; a < reader.getAttributeCount(); a++) {
+            element.setAttribute(qualifiedName(reader.getAttributePrefix(a), reader.getAttributeLocalName(a)), reader.getAttributeValue(a));
+        }
+        return element;
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        if (prefix == null || prefix.isEmpty()) {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+}
@@ -0,0 +1,394 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import org.w3c.dom.*;
+
+/**
+ * Walks a gml tree exactly once and sends every element to the handler responsible for it:
+ * buildings, land use objects and relief features are assembled from their polygons and triangles,
+ * semantic attributes and addresses are collected for the building they belong to, appearances are
+ * handed to the CityObjectHandler as a whole and the corners of the scene's bounding box are recorded.
+ * The gml:ids of all geometries of city objects are interned in an IdRegistry, together with the geometries
+ * containing them or referencing them by xlink:href, so appearance targets can later be resolved by handle.
+ * Unlike the getElementsByTagName based methods of the gmlParser, no subtree is scanned more than once,
+ * so the time needed is linear in the size of the document.
+ * @author Daniel Spieldenner
+ */
+public class gmlTreeVisitor {
+
+    private CityObjectHandler handler;
+    private IdRegistry registry;
+    private long visitedNodes = 0;                  //number of nodes visited so far
+
+    //scene boundary
+    private String lowerCorner = new String();
+    private String upperCorner = new String();
+    private boolean rootBoundary = false;           //true once the bounding box of the city model itself has been read
+    private Element boundary;                       //gml:boundedBy currently visited
+
+    //building or land use object currently visited
+    private Element buildingNode;
+    private Building building;
+    private Semantics semantics;
+    private Map<String, String> attributes = new HashMap<String, String>();     //last value found for each semantic attribute
+
+    //address of the current building
+    private Element address;
+    private boolean addressRead = false;
+    private Element townLocality;
+    private Element streetThoroughfare;
+
+    //relief feature currently visited
+    private Element groundNode;
+    private Ground ground;
+    private int triangleCount;
+
+    //gml geometries with an id enclosing the node currently visited, innermost last
+    private ArrayList<Element> geometryNodes = new ArrayList<Element>();
+    private int[] geometryHandles = new int[16];
+
+    //polygon or triangle currently visited
+    private Element polygonNode;
+    private int polygonHandle;
+    private CoordinateTokenizer posCoordinates = new CoordinateTokenizer();        //coordinates read from gml:pos tags
+    private CoordinateTokenizer posListCoordinates = new CoordinateTokenizer();    //coordinates read from gml:posList tags
+    private CoordinateTokenizer coordinates;                                        //tokenizer of the pos or posList tag currently visited
+    private Element coordinateElement;
+
+    //text of the element currently collected
+    private Element textElement;
+    private StringBuilder text = new StringBuilder();
+
+    /**
+     * Create a new visitor handing all objects found to the given handler
+     * @param handler The handler receiving buildings, ground objects and appearances
+     */
+    gmlTreeVisitor(CityObjectHandler handler) {
+        this(handler, new IdRegistry());
+    }
+
+    /**
+     * Create a new visitor handing all objects found to the given handler and interning all geometry ids in the given registry
+     * @param handler The handler receiving buildings, ground objects and appearances
+     * @param registry The registry receiving the ids of all geometries
+     */
+    gmlTreeVisitor(CityObjectHandler handler, IdRegistry registry) {
+        this.handler = handler;
+        this.registry = registry;
+    }
+
+    /**
+     * Visit the given node and all of its descendants in document order.
+     * @param root The node to start from, usually the document element or a city object member
+     */
+    public void visit(Node root) {
+        Node node = root;
+        while (node != null) {
+            visitedNodes++;
+            Node next = enter(node) ? node.getFirstChild() : null;
+            if (next != null) {
+                node = next;
+                continue;
+            }
+            //no children left: leave the node and all ancestors without further siblings
+            while (node != null) {
+                leave(node);
+                if (node == root) {
+                    node = null;
+                } else if (node.getNextSibling() != null) {
+                    node = node.getNextSibling();
+                    break;
+                } else {
+                    node = node.getParentNode();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Number of nodes visited so far
+     */
+    public long getVisitedNodes() {
+        return visitedNodes;
+    }
+
+    /**
+     * Get one boundary corner of the scene. If the city model has a bounding box of its own, its corners are used,
+     * otherwise the last corner found in any gml:boundedBy.
+     * @param Either "lower" or "upper"
+     * @return minimum or maximum corner, depending on input argument
+     */
+    public String getSceneBoundary(String position) {
+        if (position.equals("upper")) {
+            return upperCorner;
+        }
+        if (position.equals("lower")) {
+            return lowerCorner;
+        }
+        return "ERROR: No corner of boundary box specified";
+    }
+
+    /**
+     * Called when a node is reached
+     * @return false if the children of the node do not need to be visited
+     */
+    private boolean enter(Node node) {
+        if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+            if (coordinates != null) {
+                coordinates.append(node.getNodeValue());
+            } else if (textElement != null) {
+                text.append(node.getNodeValue());
+            }
+            return false;
+        }
+        if (node.getNodeType() != Node.ELEMENT_NODE) {
+            return true;
+        }
+        Element element = (Element) node;
+        String name = element.getNodeName();
+
+        if (name.equals("app:Appearance")) {
+            handler.appearance(element);
+            return false;
+        }
+
+        if ((building != null || ground != null) && name.startsWith("gml:")) {
+            enterGeometry(element);
+        }
+
+        if (name.equals("bldg:Building") || name.equals("luse:LandUse")) {
+            if (buildingNode == null && groundNode == null) {
+                buildingNode = element;
+                building = new Building();
+                building.setId(element.getAttribute("gml:id"));
+                semantics = new Semantics();
+            }
+        } else if (name.equals("dem:ReliefFeature")) {
+            if (buildingNode == null && groundNode == null) {
+                groundNode = element;
+                ground = new Ground();
+                triangleCount = 0;
+            }
+        } else if (name.equals("gml:TriangulatedSurface")) {
+            //surfaces without an id are given one by the handler
+            if (ground != null) {
+                ground.setId(element.getAttribute("gml:id"));
+                ground.setHandle(currentGeometry(element));
+            }
+        } else if (name.equals("gml:Polygon")) {
+            if (building != null && polygonNode == null) {
+                startPolygon(element);
+            }
+        } else if (name.equals("gml:Triangle")) {
+            if (ground != null && polygonNode == null) {
+                startPolygon(element);
+            }
+        } else if (name.equals("gml:pos") || name.equals("gml:posList")) {
+            if (polygonNode != null && coordinates == null) {
+                coordinateElement = element;
+                coordinates = name.equals("gml:pos") ? posCoordinates : posListCoordinates;
+            }
+        } else if (name.equals("gml:boundedBy")) {
+            if (boundary == null) {
+                boundary = element;
+            }
+        } else if (name.equals("gml:lowerCorner") || name.equals("gml:upperCorner")) {
+            if (boundary != null) {
+                startText(element);
+            }
+        } else if (buildingNode != null && buildingNode.getNodeName().equals("bldg:Building")) {
+            enterSemantics(element, name);
+        }
+        return true;
+    }
+
+    /**
+     * Called for gml elements of city objects: intern the id of the element and link it to the enclosing geometry,
+     * link geometries referenced by xlink:href to the enclosing geometry as well
+     */
+    private void enterGeometry(Element element) {
+        int parent = geometryNodes.isEmpty() ? IdRegistry.NO_HANDLE : geometryHandles[geometryNodes.size() - 1];
+        String href = element.getAttribute("xlink:href");
+        if (!href.isEmpty()) {
+            registry.linkReference(registry.intern(href), parent);
+        }
+        String id = element.getAttribute("gml:id");
+        if (id.isEmpty()) {
+            return;
+        }
+        int handle = registry.intern(id);
+        registry.link(handle, parent);
+        if (geometryNodes.size() == geometryHandles.length) {
+            int[] grown = new int[geometryHandles.length * 2];
+            System.arraycopy(geometryHandles, 0, grown, 0, geometryHandles.length);
+            geometryHandles = grown;
+        }
+        geometryHandles[geometryNodes.size()] = handle;
+        geometryNodes.add(element);
+    }
+
+    /**
+     * @return Handle of the given element if it is the innermost geometry with an id, NO_HANDLE otherwise
+     */
+    private int currentGeometry(Element element) {
+        int top = geometryNodes.size() - 1;
+        return top >= 0 && geometryNodes.get(top) == element ? geometryHandles[top] : IdRegistry.NO_HANDLE;
+    }
+
+    /**
+     * Called for elements of a building that are neither geometry nor appearance: find semantic
+     * attributes and address details
+     */
+    private void enterSemantics(Element element, String name) {
+        if (name.equals("gml:description") || name.equals("gml:name") || name.equals("bldg:yearOfConstruction")
+                || name.equals("bldg:measuredHeight") || name.equals("bldg:storeysAboveGround") || name.equals("bldg:storeysBelowGround")) {
+            startText(element);
+        } else if (name.equals("bldg:address")) {
+            //only the first address of a building is used
+            if (!addressRead) {
+                address = element;
+            }
+        } else if (address != null) {
+            if (name.equals("xAL:Locality") && element.getAttribute("Type").equals("Town")) {
+                townLocality = element;
+            } else if (name.equals("xAL:Thoroughfare") && element.getAttribute("Type").equals("Street")) {
+                streetThoroughfare = element;
+            } else if (name.equals("xAL:CountryName") || name.equals("xAL:PostalCodeNumber")
+                    || (name.equals("xAL:LocalityName") && townLocality != null)
+                    || ((name.equals("xAL:ThoroughfareName") || name.equals("xAL:ThoroughfareNumber")) && streetThoroughfare != null)) {
+                startText(element);
+            }
+        }
+    }
+
+    /**
+     * Called when a node and all of its descendants have been visited
+     */
+    private void leave(Node node) {
+        if (node == textElement) {
+            finishText(textElement.getNodeName(), text.toString());
+            textElement = null;
+            text.setLength(0);
+        }
+
+        if (node == coordinateElement) {
+            coordinates.separate();
+            coordinates = null;
+            coordinateElement = null;
+        }
+
+        if (node == polygonNode) {
+            //as in the gml file, single pos tags take precedence over pos lists
+            CoordinateTokenizer polygonCoordinates = posCoordinates.size() > 0 ? posCoordinates : posListCoordinates;
+            if (building != null) {
+                building.addPolygon(polygonNode.getAttribute("gml:id"), polygonHandle, polygonCoordinates);
+            } else {
+                ground.addTriangle("groundTriangle_" + triangleCount, polygonCoordinates);
+                triangleCount++;
+            }
+            polygonNode = null;
+        }
+
+        if (!geometryNodes.isEmpty() && node == geometryNodes.get(geometryNodes.size() - 1)) {
+            geometryNodes.remove(geometryNodes.size() - 1);
+        }
+
+        if (node == buildingNode) {
+            finishBuilding();
+        } else if (node == groundNode) {
+            handler.ground(ground);
+            groundNode = null;
+            ground = null;
+        } else if (node == boundary) {
+            boundary = null;
+        } else if (node == address) {
+            address = null;
+            addressRead = true;
+        } else if (node == townLocality) {
+            townLocality = null;
+        } else if (node == streetThoroughfare) {
+            streetThoroughfare = null;
+        }
+    }
+
+    private void startPolygon(Element element) {
+        polygonNode = element;
+        //polygons without an id of their own may still inherit the shader of an enclosing geometry
+        polygonHandle = currentGeometry(element);
+        if (polygonHandle == IdRegistry.NO_HANDLE && building != null && !geometryNodes.isEmpty()) {
+            polygonHandle = registry.createAnonymous();
+            registry.link(polygonHandle, geometryHandles[geometryNodes.size() - 1]);
+        }
+        posCoordinates.reset();
+        posListCoordinates.reset();
+    }
+
+    private void startText(Element element) {
+        if (textElement == null) {
+            textElement = element;
+        }
+    }
+
+    /**
+     * Store the text collected for an element with the object it belongs to
+     * @param name Name of the element
+     * @param value Text content of the element
+     */
+    private void finishText(String name, String value) {
+        if (name.equals("gml:lowerCorner") || name.equals("gml:upperCorner")) {
+            //the bounding box of the city model itself takes precedence over those of single objects
+            boolean isRoot = boundary.getParentNode() == boundary.getOwnerDocument().getDocumentElement();
+            if (isRoot || !rootBoundary) {
+                if (name.equals("gml:lowerCorner")) {
+                    lowerCorner = value;
+                } else {
+                    upperCorner = value;
+                }
+                rootBoundary = isRoot;
+            }
+        } else if (name.startsWith("xAL:")) {
+            if (!value.isEmpty()) {
+                semantics.addInformation(name.equals("xAL:ThoroughfareName") ? "xAL:StreetName" : name, value);
+                semantics.setAdressFlag(true);
+            }
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    /**
+     * All descendants of the current building have been visited: add the semantic attributes found
+     * and hand the building to the handler.
+     */
+    private void finishBuilding() {
+        addAttribute("gml:description", "gml:description");
+        addAttribute("gml:name", "gml:description");
+        addAttribute("bldg:yearOfConstruction", "bldg:yearOfConstruction");
+        addAttribute("bldg:storeysAboveGround", "bldg:storeysAboveGround");
+        addAttribute("bldg:storeysBelowGround", "bldg:storeysBelowGround");
+        addAttribute("bldg:measuredHeight", "bldg:measuredHeight");
+
+        handler.building(building, semantics.getSemanticList().isEmpty() ? null : semantics);
+
+        buildingNode = null;
+        building = null;
+        semantics = null;
+        attributes.clear();
+        address = null;
+        addressRead = false;
+    }
+
+    /**
+     * Add the last value found for a semantic attribute to the semantics of the current building
+     * @param name Name of the attribute's element
+     * @param key Key to be used in the semantics
+     */
+    private void addAttribute(String name, String key) {
+        String value = attributes.get(name);
+        if (value != null && !value.isEmpty()) {
+            semantics.addInformation(key, value);
+        }
+    }
+}
@@ -2,18 +2,14 @@ package de.dfki.asr.genesis2.converter.citygml;
 
 /**
  * The xmlProcessor class is used to process the stored data read from the gml files
- * to push them to the xml3DWriter package.
+ * to push them to a SceneWriter, which writes them to the output.
  * @author Daniel
  */
-import de.dfki.asr.genesis2.converter.xmlWriter.XML3DGroup;
-import de.dfki.asr.genesis2.converter.xmlWriter.XML3DMesh;
-import de.dfki.asr.genesis2.converter.xmlWriter.XML3DShader;
-
-import de.dfki.asr.genesis2.converter.xmlWriter.XML3DCamera;
-
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.io.*;
 import org.jboss.logging.Logger;
 
@@ -23,14 +19,19 @@ import javax.xml.transform.stream.StreamResult;
 
 public class xmlProcessor {
 
-    private XML3DWriter writer;
+    private SceneWriter writer;
     private static final Logger log = Logger.getLogger(xmlProcessor.class.getName());
+    private boolean mergeMeshes = false;        //write one mesh per building and shader instead of one per polygon
+    private boolean faceIds = false;            //add the polygon of each triangle to merged meshes
+    private double weldEpsilon = -1;            //tolerance of welding vertices of merged meshes, negative to not weld
+    private double creaseAngle = 30;            //angle in degrees above which normals of welded vertices are split
     /**
-     * Standard constructor, initializes the xml3dWriter to be used.
+     * Standard constructor, initializes the xml3dWriter to be used. The document is kept in memory
+     * and returned by processXML().
      */
     public xmlProcessor() {
         try {
-            this.writer = new XML3DWriter();
+            this.writer = new XML3DWriterAdapter(new XML3DWriter());
         } catch (Exception e) {
             log.error("Exception encountered while creating xml3DWriter: " + e);
         }
@@ -38,124 +39,263 @@ public class xmlProcessor {
     }
 
     /**
-     * Constructor using a file name, initializes the xml3dWriter to be used.
-     * Additionally, the debug mode of the XML3DWriter is enabled and generated code
-     * is written to disk
+     * Constructor using a file name. The document is written to the file while it is generated,
+     * without indentation.
      */
     public xmlProcessor(String fileName) {
         try {
-            this.writer = new XML3DWriter(fileName);
-            this.writer.enableDebug();
-            this.writer.setOutputPath(fileName);
-            
-
-        } catch (Exception e) {
-            log.error("Exception encountered while creating xml3DWriter: " + e);
-
+            this.writer = new XML3DStreamWriter(fileName, false);
+        } catch (IOException e) {
+            log.error("Exception encountered while creating writer for " + fileName + ": " + e);
         }
 
     }
+
+    /**
+     * Constructor using the given writer for output
+     * @param writer The writer receiving the generated meshes, groups and shaders
+     */
+    public xmlProcessor(SceneWriter writer) {
+        this.writer = writer;
+    }
     
 
+    /**
+     * Enable or disable merging of polygons: if enabled, all polygons of a building using the same shader
+     * are written as a single mesh, which reduces the number of meshes (and draw calls) by far.
+     * @param mergeMeshes true to merge polygons
+     */
+    public void setMergeMeshes(boolean mergeMeshes) {
+        this.mergeMeshes = mergeMeshes;
+    }
+
+    /**
+     * Enable or disable face ids for merged meshes, which keep the polygon each triangle belongs to available
+     * @param faceIds true to add face ids
+     */
+    public void setFaceIds(boolean faceIds) {
+        this.faceIds = faceIds;
+    }
+
+    /**
+     * Enable welding of the vertices of merged meshes, which also enables merging. Vertices of adjacent polygons
+     * within the tolerance are shared, unless the polygons meet at an angle above the crease angle.
+     * Textured meshes are not welded, as their texture coordinates are given per polygon.
+     * @param epsilon Maximum difference of each coordinate of welded vertices; negative to disable welding
+     * @param creaseAngle Angle in degrees between adjacent polygons above which vertices are not shared
+     */
+    public void setWelding(double epsilon, double creaseAngle) {
+        this.weldEpsilon = epsilon;
+        this.creaseAngle = creaseAngle;
+    }
+
     /**
      * The processBuildings method iterates through the list of stored buildings and
      * creates meshes, groups and subgroups as needed by the xml3DWriter class.
      * @param buildingMap The list of buildings to be processed. For each building, a parent group will be generated. Subgroups referencing building polygons are
      * added as children to the parent building group
-     * @param shaderMap List of shaders defined in the xml document. If one of the buildings polygons appears as key in the shader map (thus, is using this shader), 
-     * that shader will be used as attribute for the corresponding polygon.
-     * @param polygonMap Lit of polygons this building consists of. Polygons will be added as children to the building's parent group.
+     * @param registry Registry holding the shaders bound to the polygons. Polygons read without a handle are looked up by their id.
+     * @param semanticMap Semantics of the buildings, by building id
      */
-    public void processBuildings(Map buildingMap, Map shaderMap, Map polygonMap, Map semanticMap) {
+    public void processBuildings(Map buildingMap, IdRegistry registry, Map semanticMap) throws IOException {
         Iterator buildingIter = buildingMap.keySet().iterator();
         while (buildingIter.hasNext()) {
             Building currentBuilding = (Building) buildingMap.get(buildingIter.next());
-            XML3DGroup buildingParent = new XML3DGroup(currentBuilding.getID() + "_id");    //get next building from list and initialize empty parent group
+            processBuilding(currentBuilding, (Semantics) semanticMap.get(currentBuilding.getID()), registry);
+        }
+    }
 
-            buildingParent.addAttribute("class", currentBuilding.getID());
+    /**
+     * Create the meshes and the group of a single building, once its geometry is computed, and hand them to the writer
+     * @param currentBuilding The building to be processed
+     * @param semantics Semantic information of the building, null if there is none
+     * @param registry Registry holding the shaders bound to the polygons
+     */
+    public void processBuilding(Building currentBuilding, Semantics semantics, IdRegistry registry) throws IOException {
+        SceneGroup buildingParent = new SceneGroup(currentBuilding.getID() + "_id");    //get next building from list and initialize empty parent group
 
-            //add mouse over handlers to parent group
-            buildingParent.addAttribute("onmouseover", "handleOnMouseOver(this);");
-            buildingParent.addAttribute("onmousemove", "handleOnMouseMove(this);");
-            buildingParent.addAttribute("onmouseout", "handleOnMouseOut(this);");
+        buildingParent.addAttribute("class", currentBuilding.getID());
 
-            //get list of polygons defining the building, create a mesh for each polygon found and add
-            //the corresponding subgroup to the building currently processed
+        //add mouse over handlers to parent group
+        buildingParent.addAttribute("onmouseover", "handleOnMouseOver(this);");
+        buildingParent.addAttribute("onmousemove", "handleOnMouseMove(this);");
+        buildingParent.addAttribute("onmouseout", "handleOnMouseOut(this);");
 
-            ArrayList<XmlPoly> poly = currentBuilding.getPolyList();
-            Iterator<XmlPoly> polyIter = poly.iterator();
-            while (polyIter.hasNext()) {
-                XmlPoly currentPoly = polyIter.next();
+        //create the meshes of the building's polygons, either one per polygon or merged by shader
+        if (mergeMeshes || weldEpsilon >= 0) {
+            processMergedPolygons(currentBuilding, buildingParent, registry);
+        } else {
+            processPolygons(currentBuilding, buildingParent, registry);
+        }
 
-                //create data element for the current polygon
-                XML3DMesh newMesh = new XML3DMesh(currentPoly.getID());
+        //check whether semantic information for the current building is avaiable and add the corresponding tags if so.
+        if (semantics != null) {
 
-                //positions
-                String posString = "";
-                Iterator<Vec3D> posIter = currentPoly.getPositions().iterator();
+            buildingSemantics(buildingParent, semantics, currentBuilding.getID());
+        }
+        
+        writer.writeGroup(buildingParent);
+    }
 
-                while (posIter.hasNext()) {
-                    Vec3D currentPos = posIter.next();
-                    posString = posString + (currentPos.coordString()) + " ";
-                    posIter.remove();
-                }
-                newMesh.setPositions(posString);
-
-                //normals
-                String normalString = "";
-                Iterator<Vec3D> normIter = currentPoly.getNormals().iterator();
-                while (normIter.hasNext()) {
-                    Vec3D currentNorm = normIter.next();
-                    normalString = normalString + (currentNorm.coordString()) + " ";
-                    normIter.remove();
-                }
-                newMesh.setNormals(normalString);
-                //texture coordinates
-                String texCoordString = "";
-                if (polygonMap.keySet().contains("#" + currentPoly.getID())) {
-                    xmlShader myShader = (xmlShader) polygonMap.get("#" + currentPoly.getID());
-                    String myTexCoords = myShader.getTexCoords();
-                    if (myShader.getShaderType().equals("Texture")) {
-                        newMesh.setTexCoords(myTexCoords);
-                    }
+    /**
+     * Create a mesh for each polygon of a building and add a group referencing the mesh to the building group
+     * @param currentBuilding The building to be processed
+     * @param buildingParent The group of the building
+     * @param registry Registry holding the shaders bound to the polygons
+     */
+    private void processPolygons(Building currentBuilding, SceneGroup buildingParent, IdRegistry registry) throws IOException {
+        //get list of polygons defining the building, create a mesh for each polygon found and add
+        //the corresponding subgroup to the building currently processed
+
+        ArrayList<XmlPoly> poly = currentBuilding.getPolyList();
+        Iterator<XmlPoly> polyIter = poly.iterator();
+        while (polyIter.hasNext()) {
+            XmlPoly currentPoly = polyIter.next();
+            int handle = getHandle(currentPoly, registry);
+            xmlShader myShader = registry.getShader(handle);
+
+            //create data element for the current polygon, with the texture coordinates set at its vertices if textured
+            GeometryBuffer geometry = currentPoly.getGeometry();
+            writer.writeMesh(currentPoly.getID(), geometry);
+            geometry.release();         //geometry has been written and is not needed anymore
+
+            //Create a group for the currently processed polygon as child of the parent building group
+            SceneGroup polyGroup = new SceneGroup(currentBuilding.getID() + "_child_" + poly.indexOf(currentPoly), buildingParent);
+            SceneGroup meshReference = new SceneGroup(polyGroup);
+            meshReference.makeMesh();         //reference to mesh definition in the data part
+            meshReference.addAttribute("type", "triangles");
+            meshReference.addAttribute("src", "#" + currentPoly.getID());
+            polyGroup.addAttribute("class", currentBuilding.getID());
+            //check whether a shader for the current polygon exists and add the corresponding attribute, if necessary
+            if (myShader != null) {
+                polyGroup.addAttribute("shader", "#" + myShader.getID());
+            }
+        }
+    }
+
+    /**
+     * Merge all polygons of a building using the same shader into a single mesh and add a group referencing
+     * each mesh to the building group. The indices of each polygon are rebased to the position of its vertices
+     * in the merged mesh, or, if welding is enabled, to the welded vertices. If face ids are enabled, the mesh reference lists the ids of the merged polygons and,
+     * for each triangle, the index of its polygon in that list.
+     * @param building The building to be processed
+     * @param buildingParent The group of the building
+     * @param registry Registry holding the shaders bound to the polygons
+     */
+    private void processMergedPolygons(Building building, SceneGroup buildingParent, IdRegistry registry) throws IOException {
+        //group the polygons by the shader written for them, keeping the order in which the shaders are used first;
+        //textures packed into the same atlas page share it
+        Map<xmlShader, List<XmlPoly>> shaderGroups = new LinkedHashMap<xmlShader, List<XmlPoly>>();
+        for (XmlPoly currentPoly : building.getPolyList()) {
+            xmlShader myShader = registry.getShader(getHandle(currentPoly, registry));
+            if (myShader != null) {
+                myShader = myShader.getDefinition();
+            }
+            List<XmlPoly> polygons = shaderGroups.get(myShader);
+            if (polygons == null) {
+                polygons = new ArrayList<XmlPoly>();
+                shaderGroups.put(myShader, polygons);
+            }
+            polygons.add(currentPoly);
+        }
 
+        int meshIndex = 0;
+        for (Map.Entry<xmlShader, List<XmlPoly>> shaderGroup : shaderGroups.entrySet()) {
+            xmlShader myShader = shaderGroup.getKey();
+            List<XmlPoly> polygons = shaderGroup.getValue();
+            boolean textured = myShader != null && myShader.getShaderType().equals("Texture");
+
+            int vertexCount = 0;
+            int indexCount = 0;
+            for (XmlPoly currentPoly : polygons) {
+                vertexCount += currentPoly.getGeometry().getVertexCount();
+                indexCount += currentPoly.getGeometry().getIndexCount();
+            }
+            boolean welding = weldEpsilon >= 0 && !textured;
+            GeometryBuffer merged = new GeometryBuffer(welding ? vertexCount / 2 + 3 : vertexCount, indexCount);
+            VertexWelder welder = null;
+            if (welding) {
+                welder = new VertexWelder(merged, vertexCount / 2 + 3, weldEpsilon);
+                welder.setCreaseAngle(creaseAngle);
+            }
+            StringBuilder polygonIds = new StringBuilder();
+            StringBuilder facePolygons = new StringBuilder();
+            for (int p = 0; p < polygons.size(); p++) {
+                GeometryBuffer geometry = polygons.get(p).getGeometry();
+                //welding drops degenerated triangles, so the number of triangles of a polygon may shrink
+                int triangleCount = geometry.getIndexCount() / 3;
+                if (welding) {
+                    triangleCount = welder.addTriangles(geometry);
+                } else {
+                    merged.append(geometry);
                 }
-                newMesh.setIndex(currentPoly.getIndexString());
-
-                writer.appendMesh(newMesh);
-                //Create a group for the currently processed polygon as child of the parent building group
-                XML3DGroup polyGroup = new XML3DGroup(currentBuilding.getID() + "_child_" + poly.indexOf(currentPoly), buildingParent);
-                XML3DGroup meshReference = new XML3DGroup(polyGroup);
-                meshReference.makeMesh();         //reference to mesh definition in the data part
-                meshReference.addAttribute("type", "triangles");
-                meshReference.addAttribute("src", "#" + currentPoly.getID());
-                polyGroup.addAttribute("class", currentBuilding.getID());
-                //check whether a shader for the current polygon exists and add the corresponding attribute, if necessary
-                if (polygonMap.keySet().contains("#" + currentPoly.getID())) {
-                    polyGroup.addAttribute("shader", "#" + ((xmlShader) polygonMap.get("#" + currentPoly.getID())).getID());
+                if (faceIds) {
+                    polygonIds.append(polygons.get(p).getID()).append(' ');
+                    for (int t = 0; t < triangleCount; t++) {
+                        facePolygons.append(p).append(' ');
+                    }
                 }
+                geometry.release();
+            }
+            if (welding) {
+                welder.computeNormals();
+                merged.trim();
+                log.debug("Welded " + vertexCount + " vertices of " + building.getID() + " to " + merged.getVertexCount());
             }
 
-            //check whether semantic information for the current building is avaiable and add the corresponding tags if so.
-            if (semanticMap.keySet().contains(currentBuilding.getID())) {
-
-                buildingSemantics(buildingParent, (Semantics) semanticMap.get(currentBuilding.getID()), currentBuilding.getID());
+            String meshId = building.getID() + "_mesh_" + meshIndex;
+            writer.writeMesh(meshId, merged);
+
+            SceneGroup polyGroup = new SceneGroup(building.getID() + "_child_" + meshIndex, buildingParent);
+            SceneGroup meshReference = new SceneGroup(polyGroup);
+            meshReference.makeMesh();
+            meshReference.addAttribute("type", "triangles");
+            meshReference.addAttribute("src", "#" + meshId);
+            if (faceIds) {
+                meshReference.addAttribute("data-polygon-ids", polygonIds.toString());
+                meshReference.addAttribute("data-face-polygons", facePolygons.toString());
+            }
+            polyGroup.addAttribute("class", building.getID());
+            if (myShader != null) {
+                polyGroup.addAttribute("shader", "#" + myShader.getID());
             }
-            
-            writer.appendGroup(buildingParent);
+            meshIndex++;
         }
     }
 
+    private static int getHandle(XmlPoly polygon, IdRegistry registry) {
+        return polygon.getHandle() != IdRegistry.NO_HANDLE ? polygon.getHandle() : registry.lookup(polygon.getID());
+    }
+
+    /**
+     * Write the block replacing a building on a coarse level of detail as a single mesh, grouped like a building
+     * @param buildingID The id of the building
+     * @param block The geometry of the block; it is not released, as it may be written to several files
+     */
+    public void processBlock(String buildingID, GeometryBuffer block) throws IOException {
+        String meshId = buildingID + "_block";
+        writer.writeMesh(meshId, block);
+        SceneGroup buildingParent = new SceneGroup(buildingID + "_id");
+        buildingParent.addAttribute("class", buildingID);
+        SceneGroup blockGroup = new SceneGroup(buildingID + "_child_0", buildingParent);
+        SceneGroup meshReference = new SceneGroup(blockGroup);
+        meshReference.makeMesh();
+        meshReference.addAttribute("type", "triangles");
+        meshReference.addAttribute("src", "#" + meshId);
+        blockGroup.addAttribute("class", buildingID);
+        writer.writeGroup(buildingParent);
+    }
+
     /**
      * Get semantic information for the current building from the list of stored semantics
      * and add them to the provided building group node.
      * @param buildingGroup The group node in the generated xml tree that will be used as parent node for semantic tags
      * @param semanticMap Semantic information provided for this building
      */
-    public void buildingSemantics(XML3DGroup buildingGroup, Semantics buildingSemantic, String buildingID) {
+    public void buildingSemantics(SceneGroup buildingGroup, Semantics buildingSemantic, String buildingID) {
         //create parent node for semantic information, containing the id and class of this div group
-        XML3DGroup semanticParent = new XML3DGroup(buildingGroup);
-        XML3DGroup addressParent = new XML3DGroup();
+        SceneGroup semanticParent = new SceneGroup(buildingGroup);
+        SceneGroup addressParent = new SceneGroup();
         
         semanticParent.addAttribute("id", buildingID + "_RDFa");
         semanticParent.addAttribute("property", "gml:" + buildingID);
@@ -177,14 +317,14 @@ public class xmlProcessor {
             String value = semanticEntry.getValue();
             if(key.contains("xAL"))
             {
-                XML3DGroup newXALSemantic = new XML3DGroup(addressParent);
+                SceneGroup newXALSemantic = new SceneGroup(addressParent);
                 newXALSemantic.addAttribute("property", key);
                 newXALSemantic.addTextContent(value);
                 newXALSemantic.makeDiv();
             }
             else
             {
-                XML3DGroup newSemantic = new XML3DGroup(semanticParent);
+                SceneGroup newSemantic = new SceneGroup(semanticParent);
                 newSemantic.addAttribute("property", key);
                 newSemantic.addTextContent(value);
                 newSemantic.makeDiv();
@@ -196,111 +336,102 @@ public class xmlProcessor {
      * The processGround method reads the ground object (or iterates through the list of ground objects, if the ground is defined via several objects),
      * creates the corresponding xml3D groups and adds the xml3d meshes defining theground object to the main xml3d ground node.
      * @param groundMap List of ground objects to be used
-     * @param shaderMap List of shaders to be referenced by the ground object
-     * @param polygonMap  List of polygons defining the ground object
+     * @param registry Registry holding the shaders bound to the ground objects
      */
-    public void processGround(String texturePath, Map groundMap, Map shaderMap, Map polygonMap, float resX, float resY) {
+    public void processGround(String texturePath, Map groundMap, IdRegistry registry, float resX, float resY) throws IOException {
         Iterator groundIter = groundMap.keySet().iterator();
         while (groundIter.hasNext()) {
-            Ground currentGround = (Ground) groundMap.get(groundIter.next());
-            XML3DGroup groundParent = new XML3DGroup(currentGround.getID() + "_id");
-            groundParent.addAttribute("class", currentGround.getID());
-            
-            String textureFile = new String();
-            if(polygonMap.keySet().contains("#" + currentGround.getID()))
-            {
-                groundParent.addAttribute("shader", "#" + ((xmlShader) polygonMap.get("#" + currentGround.getID())).getID());
-                xmlShader myShader = (xmlShader)polygonMap.get("#"+currentGround.getID());
-                textureFile = myShader.getTexturePath();
-            }
-            
-            ArrayList<XmlPoly> poly = currentGround.getPolyList();
-            Iterator<XmlPoly> polyIter = poly.iterator();
-
-            while (polyIter.hasNext()) {
-                XmlPoly currentPoly = polyIter.next();
-
-                //create data element for the current polygon
-                XML3DMesh newMesh = new XML3DMesh(currentPoly.getID());
-
-                //positions
-                String posString = "";
-                Iterator<Vec3D> posIter = currentPoly.getPositions().iterator();
+            processGround(texturePath, (Ground) groundMap.get(groundIter.next()), registry, resX, resY);
+        }
+    }
 
-                while (posIter.hasNext()) {
-                    Vec3D currentPos = posIter.next();
-                    posString = posString + (currentPos.coordString()) + " ";
-                    //posIter.remove();
-                }
-                newMesh.setPositions(posString);
-                newMesh.setTexCoords(computeGeoRefCoords(texturePath, textureFile, currentPoly, resX, resY));
-                
-                
-                //normals
-                String normalString = "";
-                Iterator<Vec3D> normIter = currentPoly.getNormals().iterator();
-                while (normIter.hasNext()) {
-                    Vec3D currentNorm = normIter.next();
-                    normalString = normalString + (currentNorm.coordString()) + " ";
-                    normIter.remove();
-                }
-                newMesh.setNormals(normalString);
-
-                newMesh.setIndex(currentPoly.getIndexString());
-                writer.appendMesh(newMesh);
-                //Create a group for the currently processed polygon as child of the parent building group
-                XML3DGroup polyGroup = new XML3DGroup(currentGround.getID() + "_child_" + poly.indexOf(currentPoly), groundParent);
-                XML3DGroup meshReference = new XML3DGroup(polyGroup);
-                meshReference.makeMesh();         //use current group as mesh
-                meshReference.addAttribute("type", "triangles");
-                meshReference.addAttribute("src", "#" + currentPoly.getID());
-                polyGroup.addAttribute("class", currentGround.getID());
-                //check whether a shader for the current polygon exists and add the corresponding attribute, if necessary
-                //additionally, set the texture coordinates for the mesh if shader is a texture
-                if (polygonMap.keySet().contains("#" + currentPoly.getID())) {
-                    polyGroup.addAttribute("shader", "#" + ((GenericShader) polygonMap.get("#" + currentPoly.getID())).getID());
-                    //check for shader type
+    /**
+     * Create the meshes and the group of a single ground object, once its geometry is computed, and hand them to the writer
+     * @param currentGround The ground object to be processed
+     * @param registry Registry holding the shaders bound to the ground object and its triangles
+     */
+    public void processGround(String texturePath, Ground currentGround, IdRegistry registry, float resX, float resY) throws IOException {
+        SceneGroup groundParent = new SceneGroup(currentGround.getID() + "_id");
+        groundParent.addAttribute("class", currentGround.getID());
+        
+        String textureFile = new String();
+        int handle = currentGround.getHandle() != IdRegistry.NO_HANDLE ? currentGround.getHandle() : registry.lookup(currentGround.getID());
+        xmlShader myShader = registry.getShader(handle);
+        if(myShader != null)
+        {
+            groundParent.addAttribute("shader", "#" + myShader.getID());
+            textureFile = myShader.getSourcePath();      //the georeference belongs to the original image
+        }
+        
+        GeometryBuffer mesh = currentGround.getMesh();
+        if (mesh != null) {
+            //consolidated ground: all triangles are written as a single mesh
+            String meshId = currentGround.getID() + "_mesh";
+            computeGeoRefCoords(texturePath, textureFile, mesh, resX, resY);
+            writer.writeMesh(meshId, mesh);
+            mesh.release();
+            SceneGroup meshGroup = new SceneGroup(currentGround.getID() + "_child_0", groundParent);
+            SceneGroup meshReference = new SceneGroup(meshGroup);
+            meshReference.makeMesh();
+            meshReference.addAttribute("type", "triangles");
+            meshReference.addAttribute("src", "#" + meshId);
+            meshGroup.addAttribute("class", currentGround.getID());
+        }
 
-                }
+        ArrayList<XmlPoly> poly = currentGround.getPolyList();
+        Iterator<XmlPoly> polyIter = poly.iterator();
+
+        while (polyIter.hasNext()) {
+            XmlPoly currentPoly = polyIter.next();
+
+            //create data element for the current polygon, textured by the georeferenced ground texture
+            GeometryBuffer geometry = currentPoly.getGeometry();
+            computeGeoRefCoords(texturePath, textureFile, currentPoly, resX, resY);
+            writer.writeMesh(currentPoly.getID(), geometry);
+            geometry.release();
+            //Create a group for the currently processed polygon as child of the parent building group
+            SceneGroup polyGroup = new SceneGroup(currentGround.getID() + "_child_" + poly.indexOf(currentPoly), groundParent);
+            SceneGroup meshReference = new SceneGroup(polyGroup);
+            meshReference.makeMesh();         //use current group as mesh
+            meshReference.addAttribute("type", "triangles");
+            meshReference.addAttribute("src", "#" + currentPoly.getID());
+            polyGroup.addAttribute("class", currentGround.getID());
+            //triangles are shaded by the shader of the ground object, unless they are targets of their own
+            xmlShader triangleShader = registry.getShader(currentPoly.getHandle());
+            if (triangleShader != null) {
+                polyGroup.addAttribute("shader", "#" + triangleShader.getID());
             }
-            writer.appendGroup(groundParent);
         }
-
-
+        writer.writeGroup(groundParent);
     }
 
     /**
-     * Iterates through the list of shaders and creates an appropriate shader element for each one.
-     * Depending on whether a texture or a diffuse material is used, a path to the texture file or
-     * values for material colors are submitted to the exporter.
+     * Iterates through the list of shaders and hands each one to the writer.
+     * Depending on whether a texture or a diffuse material is used, the writer creates a shader
+     * referencing the texture file or holding the material colors.
      * @param shaderMap The list of shaders to be sent to the exporter
      */
-    public void processShader(Map shaderMap) {
+    public void processShader(Map shaderMap) throws IOException {
         Iterator shaderIter = shaderMap.keySet().iterator();
         while (shaderIter.hasNext()) {
             xmlShader currentShader = (xmlShader) shaderMap.get(shaderIter.next());
-            XML3DShader newShader = new XML3DShader(currentShader.getID()); //initialize empty new shader to be added to the writer class.
-
-            if (currentShader.getShaderType().equals("Material")) {
-                //The current shader is a material shader: send material to exporter                
-                newShader.setDiffuseColor(currentShader.getDiffuseColor()[0], currentShader.getDiffuseColor()[1], currentShader.getDiffuseColor()[2]);
-            } else if (currentShader.getShaderType().equals("Texture")) {
-                newShader.useAsTexture(true);
-                newShader.setTexturePath(currentShader.getTexturePath());
-                newShader.setAmbientIntensity(0.4f);
-                newShader.setDiffuseColor(1.0f, 1.0f, 1.0f);
-            }
-
-            writer.appendShader(newShader);
+            writer.writeShader(currentShader);
         }
     }
 
     /**
      * Adds a camera to the scene, based on the scenes bounding box coordinates
      */
-    public void addCamera(gmlParser gmlTree) {
-        String lowerCorner = gmlTree.getSceneBoundary("lower");
-        String upperCorner = gmlTree.getSceneBoundary("upper");
+    public void addCamera(gmlParser gmlTree) throws IOException {
+        addCamera(gmlTree.getSceneBoundary("lower"), gmlTree.getSceneBoundary("upper"));
+    }
+
+    /**
+     * Adds a camera to the scene, based on the given corners of the scene's bounding box
+     * @param lowerCorner Lower corner of the bounding box, as read from the gml file
+     * @param upperCorner Upper corner of the bounding box, as read from the gml file
+     */
+    public void addCamera(String lowerCorner, String upperCorner) throws IOException {
         //place camera over center of the scene
         String[] lowerSplit = lowerCorner.split("\\s+");
         String[] upperSplit = upperCorner.split("\\s+");
@@ -313,53 +444,39 @@ public class xmlProcessor {
 
         Float targetZ = Float.valueOf(upperSplit[2]) + 100.0f;
         String posString = Float.toString((lowerX + upperX) / 2) + " " + Float.toString((lowerY + upperY) / 2) + " " + Float.toString(targetZ);
-        writer.addCamera("defaultView", posString, "0 0 1 0");
+        writer.writeView("defaultView", posString, "0 0 1 0");
     }
     
     
-    public String computeGeoRefCoords(String TexturePath, String geoFileName, XmlPoly poly, float resX, float resY)
+    public boolean computeGeoRefCoords(String TexturePath, String geoFileName, XmlPoly poly, float resX, float resY)
     {
-        ArrayList<String> linesRead = new ArrayList<String>();
-        String refFileName = geoFileName.replace("tif", "tfw");
-        
-        refFileName = refFileName.split("\\.")[0];
-        refFileName = refFileName +".tfw";
-        String refFilePath = TexturePath + "\\" +refFileName;
-        String newCoordinates = new String();
-        
-        //Read lines from the reference file and add them to the array for further use
-        try{
-            String currentLine;
-            BufferedReader geoReader = new BufferedReader(new FileReader(refFilePath));
-            while((currentLine = geoReader.readLine()) != null )
-            {
-                linesRead.add(currentLine);
-            }
-        }catch(Exception e)
-        {
-            log.error("Error reading geo references from file: " + e);
-        }
-        
-        //get size and world coordinates from the lines read from the tfw file
-        float sizeX = Float.parseFloat(linesRead.get(0));
-        float sizeY = Float.parseFloat(linesRead.get(3));
-        
-        float texCoordX = Float.parseFloat(linesRead.get(4));
-        float texCoordY = Float.parseFloat(linesRead.get(5));
-        resX = 2353.0f;
-        resY = 1747.0f;
-        newCoordinates="";
-        for(int p=0; p<poly.getPositions().size(); p++)
-        {
-            newCoordinates += ((poly.getPositions().get(p).getCoordinate("x") - texCoordX)/(sizeX*resX)) + " " + (1-(poly.getPositions().get(p).getCoordinate("y") - texCoordY)/(sizeY*resY)) +" ";
+        return computeGeoRefCoords(TexturePath, geoFileName, poly.getGeometry(), resX, resY);
+    }
+    
+    /**
+     * Compute texture coordinates of the given geometry from the world file belonging to the texture of the ground
+     * and set them at its vertices. The world file is read once per texture and kept in the cache of WorldFile.
+     * @param resX Width of the texture in pixels, used if it cannot be read from the image
+     * @param resY Height of the texture in pixels, used if it cannot be read from the image
+     * @param geometry The geometry whose vertices are to be mapped onto the texture
+     * @return true if texture coordinates were set, false if the texture has no usable world file
+     */
+    public boolean computeGeoRefCoords(String TexturePath, String geoFileName, GeometryBuffer geometry, float resX, float resY)
+    {
+        WorldFile georeference = WorldFile.forTexture(TexturePath, geoFileName, resX, resY);
+        if (georeference == null) {
+            return false;
         }
-        return newCoordinates;
+        georeference.setTexCoords(geometry);
+        return true;
     }
+
     /**
-     * This function triggers the startWriting method of the xmlWriter
+     * This function completes the output of the writer
+     * @return The result of the writer: the document for the standard constructor, the output file otherwise
      */
-    public StreamResult processXML() {
-        return this.writer.startWriting();
+    public StreamResult processXML() throws IOException {
+        return this.writer.finish();
 
     }
 }
@@ -15,12 +15,13 @@ public class xmlShader {
     private static final Logger log = Logger.getLogger(xmlShader.class.getName());
     private String id = new String();
     private String shaderType = new String();          //diffuse or texture
-    private String diffuseColor = new String("1.0 1.0 1.0");
+    private float[] diffuseColor = { 1.0f, 1.0f, 1.0f };   //parsed once, when the color is set
     private float ambient = 0.4f;
     private String texturePath = new String();         //location of the texture file
-    private String texCoords = new String();
+    private String sourcePath = new String();          //location of the texture file as given in the gml file
     private String wrapMode = new String();
     private ArrayList<String> targets = new ArrayList<String>();           //List of polygon-ids using this shader
+    private xmlShader definition = this;                                   //shader written to the output in place of this one
     
     private Element shaderNode;
     
@@ -29,14 +30,6 @@ public class xmlShader {
         
     }
     
-    /**
-     * Get texture coordinates for current shader
-     * @return texture coordinates as string
-     */
-    public String getTexCoords()
-    {
-        return this.texCoords;
-    }
     /**
      * Set the ambient intensity of the current shader to the given value
      * @param ambient Ambient intensity to be used
@@ -53,14 +46,6 @@ public class xmlShader {
     {
         this.id = id;
     }
-    /**
-     * Set the texture coordinates defined for this texture to the given ones
-     * @param texCoords Texture coordinates to be used, provided as string
-     */
-    public void setTexCoords(String texCoords)
-    {
-        this.texCoords = texCoords;
-    }
     /**
      * If the texture needs a specific wrap mode, it can be set via this method.
      * @param wrapMode 
@@ -69,6 +54,27 @@ public class xmlShader {
     {
         this.wrapMode = wrapMode;
     }
+    public String getWrapMode()
+    {
+        return this.wrapMode;
+    }
+    /**
+     * Get the shader whose definition is written for this one. Shaders of appearances packed into the same
+     * texture atlas page keep their own texture coordinates, but share the shader of the page.
+     * @return The shader written to the output, this shader itself unless it has been replaced
+     */
+    public xmlShader getDefinition()
+    {
+        return this.definition;
+    }
+    /**
+     * Replace the definition of this shader by the one of another shader, which has the same id
+     * @param definition The shader written to the output instead of this one
+     */
+    public void setDefinition(xmlShader definition)
+    {
+        this.definition = definition;
+    }
     /**
      * Set the path to the texture this shader is using
      * @param texturePath The path to be used
@@ -91,7 +97,19 @@ public class xmlShader {
      */
     public void setDiffuseColor(String diffColor)
     {
-        this.diffuseColor = diffColor;
+        float colors[] = new float[3];
+        try{
+        String[] components = diffColor.trim().split("\\s+");
+        for(int c=0; c<colors.length; c++)
+        {
+            colors[c] = Float.parseFloat(components[c]);
+        }
+        } catch(Exception e)
+        {
+            log.error("Could not resolve diffuse color of shader " + this.id +": " +e);
+            colors = new float[3];
+        }
+        this.diffuseColor = colors;
     }
     /**
      * Define the type of the shader
@@ -125,7 +143,7 @@ public class xmlShader {
             
             for(int j=0; j<diffColors.getLength(); j ++)
             {
-                this.diffuseColor = (diffColors.item(j).getFirstChild().getNodeValue());
+                setDiffuseColor(diffColors.item(j).getFirstChild().getNodeValue());
             }
             
             for(int k=0; k<targets.getLength(); k++)
@@ -141,27 +159,32 @@ public class xmlShader {
     {
         return this.texturePath;
     }
+    /**
+     * Get the path of the texture as given in the gml file, e.g. of the original image of a transcoded texture,
+     * which the georeference of ground textures is read for
+     * @return The path of the original texture, the texture path if none was set
+     */
+    public String getSourcePath()
+    {
+        return this.sourcePath.isEmpty() ? this.texturePath : this.sourcePath;
+    }
+    /**
+     * Set the path of the texture as given in the gml file
+     * @param sourcePath The path of the original texture
+     */
+    public void setSourcePath(String sourcePath)
+    {
+        this.sourcePath = sourcePath;
+    }
+    /**
+     * Get the diffuse color of the shader
+     * @return r, g and b of the color, shared with the shader and not to be changed
+     */
     public float[] getDiffuseColor()
     {
-        float colors[] = new float[3];
-        try{
-        String diffuseString = this.diffuseColor;
-        
-        float r = Float.valueOf(diffuseString.split("\\s+")[0]);
-        float g = Float.valueOf(diffuseString.split("\\s+")[1]);
-        float b = Float.valueOf(diffuseString.split("\\s+")[2]);
-        colors[0] = r;
-        colors[1] = g;
-        colors[2] = b;
-        
-        } catch(Exception e)
-        {
-            log.error("Could not resolve diffuse color of shader " + this.id +": " +e);
-        }
-        return colors;
+        return this.diffuseColor;
     }
     
-        
     /**
      * Find texture definitions in the gml file. When a texture is found, store its path in
      * the shader instance and set its type to "Texture".
@@ -184,16 +207,12 @@ public class xmlShader {
             NodeList texturePath = texture.getElementsByTagName("app:imageURI");
             
             NodeList targets = texture.getElementsByTagName("app:target");
-            NodeList texCoords = texture.getElementsByTagName("app:textureCoordinates");
             NodeList wrapMode = texture.getElementsByTagName("app:wrapMode");
             
             
             if(texturePath.getLength() > 0)
                 this.texturePath = (texturePath.item(0).getFirstChild().getNodeValue());
             
-            if(texCoords.getLength() > 0)
-                this.texCoords = (texCoords.item(0).getFirstChild().getNodeValue());
-            
             if(wrapMode.getLength() > 0)
                 this.wrapMode = (wrapMode.item(0).getFirstChild().getNodeValue());
             
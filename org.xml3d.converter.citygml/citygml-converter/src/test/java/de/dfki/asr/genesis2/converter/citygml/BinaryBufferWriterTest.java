@@ -0,0 +1,95 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Blobs have to be aligned, little-endian and found at the range returned for them, also after
+ * the writer moved on to the next file.
+ */
+public class BinaryBufferWriterTest
+    extends TestCase
+{
+    private File directory;
+
+    public BinaryBufferWriterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( BinaryBufferWriterTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile( "buffers", "" );
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for ( File file : directory.listFiles() )
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testBlobs() throws Exception
+    {
+        BinaryBufferWriter writer = new BinaryBufferWriter( new File( directory, "city.xhtml" ).getPath(), 4096 );
+        int[] indices = { 0, 1, 2 };
+        double[] positions = new double[300];
+        for ( int i = 0; i < positions.length; i++ )
+        {
+            positions[i] = 5400000.25 + i;
+        }
+        float[] normals = { 0.0f, -1.0f, 0.5f };
+
+        BinaryBufferWriter.Range indexRange = writer.write( indices, 3 );
+        BinaryBufferWriter.Range positionRange = writer.write( positions, 300 );
+        //does not fit into the first file anymore
+        BinaryBufferWriter.Range secondPositionRange = writer.write( positions, 300 );
+        BinaryBufferWriter.Range normalRange = writer.write( normals, 2 );
+        writer.close();
+
+        assertEquals( "city_0.bin", indexRange.getFile() );
+        assertEquals( 0, indexRange.getOffset() );
+        assertEquals( 12, indexRange.getLength() );
+        assertEquals( 16, positionRange.getOffset() );
+        assertEquals( 2400, positionRange.getLength() );
+        assertEquals( "city_1.bin", secondPositionRange.getFile() );
+        assertEquals( 0, secondPositionRange.getOffset() );
+        assertEquals( "city_1.bin", normalRange.getFile() );
+        assertEquals( 2400, normalRange.getOffset() );
+        assertEquals( 8, normalRange.getLength() );
+
+        ByteBuffer first = read( "city_0.bin" );
+        assertEquals( 2416, first.limit() );
+        assertEquals( 2, first.getInt( 8 ) );
+        assertEquals( 5400000.25, first.getDouble( 16 ) );
+        assertEquals( 5400299.25, first.getDouble( 16 + 299 * 8 ) );
+        ByteBuffer second = read( "city_1.bin" );
+        assertEquals( 2408, second.limit() );
+        assertEquals( -1.0f, second.getFloat( 2404 ) );
+    }
+
+    private ByteBuffer read( String name ) throws Exception
+    {
+        RandomAccessFile file = new RandomAccessFile( new File( directory, name ), "r" );
+        byte[] bytes = new byte[(int) file.length()];
+        file.readFully( bytes );
+        file.close();
+        return ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+    }
+}
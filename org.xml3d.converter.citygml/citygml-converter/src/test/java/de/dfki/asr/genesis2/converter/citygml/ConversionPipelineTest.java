@@ -0,0 +1,187 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * City objects converted by the pipeline have to be written in the order of the file, whatever the number of threads
+ * and the capacity of the queue, with the shaders of appearances following them in the file.
+ */
+public class ConversionPipelineTest
+    extends TestCase
+{
+    private static final int BUILDINGS = 60;
+
+    private File file;
+    private File output;
+
+    public ConversionPipelineTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ConversionPipelineTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile( "citymodel", ".gml" );
+        OutputStream out = new FileOutputStream( file );
+        out.write( generateCityModel().getBytes( "UTF-8" ) );
+        out.close();
+        output = File.createTempFile( "scene", ".xhtml" );
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+        output.delete();
+    }
+
+    public void testIndependentOfThreads() throws Exception
+    {
+        ConversionPipeline sequential = convert( 1, 1 );
+        String expected = read( output );
+        ConversionPipeline parallel = convert( 4, 3 );
+        assertEquals( expected, read( output ) );
+
+        assertTrue( expected.indexOf( "id=\"B0_P0\"" ) < expected.indexOf( "id=\"B1_P0\"" ) );
+        assertTrue( expected.indexOf( "id=\"B" + ( BUILDINGS - 1 ) + "_P2\"" ) < expected.indexOf( "id=\"groundObject_0_id\"" ) );
+        for ( ConversionPipeline pipeline : new ConversionPipeline[] { sequential, parallel } )
+        {
+            assertEquals( BUILDINGS + 1, pipeline.getParseStage().getObjects() );
+            assertEquals( BUILDINGS + 1, pipeline.getGeometryStage().getObjects() );
+            assertEquals( BUILDINGS + 1, pipeline.getWriteStage().getObjects() );
+        }
+        assertTrue( sequential.getMaxQueued() <= 1 );
+        assertTrue( parallel.getMaxQueued() <= 3 );
+    }
+
+    /**
+     * Appearances at the end of the file are bound before the first city object is written
+     */
+    public void testLateAppearances() throws Exception
+    {
+        convert( 2, 4 );
+        String scene = read( output );
+        assertTrue( scene.contains( "shader=\"#material_0\"" ) );
+        String textured = scene.substring( scene.indexOf( "<data id=\"B7_P1\"" ) );
+        textured = textured.substring( 0, textured.indexOf( "</data>" ) );
+        assertTrue( textured.contains( "texcoord" ) );
+        assertTrue( scene.contains( "shader=\"#textureShader_0\"" ) );
+    }
+
+    /**
+     * Converting each city object as it is read on the calling thread has to write the same file
+     */
+    public void testSameAsStream() throws Exception
+    {
+        convert( 3, 2 );
+        String expected = read( output );
+        GmlConverter.initializeGmlStreamParser( file.getPath(), output.getPath(), "", 1.0f, 1.0f );
+        assertEquals( expected, read( output ) );
+    }
+
+    /**
+     * A broken file has to end the pipeline with the error of the parser instead of leaving the writer waiting
+     */
+    public void testParserFailure() throws Exception
+    {
+        String gml = generateCityModel();
+        gml = gml.substring( 0, gml.indexOf( "<core:cityObjectMember>\n<bldg:Building gml:id=\"B30\"" ) ) + "<core:cityObjectMember></bldg:Building>";
+        xmlProcessor processor = new xmlProcessor( new XML3DStreamWriter( output.getPath(), false ) );
+        ConversionPipeline pipeline = new ConversionPipeline( 2, 2 );
+        try
+        {
+            pipeline.run( new gmlStreamParser( new ByteArrayInputStream( gml.getBytes( "UTF-8" ) ) ), new IdRegistry(),
+                    new GeometryProcessor( 1 ), processor, "", 1.0f, 1.0f );
+            fail( "Broken file converted" );
+        }
+        catch ( Exception e )
+        {
+            assertEquals( 30, pipeline.getWriteStage().getObjects() );
+        }
+    }
+
+    private ConversionPipeline convert( int threads, int capacity ) throws Exception
+    {
+        Map<String, xmlShader> shaders = new HashMap<String, xmlShader>();
+        IdRegistry registry = new IdRegistry();
+        gmlStreamParser appearances = new gmlStreamParser( file.getPath() );
+        appearances.parseAppearances( new CityObjectCollector( new HashMap<String, Building>(), new HashMap<String, Semantics>(),
+                new HashMap<String, Ground>(), shaders, registry ) );
+        new ShaderFactory().generateStandardShaders( shaders );
+        xmlProcessor processor = new xmlProcessor( new XML3DStreamWriter( output.getPath(), false ) );
+        ConversionPipeline pipeline = new ConversionPipeline( threads, capacity );
+        pipeline.run( new gmlStreamParser( file.getPath() ), registry, new GeometryProcessor( 1 ), processor, "", 1.0f, 1.0f );
+        processor.processShader( shaders );
+        processor.addCamera( appearances.getSceneBoundary( "lower" ), appearances.getSceneBoundary( "upper" ) );
+        processor.processXML();
+        return pipeline;
+    }
+
+    private static String read( File file ) throws Exception
+    {
+        Scanner scanner = new Scanner( file, "UTF-8" );
+        try
+        {
+            return scanner.useDelimiter( "\\A" ).next();
+        }
+        finally
+        {
+            scanner.close();
+        }
+    }
+
+    /**
+     * City model with a bounding box, a relief feature after the buildings and all appearances at its end
+     */
+    private static String generateCityModel()
+    {
+        StringBuilder gml = new StringBuilder();
+        gml.append( "<core:CityModel xmlns:core=\"c\" xmlns:gml=\"g\" xmlns:bldg=\"b\" xmlns:app=\"a\" xmlns:dem=\"d\">\n" );
+        gml.append( "<gml:boundedBy><gml:Envelope><gml:lowerCorner>0 0 0</gml:lowerCorner>"
+                + "<gml:upperCorner>" + BUILDINGS + " 3 10</gml:upperCorner></gml:Envelope></gml:boundedBy>\n" );
+        for ( int b = 0; b < BUILDINGS; b++ )
+        {
+            gml.append( "<core:cityObjectMember>\n<bldg:Building gml:id=\"B" ).append( b ).append( "\">" );
+            for ( int p = 0; p < 3; p++ )
+            {
+                gml.append( "<bldg:boundedBy><bldg:WallSurface><bldg:lod2MultiSurface><gml:MultiSurface><gml:surfaceMember>" );
+                gml.append( "<gml:Polygon gml:id=\"B" ).append( b ).append( "_P" ).append( p ).append( "\"><gml:exterior><gml:LinearRing><gml:posList>" );
+                gml.append( b ).append( " " ).append( p ).append( " 0 " ).append( b + 1 ).append( " " ).append( p ).append( " 0 " );
+                gml.append( b + 1 ).append( " " ).append( p ).append( " 10 " ).append( b ).append( " " ).append( p ).append( " 0" );
+                gml.append( "</gml:posList></gml:LinearRing></gml:exterior></gml:Polygon>" );
+                gml.append( "</gml:surfaceMember></gml:MultiSurface></bldg:lod2MultiSurface></bldg:WallSurface></bldg:boundedBy>\n" );
+            }
+            gml.append( "</bldg:Building>\n</core:cityObjectMember>\n" );
+        }
+        gml.append( "<core:cityObjectMember><dem:ReliefFeature><dem:reliefComponent><dem:TINRelief><dem:tin>" );
+        gml.append( "<gml:TriangulatedSurface><gml:trianglePatches>" );
+        gml.append( "<gml:Triangle><gml:exterior><gml:LinearRing><gml:posList>0 0 0 1 0 0 0 1 0 0 0 0</gml:posList>" );
+        gml.append( "</gml:LinearRing></gml:exterior></gml:Triangle>" );
+        gml.append( "</gml:trianglePatches></gml:TriangulatedSurface></dem:tin></dem:TINRelief></dem:reliefComponent>" );
+        gml.append( "</dem:ReliefFeature></core:cityObjectMember>\n" );
+        gml.append( "<app:appearanceMember><app:Appearance><app:surfaceDataMember><app:X3DMaterial>" );
+        gml.append( "<app:diffuseColor>0.8 0.2 0.2</app:diffuseColor><app:target>#B5_P0</app:target>" );
+        gml.append( "</app:X3DMaterial></app:surfaceDataMember>" );
+        gml.append( "<app:surfaceDataMember><app:ParameterizedTexture><app:imageURI>wall.png</app:imageURI>" );
+        gml.append( "<app:target uri=\"#B7_P1\"><app:TexCoordList><app:textureCoordinates ring=\"#B7_P1_R\">" );
+        gml.append( "0 0 1 0 1 1 0 0</app:textureCoordinates></app:TexCoordList></app:target>" );
+        gml.append( "</app:ParameterizedTexture></app:surfaceDataMember></app:Appearance></app:appearanceMember>\n" );
+        gml.append( "</core:CityModel>\n" );
+        return gml.toString();
+    }
+}
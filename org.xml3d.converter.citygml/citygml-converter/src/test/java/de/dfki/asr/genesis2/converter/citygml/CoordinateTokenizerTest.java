@@ -0,0 +1,76 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the CoordinateTokenizer.
+ */
+public class CoordinateTokenizerTest
+    extends TestCase
+{
+    public CoordinateTokenizerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CoordinateTokenizerTest.class );
+    }
+
+    /**
+     * Any whitespace separates numbers, leading and trailing whitespace is ignored
+     */
+    public void testWhitespace()
+    {
+        CoordinateTokenizer tokenizer = new CoordinateTokenizer();
+        tokenizer.append( "\n\t  5432123.456789  1.5\r\n-2e3 +0.25\t" );
+        assertEquals( 4, tokenizer.size() );
+        assertEquals( 5432123.456789, tokenizer.values()[0] );
+        assertEquals( 1.5, tokenizer.values()[1] );
+        assertEquals( -2000.0, tokenizer.values()[2] );
+        assertEquals( 0.25, tokenizer.values()[3] );
+        assertEquals( 0, tokenizer.getInvalidTokens() );
+    }
+
+    /**
+     * Numbers split across several chunks are joined, separate() ends a number
+     */
+    public void testChunks()
+    {
+        CoordinateTokenizer tokenizer = new CoordinateTokenizer();
+        tokenizer.append( "1 2.7" );
+        tokenizer.append( "5 3" );
+        tokenizer.separate();
+        tokenizer.append( "4" );
+        assertEquals( 4, tokenizer.size() );
+        assertEquals( 2.75, tokenizer.values()[1] );
+        assertEquals( 4.0, tokenizer.values()[3] );
+        tokenizer.reset();
+        assertEquals( 0, tokenizer.size() );
+    }
+
+    /**
+     * Results have to be identical to Double.parseDouble, invalid tokens are skipped
+     */
+    public void testParsing()
+    {
+        String[] numbers = { "0", "-0.0", "123456789012345678901234", "0.1", "1e-30", "9007199254740993",
+            "3.141592653589793238", "1.7976931348623157E308", "4.9e-324", ".5", "7.", "Infinity" };
+        CoordinateTokenizer tokenizer = new CoordinateTokenizer();
+        for ( String number : numbers )
+        {
+            tokenizer.append( number + " " );
+        }
+        tokenizer.append( "abc 1..2 - 8" );
+        assertEquals( numbers.length + 1, tokenizer.size() );
+        for ( int i = 0; i < numbers.length; i++ )
+        {
+            assertEquals( numbers[i], Double.doubleToLongBits( Double.parseDouble( numbers[i] ) ),
+                    Double.doubleToLongBits( tokenizer.values()[i] ) );
+        }
+        assertEquals( 3, tokenizer.getInvalidTokens() );
+    }
+}
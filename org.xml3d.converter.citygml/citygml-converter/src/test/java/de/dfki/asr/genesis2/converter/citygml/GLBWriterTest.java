@@ -0,0 +1,198 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * The GLB file has to consist of a header, a JSON chunk and a binary chunk, all aligned to four bytes,
+ * with the vertices stored relative to the origin of the root node.
+ */
+public class GLBWriterTest
+    extends TestCase
+{
+    private File file;
+
+    public GLBWriterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( GLBWriterTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile( "scene", ".glb" );
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testFile() throws Exception
+    {
+        GLBWriter writer = new GLBWriter( file.getPath() );
+        GeometryBuffer geometry = new GeometryBuffer();
+        geometry.addVertex( 3500000.5, 5400000, 100 );
+        geometry.addVertex( 3500002, 5400000, 100 );
+        geometry.addVertex( 3500002, 5400001, 100 );
+        geometry.setFaceNormal( 0, 3 );
+        geometry.addTriangle( 0, 1, 2 );
+        geometry.setTexCoord( 1, 1, 0 );
+        geometry.setTexCoord( 2, 1, 1 );
+        writer.writeMesh( "M1", geometry );
+
+        SceneGroup building = new SceneGroup( "B1_id" );
+        building.addAttribute( "class", "B1" );
+        SceneGroup polygon = new SceneGroup( "B1_child_0", building );
+        polygon.addAttribute( "shader", "#material_0" );
+        SceneGroup meshReference = new SceneGroup( polygon );
+        meshReference.makeMesh();
+        meshReference.addAttribute( "src", "#M1" );
+        SceneGroup semantics = new SceneGroup( building );
+        semantics.addAttribute( "property", "Name" );
+        semantics.addTextContent( "\"Rathaus\"" );
+        semantics.makeDiv();
+        writer.writeGroup( building );
+
+        xmlShader shader = new xmlShader();
+        shader.setID( "material_0" );
+        shader.setShaderType( "Material" );
+        shader.setDiffuseColor( "1 0 0" );
+        writer.writeShader( shader );
+        writer.finish();
+        assertFalse( new File( file.getPath() + ".bin.tmp" ).exists() );
+
+        byte[] bytes = read( file );
+        ByteBuffer glb = ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+        assertEquals( 0x46546C67, glb.getInt( 0 ) );
+        assertEquals( 2, glb.getInt( 4 ) );
+        assertEquals( bytes.length, glb.getInt( 8 ) );
+        int jsonLength = glb.getInt( 12 );
+        assertEquals( 0, jsonLength % 4 );
+        String json = new String( bytes, 20, jsonLength, "UTF-8" );
+        assertTrue( json.contains( "\"name\":\"B1\",\"mesh\":0,\"extras\":{\"id\":\"B1\",\"Name\":\"\\\"Rathaus\\\"\"}" ) );
+        assertTrue( json.contains( "\"TEXCOORD_0\":2},\"indices\":3,\"material\":0" ) );
+        assertTrue( json.contains( "\"baseColorFactor\":[1.0,0.0,0.0,1.0]" ) );
+        assertTrue( json.contains( "\"translation\":[3500000.0,100.0,-5400000.0]" ) );
+        assertTrue( json.contains( "\"byteStride\":32" ) );
+
+        int binStart = 20 + jsonLength;
+        int binLength = glb.getInt( binStart );
+        assertEquals( 0x004E4942, glb.getInt( binStart + 4 ) );
+        assertEquals( bytes.length, binStart + 8 + binLength );
+        //3 vertices of 32 bytes, 3 indices
+        assertTrue( json.contains( "\"buffers\":[{\"byteLength\":108}]" ) );
+        int data = binStart + 8;
+        assertEquals( 0.5f, glb.getFloat( data ) );
+        //the counterclockwise triangle faces up in glTF
+        assertEquals( 1.0f, glb.getFloat( data + 5 * 4 ) );
+        assertEquals( 1.0f, glb.getFloat( data + 32 + 6 * 4 ) );
+        //v points down in glTF
+        assertEquals( 1.0f, glb.getFloat( data + 32 + 7 * 4 ) );
+        assertEquals( 0.0f, glb.getFloat( data + 64 + 7 * 4 ) );
+        assertEquals( 2, glb.getInt( data + 96 + 8 ) );
+    }
+
+    /**
+     * glTF takes counterclockwise triangles as front faces, so the normals written have to point to the side the
+     * triangles are counterclockwise from, whatever the orientation of the polygon
+     */
+    public void testNormalsFollowWinding() throws Exception
+    {
+        GLBWriter writer = new GLBWriter( file.getPath() );
+        SceneGroup building = new SceneGroup( "B1_id" );
+        String[] rings = { "0 0 0 1 0 0 1 1 0 0 1 0 0 0 0", "0 0 0 0 1 0 1 1 0 1 0 0 0 0 0", "0 0 0 0 0 1 0 1 1 0 1 0 0 0 0" };
+        CoordinateTokenizer coordinates = new CoordinateTokenizer();
+        for ( int p = 0; p < rings.length; p++ )
+        {
+            coordinates.reset();
+            coordinates.append( rings[p] );
+            XmlPoly polygon = new XmlPoly();
+            polygon.setPositions( coordinates.values(), coordinates.size() / 3 );
+            polygon.computeGeometry();
+            writer.writeMesh( "P" + p, polygon.getGeometry() );
+            SceneGroup meshReference = new SceneGroup( new SceneGroup( "B1_child_" + p, building ) );
+            meshReference.makeMesh();
+            meshReference.addAttribute( "src", "#P" + p );
+        }
+        writer.writeGroup( building );
+        writer.finish();
+
+        ByteBuffer glb = ByteBuffer.wrap( read( file ) ).order( ByteOrder.LITTLE_ENDIAN );
+        int data = 20 + glb.getInt( 12 ) + 8;
+        for ( int p = 0; p < rings.length; p++ )
+        {
+            //each square: 4 vertices of 24 bytes, 6 indices
+            int vertices = data + p * ( 4 * 24 + 6 * 4 );
+            int indices = vertices + 4 * 24;
+            for ( int t = 0; t < 6; t += 3 )
+            {
+                float[] a = position( glb, vertices, glb.getInt( indices + t * 4 ) );
+                float[] b = position( glb, vertices, glb.getInt( indices + t * 4 + 4 ) );
+                float[] c = position( glb, vertices, glb.getInt( indices + t * 4 + 8 ) );
+                float[] normal = position( glb, vertices + 12, glb.getInt( indices + t * 4 ) );
+                float[] ab = { b[0] - a[0], b[1] - a[1], b[2] - a[2] };
+                float[] ac = { c[0] - a[0], c[1] - a[1], c[2] - a[2] };
+                float[] face = { ab[1] * ac[2] - ab[2] * ac[1], ab[2] * ac[0] - ab[0] * ac[2], ab[0] * ac[1] - ab[1] * ac[0] };
+                assertTrue( face[0] * normal[0] + face[1] * normal[1] + face[2] * normal[2] > 0 );
+            }
+        }
+    }
+
+    /**
+     * Meshes without triangles would need empty accessors, which glTF does not allow, so they are left out
+     */
+    public void testEmptyMesh() throws Exception
+    {
+        GLBWriter writer = new GLBWriter( file.getPath() );
+        GeometryBuffer degenerate = new GeometryBuffer();
+        degenerate.addVertex( 0, 0, 0 );
+        degenerate.addVertex( 1, 0, 0 );
+        writer.writeMesh( "M1", degenerate );
+        writer.writeMesh( "M2", new GeometryBuffer() );
+        SceneGroup building = new SceneGroup( "B1_id" );
+        for ( int m = 1; m <= 2; m++ )
+        {
+            SceneGroup meshReference = new SceneGroup( building );
+            meshReference.makeMesh();
+            meshReference.addAttribute( "src", "#M" + m );
+        }
+        writer.writeGroup( building );
+        writer.finish();
+
+        byte[] bytes = read( file );
+        ByteBuffer glb = ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+        String json = new String( bytes, 20, glb.getInt( 12 ), "UTF-8" );
+        assertFalse( json.contains( "\"meshes\"" ) );
+        assertFalse( json.contains( "\"accessors\"" ) );
+        assertFalse( json.contains( "\"bufferViews\"" ) );
+        assertFalse( json.contains( "\"buffers\"" ) );
+        assertEquals( bytes.length, glb.getInt( 8 ) );
+    }
+
+    private static float[] position( ByteBuffer glb, int vertices, int index )
+    {
+        int offset = vertices + index * 24;
+        return new float[] { glb.getFloat( offset ), glb.getFloat( offset + 4 ), glb.getFloat( offset + 8 ) };
+    }
+
+    private static byte[] read( File file ) throws Exception
+    {
+        RandomAccessFile input = new RandomAccessFile( file, "r" );
+        byte[] bytes = new byte[(int) input.length()];
+        input.readFully( bytes );
+        input.close();
+        return bytes;
+    }
+}
@@ -0,0 +1,90 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Appending buffers, as done when merging the polygons of a building, has to rebase the indices.
+ */
+public class GeometryBufferTest
+    extends TestCase
+{
+    public GeometryBufferTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( GeometryBufferTest.class );
+    }
+
+    public void testAppend()
+    {
+        GeometryBuffer merged = new GeometryBuffer();
+        merged.append( quad( 0, false ) );
+        merged.append( quad( 10, true ) );
+        merged.append( quad( 20, false ) );
+
+        assertEquals( 12, merged.getVertexCount() );
+        assertEquals( 18, merged.getIndexCount() );
+        int[] expected = { 0, 1, 2, 0, 2, 3, 4, 5, 6, 4, 6, 7, 8, 9, 10, 8, 10, 11 };
+        for ( int i = 0; i < expected.length; i++ )
+        {
+            assertEquals( expected[i], merged.getIndices()[i] );
+        }
+        assertEquals( 20.0, merged.getX( 8 ) );
+        assertEquals( 1.0f, merged.getNormals()[8 * 3 + 2] );
+        //texture coordinates of the second quad are kept, the others are zero
+        assertEquals( 0.0f, merged.getTexCoords()[3 * 2] );
+        assertEquals( 1.0f, merged.getTexCoords()[6 * 2] );
+        assertEquals( 0.0f, merged.getTexCoords()[10 * 2] );
+    }
+
+    public void testFaceNormal()
+    {
+        //a georeferenced polygon with a reflex and a collinear vertex, slightly non-planar
+        GeometryBuffer polygon = new GeometryBuffer();
+        double[] corners = { 0, 0, 2, 2, 4, 2, 4, 4, 2, 4, 0, 4 };
+        for ( int i = 0; i < corners.length; i += 2 )
+        {
+            polygon.addVertex( 3500000 + corners[i], 5400000 + corners[i + 1], 300 + ( i == 4 ? 0.001 : 0 ) );
+        }
+        polygon.setFaceNormal( 0, polygon.getVertexCount() );
+        for ( int v = 0; v < polygon.getVertexCount(); v++ )
+        {
+            //counterclockwise seen from above, which is a downward normal in the orientation of XmlPoly
+            assertEquals( -1.0f, polygon.getNormals()[v * 3 + 2], 1e-6f );
+            assertEquals( 0.0f, polygon.getNormals()[v * 3], 1e-3f );
+        }
+
+        //a ring without area keeps its normals
+        GeometryBuffer line = new GeometryBuffer();
+        line.addVertex( 0, 0, 0 );
+        line.addVertex( 1, 0, 0 );
+        line.addVertex( 2, 0, 0 );
+        line.setFaceNormal( 0, 3 );
+        assertEquals( 0.0f, line.getNormals()[2] );
+    }
+
+    private static GeometryBuffer quad( double x, boolean textured )
+    {
+        GeometryBuffer quad = new GeometryBuffer();
+        quad.addVertex( x, 0, 0 );
+        quad.addVertex( x + 1, 0, 0 );
+        quad.addVertex( x + 1, 1, 0 );
+        quad.addVertex( x, 1, 0 );
+        for ( int v = 0; v < 4; v++ )
+        {
+            quad.setNormal( v, 0, 0, 1 );
+            if ( textured )
+            {
+                quad.setTexCoord( v, v == 2 ? 1 : 0, v >= 2 ? 1 : 0 );
+            }
+        }
+        quad.addTriangle( 0, 1, 2 );
+        quad.addTriangle( 0, 2, 3 );
+        return quad;
+    }
+}
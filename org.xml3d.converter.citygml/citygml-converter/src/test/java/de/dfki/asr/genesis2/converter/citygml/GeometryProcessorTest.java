@@ -0,0 +1,181 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * The geometry computed by several threads has to be identical to the one computed sequentially.
+ */
+public class GeometryProcessorTest
+    extends TestCase
+{
+    private static final int BUILDINGS = 300;
+    private static final int POLYGONS = 9;
+    private static final int TRIANGLES = 5000;
+
+    public GeometryProcessorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( GeometryProcessorTest.class );
+    }
+
+    public void testParallelMatchesSequential()
+    {
+        List<Building> sequentialBuildings = createBuildings();
+        List<Ground> sequentialGround = createGround();
+        new GeometryProcessor( 1 ).process( sequentialBuildings, sequentialGround );
+
+        List<Building> parallelBuildings = createBuildings();
+        List<Ground> parallelGround = createGround();
+        new GeometryProcessor( 4 ).process( parallelBuildings, parallelGround );
+
+        for ( int b = 0; b < BUILDINGS; b++ )
+        {
+            assertSameGeometry( sequentialBuildings.get( b ).getPolyList(), parallelBuildings.get( b ).getPolyList() );
+        }
+        assertSameGeometry( sequentialGround.get( 0 ).getPolyList(), parallelGround.get( 0 ).getPolyList() );
+    }
+
+    /**
+     * Computing the geometry a second time must not add the triangles again
+     */
+    public void testRepeatedProcessing()
+    {
+        List<Building> buildings = createBuildings();
+        new GeometryProcessor( 1 ).process( buildings, new ArrayList<Ground>() );
+        new GeometryProcessor( 2 ).process( buildings, new ArrayList<Ground>() );
+        GeometryBuffer geometry = buildings.get( 0 ).getPolyList().get( 0 ).getGeometry();
+        assertEquals( 3 * ( geometry.getVertexCount() - 2 ), geometry.getIndexCount() );
+    }
+
+    /**
+     * The texture coordinates of each ring have to be set at the vertices of that ring, without the pair closing it
+     */
+    public void testTexCoords()
+    {
+        Building building = new Building();
+        building.setId( "B" );
+        CoordinateTokenizer coordinates = new CoordinateTokenizer();
+        coordinates.append( "0 0 0 4 0 0 4 4 0 0 4 0 0 0 0 1 1 0 2 1 0 2 2 0 1 1 0" );
+        building.addPolygon( "P", coordinates );
+        IdRegistry registry = new IdRegistry();
+        registry.bindShader( "#P", new xmlShader(), new float[][] {
+            { 0, 0, 1, 0, 1, 1, 0, 1, 0, 0 }, { 0.25f, 0.25f, 0.5f, 0.25f, 0.5f, 0.5f, 0.25f, 0.25f } } );
+        List<Building> buildings = new ArrayList<Building>();
+        buildings.add( building );
+        new GeometryProcessor( 2 ).process( buildings, new ArrayList<Ground>(), registry );
+
+        GeometryBuffer geometry = building.getPolyList().get( 0 ).getGeometry();
+        assertEquals( 7, geometry.getVertexCount() );
+        assertEquals( 3 * 7, geometry.getIndexCount() );
+        float[] expected = { 0, 0, 1, 0, 1, 1, 0, 1, 0.25f, 0.25f, 0.5f, 0.25f, 0.5f, 0.5f };
+        assertTrue( Arrays.equals( expected, Arrays.copyOf( geometry.getTexCoords(), 14 ) ) );
+    }
+
+    /**
+     * A regular grid of triangles has to end up with one vertex per grid point, in parallel as well
+     */
+    public void testConsolidateGround()
+    {
+        int n = 20;
+        List<Ground> grounds = new ArrayList<Ground>();
+        for ( int g = 0; g < 3; g++ )
+        {
+            grounds.add( createGrid( "TIN" + g, n ) );
+        }
+        GeometryProcessor processor = new GeometryProcessor( 2 );
+        processor.setConsolidateGround( true );
+        processor.process( new ArrayList<Building>(), grounds );
+
+        for ( Ground ground : grounds )
+        {
+            GeometryBuffer mesh = ground.getMesh();
+            assertTrue( ground.getPolyList().isEmpty() );
+            assertEquals( ( n + 1 ) * ( n + 1 ), mesh.getVertexCount() );
+            assertEquals( 6 * n * n, mesh.getIndexCount() );
+            //the grid is flat, so every vertex normal points up (or down, following the ring orientation)
+            for ( int v = 0; v < mesh.getVertexCount(); v++ )
+            {
+                assertEquals( 1.0f, Math.abs( mesh.getNormals()[v * 3 + 2] ), 1e-6f );
+            }
+        }
+    }
+
+    private static void assertSameGeometry( List<XmlPoly> expected, List<XmlPoly> actual )
+    {
+        assertEquals( expected.size(), actual.size() );
+        for ( int p = 0; p < expected.size(); p++ )
+        {
+            GeometryBuffer a = expected.get( p ).getGeometry();
+            GeometryBuffer b = actual.get( p ).getGeometry();
+            assertTrue( a.getIndexCount() > 0 );
+            assertEquals( a.getVertexCount(), b.getVertexCount() );
+            assertTrue( Arrays.equals( Arrays.copyOf( a.getNormals(), a.getVertexCount() * 3 ), Arrays.copyOf( b.getNormals(), b.getVertexCount() * 3 ) ) );
+            assertTrue( Arrays.equals( Arrays.copyOf( a.getIndices(), a.getIndexCount() ), Arrays.copyOf( b.getIndices(), b.getIndexCount() ) ) );
+        }
+    }
+
+    private static List<Building> createBuildings()
+    {
+        List<Building> buildings = new ArrayList<Building>();
+        CoordinateTokenizer coordinates = new CoordinateTokenizer();
+        for ( int b = 0; b < BUILDINGS; b++ )
+        {
+            Building building = new Building();
+            building.setId( "B" + b );
+            for ( int p = 0; p < POLYGONS; p++ )
+            {
+                coordinates.reset();
+                coordinates.append( b + " " + p + " 0 " + ( b + 1.5 ) + " " + p + " 0.25 " + ( b + 1 ) + " " + ( p + 0.5 ) + " 10 "
+                        + b + " " + p + " 10 " + b + " " + p + " 0" );
+                building.addPolygon( "B" + b + "_P" + p, coordinates );
+            }
+            buildings.add( building );
+        }
+        return buildings;
+    }
+
+    private static List<Ground> createGround()
+    {
+        Ground ground = new Ground();
+        ground.setId( "TIN" );
+        CoordinateTokenizer coordinates = new CoordinateTokenizer();
+        for ( int t = 0; t < TRIANGLES; t++ )
+        {
+            coordinates.reset();
+            coordinates.append( t + " 0 " + ( t % 3 ) + " " + ( t + 1 ) + " 0 0 " + t + " 1 0.5 " + t + " 0 " + ( t % 3 ) );
+            ground.addTriangle( "groundTriangle_" + t, coordinates );
+        }
+        List<Ground> grounds = new ArrayList<Ground>();
+        grounds.add( ground );
+        return grounds;
+    }
+
+    private static Ground createGrid( String id, int n )
+    {
+        Ground ground = new Ground();
+        ground.setId( id );
+        CoordinateTokenizer coordinates = new CoordinateTokenizer();
+        for ( int x = 0; x < n; x++ )
+        {
+            for ( int y = 0; y < n; y++ )
+            {
+                coordinates.reset();
+                coordinates.append( x + " " + y + " 0 " + ( x + 1 ) + " " + y + " 0 " + x + " " + ( y + 1 ) + " 0 " + x + " " + y + " 0" );
+                ground.addTriangle( id + "_" + x + "_" + y + "_a", coordinates );
+                coordinates.reset();
+                coordinates.append( ( x + 1 ) + " " + y + " 0 " + ( x + 1 ) + " " + ( y + 1 ) + " 0 " + x + " " + ( y + 1 ) + " 0 " + ( x + 1 ) + " " + y + " 0" );
+                ground.addTriangle( id + "_" + x + "_" + y + "_b", coordinates );
+            }
+        }
+        return ground;
+    }
+}
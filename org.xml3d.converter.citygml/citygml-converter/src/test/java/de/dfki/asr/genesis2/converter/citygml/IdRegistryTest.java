@@ -0,0 +1,192 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Appearance targets have to be resolved through the handles of the polygons, including targets
+ * of enclosing geometries and of geometries referencing polygons by xlink:href.
+ */
+public class IdRegistryTest
+    extends TestCase
+{
+    public IdRegistryTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( IdRegistryTest.class );
+    }
+
+    public void testInterning()
+    {
+        IdRegistry registry = new IdRegistry();
+        int handle = registry.intern( "poly" );
+        assertEquals( handle, registry.intern( "#poly" ) );
+        assertEquals( handle, registry.lookup( " #poly " ) );
+        assertEquals( IdRegistry.NO_HANDLE, registry.lookup( "unknown" ) );
+        assertEquals( "poly", registry.getId( handle ) );
+        assertNull( registry.getShader( IdRegistry.NO_HANDLE ) );
+    }
+
+    public void testTargetResolution() throws Exception
+    {
+        StringBuilder gml = new StringBuilder();
+        gml.append( "<core:CityModel xmlns:core=\"c\" xmlns:gml=\"g\" xmlns:bldg=\"b\" xmlns:app=\"a\" xmlns:xlink=\"l\">" );
+        gml.append( "<core:cityObjectMember><bldg:Building gml:id=\"B\">" );
+        //the solid references P3 before it is defined
+        gml.append( "<bldg:lod2Solid><gml:Solid><gml:exterior><gml:CompositeSurface gml:id=\"CS\">" );
+        gml.append( "<gml:surfaceMember xlink:href=\"#P3\"/></gml:CompositeSurface></gml:exterior></gml:Solid></bldg:lod2Solid>" );
+        gml.append( "<bldg:boundedBy><bldg:WallSurface><bldg:lod2MultiSurface><gml:MultiSurface gml:id=\"MS\">" );
+        gml.append( polygon( "P1" ) ).append( polygon( null ) ).append( polygon( "P2" ) );
+        gml.append( "</gml:MultiSurface></bldg:lod2MultiSurface></bldg:WallSurface></bldg:boundedBy>" );
+        gml.append( "<bldg:boundedBy><bldg:RoofSurface><bldg:lod2MultiSurface><gml:MultiSurface>" );
+        gml.append( polygon( "P3" ) ).append( polygon( "P4" ) );
+        gml.append( "</gml:MultiSurface></bldg:lod2MultiSurface></bldg:RoofSurface></bldg:boundedBy>" );
+        gml.append( "</bldg:Building></core:cityObjectMember>" );
+        gml.append( "<app:appearanceMember><app:Appearance>" );
+        gml.append( material( "1 0 0", "#MS" ) ).append( material( "0 1 0", "#P2" ) ).append( material( "0 0 1", "#CS" ) );
+        gml.append( "</app:Appearance></app:appearanceMember></core:CityModel>" );
+
+        Map<String, Building> buildings = new HashMap<String, Building>();
+        Map<String, xmlShader> shaders = new HashMap<String, xmlShader>();
+        IdRegistry registry = new IdRegistry();
+        gmlParser parser = new gmlParser( new ByteArrayInputStream( gml.toString().getBytes( "UTF-8" ) ) );
+        parser.parseCityModel( new CityObjectCollector( buildings, new HashMap<String, Semantics>(), new HashMap<String, Ground>(),
+                shaders, registry ), registry );
+
+        Building building = buildings.get( "B" );
+        assertEquals( 5, building.getPolyList().size() );
+        assertEquals( "1 0 0", diffuseColor( registry, building.getPolyList().get( 0 ) ) );
+        assertEquals( "1 0 0", diffuseColor( registry, building.getPolyList().get( 1 ) ) );
+        assertEquals( "0 1 0", diffuseColor( registry, building.getPolyList().get( 2 ) ) );
+        assertEquals( "0 0 1", diffuseColor( registry, building.getPolyList().get( 3 ) ) );
+        assertNull( registry.getShader( building.getPolyList().get( 4 ).getHandle() ) );
+    }
+
+    /**
+     * The surface containing a polygon has to give its shader even when a solid referencing the polygon comes first
+     * in the file and has a shader too, as in CityGML 2.0 buildings
+     */
+    public void testContainmentBeforeReference() throws Exception
+    {
+        StringBuilder gml = new StringBuilder();
+        gml.append( "<core:CityModel xmlns:core=\"c\" xmlns:gml=\"g\" xmlns:bldg=\"b\" xmlns:app=\"a\" xmlns:xlink=\"l\">" );
+        gml.append( "<core:cityObjectMember><bldg:Building gml:id=\"B\">" );
+        gml.append( "<bldg:lod2Solid><gml:Solid><gml:exterior><gml:CompositeSurface gml:id=\"CS\">" );
+        gml.append( "<gml:surfaceMember xlink:href=\"#P1\"/><gml:surfaceMember xlink:href=\"#P2\"/>" );
+        gml.append( "</gml:CompositeSurface></gml:exterior></gml:Solid></bldg:lod2Solid>" );
+        gml.append( "<bldg:boundedBy><bldg:WallSurface><bldg:lod2MultiSurface><gml:MultiSurface gml:id=\"MS\">" );
+        gml.append( polygon( "P1" ) );
+        gml.append( "</gml:MultiSurface></bldg:lod2MultiSurface></bldg:WallSurface></bldg:boundedBy>" );
+        gml.append( "<bldg:boundedBy><bldg:RoofSurface><bldg:lod2MultiSurface><gml:MultiSurface gml:id=\"RS\">" );
+        gml.append( polygon( "P2" ) );
+        gml.append( "</gml:MultiSurface></bldg:lod2MultiSurface></bldg:RoofSurface></bldg:boundedBy>" );
+        gml.append( "</bldg:Building></core:cityObjectMember>" );
+        gml.append( "<app:appearanceMember><app:Appearance>" );
+        gml.append( material( "0 0 1", "#CS" ) ).append( material( "1 0 0", "#MS" ) );
+        gml.append( "</app:Appearance></app:appearanceMember></core:CityModel>" );
+
+        Map<String, Building> buildings = new HashMap<String, Building>();
+        IdRegistry registry = new IdRegistry();
+        gmlParser parser = new gmlParser( new ByteArrayInputStream( gml.toString().getBytes( "UTF-8" ) ) );
+        parser.parseCityModel( new CityObjectCollector( buildings, new HashMap<String, Semantics>(), new HashMap<String, Ground>(),
+                new HashMap<String, xmlShader>(), registry ), registry );
+
+        Building building = buildings.get( "B" );
+        assertEquals( "1 0 0", diffuseColor( registry, building.getPolyList().get( 0 ) ) );
+        //the roof surface has no shader, so the one of the solid applies
+        assertEquals( "0 0 1", diffuseColor( registry, building.getPolyList().get( 1 ) ) );
+
+        xmlShader solid = new xmlShader();
+        xmlShader wall = new xmlShader();
+        int polygon = registry.intern( "Q" );
+        registry.linkReference( polygon, registry.intern( "S" ) );
+        registry.link( polygon, registry.intern( "W" ) );
+        registry.bindShader( "#S", solid );
+        registry.resolve();
+        assertSame( solid, registry.getShader( polygon ) );
+        registry.bindShader( "#W", wall );
+        assertSame( wall, registry.getShader( polygon ) );
+    }
+
+    /**
+     * Bindings kept after resolving have to follow later links and shaders of the handles they depend on
+     */
+    public void testKeptBindings()
+    {
+        IdRegistry registry = new IdRegistry();
+        xmlShader wall = new xmlShader();
+        xmlShader roof = new xmlShader();
+        xmlShader other = new xmlShader();
+        int polygon = registry.intern( "P" );
+        int surface = registry.intern( "MS" );
+        registry.link( polygon, surface );
+        registry.link( surface, registry.intern( "S" ) );
+        registry.bindShader( "#S", wall );
+        registry.resolve();
+        assertSame( wall, registry.getShader( polygon ) );
+
+        registry.bindShader( "#MS", roof, new float[][] { { 0, 0 } } );
+        assertSame( roof, registry.getShader( polygon ) );
+        assertEquals( 1, registry.getTexCoords( polygon ).length );
+        //the oldest link with a shader wins
+        registry.link( polygon, registry.intern( "CS" ) );
+        registry.bindShader( "#CS", other );
+        assertSame( roof, registry.getShader( polygon ) );
+        int anonymous = registry.createAnonymous();
+        registry.link( anonymous, polygon );
+        assertSame( roof, registry.getShader( anonymous ) );
+    }
+
+    /**
+     * Long chains of links have to be followed to their end, cyclic references must not hide a shader
+     */
+    public void testChainsAndCycles()
+    {
+        IdRegistry registry = new IdRegistry();
+        xmlShader shader = new xmlShader();
+        for ( int i = 0; i < 20; i++ )
+        {
+            registry.link( registry.intern( "G" + i ), registry.intern( "G" + ( i + 1 ) ) );
+        }
+        registry.bindShader( "G20", shader );
+        assertSame( shader, registry.getShader( registry.lookup( "G0" ) ) );
+
+        int a = registry.intern( "A" );
+        int b = registry.intern( "B" );
+        registry.link( a, b );
+        registry.link( b, a );
+        registry.link( a, registry.intern( "G0" ) );
+        assertSame( shader, registry.getShader( b ) );
+        assertSame( shader, registry.getShader( a ) );
+        registry.link( registry.intern( "C" ), registry.intern( "D" ) );
+        registry.link( registry.lookup( "D" ), registry.lookup( "C" ) );
+        assertNull( registry.getShader( registry.lookup( "C" ) ) );
+    }
+
+    private static String diffuseColor( IdRegistry registry, XmlPoly polygon )
+    {
+        float[] color = registry.getShader( polygon.getHandle() ).getDiffuseColor();
+        return (int) color[0] + " " + (int) color[1] + " " + (int) color[2];
+    }
+
+    private static String polygon( String id )
+    {
+        return "<gml:surfaceMember><gml:Polygon" + ( id == null ? "" : " gml:id=\"" + id + "\"" )
+                + "><gml:exterior><gml:LinearRing><gml:posList>0 0 0 1 0 0 1 1 0 0 0 0</gml:posList>"
+                + "</gml:LinearRing></gml:exterior></gml:Polygon></gml:surfaceMember>";
+    }
+
+    private static String material( String color, String target )
+    {
+        return "<app:surfaceDataMember><app:X3DMaterial><app:diffuseColor>" + color + "</app:diffuseColor>"
+                + "<app:target>" + target + "</app:target></app:X3DMaterial></app:surfaceDataMember>";
+    }
+}
@@ -0,0 +1,203 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Simplified geometry has to keep the outline of the original one, face outwards and report
+ * how far the original vertices are away from it.
+ */
+public class MeshSimplifierTest
+    extends TestCase
+{
+    public MeshSimplifierTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MeshSimplifierTest.class );
+    }
+
+    public void testConvexHull()
+    {
+        double[] points = { 0, 0, 2, 0, 1, 1, 2, 2, 0, 2, 1, 0, 2, 2 };
+        double[] hull = MeshSimplifier.convexHull( points, 7 );
+        assertEquals( 8, hull.length );
+        //counterclockwise, starting at the lowest left point
+        assertEquals( 0.0, hull[0] );
+        assertEquals( 2.0, hull[2] );
+        assertEquals( 0.0, hull[3] );
+        assertEquals( 2.0, hull[5] );
+        //collinear points have no hull with an area
+        assertTrue( MeshSimplifier.convexHull( new double[] { 0, 0, 1, 1, 2, 2 }, 3 ).length < 6 );
+    }
+
+    public void testBlock()
+    {
+        //an L shaped roof at height 8 over a footprint of 10 by 10
+        List<XmlPoly> polygons = new ArrayList<XmlPoly>();
+        polygons.add( polygon( 0, 0, 0, 10, 0, 0, 10, 10, 0, 0, 10, 0 ) );
+        polygons.add( polygon( 0, 0, 8, 10, 0, 8, 10, 5, 8, 5, 5, 8, 5, 10, 8, 0, 10, 8 ) );
+        double[] error = new double[1];
+
+        GeometryBuffer block = MeshSimplifier.createBlock( polygons, 12.0, error );
+        assertEquals( 4 * 4 + 4, block.getVertexCount() );
+        assertEquals( 3 * ( 4 * 2 + 2 ), block.getIndexCount() );
+        double top = -Double.MAX_VALUE;
+        for ( int v = 0; v < block.getVertexCount(); v++ )
+        {
+            top = Math.max( top, block.getZ( v ) );
+        }
+        assertEquals( 12.0, top );
+        //the inner corner of the roof is 4 below the roof of the block, but only 5 from the nearest wall
+        assertEquals( 4.0, error[0], 1e-9 );
+        assertOutward( block );
+
+        block = MeshSimplifier.createBlock( polygons, Double.NaN, error );
+        assertEquals( 8.0, block.getZ( block.getVertexCount() - 1 ) );
+        assertEquals( 0.0, error[0], 1e-9 );
+    }
+
+    /**
+     * The hull of an L shaped building covers a corner which is not part of it, which has to count as error
+     */
+    public void testConcaveBlock()
+    {
+        List<XmlPoly> polygons = new ArrayList<XmlPoly>();
+        polygons.add( polygon( 0, 0, 0, 10, 0, 0, 10, 5, 0, 5, 5, 0, 5, 10, 0, 0, 10, 0 ) );
+        polygons.add( polygon( 0, 0, 8, 10, 0, 8, 10, 5, 8, 5, 5, 8, 5, 10, 8, 0, 10, 8 ) );
+        double[] error = new double[1];
+
+        MeshSimplifier.createBlock( polygons, Double.NaN, error );
+        //the middle of the hull edge across the missing corner is 2.5 from both inner walls
+        assertEquals( 2.5, error[0], 1e-9 );
+        //the inner corner of the roof is 4 below the roof of the block, but only 2.5 sqrt(2) from the hull
+        MeshSimplifier.createBlock( polygons, 12.0, error );
+        assertEquals( 2.5 * Math.sqrt( 2 ), error[0], 1e-9 );
+    }
+
+    public void testClusterVertices()
+    {
+        GeometryBuffer ground = grid( 0.0 );
+        List<GeometryBuffer> parts = new ArrayList<GeometryBuffer>();
+        parts.add( ground );
+        double[] error = new double[1];
+
+        GeometryBuffer simplified = MeshSimplifier.clusterVertices( parts, 5.0, 5.0, error );
+        assertTrue( simplified.getVertexCount() <= 25 );
+        assertTrue( simplified.getIndexCount() > 0 );
+        assertTrue( simplified.getIndexCount() < ground.getIndexCount() / 10 );
+        assertTrue( error[0] > 0 && error[0] < 5.0 * Math.sqrt( 2 ) );
+        float[] normals = simplified.getNormals();
+        for ( int v = 0; v < simplified.getVertexCount(); v++ )
+        {
+            assertTrue( Math.abs( normals[v * 3 + 2] ) > 0.9f );
+        }
+    }
+
+    /**
+     * A cliff within a cell has to make the grid finer until the error is within the bound
+     */
+    public void testClusterErrorBound()
+    {
+        GeometryBuffer ground = grid( 30.0 );
+        List<GeometryBuffer> parts = new ArrayList<GeometryBuffer>();
+        parts.add( ground );
+        double[] error = new double[1];
+
+        MeshSimplifier.clusterVertices( parts, 5.0, 100.0, error );
+        assertTrue( error[0] > 10.0 );
+        GeometryBuffer simplified = MeshSimplifier.clusterVertices( parts, 5.0, 1.0, error );
+        assertTrue( error[0] <= 1.0 );
+        assertTrue( simplified.getVertexCount() < ground.getVertexCount() );
+    }
+
+    /**
+     * Vertices of a triangle dropped entirely have to count with their distance from the remaining triangles
+     */
+    public void testDroppedClusters()
+    {
+        GeometryBuffer sliver = new GeometryBuffer();
+        sliver.addTriangle( sliver.addVertex( 100.1, 100.1, 0.0 ), sliver.addVertex( 100.3, 100.1, 0.0 ),
+                sliver.addVertex( 100.1, 100.3, 0.0 ) );
+        List<GeometryBuffer> parts = new ArrayList<GeometryBuffer>();
+        parts.add( grid( 0.0 ) );
+        parts.add( sliver );
+        double[] error = new double[1];
+
+        GeometryBuffer simplified = MeshSimplifier.clusterVertices( parts, 5.0, 1000.0, error );
+        for ( int v = 0; v < simplified.getVertexCount(); v++ )
+        {
+            assertTrue( simplified.getX( v ) <= 20.0 );
+        }
+        //the corner of the grid at 20, 20 is the nearest remaining geometry
+        assertEquals( Math.hypot( 80.3, 80.1 ), error[0], 0.1 );
+
+        parts.remove( 0 );
+        MeshSimplifier.clusterVertices( parts, 5.0, 1000.0, error );
+        assertEquals( Math.hypot( 0.2, 0.2 ), error[0], 1e-9 );
+    }
+
+    /**
+     * A grid of 20 by 20 cells of size 1, as consolidated ground, rising by the given height from x = 8 on
+     */
+    private static GeometryBuffer grid( double cliff )
+    {
+        GeometryBuffer ground = new GeometryBuffer();
+        for ( int y = 0; y <= 20; y++ )
+        {
+            for ( int x = 0; x <= 20; x++ )
+            {
+                ground.addVertex( x, y, ( x + y ) % 2 * 0.1 + ( x >= 8 ? cliff : 0.0 ) );
+            }
+        }
+        for ( int y = 0; y < 20; y++ )
+        {
+            for ( int x = 0; x < 20; x++ )
+            {
+                int corner = y * 21 + x;
+                ground.addTriangle( corner, corner + 22, corner + 1 );
+                ground.addTriangle( corner, corner + 21, corner + 22 );
+            }
+        }
+        return ground;
+    }
+
+    private static XmlPoly polygon( double... coordinates )
+    {
+        XmlPoly polygon = new XmlPoly();
+        double[] closed = new double[coordinates.length + 3];
+        System.arraycopy( coordinates, 0, closed, 0, coordinates.length );
+        System.arraycopy( coordinates, 0, closed, coordinates.length, 3 );
+        polygon.setPositions( closed, closed.length / 3 );
+        polygon.computeGeometry();
+        return polygon;
+    }
+
+    /**
+     * The normal of each triangle, in the orientation of XmlPoly.computeNormals(), has to point away from the center
+     */
+    private static void assertOutward( GeometryBuffer block )
+    {
+        int[] indices = block.getIndices();
+        for ( int i = 0; i < block.getIndexCount(); i += 3 )
+        {
+            int a = indices[i];
+            int b = indices[i + 1];
+            int c = indices[i + 2];
+            double[] ac = { block.getX( a ) - block.getX( c ), block.getY( a ) - block.getY( c ), block.getZ( a ) - block.getZ( c ) };
+            double[] ab = { block.getX( a ) - block.getX( b ), block.getY( a ) - block.getY( b ), block.getZ( a ) - block.getZ( b ) };
+            double[] normal = { ac[1] * ab[2] - ac[2] * ab[1], ac[2] * ab[0] - ac[0] * ab[2], ac[0] * ab[1] - ac[1] * ab[0] };
+            double[] center = { ( block.getX( a ) + block.getX( b ) + block.getX( c ) ) / 3 - 5,
+                    ( block.getY( a ) + block.getY( b ) + block.getY( c ) ) / 3 - 5, ( block.getZ( a ) + block.getZ( b ) + block.getZ( c ) ) / 3 - 6 };
+            assertTrue( normal[0] * center[0] + normal[1] * center[1] + normal[2] * center[2] > 0 );
+            float[] normals = block.getNormals();
+            assertTrue( normal[0] * normals[a * 3] + normal[1] * normals[a * 3 + 1] + normal[2] * normals[a * 3 + 2] > 0 );
+        }
+    }
+}
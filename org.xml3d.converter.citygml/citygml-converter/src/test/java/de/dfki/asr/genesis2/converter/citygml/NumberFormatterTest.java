@@ -0,0 +1,92 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Formatted numbers have to read back to the same value, with no more digits than Double.toString
+ * and Float.toString use, and in their layout.
+ */
+public class NumberFormatterTest
+    extends TestCase
+{
+    public NumberFormatterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( NumberFormatterTest.class );
+    }
+
+    public void testLayout()
+    {
+        double[] values = { 0.0, -0.0, 1.0, -100.0, 9999999.0, 1.0E7, 0.001, 9.0E-4, 123456.789, 0.1, 2.5E-7,
+                Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN, Double.NEGATIVE_INFINITY };
+        for ( double value : values )
+        {
+            assertEquals( Double.toString( value ), format( new NumberFormatter(), value ) );
+        }
+        float[] floatValues = { 0.0f, -0.0f, 1.0f, 0.4472136f, -0.99750936f, 1.0E-5f, Float.MIN_VALUE, Float.MAX_VALUE };
+        for ( float value : floatValues )
+        {
+            NumberFormatter formatter = new NumberFormatter();
+            formatter.append( value );
+            assertEquals( Float.toString( value ), formatter.toString() );
+        }
+        //shortest decimal, where older versions of Double.toString write 9.999999999999999E22
+        assertEquals( "1.0E23", format( new NumberFormatter(), 1.0E23 ) );
+    }
+
+    public void testRoundTrip()
+    {
+        Random random = new Random( 42 );
+        NumberFormatter formatter = new NumberFormatter();
+        for ( int i = 0; i < 200000; i++ )
+        {
+            double value = i % 2 == 0 ? Double.longBitsToDouble( random.nextLong() ) : 350000 + random.nextDouble() * 10000;
+            float floatValue = i % 2 == 0 ? Float.intBitsToFloat( random.nextInt() ) : (float) random.nextGaussian();
+            if ( Double.isNaN( value ) || Float.isNaN( floatValue ) )
+            {
+                continue;
+            }
+            formatter.reset();
+            formatter.append( value );
+            String text = formatter.toString();
+            assertEquals( value, Double.parseDouble( text ) );
+            assertTrue( text.length() <= Double.toString( value ).length() );
+
+            formatter.reset();
+            formatter.append( floatValue );
+            text = formatter.toString();
+            assertEquals( floatValue, Float.parseFloat( text ) );
+            assertTrue( text.length() <= Float.toString( floatValue ).length() );
+        }
+    }
+
+    public void testMaxDecimals()
+    {
+        NumberFormatter formatter = new NumberFormatter();
+        formatter.setMaxDecimals( 3 );
+        assertEquals( "1234.568", format( formatter, 1234.56789 ) );
+        assertEquals( "-12.3", format( formatter, -12.3 ) );
+        assertEquals( "0.05", format( formatter, 0.05 ) );
+        assertEquals( "0.0", format( formatter, -0.0004 ) );
+        assertEquals( "100.0", format( formatter, 100 ) );
+        assertEquals( "1.0E20", format( formatter, 1.0E20 ) );
+        formatter.setMaxDecimals( 0 );
+        assertEquals( "-3.0", format( formatter, -2.5000001 ) );
+    }
+
+    private static String format( NumberFormatter formatter, double value )
+    {
+        formatter.reset();
+        formatter.append( value ).append( ' ' ).append( 17 );
+        String text = formatter.toString();
+        assertTrue( text.endsWith( " 17" ) );
+        return text.substring( 0, text.length() - 3 );
+    }
+}
@@ -0,0 +1,88 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * The triangles of a polygon have to cover exactly its area without the holes, keep the orientation of the
+ * exterior ring and, for convex polygons, be the same as a fan around the first vertex.
+ */
+public class PolygonTriangulatorTest
+    extends TestCase
+{
+    public PolygonTriangulatorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PolygonTriangulatorTest.class );
+    }
+
+    public void testConvex()
+    {
+        XmlPoly polygon = polygon( 0, 0, 0, 4, 0, 0, 5, 2, 0, 4, 4, 0, 0, 4, 0, 0, 0, 0 );
+        int[] expected = { 0, 1, 2, 0, 2, 3, 0, 3, 4 };
+        assertEquals( expected.length, polygon.getGeometry().getIndexCount() );
+        for ( int i = 0; i < expected.length; i++ )
+        {
+            assertEquals( expected[i], polygon.getGeometry().getIndices()[i] );
+        }
+    }
+
+    public void testConcave()
+    {
+        //a U shaped wall in the x z plane
+        XmlPoly polygon = polygon( 0, 0, 0, 0, 0, 6, 2, 0, 6, 2, 0, 2, 4, 0, 2, 4, 0, 6, 6, 0, 6, 6, 0, 0, 0, 0, 0 );
+        assertEquals( 3 * 6, polygon.getGeometry().getIndexCount() );
+        assertArea( polygon, 36 - 8, 0, -1, 0 );
+    }
+
+    public void testHoles()
+    {
+        //a georeferenced roof with two windows, the second one given in the same orientation as the exterior
+        XmlPoly polygon = polygon( 3500000, 5400000, 10, 3500010, 5400000, 10, 3500010, 5400010, 10, 3500000, 5400010, 10, 3500000, 5400000, 10,
+                3500002, 5400002, 10, 3500002, 5400004, 10, 3500004, 5400004, 10, 3500004, 5400002, 10, 3500002, 5400002, 10,
+                3500006, 5400006, 10, 3500008, 5400006, 10, 3500008, 5400007, 10, 3500006, 5400007, 10, 3500006, 5400006, 10 );
+        assertEquals( 3, polygon.getRingStarts().length );
+        assertEquals( 4, polygon.getRingStarts()[1] );
+        assertEquals( 8, polygon.getRingStarts()[2] );
+        //a polygon with n vertices and h holes has n + 2h - 2 triangles
+        assertEquals( 3 * ( 12 + 4 - 2 ), polygon.getGeometry().getIndexCount() );
+        assertArea( polygon, 100 - 4 - 2, 0, 0, -1 );
+    }
+
+    private static XmlPoly polygon( double... coordinates )
+    {
+        XmlPoly polygon = new XmlPoly();
+        polygon.setPositions( coordinates, coordinates.length / 3 );
+        polygon.computeGeometry();
+        return polygon;
+    }
+
+    /**
+     * The triangles, in the orientation of XmlPoly.computeNormals(), have to face in the given direction
+     * and have the given area in total
+     */
+    private static void assertArea( XmlPoly polygon, double area, double x, double y, double z )
+    {
+        GeometryBuffer geometry = polygon.getGeometry();
+        int[] indices = geometry.getIndices();
+        double sum = 0;
+        for ( int i = 0; i < geometry.getIndexCount(); i += 3 )
+        {
+            int a = indices[i];
+            int b = indices[i + 1];
+            int c = indices[i + 2];
+            double[] ac = { geometry.getX( a ) - geometry.getX( c ), geometry.getY( a ) - geometry.getY( c ), geometry.getZ( a ) - geometry.getZ( c ) };
+            double[] ab = { geometry.getX( a ) - geometry.getX( b ), geometry.getY( a ) - geometry.getY( b ), geometry.getZ( a ) - geometry.getZ( b ) };
+            double[] normal = { ac[1] * ab[2] - ac[2] * ab[1], ac[2] * ab[0] - ac[0] * ab[2], ac[0] * ab[1] - ac[1] * ab[0] };
+            double projected = ( normal[0] * x + normal[1] * y + normal[2] * z ) / 2;
+            assertTrue( projected > 0 );
+            sum += projected;
+        }
+        assertEquals( area, sum, 1e-6 );
+    }
+}
@@ -0,0 +1,115 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.util.HashSet;
+import java.util.Set;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Decimation has to keep the border of a mesh, keep flat areas flat, stop at the target number of triangles
+ * and keep the orientation of the triangles.
+ */
+public class QuadricDecimatorTest
+    extends TestCase
+{
+    private static final int SIZE = 40;
+
+    public QuadricDecimatorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( QuadricDecimatorTest.class );
+    }
+
+    public void testFlatGround()
+    {
+        //an inclined plane far away from the origin, as georeferenced ground
+        GeometryBuffer ground = createGrid( false );
+        QuadricDecimator decimator = new QuadricDecimator( ground );
+        GeometryBuffer decimated = decimator.decimate( 0.01, 0 );
+
+        assertTrue( decimated.getIndexCount() / 3 < ground.getIndexCount() / 3 / 10 );
+        assertTrue( decimator.getError() < 0.01 );
+        Set<String> positions = new HashSet<String>();
+        for ( int v = 0; v < decimated.getVertexCount(); v++ )
+        {
+            double x = decimated.getX( v ) - 3500000;
+            double y = decimated.getY( v ) - 5400000;
+            assertEquals( height( x, y, false ), decimated.getZ( v ), 1e-6 );
+            positions.add( Math.round( x ) + " " + Math.round( y ) );
+        }
+        //every vertex of the border is kept
+        for ( int i = 0; i <= SIZE; i++ )
+        {
+            assertTrue( positions.contains( i + " 0" ) );
+            assertTrue( positions.contains( i + " " + SIZE ) );
+            assertTrue( positions.contains( "0 " + i ) );
+            assertTrue( positions.contains( SIZE + " " + i ) );
+        }
+        assertSameOrientation( decimated );
+    }
+
+    public void testTargetTriangles()
+    {
+        GeometryBuffer ground = createGrid( true );
+        int target = ground.getIndexCount() / 3 / 4;
+        GeometryBuffer decimated = new QuadricDecimator( ground ).decimate( Double.POSITIVE_INFINITY, target );
+        assertTrue( decimated.getIndexCount() / 3 <= target );
+        assertTrue( decimated.getIndexCount() / 3 > target - 3 );
+        assertSameOrientation( decimated );
+
+        //without any collapse small enough, the mesh stays as it is
+        decimated = new QuadricDecimator( ground ).decimate( 0.0, 0 );
+        assertEquals( ground.getIndexCount(), decimated.getIndexCount() );
+    }
+
+    private static double height( double x, double y, boolean hills )
+    {
+        return 200 + 0.1 * x + 0.05 * y + ( hills ? 3 * Math.sin( x / 5 ) * Math.cos( y / 7 ) : 0 );
+    }
+
+    private static GeometryBuffer createGrid( boolean hills )
+    {
+        GeometryBuffer ground = new GeometryBuffer();
+        for ( int y = 0; y <= SIZE; y++ )
+        {
+            for ( int x = 0; x <= SIZE; x++ )
+            {
+                ground.addVertex( 3500000 + x, 5400000 + y, height( x, y, hills ) );
+            }
+        }
+        for ( int y = 0; y < SIZE; y++ )
+        {
+            for ( int x = 0; x < SIZE; x++ )
+            {
+                int corner = y * ( SIZE + 1 ) + x;
+                ground.addTriangle( corner, corner + SIZE + 2, corner + 1 );
+                ground.addTriangle( corner, corner + SIZE + 1, corner + SIZE + 2 );
+            }
+        }
+        ground.computeVertexNormals();
+        assertSameOrientation( ground );
+        return ground;
+    }
+
+    /**
+     * All triangles of the grid face upwards, in the orientation of XmlPoly.computeNormals()
+     */
+    private static void assertSameOrientation( GeometryBuffer mesh )
+    {
+        int[] indices = mesh.getIndices();
+        for ( int i = 0; i < mesh.getIndexCount(); i += 3 )
+        {
+            int a = indices[i];
+            int b = indices[i + 1];
+            int c = indices[i + 2];
+            double z = ( mesh.getX( a ) - mesh.getX( c ) ) * ( mesh.getY( a ) - mesh.getY( b ) )
+                    - ( mesh.getY( a ) - mesh.getY( c ) ) * ( mesh.getX( a ) - mesh.getX( b ) );
+            assertTrue( z > 0 );
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Every object has to be written to exactly one tile, the one containing the center of its bounds,
+ * and every tile has to be listed in the index.
+ */
+public class SceneTilerTest
+    extends TestCase
+{
+    private File directory;
+
+    public SceneTilerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SceneTilerTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile( "tiles", "" );
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for ( File file : directory.listFiles() )
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testTiles() throws Exception
+    {
+        Map<String, Building> buildingMap = new HashMap<String, Building>();
+        //the first two buildings share a tile, though the second one reaches into the next tile
+        addBuilding( buildingMap, "B1", 1010, 2010 );
+        addBuilding( buildingMap, "B2", 1090, 2050 );
+        addBuilding( buildingMap, "B3", -150, 2010 );
+        new GeometryProcessor( 1 ).process( buildingMap.values(), new ArrayList<Ground>() );
+
+        ConverterOptions options = new ConverterOptions();
+        options.setTileSize( 100 );
+        options.setThreads( 2 );
+        List<SceneTiler.Tile> tiles = new SceneTiler( options ).write( new File( directory, "city.xhtml" ).getPath(), "", 1.0f, 1.0f,
+                buildingMap, new HashMap<String, Ground>(), new HashMap<String, xmlShader>(), new IdRegistry(), new HashMap<String, Semantics>() );
+
+        assertEquals( 2, tiles.size() );
+        assertEquals( "city_-2_20.xhtml", tiles.get( 0 ).file );
+        assertEquals( 1, tiles.get( 0 ).buildings.size() );
+        assertEquals( "city_10_20.xhtml", tiles.get( 1 ).file );
+        assertEquals( 2, tiles.get( 1 ).buildings.size() );
+        assertEquals( 1100.0, tiles.get( 1 ).max[0] );
+
+        String tile = read( new File( directory, "city_10_20.xhtml" ) );
+        assertTrue( tile.contains( "B1_id" ) );
+        assertTrue( tile.contains( "B2_id" ) );
+        assertFalse( tile.contains( "B3_id" ) );
+        String index = read( new File( directory, "city_tiles.json" ) );
+        assertTrue( index.contains( "{\"file\":\"city_-2_20.xhtml\",\"x\":-2,\"y\":20,\"min\":[-150.0,2010.0,0.0],\"max\":[-140.0,2020.0,10.0]" ) );
+        assertTrue( index.contains( "\"file\":\"city_10_20.xhtml\"" ) );
+    }
+
+    /**
+     * Parent tiles have to cover their children, hold blocks instead of the buildings and report their error
+     */
+    public void testLevelsOfDetail() throws Exception
+    {
+        Map<String, Building> buildingMap = new HashMap<String, Building>();
+        addBuilding( buildingMap, "B1", 1010, 2010 );
+        addBuilding( buildingMap, "B2", 1110, 2010 );
+        addBuilding( buildingMap, "B3", 1210, 2110 );
+        new GeometryProcessor( 1 ).process( buildingMap.values(), new ArrayList<Ground>() );
+
+        ConverterOptions options = new ConverterOptions();
+        options.setTileSize( 100 );
+        options.setLodLevels( 3 );
+        List<SceneTiler.Tile> tiles = new SceneTiler( options ).write( new File( directory, "city.xhtml" ).getPath(), "", 1.0f, 1.0f,
+                buildingMap, new HashMap<String, Ground>(), new HashMap<String, xmlShader>(), new IdRegistry(), new HashMap<String, Semantics>() );
+
+        //leaves 10 20, 11 20 and 12 21; level 1: 5 10 and 6 10; level 2: 2 5 and 3 5; level 3: 1 2
+        assertEquals( 8, tiles.size() );
+        SceneTiler.Tile root = tiles.get( 7 );
+        assertEquals( 3, root.level );
+        assertEquals( "city_L3_1_2.xhtml", root.file );
+        assertEquals( 2, root.children.size() );
+        assertEquals( 3, root.blocks.size() );
+        assertEquals( 1010.0, root.min[0] );
+        assertEquals( 1220.0, root.max[0] );
+        //all vertices lie on the surface of the block
+        assertEquals( 0.0, root.error, 1e-9 );
+
+        String tile = read( new File( directory, "city_L1_5_10.xhtml" ) );
+        assertTrue( tile.contains( "B1_block" ) );
+        assertTrue( tile.contains( "B2_block" ) );
+        String index = read( new File( directory, "city_tiles.json" ) );
+        assertTrue( index.contains( "\"root\":[\"city_L3_1_2.xhtml\"]" ) );
+        assertTrue( index.contains( "\"level\":3,\"geometricError\":0.0,\"children\":[\"city_L2_2_5.xhtml\",\"city_L2_3_5.xhtml\"]" ) );
+        assertTrue( index.contains( "\"level\":1,\"geometricError\":0.0,\"children\":[\"city_10_20.xhtml\",\"city_11_20.xhtml\"]" ) );
+    }
+
+    /**
+     * Add a building consisting of a diagonal wall and a roof of 10 by 10 at the given position
+     */
+    private static void addBuilding( Map<String, Building> buildingMap, String id, double x, double y )
+    {
+        Building building = new Building();
+        building.setId( id );
+        CoordinateTokenizer coordinates = new CoordinateTokenizer();
+        coordinates.append( x + " " + y + " 0 " + ( x + 10 ) + " " + ( y + 10 ) + " 0 " + ( x + 10 ) + " " + ( y + 10 ) + " 10 "
+                + x + " " + y + " 10 " + x + " " + y + " 0" );
+        building.addPolygon( id + "_P", coordinates );
+        coordinates.reset();
+        coordinates.append( x + " " + y + " 10 " + ( x + 10 ) + " " + y + " 10 " + ( x + 10 ) + " " + ( y + 10 ) + " 10 "
+                + x + " " + ( y + 10 ) + " 10 " + x + " " + y + " 10" );
+        building.addPolygon( id + "_R", coordinates );
+        buildingMap.put( id, building );
+    }
+
+    private static String read( File file ) throws Exception
+    {
+        RandomAccessFile input = new RandomAccessFile( file, "r" );
+        byte[] bytes = new byte[(int) input.length()];
+        input.readFully( bytes );
+        input.close();
+        return new String( bytes, "UTF-8" );
+    }
+}
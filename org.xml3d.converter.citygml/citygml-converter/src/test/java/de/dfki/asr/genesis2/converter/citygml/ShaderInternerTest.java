@@ -0,0 +1,93 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Appearances with the same canonical parameters have to share one shader with an id unique in the file,
+ * while the texture coordinates stay with each target.
+ */
+public class ShaderInternerTest
+    extends TestCase
+{
+    public ShaderInternerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ShaderInternerTest.class );
+    }
+
+    public void testMaterials()
+    {
+        Map<String, xmlShader> shaderMap = new HashMap<String, xmlShader>();
+        ShaderInterner interner = new ShaderInterner( shaderMap );
+        xmlShader grey = interner.material( "0.5 0.5 0.5" );
+        assertSame( grey, interner.material( "0.50 0.5  0.500" ) );
+        assertSame( interner.material( null ), interner.material( "1 1 1" ) );
+        assertNotSame( grey, interner.material( "0.5 0.5 0.25" ) );
+        assertEquals( 3, interner.size() );
+        assertEquals( 3, shaderMap.size() );
+        assertSame( grey, shaderMap.get( grey.getID() ) );
+    }
+
+    public void testTextures()
+    {
+        Map<String, xmlShader> shaderMap = new HashMap<String, xmlShader>();
+        ShaderInterner interner = new ShaderInterner( shaderMap );
+        xmlShader wall = interner.texture( "wall.png", null );
+        assertSame( wall, interner.texture( "wall.png", null ) );
+        assertNotSame( wall, interner.texture( "wall.png", "wrap" ) );
+        assertNotSame( wall, interner.texture( "roof.png", null ) );
+        xmlShader ground = interner.groundTexture( "ortho.tif", "ortho.jpg" );
+        assertSame( ground, interner.groundTexture( "ortho.tif", "ortho.jpg" ) );
+        assertEquals( "ortho.tif", ground.getSourcePath() );
+        assertEquals( "ortho.jpg", ground.getTexturePath() );
+        assertEquals( 4, shaderMap.size() );
+    }
+
+    public void testParsedAppearances() throws Exception
+    {
+        StringBuilder gml = new StringBuilder();
+        gml.append( "<core:CityModel xmlns:core=\"c\" xmlns:app=\"a\">" );
+        gml.append( "<app:appearanceMember><app:Appearance>" );
+        gml.append( material( "0.5 0.25 0.125", "#P1" ) ).append( material( "0.50 0.250 0.1250", "#P2" ) );
+        gml.append( texture( "wall.png", "P3", "0 0 1 0 1 1" ) ).append( texture( "wall.png", "P4", "0 0 0.5 0 0.5 0.5" ) );
+        gml.append( "</app:Appearance></app:appearanceMember></core:CityModel>" );
+
+        Map<String, xmlShader> shaders = new HashMap<String, xmlShader>();
+        IdRegistry registry = new IdRegistry();
+        gmlParser parser = new gmlParser( new ByteArrayInputStream( gml.toString().getBytes( "UTF-8" ) ) );
+        parser.parseCityModel( new CityObjectCollector( new HashMap<String, Building>(), new HashMap<String, Semantics>(),
+                new HashMap<String, Ground>(), shaders, registry ), registry );
+
+        assertEquals( 2, shaders.size() );
+        assertSame( registry.getShader( registry.lookup( "P1" ) ), registry.getShader( registry.lookup( "P2" ) ) );
+        int wall = registry.lookup( "P3" );
+        int window = registry.lookup( "P4" );
+        assertSame( registry.getShader( wall ), registry.getShader( window ) );
+        assertTrue( Arrays.equals( new float[] { 0, 0, 1, 0, 1, 1 }, registry.getTexCoords( wall )[0] ) );
+        assertTrue( Arrays.equals( new float[] { 0, 0, 0.5f, 0, 0.5f, 0.5f }, registry.getTexCoords( window )[0] ) );
+    }
+
+    private static String material( String color, String target )
+    {
+        return "<app:surfaceDataMember><app:X3DMaterial><app:diffuseColor>" + color + "</app:diffuseColor>"
+                + "<app:target>" + target + "</app:target></app:X3DMaterial></app:surfaceDataMember>";
+    }
+
+    private static String texture( String image, String target, String texCoords )
+    {
+        return "<app:surfaceDataMember><app:ParameterizedTexture><app:imageURI>" + image + "</app:imageURI>"
+                + "<app:target uri=\"#" + target + "\"><app:TexCoordList><app:textureCoordinates ring=\"#" + target + "_R\">"
+                + texCoords + "</app:textureCoordinates></app:TexCoordList></app:target>"
+                + "</app:ParameterizedTexture></app:surfaceDataMember>";
+    }
+}
@@ -0,0 +1,127 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Packed images must not overlap, pages have to be powers of two, and the mapped texture coordinates of each
+ * target have to hit its own image in the page; targets sharing a page share its shader.
+ */
+public class TextureAtlasTest
+    extends TestCase
+{
+    private File directory;
+
+    public TextureAtlasTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TextureAtlasTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile( "atlas", "" );
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for ( File file : directory.listFiles() )
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testPack() throws Exception
+    {
+        int[] colors = { 0xffff0000, 0xff00ff00, 0xff0000ff, 0xffffff00, 0xff00ffff };
+        int[][] sizes = { { 40, 20 }, { 20, 40 }, { 30, 30 }, { 50, 10 }, { 10, 10 } };
+        Map<String, xmlShader> shaderMap = new LinkedHashMap<String, xmlShader>();
+        ShaderInterner interner = new ShaderInterner( shaderMap );
+        IdRegistry registry = new IdRegistry();
+        for ( int i = 0; i < colors.length; i++ )
+        {
+            writeImage( "image" + i + ".png", sizes[i][0], sizes[i][1], colors[i] );
+            registry.bindShader( "#P" + i, interner.texture( "image" + i + ".png", null ), ring( 0.1f, 0.1f, 0.9f, 0.1f, 0.9f, 0.9f ) );
+        }
+        //a second target of the same image, and an image repeated at one of its targets, which is not packed
+        registry.bindShader( "#P5", interner.texture( "image0.png", null ), ring( 0.5f, 0.5f, 0.9f, 0.9f, 0.1f, 0.9f ) );
+        registry.bindShader( "#P6", interner.texture( "image5.png", null ), ring( 0.1f, 0.1f, 0.9f, 0.1f, 0.9f, 0.9f ) );
+        registry.bindShader( "#P7", interner.texture( "image5.png", null ), ring( 0, 0, 2, 0, 2, 2 ) );
+        writeImage( "image5.png", 10, 10, 0xffffffff );
+        xmlShader repeated = shaderMap.get( "textureShader_5" );
+        xmlShader[] packed = new xmlShader[5];
+        for ( int i = 0; i < packed.length; i++ )
+        {
+            packed[i] = shaderMap.get( "textureShader_" + i );
+        }
+
+        assertEquals( 1, new TextureAtlas( 128, 2 ).pack( directory.getPath(), "scene_atlas", shaderMap, registry ) );
+        assertEquals( 2, shaderMap.size() );
+        assertSame( repeated, shaderMap.get( "textureShader_5" ) );
+        assertEquals( "image5.png", repeated.getTexturePath() );
+        assertEquals( 2.0f, registry.getTexCoords( registry.lookup( "P7" ) )[0][5] );
+        xmlShader pageShader = shaderMap.get( "atlasShader_0" );
+        assertEquals( "scene_atlas_0.png", pageShader.getTexturePath() );
+
+        BufferedImage page = ImageIO.read( new File( directory, "scene_atlas_0.png" ) );
+        assertEquals( 0, page.getWidth() & ( page.getWidth() - 1 ) );
+        assertEquals( 0, page.getHeight() & ( page.getHeight() - 1 ) );
+        for ( int i = 0; i <= packed.length; i++ )
+        {
+            int handle = registry.lookup( "P" + i );
+            assertSame( pageShader, registry.getShader( handle ).getDefinition() );
+            assertEquals( "atlasShader_0", registry.getShader( handle ).getID() );
+            float[] coordinates = registry.getTexCoords( handle )[0];
+            assertEquals( 6, coordinates.length );
+            for ( int c = 0; c < coordinates.length; c += 2 )
+            {
+                int x = (int) ( coordinates[c] * page.getWidth() );
+                int y = (int) ( ( 1 - coordinates[c + 1] ) * page.getHeight() );
+                assertEquals( colors[i % colors.length], page.getRGB( x, y ) );
+            }
+        }
+    }
+
+    public void testNothingToPack() throws Exception
+    {
+        Map<String, xmlShader> shaderMap = new LinkedHashMap<String, xmlShader>();
+        IdRegistry registry = new IdRegistry();
+        registry.bindShader( "#P0", new ShaderInterner( shaderMap ).texture( "missing.png", null ), ring( 0, 0, 1, 0, 1, 1 ) );
+        assertEquals( 0, new TextureAtlas( 64, 1 ).pack( directory.getPath(), "scene_atlas", shaderMap, registry ) );
+        assertEquals( "missing.png", shaderMap.get( "textureShader_0" ).getTexturePath() );
+        assertEquals( 0, directory.listFiles().length );
+    }
+
+    private static float[][] ring( float... texCoords )
+    {
+        return new float[][] { texCoords };
+    }
+
+    private void writeImage( String name, int width, int height, int color ) throws Exception
+    {
+        BufferedImage image = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+        for ( int y = 0; y < height; y++ )
+        {
+            for ( int x = 0; x < width; x++ )
+            {
+                image.setRGB( x, y, color );
+            }
+        }
+        ImageIO.write( image, "png", new File( directory, name ) );
+    }
+}
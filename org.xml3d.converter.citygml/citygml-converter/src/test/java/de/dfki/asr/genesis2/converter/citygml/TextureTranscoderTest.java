@@ -0,0 +1,170 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Transcoded textures have to be scaled down to the maximum size, keep transparency as PNG images, and be taken
+ * from the cache when the same image is transcoded again. TIFF images have to be transcoded on any version of Java.
+ */
+public class TextureTranscoderTest
+    extends TestCase
+{
+    private File directory;
+
+    public TextureTranscoderTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TextureTranscoderTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile( "textures", "" );
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        delete( directory );
+    }
+
+    public void testTranscode() throws Exception
+    {
+        writeImage( "wall.png", 200, 100, BufferedImage.TYPE_INT_RGB );
+        writeImage( "window.png", 20, 20, BufferedImage.TYPE_INT_ARGB );
+        Map<String, xmlShader> shaderMap = new LinkedHashMap<String, xmlShader>();
+        shaderMap.put( "texture0", texture( "wall.png" ) );
+        shaderMap.put( "texture1", texture( "window.png" ) );
+        shaderMap.put( "texture2", texture( "wall.png" ) );
+        shaderMap.put( "texture3", texture( "missing.png" ) );
+
+        TextureTranscoder transcoder = new TextureTranscoder( directory.getPath(), "web", 2 );
+        transcoder.setMaxSize( 64 );
+        assertEquals( 2, transcoder.transcode( shaderMap ) );
+
+        String wall = shaderMap.get( "texture0" ).getTexturePath();
+        assertTrue( wall.startsWith( "web/" ) && wall.endsWith( ".jpg" ) );
+        assertEquals( wall, shaderMap.get( "texture2" ).getTexturePath() );
+        assertEquals( "wall.png", shaderMap.get( "texture0" ).getSourcePath() );
+        assertTrue( shaderMap.get( "texture1" ).getTexturePath().endsWith( ".png" ) );
+        assertEquals( "missing.png", shaderMap.get( "texture3" ).getTexturePath() );
+
+        BufferedImage scaled = ImageIO.read( new File( directory, wall ) );
+        assertEquals( 64, scaled.getWidth() );
+        assertEquals( 32, scaled.getHeight() );
+
+        //the same images are found in the cache, unless the settings change
+        shaderMap.get( "texture0" ).setTexturePath( "wall.png" );
+        assertEquals( 0, transcoder.transcode( shaderMap ) );
+        assertEquals( wall, shaderMap.get( "texture0" ).getTexturePath() );
+        transcoder.setMaxSize( 100 );
+        assertEquals( 2, transcoder.transcode( shaderMap ) );
+    }
+
+    /**
+     * TIFF ortho photos are transcoded by the TiffReader, as ImageIO cannot read them before Java 9
+     */
+    public void testTiff() throws Exception
+    {
+        copy( TiffReaderTest.resource( "rgb_lzw_predictor.tif" ), new File( directory, "ortho.tif" ) );
+        copy( TiffReaderTest.resource( "rgba_lzw.tif" ), new File( directory, "mask.tif" ) );
+        Map<String, xmlShader> shaderMap = new LinkedHashMap<String, xmlShader>();
+        shaderMap.put( "texture0", texture( "ortho.tif" ) );
+        shaderMap.put( "texture1", texture( "mask.tif" ) );
+        assertEquals( 2, new TextureTranscoder( directory.getPath(), "web", 2 ).transcode( shaderMap ) );
+
+        String ortho = shaderMap.get( "texture0" ).getTexturePath();
+        assertTrue( ortho.endsWith( ".jpg" ) );
+        BufferedImage transcoded = ImageIO.read( new File( directory, ortho ) );
+        assertEquals( 64, transcoded.getWidth() );
+        assertEquals( 48, transcoded.getHeight() );
+
+        String mask = shaderMap.get( "texture1" ).getTexturePath();
+        assertTrue( mask.endsWith( ".png" ) );
+        BufferedImage lossless = ImageIO.read( new File( directory, mask ) );
+        assertEquals( TiffReaderTest.color( 5, 7 ), lossless.getRGB( 5, 7 ) );
+    }
+
+    public void testWebFormatsKept() throws Exception
+    {
+        writeImage( "wall.png", 20, 10, BufferedImage.TYPE_INT_RGB );
+        Map<String, xmlShader> shaderMap = new LinkedHashMap<String, xmlShader>();
+        shaderMap.put( "texture0", texture( "wall.png" ) );
+        assertEquals( 0, new TextureTranscoder( directory.getPath(), "web", 1 ).transcode( shaderMap ) );
+        assertEquals( "wall.png", shaderMap.get( "texture0" ).getTexturePath() );
+        assertFalse( new File( directory, "web" ).exists() );
+    }
+
+    private static xmlShader texture( String path )
+    {
+        xmlShader shader = new xmlShader();
+        shader.setShaderType( "Texture" );
+        shader.setTexturePath( path );
+        shader.setSourcePath( path );
+        return shader;
+    }
+
+    private void writeImage( String name, int width, int height, int type ) throws Exception
+    {
+        BufferedImage image = new BufferedImage( width, height, type );
+        for ( int y = 0; y < height; y++ )
+        {
+            for ( int x = 0; x < width; x++ )
+            {
+                image.setRGB( x, y, 0x80000000 | ( x * 255 / width ) << 16 | ( y * 255 / height ) << 8 );
+            }
+        }
+        ImageIO.write( image, "png", new File( directory, name ) );
+    }
+
+    private static void copy( File source, File target ) throws Exception
+    {
+        InputStream input = new FileInputStream( source );
+        OutputStream output = new FileOutputStream( target );
+        try
+        {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ( ( read = input.read( buffer ) ) > 0 )
+            {
+                output.write( buffer, 0, read );
+            }
+        }
+        finally
+        {
+            input.close();
+            output.close();
+        }
+    }
+
+    private static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        if ( children != null )
+        {
+            for ( File child : children )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,131 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * TIFF images written by the TIFF writer of ImageIO (Java 9 and later) have to be decoded pixel by pixel, whatever
+ * their byte order, compression, predictor, layout in strips or tiles and photometric interpretation.
+ * All images show the pattern of color(x, y).
+ */
+public class TiffReaderTest
+    extends TestCase
+{
+    public TiffReaderTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TiffReaderTest.class );
+    }
+
+    /**
+     * Little endian, uncompressed, five rows per strip
+     */
+    public void testUncompressed() throws Exception
+    {
+        assertRgb( TiffReader.read( resource( "rgb.tif" ) ), 37, 23 );
+    }
+
+    /**
+     * Big endian, LZW with horizontal differencing; the noise of the pattern fills the LZW table several times
+     */
+    public void testLzwPredictor() throws Exception
+    {
+        assertRgb( TiffReader.read( resource( "rgb_lzw_predictor.tif" ) ), 64, 48 );
+    }
+
+    /**
+     * Deflate, in tiles of 16 by 16 pixels reaching beyond the image
+     */
+    public void testDeflateTiles() throws Exception
+    {
+        assertRgb( TiffReader.read( resource( "rgb_deflate_tiled.tif" ) ), 37, 23 );
+    }
+
+    public void testAlpha() throws Exception
+    {
+        BufferedImage image = TiffReader.read( resource( "rgba_lzw.tif" ) );
+        assertTrue( image.getColorModel().hasAlpha() );
+        for ( int y = 0; y < image.getHeight(); y++ )
+        {
+            for ( int x = 0; x < image.getWidth(); x++ )
+            {
+                assertEquals( color( x, y ), image.getRGB( x, y ) );
+            }
+        }
+    }
+
+    public void testGreyPackBits() throws Exception
+    {
+        BufferedImage image = TiffReader.read( resource( "grey_packbits.tif" ) );
+        for ( int y = 0; y < image.getHeight(); y++ )
+        {
+            for ( int x = 0; x < image.getWidth(); x++ )
+            {
+                int grey = color( x, y ) & 0xFF;
+                assertEquals( grey * 0x010101, image.getRGB( x, y ) & 0xFFFFFF );
+            }
+        }
+    }
+
+    /**
+     * The palette maps index i to red i, green 255 - i and blue 7 i
+     */
+    public void testPalette() throws Exception
+    {
+        BufferedImage image = TiffReader.read( resource( "palette.tif" ) );
+        for ( int y = 0; y < image.getHeight(); y++ )
+        {
+            for ( int x = 0; x < image.getWidth(); x++ )
+            {
+                int index = color( x, y ) & 0xFF;
+                assertEquals( index << 16 | ( 255 - index ) << 8 | ( index * 7 & 0xFF ), image.getRGB( x, y ) & 0xFFFFFF );
+            }
+        }
+    }
+
+    public void testSize() throws Exception
+    {
+        int[] size = TiffReader.readSize( resource( "rgb_lzw_predictor.tif" ) );
+        assertEquals( 64, size[0] );
+        assertEquals( 48, size[1] );
+        assertNull( TiffReader.readSize( new File( TiffReaderTest.class.getResource( "TiffReaderTest.class" ).toURI() ) ) );
+    }
+
+    static File resource( String name ) throws Exception
+    {
+        return new File( TiffReaderTest.class.getResource( "/tiff/" + name ).toURI() );
+    }
+
+    /**
+     * Noise of all colors, so every byte value is met by the compressors
+     */
+    static int color( int x, int y )
+    {
+        int h = x * 73856093 ^ y * 19349663;
+        h ^= h >>> 13;
+        h *= 0x5bd1e995;
+        h ^= h >>> 15;
+        return h;
+    }
+
+    private static void assertRgb( BufferedImage image, int width, int height )
+    {
+        assertEquals( width, image.getWidth() );
+        assertEquals( height, image.getHeight() );
+        assertFalse( image.getColorModel().hasAlpha() );
+        for ( int y = 0; y < height; y++ )
+        {
+            for ( int x = 0; x < width; x++ )
+            {
+                assertEquals( "Pixel " + x + ", " + y, color( x, y ) & 0xFFFFFF, image.getRGB( x, y ) & 0xFFFFFF );
+            }
+        }
+    }
+}
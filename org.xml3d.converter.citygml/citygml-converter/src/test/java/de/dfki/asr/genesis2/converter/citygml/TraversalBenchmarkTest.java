@@ -0,0 +1,176 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.w3c.dom.*;
+
+/**
+ * The single pass of the gmlTreeVisitor has to find the same city objects as the getElementsByTagName based parsing
+ * methods of the gmlParser on a generated city model, while visiting far fewer DOM nodes than their scans touch.
+ */
+public class TraversalBenchmarkTest
+    extends TestCase
+{
+    private static final int BUILDINGS = 200;
+    private static final int POLYGONS = 12;
+    private static final int TRIANGLES = 2000;
+
+    public TraversalBenchmarkTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TraversalBenchmarkTest.class );
+    }
+
+    /**
+     * Both ways of parsing have to produce the same city objects, the visitor has to visit
+     * every node outside of appearances exactly once, and less than a tenth of the nodes touched by the scans.
+     */
+    public void testNodeVisits() throws Exception
+    {
+        gmlParser parser = new gmlParser( new ByteArrayInputStream( generateCityModel().getBytes( "UTF-8" ) ) );
+        Document tree = parser.getTree();
+
+        Map<String, Building> legacyBuildings = new HashMap<String, Building>();
+        Map<String, Semantics> legacySemantics = new HashMap<String, Semantics>();
+        Map<String, Ground> legacyGround = new HashMap<String, Ground>();
+        parser.parseBuildings( legacyBuildings, legacySemantics );
+        parser.parseGround( legacyGround, legacyBuildings );
+        String legacyLower = parser.getSceneBoundary( "lower" );
+
+        Map<String, Building> buildings = new HashMap<String, Building>();
+        Map<String, Semantics> semantics = new HashMap<String, Semantics>();
+        Map<String, Ground> ground = new HashMap<String, Ground>();
+        gmlTreeVisitor visitor = new gmlTreeVisitor( new CityObjectCollector( buildings, semantics, ground,
+                new HashMap<String, xmlShader>(), new IdRegistry() ) );
+        visitor.visit( tree.getDocumentElement() );
+
+        assertEquals( legacyBuildings.keySet(), buildings.keySet() );
+        assertEquals( legacyGround.keySet(), ground.keySet() );
+        assertEquals( legacySemantics.keySet(), semantics.keySet() );
+        for ( String id : buildings.keySet() )
+        {
+            assertEquals( legacyBuildings.get( id ).getPolyList().size(), buildings.get( id ).getPolyList().size() );
+        }
+        for ( String id : semantics.keySet() )
+        {
+            assertEquals( legacySemantics.get( id ).getSemanticList(), semantics.get( id ).getSemanticList() );
+        }
+        assertEquals( TRIANGLES, ground.values().iterator().next().getPolyList().size() );
+        assertEquals( legacyLower, visitor.getSceneBoundary( "lower" ) );
+
+        //appearances are handed to the ShaderFactory as a whole, their descendants are not visited by the visitor
+        long documentSize = subtreeSize( tree.getDocumentElement() );
+        assertEquals( documentSize - scanVisits( tree.getDocumentElement(), "app:Appearance" )
+                + tree.getElementsByTagName( "app:Appearance" ).getLength(), visitor.getVisitedNodes() );
+        assertTrue( visitor.getVisitedNodes() < documentSize );
+        long legacyVisits = legacyVisits( tree );
+        assertTrue( "Visited " + visitor.getVisitedNodes() + " of " + legacyVisits + " nodes",
+                visitor.getVisitedNodes() * 10 < legacyVisits );
+    }
+
+    /**
+     * Number of nodes touched by the scans of parseBuildings, parseGround, the document scan of parseShader and two
+     * calls of getSceneBoundary (as done by addCamera). Each getElementsByTagName call walks the complete subtree it
+     * is called on. The scans within appearances are left out, as the ShaderFactory still does them for the visitor.
+     */
+    private static long legacyVisits( Document tree )
+    {
+        Element root = tree.getDocumentElement();
+        long documentSize = subtreeSize( root );
+        //buildings, appearances, relief features and land uses are each searched in the whole document
+        long visits = 4 * documentSize;
+        //getSceneBoundary scans the document, and each bounding box for both corners
+        visits += 2 * ( documentSize + 2 * scanVisits( root, "gml:boundedBy" ) );
+        //gatherPolygons, the six attribute scans and the address scan of parseSemantics
+        visits += 8 * scanVisits( root, "bldg:Building" );
+        visits += scanVisits( root, "luse:LandUse" );
+        //four scans of each address, one of each locality and two of each thoroughfare
+        visits += 4 * scanVisits( root, "bldg:address" ) + scanVisits( root, "xAL:Locality" )
+                + 2 * scanVisits( root, "xAL:Thoroughfare" );
+        //the search for triangulated surfaces and gatherTriangles, with a single surface per relief feature
+        visits += 2 * scanVisits( root, "dem:ReliefFeature" );
+        //polygons and triangles are searched for gml:pos first and for gml:posList when there is none
+        visits += 2 * ( scanVisits( root, "gml:Polygon" ) + scanVisits( root, "gml:Triangle" ) );
+        return visits;
+    }
+
+    /**
+     * Nodes touched when scanning each element with the given name once
+     */
+    private static long scanVisits( Element parent, String tagName )
+    {
+        long visits = 0;
+        NodeList elements = parent.getElementsByTagName( tagName );
+        for ( int e = 0; e < elements.getLength(); e++ )
+        {
+            visits += subtreeSize( elements.item( e ) );
+        }
+        return visits;
+    }
+
+    private static long subtreeSize( Node node )
+    {
+        long size = 1;
+        for ( Node child = node.getFirstChild(); child != null; child = child.getNextSibling() )
+        {
+            size += subtreeSize( child );
+        }
+        return size;
+    }
+
+    /**
+     * Generate a city model with buildings made of rectangular polygons, an address for every building,
+     * one material per building and a relief made of a single triangulated surface.
+     */
+    private static String generateCityModel()
+    {
+        StringBuilder gml = new StringBuilder();
+        gml.append( "<core:CityModel xmlns:core=\"c\" xmlns:gml=\"g\" xmlns:bldg=\"b\" xmlns:app=\"a\" xmlns:dem=\"d\" xmlns:xAL=\"x\">\n" );
+        gml.append( "<gml:boundedBy><gml:Envelope><gml:lowerCorner>0 0 0</gml:lowerCorner>"
+                + "<gml:upperCorner>1000 1000 50</gml:upperCorner></gml:Envelope></gml:boundedBy>\n" );
+        for ( int b = 0; b < BUILDINGS; b++ )
+        {
+            gml.append( "<core:cityObjectMember><bldg:Building gml:id=\"B" ).append( b ).append( "\">" );
+            gml.append( "<gml:name>Building " ).append( b ).append( "</gml:name>" );
+            gml.append( "<bldg:measuredHeight>" ).append( 10 + b % 7 ).append( "</bldg:measuredHeight>" );
+            for ( int p = 0; p < POLYGONS; p++ )
+            {
+                gml.append( "<bldg:boundedBy><bldg:WallSurface><bldg:lod2MultiSurface><gml:MultiSurface><gml:surfaceMember>" );
+                gml.append( "<gml:Polygon gml:id=\"B" ).append( b ).append( "_P" ).append( p ).append( "\"><gml:exterior><gml:LinearRing><gml:posList>" );
+                gml.append( b ).append( " " ).append( p ).append( " 0 " ).append( b + 1 ).append( " " ).append( p ).append( " 0 " );
+                gml.append( b + 1 ).append( " " ).append( p ).append( " 10 " ).append( b ).append( " " ).append( p ).append( " 10 " );
+                gml.append( b ).append( " " ).append( p ).append( " 0" );
+                gml.append( "</gml:posList></gml:LinearRing></gml:exterior></gml:Polygon>" );
+                gml.append( "</gml:surfaceMember></gml:MultiSurface></bldg:lod2MultiSurface></bldg:WallSurface></bldg:boundedBy>\n" );
+            }
+            gml.append( "<bldg:address><core:Address><core:xalAddress><xAL:AddressDetails><xAL:Country>" );
+            gml.append( "<xAL:CountryName>Germany</xAL:CountryName><xAL:Locality Type=\"Town\"><xAL:LocalityName>Town</xAL:LocalityName>" );
+            gml.append( "<xAL:Thoroughfare Type=\"Street\"><xAL:ThoroughfareNumber>" ).append( b ).append( "</xAL:ThoroughfareNumber>" );
+            gml.append( "<xAL:ThoroughfareName>Street</xAL:ThoroughfareName></xAL:Thoroughfare></xAL:Locality>" );
+            gml.append( "</xAL:Country></xAL:AddressDetails></core:xalAddress></core:Address></bldg:address>" );
+            gml.append( "<app:appearance><app:Appearance><app:surfaceDataMember><app:X3DMaterial>" );
+            gml.append( "<app:diffuseColor>0.8 0.8 0.8</app:diffuseColor><app:target>#B" ).append( b ).append( "_P0</app:target>" );
+            gml.append( "</app:X3DMaterial></app:surfaceDataMember></app:Appearance></app:appearance>" );
+            gml.append( "</bldg:Building></core:cityObjectMember>\n" );
+        }
+        gml.append( "<core:cityObjectMember><dem:ReliefFeature gml:id=\"R\"><dem:reliefComponent><dem:TINRelief><dem:tin>" );
+        gml.append( "<gml:TriangulatedSurface gml:id=\"TIN\"><gml:trianglePatches>\n" );
+        for ( int t = 0; t < TRIANGLES; t++ )
+        {
+            gml.append( "<gml:Triangle><gml:exterior><gml:LinearRing><gml:posList>" );
+            gml.append( t ).append( " 0 0 " ).append( t + 1 ).append( " 0 0 " ).append( t ).append( " 1 0 " ).append( t ).append( " 0 0" );
+            gml.append( "</gml:posList></gml:LinearRing></gml:exterior></gml:Triangle>\n" );
+        }
+        gml.append( "</gml:trianglePatches></gml:TriangulatedSurface></dem:tin></dem:TINRelief></dem:reliefComponent>" );
+        gml.append( "</dem:ReliefFeature></core:cityObjectMember>\n</core:CityModel>\n" );
+        return gml.toString();
+    }
+}
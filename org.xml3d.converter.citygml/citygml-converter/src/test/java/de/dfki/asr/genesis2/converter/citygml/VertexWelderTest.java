@@ -0,0 +1,97 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Welding has to share vertices within the tolerance, also across the cells positions are quantized to,
+ * and keep separate vertices where polygons meet at a crease.
+ */
+public class VertexWelderTest
+    extends TestCase
+{
+    public VertexWelderTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( VertexWelderTest.class );
+    }
+
+    public void testTolerance()
+    {
+        GeometryBuffer exact = new GeometryBuffer();
+        VertexWelder welder = new VertexWelder( exact, 4 );
+        assertEquals( 0, welder.add( 3500000.25, 5400000.5, 0.0 ) );
+        assertEquals( 0, welder.add( 3500000.25, 5400000.5, -0.0 ) );
+        assertEquals( 1, welder.add( 3500000.2501, 5400000.5, 0.0 ) );
+
+        GeometryBuffer tolerant = new GeometryBuffer();
+        welder = new VertexWelder( tolerant, 4, 0.001 );
+        //the cells are 0.002 wide, so these positions lie in different cells
+        assertEquals( 0, welder.add( 3500000.0019, 5400000.5, 10.0 ) );
+        assertEquals( 0, welder.add( 3500000.0021, 5400000.5005, 9.9995 ) );
+        assertEquals( 1, welder.add( 3500000.0035, 5400000.5, 10.0 ) );
+        //many vertices make the table grow
+        for ( int i = 0; i < 1000; i++ )
+        {
+            welder.add( i, 0, 0 );
+        }
+        assertEquals( 1002, welder.size() );
+        assertEquals( 1, welder.add( 3500000.0030, 5400000.5, 10.0 ) );
+        assertEquals( 3500000.0019, tolerant.getX( 0 ) );
+    }
+
+    public void testCreaseAngle()
+    {
+        //two coplanar quads and a wall standing on their common edge
+        GeometryBuffer welded = new GeometryBuffer();
+        VertexWelder welder = new VertexWelder( welded, 12, 0.001 );
+        welder.setCreaseAngle( 30 );
+        assertEquals( 2, welder.addTriangles( quad( 0, 0, 0, 1, 0, 0, 1, 1, 0, 0, 1, 0 ) ) );
+        assertEquals( 2, welder.addTriangles( quad( 1, 0, 0, 2, 0, 0, 2, 1, 0, 1, 1, 0 ) ) );
+        assertEquals( 2, welder.addTriangles( quad( 1, 0, 0, 1, 1, 0, 1, 1, 1, 1, 0, 1 ) ) );
+        //a degenerated triangle is dropped
+        assertEquals( 0, welder.addTriangles( quad( 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0 ) ) );
+        welder.computeNormals();
+
+        assertEquals( 6 + 4, welded.getVertexCount() );
+        assertEquals( 18, welded.getIndexCount() );
+        for ( int v = 0; v < 6; v++ )
+        {
+            assertEquals( 0.0, welded.getZ( v ) );
+            assertEquals( 1.0f, Math.abs( welded.getNormals()[v * 3 + 2] ) );
+        }
+        assertEquals( 1.0f, Math.abs( welded.getNormals()[6 * 3] ) );
+
+        //above the crease angle, the wall shares the vertices of the ground
+        welded = new GeometryBuffer();
+        welder = new VertexWelder( welded, 12 );
+        welder.setCreaseAngle( 100 );
+        welder.addTriangles( quad( 1, 0, 0, 2, 0, 0, 2, 1, 0, 1, 1, 0 ) );
+        welder.addTriangles( quad( 1, 0, 0, 1, 1, 0, 1, 1, 1, 1, 0, 1 ) );
+        assertEquals( 6, welded.getVertexCount() );
+    }
+
+    public void testOpenRing()
+    {
+        XmlPoly closed = new XmlPoly();
+        closed.setPositions( new double[] { 0, 0, 0, 1, 0, 0, 1, 1, 0, 0, 0, 0 }, 4 );
+        assertEquals( 3, closed.getGeometry().getVertexCount() );
+        XmlPoly open = new XmlPoly();
+        open.setPositions( new double[] { 0, 0, 0, 1, 0, 0, 1, 1, 0 }, 3 );
+        assertEquals( 3, open.getGeometry().getVertexCount() );
+    }
+
+    private static GeometryBuffer quad( double... coordinates )
+    {
+        GeometryBuffer quad = new GeometryBuffer();
+        quad.addVertices( coordinates, 0, 4 );
+        quad.addTriangle( 0, 1, 2 );
+        quad.addTriangle( 0, 2, 3 );
+        return quad;
+    }
+}
@@ -0,0 +1,132 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Texture coordinates of ground objects have to follow from the world file and the size in the header of the
+ * image, and each world file has to be read only once.
+ */
+public class WorldFileTest
+    extends TestCase
+{
+    private File directory;
+
+    public WorldFileTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( WorldFileTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile( "textures", "" );
+        directory.delete();
+        directory.mkdir();
+        WorldFile.clearCache();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for ( File file : directory.listFiles() )
+        {
+            file.delete();
+        }
+        directory.delete();
+        WorldFile.clearCache();
+    }
+
+    public void testTexCoords() throws Exception
+    {
+        writeTiff( new File( directory, "ortho.tif" ), 400, 200 );
+        writeLines( new File( directory, "ortho.tfw" ), "0.5", "0", "0", "-0.5", "3500000", "5400100" );
+        assertEquals( 400, WorldFile.readImageSize( new File( directory, "ortho.tif" ) )[0] );
+        assertEquals( 200, WorldFile.readImageSize( new File( directory, "ortho.tif" ) )[1] );
+
+        WorldFile georeference = WorldFile.forTexture( directory.getPath(), "ortho.tif", 0, 0 );
+        assertNotNull( georeference );
+        assertSame( georeference, WorldFile.forTexture( directory.getPath(), "ortho.tif", 0, 0 ) );
+
+        GeometryBuffer geometry = new GeometryBuffer();
+        geometry.addVertex( 3500000, 5400100, 0 );
+        geometry.addVertex( 3500100, 5400050, 0 );
+        geometry.addVertex( 3500200, 5400000, 0 );
+        georeference.setTexCoords( geometry );
+        float[] texCoords = geometry.getTexCoords();
+        assertEquals( 0.0f, texCoords[0] );
+        assertEquals( 1.0f, texCoords[1] );
+        assertEquals( 0.5f, texCoords[2] );
+        assertEquals( 0.5f, texCoords[3] );
+        assertEquals( 1.0f, texCoords[4] );
+        assertEquals( 0.0f, texCoords[5] );
+    }
+
+    public void testMissing() throws Exception
+    {
+        assertNull( WorldFile.forTexture( directory.getPath(), "missing.jpg", 100, 100 ) );
+        assertNull( WorldFile.forTexture( directory.getPath(), "", 100, 100 ) );
+
+        //without a readable image the given resolution is used
+        writeLines( new File( directory, "missing.jgw" ), "1", "0", "0", "-1", "0", "100" );
+        assertNull( WorldFile.forTexture( directory.getPath(), "missing.jpg", 100, 100 ) );
+        WorldFile.clearCache();
+        assertNotNull( WorldFile.forTexture( directory.getPath(), "missing.jpg", 100, 100 ) );
+    }
+
+    private static void writeLines( File file, String... lines ) throws IOException
+    {
+        FileWriter writer = new FileWriter( file );
+        try
+        {
+            for ( String line : lines )
+            {
+                writer.write( line + "\n" );
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write the header of a big endian TIFF image with width and length tags only
+     */
+    private static void writeTiff( File file, int width, int height ) throws IOException
+    {
+        DataOutputStream output = new DataOutputStream( new FileOutputStream( file ) );
+        try
+        {
+            output.writeShort( 0x4D4D );
+            output.writeShort( 42 );
+            output.writeInt( 8 );
+            output.writeShort( 2 );
+            output.writeShort( 256 );
+            output.writeShort( 3 );
+            output.writeInt( 1 );
+            output.writeShort( width );
+            output.writeShort( 0 );
+            output.writeShort( 257 );
+            output.writeShort( 4 );
+            output.writeInt( 1 );
+            output.writeInt( height );
+            output.writeInt( 0 );
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.File;
+import javax.xml.parsers.DocumentBuilderFactory;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * The streamed document has to be well-formed, with meshes and shaders in defs sections and groups in between,
+ * whether indented or not.
+ */
+public class XML3DStreamWriterTest
+    extends TestCase
+{
+    private File file;
+
+    public XML3DStreamWriterTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( XML3DStreamWriterTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile( "scene", ".xhtml" );
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testDocument() throws Exception
+    {
+        for ( boolean indent : new boolean[] { false, true } )
+        {
+            writeScene( new XML3DStreamWriter( file.getPath(), indent ) );
+            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( file );
+
+            NodeList defs = document.getElementsByTagName( "defs" );
+            assertEquals( 2, defs.getLength() );
+            Element data = (Element) document.getElementsByTagName( "data" ).item( 0 );
+            assertEquals( "M1", data.getAttribute( "id" ) );
+            assertEquals( "0 1 2 ", getValues( data, "int" ) );
+            assertEquals( "1.5 0.0 0.0 2.0 0.0 0.0 2.0 1.0 0.0 ", getValues( data, "float3" ) );
+            assertEquals( "0.0 0.0 1.0 0.0 1.0 1.0 ", getValues( data, "float2" ) );
+
+            Element group = (Element) document.getElementsByTagName( "group" ).item( 0 );
+            assertEquals( "B1_id", group.getAttribute( "id" ) );
+            assertEquals( "#M1", ( (Element) document.getElementsByTagName( "mesh" ).item( 0 ) ).getAttribute( "src" ) );
+            assertEquals( "Straße & Platz", document.getElementsByTagName( "div" ).item( 0 ).getTextContent() );
+            assertEquals( "shader", ( (Element) defs.item( 1 ) ).getElementsByTagName( "shader" ).item( 0 ).getNodeName() );
+            assertEquals( 1, document.getElementsByTagName( "view" ).getLength() );
+        }
+    }
+
+    public void testRelative() throws Exception
+    {
+        XML3DStreamWriter writer = new XML3DStreamWriter( file.getPath(), false );
+        writer.setOrigin( new double[] { 1, 0, 0 } );
+        writeScene( writer );
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( file );
+
+        Element data = (Element) document.getElementsByTagName( "data" ).item( 0 );
+        assertEquals( "0.5 0.0 0.0 1.0 0.0 0.0 1.0 1.0 0.0 ", getValues( data, "float3" ) );
+        Element transform = (Element) document.getElementsByTagName( "transform" ).item( 0 );
+        assertEquals( "1.0 0.0 0.0", transform.getAttribute( "translation" ) );
+        Element group = (Element) document.getElementsByTagName( "group" ).item( 0 );
+        assertEquals( "#" + transform.getAttribute( "id" ), group.getAttribute( "transform" ) );
+        assertEquals( "", ( (Element) group.getElementsByTagName( "group" ).item( 0 ) ).getAttribute( "transform" ) );
+    }
+
+    private static void writeScene( SceneWriter writer ) throws Exception
+    {
+        GeometryBuffer geometry = new GeometryBuffer();
+        geometry.addVertex( 1.5, 0, 0 );
+        geometry.addVertex( 2, 0, 0 );
+        geometry.addVertex( 2, 1, 0 );
+        geometry.addTriangle( 0, 1, 2 );
+        geometry.setTexCoord( 1, 1, 0 );
+        geometry.setTexCoord( 2, 1, 1 );
+        writer.writeMesh( "M1", geometry );
+
+        SceneGroup building = new SceneGroup( "B1_id" );
+        SceneGroup polygon = new SceneGroup( "B1_child_0", building );
+        SceneGroup meshReference = new SceneGroup( polygon );
+        meshReference.makeMesh();
+        meshReference.addAttribute( "src", "#M1" );
+        SceneGroup semantics = new SceneGroup( building );
+        semantics.addAttribute( "xmlns", "http://www.w3.org/1999/xhtml" );
+        semantics.addTextContent( "Straße & Platz" );
+        semantics.makeDiv();
+        writer.writeGroup( building );
+
+        xmlShader shader = new xmlShader();
+        shader.setID( "material_0" );
+        shader.setShaderType( "Material" );
+        shader.setDiffuseColor( "1 0 0" );
+        writer.writeShader( shader );
+        writer.writeView( "defaultView", "0 0 100", "0 0 1 0" );
+        writer.finish();
+    }
+
+    private static String getValues( Element data, String type )
+    {
+        return data.getElementsByTagName( type ).item( 0 ).getTextContent();
+    }
+}
@@ -0,0 +1,276 @@
+package de.dfki.asr.genesis2.converter.citygml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.w3c.dom.Element;
+
+/**
+ * Parsing a file cut into many ranges has to hand the same city objects to the handler,
+ * in the same order, as a single gmlStreamParser.
+ */
+public class gmlParallelParserTest
+    extends TestCase
+{
+    private static final int BUILDINGS = 120;
+
+    private File file;
+
+    public gmlParallelParserTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( gmlParallelParserTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile( "citymodel", ".gml" );
+        OutputStream out = new FileOutputStream( file );
+        out.write( generateCityModel().getBytes( "UTF-8" ) );
+        out.close();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testRanges() throws Exception
+    {
+        //small regions, so the scan crosses region boundaries as it does for files larger than 2 GB
+        gmlFileSplitter splitter = new gmlFileSplitter( file.getPath(), 4096 );
+        assertTrue( splitter.isSplittable() );
+        List<long[]> ranges = splitter.split( 1000 );
+        assertTrue( ranges.size() > 10 );
+        for ( int r = 1; r < ranges.size(); r++ )
+        {
+            assertEquals( ranges.get( r - 1 )[1], ranges.get( r )[0] );
+        }
+        splitter.close();
+    }
+
+    /**
+     * Member tags within comments, CDATA sections and processing instructions must not start a range
+     */
+    public void testMarkupSkipped() throws Exception
+    {
+        StringBuilder gml = new StringBuilder();
+        gml.append( "<core:CityModel xmlns:core=\"c\" xmlns:gml=\"g\" xmlns:bldg=\"b\">\n" );
+        for ( int b = 0; b < 20; b++ )
+        {
+            gml.append( "<core:cityObjectMember><bldg:Building gml:id=\"B" ).append( b ).append( "\">" );
+            gml.append( "<!-- <core:cityObjectMember> --><?note <app:appearanceMember>?>" );
+            gml.append( "<gml:description><![CDATA[<core:cityObjectMember><app:appearanceMember>]]></gml:description>" );
+            gml.append( "</bldg:Building></core:cityObjectMember>\n" );
+        }
+        gml.append( "</core:CityModel>\n" );
+        byte[] bytes = gml.toString().getBytes( "UTF-8" );
+        OutputStream out = new FileOutputStream( file );
+        out.write( bytes );
+        out.close();
+
+        gmlFileSplitter splitter = new gmlFileSplitter( file.getPath(), 4096 );
+        List<long[]> ranges = splitter.split( 1 );
+        splitter.close();
+        //the text in front of the first member, then one range per member
+        assertEquals( 21, ranges.size() );
+        for ( int r = 1; r < ranges.size(); r++ )
+        {
+            String start = new String( bytes, (int) ranges.get( r )[0], 23, "UTF-8" );
+            assertEquals( "<core:cityObjectMember>", start );
+        }
+    }
+
+    public void testSameObjectsAsStreamParser() throws Exception
+    {
+        Map<String, Building> buildings = new LinkedHashMap<String, Building>();
+        Map<String, Semantics> semantics = new LinkedHashMap<String, Semantics>();
+        Map<String, Ground> ground = new LinkedHashMap<String, Ground>();
+        Map<String, xmlShader> shaders = new LinkedHashMap<String, xmlShader>();
+        IdRegistry registry = new IdRegistry();
+        gmlStreamParser stream = new gmlStreamParser( file.getPath() );
+        stream.parse( new CityObjectCollector( buildings, semantics, ground, shaders, registry ), registry );
+
+        Map<String, Building> parallelBuildings = new LinkedHashMap<String, Building>();
+        Map<String, Semantics> parallelSemantics = new LinkedHashMap<String, Semantics>();
+        Map<String, Ground> parallelGround = new LinkedHashMap<String, Ground>();
+        Map<String, xmlShader> parallelShaders = new LinkedHashMap<String, xmlShader>();
+        IdRegistry parallelRegistry = new IdRegistry();
+        gmlParallelParser parallel = new gmlParallelParser( file.getPath(), 4 );
+        gmlFileSplitter splitter = new gmlFileSplitter( file.getPath(), 4096 );
+        parallel.parse( splitter, splitter.split( 1000 ), new CityObjectCollector( parallelBuildings, parallelSemantics,
+                parallelGround, parallelShaders, parallelRegistry ), parallelRegistry );
+        splitter.close();
+
+        assertEquals( BUILDINGS, buildings.size() );
+        assertEquals( new ArrayList<String>( buildings.keySet() ), new ArrayList<String>( parallelBuildings.keySet() ) );
+        assertEquals( new ArrayList<String>( semantics.keySet() ), new ArrayList<String>( parallelSemantics.keySet() ) );
+        assertEquals( new ArrayList<String>( ground.keySet() ), new ArrayList<String>( parallelGround.keySet() ) );
+        assertEquals( new ArrayList<String>( shaders.keySet() ), new ArrayList<String>( parallelShaders.keySet() ) );
+        assertEquals( registry.size(), parallelRegistry.size() );
+        assertEquals( "groundObject_1", new ArrayList<String>( parallelGround.keySet() ).get( 1 ) );
+        for ( String id : buildings.keySet() )
+        {
+            List<XmlPoly> expected = buildings.get( id ).getPolyList();
+            List<XmlPoly> actual = parallelBuildings.get( id ).getPolyList();
+            assertEquals( expected.size(), actual.size() );
+            for ( int p = 0; p < expected.size(); p++ )
+            {
+                assertTrue( Arrays.equals( expected.get( p ).getGeometry().getPositions(), actual.get( p ).getGeometry().getPositions() ) );
+                xmlShader shader = registry.getShader( expected.get( p ).getHandle() );
+                xmlShader parallelShader = parallelRegistry.getShader( actual.get( p ).getHandle() );
+                assertEquals( shader == null ? null : shader.getID(), parallelShader == null ? null : parallelShader.getID() );
+            }
+        }
+        for ( String id : semantics.keySet() )
+        {
+            assertEquals( semantics.get( id ).getSemanticList(), parallelSemantics.get( id ).getSemanticList() );
+        }
+        assertEquals( "0 0 0", parallel.getSceneBoundary( "lower" ) );
+        assertEquals( stream.getSceneBoundary( "upper" ), parallel.getSceneBoundary( "upper" ) );
+    }
+
+    /**
+     * While the handler is slow, no more than one range per thread and a few more may be read ahead of the range
+     * handed over, instead of all ranges of the file
+     */
+    public void testBoundedReadAhead() throws Exception
+    {
+        final byte[] bytes = generateCityModel().getBytes( "UTF-8" );
+        final AtomicInteger opened = new AtomicInteger();
+        gmlFileSplitter splitter = new gmlFileSplitter( file.getPath(), 4096 )
+        {
+            @Override
+            public InputStream openRange( long[] range )
+            {
+                opened.incrementAndGet();
+                return super.openRange( range );
+            }
+        };
+        final List<long[]> ranges = splitter.split( 1000 );
+        final int[] maxAhead = new int[1];
+        gmlParallelParser parallel = new gmlParallelParser( file.getPath(), 4 );
+        parallel.parse( splitter, ranges, new CityObjectHandler()
+        {
+            public void building( Building building, Semantics semantics )
+            {
+                long position = indexOf( bytes, "gml:id=\"" + building.getID() + "\"" );
+                int range = 0;
+                while ( ranges.get( range )[1] <= position )
+                {
+                    range++;
+                }
+                //all ranges in front of the one holding the building have been handed over
+                maxAhead[0] = Math.max( maxAhead[0], opened.get() - range - 1 );
+                try
+                {
+                    Thread.sleep( 5 );
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new IllegalStateException( e );
+                }
+            }
+
+            public void ground( Ground ground )
+            {
+            }
+
+            public void appearance( Element appearance )
+            {
+            }
+        }, new IdRegistry() );
+        splitter.close();
+
+        int bound = 4 + gmlParallelParser.RANGES_AHEAD;
+        assertTrue( ranges.size() > 2 * bound );
+        assertEquals( ranges.size(), opened.get() );
+        assertTrue( "Ranges read ahead: " + maxAhead[0], maxAhead[0] <= bound );
+        assertEquals( bound, parallel.getMaxPending() );
+    }
+
+    private static long indexOf( byte[] bytes, String text )
+    {
+        byte[] pattern = text.getBytes( StandardCharsets.UTF_8 );
+        for ( int i = 0; i + pattern.length <= bytes.length; i++ )
+        {
+            int j = 0;
+            while ( j < pattern.length && bytes[i + j] == pattern[j] )
+            {
+                j++;
+            }
+            if ( j == pattern.length )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * City model with an xml declaration and a comment in front of the root, buildings with addresses,
+     * appearances as members of their own and two relief features without ids
+     */
+    private static String generateCityModel()
+    {
+        StringBuilder gml = new StringBuilder();
+        gml.append( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- generated <core:cityObjectMember> -->\n" );
+        gml.append( "<core:CityModel xmlns:core=\"c\" xmlns:gml=\"g\" xmlns:bldg=\"b\" xmlns:app=\"a\" xmlns:dem=\"d\" xmlns:xAL=\"x\">\n" );
+        gml.append( "<gml:boundedBy><gml:Envelope><gml:lowerCorner>0 0 0</gml:lowerCorner>"
+                + "<gml:upperCorner>1000 1000 50</gml:upperCorner></gml:Envelope></gml:boundedBy>\n" );
+        for ( int b = 0; b < BUILDINGS; b++ )
+        {
+            gml.append( "<core:cityObjectMember>\n<bldg:Building gml:id=\"B" ).append( b ).append( "\">" );
+            gml.append( "<gml:name>Gebäude " ).append( b ).append( "</gml:name>" );
+            for ( int p = 0; p < 3; p++ )
+            {
+                gml.append( "<bldg:boundedBy><bldg:WallSurface><bldg:lod2MultiSurface><gml:MultiSurface><gml:surfaceMember>" );
+                gml.append( "<gml:Polygon gml:id=\"B" ).append( b ).append( "_P" ).append( p ).append( "\"><gml:exterior><gml:LinearRing><gml:posList>" );
+                gml.append( b ).append( ".5 " ).append( p ).append( " 0 " ).append( b + 1 ).append( " " ).append( p ).append( " 0 " );
+                gml.append( b + 1 ).append( " " ).append( p ).append( " 10 " ).append( b ).append( ".5 " ).append( p ).append( " 0" );
+                gml.append( "</gml:posList></gml:LinearRing></gml:exterior></gml:Polygon>" );
+                gml.append( "</gml:surfaceMember></gml:MultiSurface></bldg:lod2MultiSurface></bldg:WallSurface></bldg:boundedBy>\n" );
+            }
+            gml.append( "<bldg:address><core:Address><core:xalAddress><xAL:AddressDetails><xAL:Country>" );
+            gml.append( "<xAL:CountryName>Deutschland</xAL:CountryName><xAL:Locality Type=\"Town\"><xAL:LocalityName>Saarbrücken</xAL:LocalityName>" );
+            gml.append( "<xAL:Thoroughfare Type=\"Street\"><xAL:ThoroughfareNumber>" ).append( b ).append( "</xAL:ThoroughfareNumber>" );
+            gml.append( "<xAL:ThoroughfareName>Straße</xAL:ThoroughfareName></xAL:Thoroughfare></xAL:Locality>" );
+            gml.append( "</xAL:Country></xAL:AddressDetails></core:xalAddress></core:Address></bldg:address>" );
+            gml.append( "</bldg:Building>\n</core:cityObjectMember>\n" );
+            if ( b % 10 == 0 )
+            {
+                gml.append( "<app:appearanceMember><app:Appearance><app:surfaceDataMember><app:X3DMaterial>" );
+                gml.append( "<app:diffuseColor>0.8 0.2 0.2</app:diffuseColor><app:target>#B" ).append( b ).append( "_P0</app:target>" );
+                gml.append( "</app:X3DMaterial></app:surfaceDataMember></app:Appearance></app:appearanceMember>\n" );
+            }
+        }
+        for ( int r = 0; r < 2; r++ )
+        {
+            gml.append( "<core:cityObjectMember><dem:ReliefFeature><dem:reliefComponent><dem:TINRelief><dem:tin>" );
+            gml.append( "<gml:TriangulatedSurface><gml:trianglePatches>" );
+            gml.append( "<gml:Triangle><gml:exterior><gml:LinearRing><gml:posList>0 0 0 1 0 0 0 1 0 0 0 0</gml:posList>" );
+            gml.append( "</gml:LinearRing></gml:exterior></gml:Triangle>" );
+            gml.append( "</gml:trianglePatches></gml:TriangulatedSurface></dem:tin></dem:TINRelief></dem:reliefComponent>" );
+            gml.append( "</dem:ReliefFeature></core:cityObjectMember>\n" );
+        }
+        gml.append( "</core:CityModel>\n" );
+        return gml.toString();
+    }
+}